@@ -0,0 +1,148 @@
+package com.davidehrmann.vcdiff;
+
+import com.davidehrmann.vcdiff.engine.HashedDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of dictionary files, and of their
+ * {@link HashedDictionary} instances once an encoder has needed one, kept
+ * within a budget of bytes.  A cached file is read again if its size or
+ * modification time has changed.
+ *
+ * The budget counts a dictionary's contents, plus about twice that once it's
+ * hashed, for the engine's copy of the contents and its hash tables.  The
+ * most recently used dictionary is kept even if it alone exceeds the budget.
+ *
+ * This object is thread-safe.  Files are read and hashed outside the cache's
+ * lock, so a slow load doesn't hold up requests for other dictionaries.
+ */
+class DictionaryCache {
+
+    // Bytes a hashed dictionary costs, per byte of dictionary
+    private static final int kHashedCostFactor = 2;
+
+    private static final class Entry {
+        private final long length;
+        private final long lastModified;
+        private final byte[] contents;
+        private volatile HashedDictionary hashed;
+
+        private Entry(long length, long lastModified, byte[] contents) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contents = contents;
+        }
+
+        private long cost() {
+            return (hashed == null ? 1L : 1L + kHashedCostFactor) * contents.length;
+        }
+    }
+
+    private final long budget;
+
+    // In access order, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param budget approximate number of bytes of dictionaries to keep
+     */
+    DictionaryCache(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must be non-negative: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * @param dictionary name of the dictionary file
+     * @return the contents of the dictionary file
+     * @throws IOException if the file can't be read
+     */
+    byte[] contents(String dictionary) throws IOException {
+        return entry(dictionary).contents;
+    }
+
+    /**
+     * @param dictionary name of the dictionary file
+     * @return the dictionary file, hashed for encoding
+     * @throws IOException if the file can't be read
+     */
+    HashedDictionary hashed(String dictionary) throws IOException {
+        final Entry entry = entry(dictionary);
+        if (entry.hashed == null) {
+            final HashedDictionary hashed = new HashedDictionary(entry.contents);
+            synchronized (this) {
+                if (entry.hashed == null) {
+                    final boolean cached = entries.containsValue(entry);
+                    if (cached) {
+                        size -= entry.cost();
+                    }
+                    entry.hashed = hashed;
+                    if (cached) {
+                        size += entry.cost();
+                        evict();
+                    }
+                }
+            }
+        }
+        return entry.hashed;
+    }
+
+    /**
+     * @return the approximate number of bytes of dictionaries cached
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d dictionaries, %d bytes, %d hits, %d misses", entries.size(), size, hits, misses);
+    }
+
+    private Entry entry(String dictionary) throws IOException {
+        final File file = new File(dictionary).getCanonicalFile();
+        final String key = file.getPath();
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+                hits++;
+                return entry;
+            }
+            misses++;
+        }
+
+        // Stat before reading, so that a change during the read makes the
+        // next lookup read the file again.
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final Entry entry = new Entry(length, lastModified, VCDiffFileBasedCoder.OpenDictionary(key));
+        synchronized (this) {
+            final Entry replaced = entries.put(key, entry);
+            if (replaced != null) {
+                size -= replaced.cost();
+            }
+            size += entry.cost();
+            evict();
+        }
+        return entry;
+    }
+
+    // Drops the least recently used entries until the cache fits its budget,
+    // keeping the most recently used one.
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        while (size > budget && entries.size() > 1) {
+            size -= i.next().getValue().cost();
+            i.remove();
+        }
+    }
+}
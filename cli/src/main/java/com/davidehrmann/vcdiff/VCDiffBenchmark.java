@@ -0,0 +1,251 @@
+package com.davidehrmann.vcdiff;
+
+import com.davidehrmann.vcdiff.engine.HashedDictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures encoding and decoding of a target against a dictionary, for
+ * {@link VCDiffFileBasedCoder}'s bench command.
+ *
+ * Each run encodes the whole target one buffer-sized window at a time, then
+ * decodes the delta one window at a time, timing every window.  Warm-up runs
+ * are discarded.  Allocation is read from the JVM's per-thread allocation
+ * counter, where the JVM has one; everything runs on the calling thread.
+ */
+class VCDiffBenchmark {
+
+    private static final double kMegabyte = 1 << 20;
+
+    /**
+     * The measurements for one combination of options.
+     */
+    static final class Result {
+        final boolean interleaved;
+        final boolean checksum;
+        final boolean targetMatches;
+        final int bufferSize;
+
+        int iterations;
+        long targetSize;
+        long deltaSize;
+        long encodeNanos;
+        long decodeNanos;
+
+        // -1 if the JVM doesn't count allocations
+        long encodeAllocated = -1;
+        long decodeAllocated = -1;
+
+        long[] encodeLatencies;
+        long[] decodeLatencies;
+
+        Result(boolean interleaved, boolean checksum, boolean targetMatches, int bufferSize) {
+            this.interleaved = interleaved;
+            this.checksum = checksum;
+            this.targetMatches = targetMatches;
+            this.bufferSize = bufferSize;
+        }
+    }
+
+    private final byte[] dictionary;
+    private final byte[] target;
+    private final HashedDictionary hashedDictionary;
+    private final int warmup;
+    private final int iterations;
+
+    /**
+     * @param dictionary dictionary to encode against
+     * @param target target to encode
+     * @param warmup number of runs to discard before measuring
+     * @param iterations number of runs to measure
+     */
+    VCDiffBenchmark(byte[] dictionary, byte[] target, int warmup, int iterations) {
+        if (warmup < 0 || iterations <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid warmup %d or iterations %d", warmup, iterations
+            ));
+        }
+        this.dictionary = dictionary;
+        this.target = target;
+        this.hashedDictionary = new HashedDictionary(dictionary);
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs the benchmark for one combination of options.
+     *
+     * @throws IOException if the target doesn't survive encoding and decoding
+     */
+    Result Run(boolean interleaved, boolean checksum, boolean targetMatches, int bufferSize) throws IOException {
+        final VCDiffEncoderBuilder encoderBuilder = VCDiffEncoderBuilder.builder()
+                .withDictionary(hashedDictionary)
+                .withInterleaving(interleaved)
+                .withChecksum(checksum)
+                .withTargetMatches(targetMatches);
+        final VCDiffDecoderBuilder decoderBuilder = VCDiffDecoderBuilder.builder()
+                .withMaxTargetFileSize(Math.max(target.length, VCDiffFileBasedCoder.DEFAULT_MAX_TARGET_SIZE))
+                .withMaxTargetWindowSize(Math.max(bufferSize, VCDiffFileBasedCoder.DEFAULT_MAX_TARGET_SIZE));
+
+        final int windows = Math.max(1, (target.length + bufferSize - 1) / bufferSize);
+        final Result result = new Result(interleaved, checksum, targetMatches, bufferSize);
+        result.iterations = iterations;
+        result.targetSize = target.length;
+        result.encodeLatencies = new long[iterations * windows];
+        result.decodeLatencies = new long[iterations * windows];
+
+        // Ends of each window's delta; the first window's includes the header
+        final int[] deltaWindowEnds = new int[windows];
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream(target.length / 4);
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream(target.length);
+
+        for (int run = 0; run < warmup + iterations; run++) {
+            final boolean measured = run >= warmup;
+            final int latencyOffset = measured ? (run - warmup) * windows : 0;
+
+            delta.reset();
+            long allocated = AllocatedBytes();
+            long start = System.nanoTime();
+            VCDiffStreamingEncoder<OutputStream> encoder = encoderBuilder.buildStreaming();
+            encoder.startEncoding(delta);
+            for (int window = 0; window < windows; window++) {
+                final int offset = window * bufferSize;
+                final long windowStart = System.nanoTime();
+                encoder.encodeChunk(target, offset, Math.min(bufferSize, target.length - offset), delta);
+                if (measured) {
+                    result.encodeLatencies[latencyOffset + window] = System.nanoTime() - windowStart;
+                }
+                deltaWindowEnds[window] = delta.size();
+            }
+            encoder.finishEncoding(delta);
+            if (measured) {
+                result.encodeNanos += System.nanoTime() - start;
+                result.encodeAllocated = AddAllocated(result.encodeAllocated, allocated);
+            }
+
+            // toByteArray() copies, so it's kept out of the measurements
+            final byte[] deltaBytes = delta.toByteArray();
+            result.deltaSize = deltaBytes.length;
+
+            decoded.reset();
+            allocated = AllocatedBytes();
+            start = System.nanoTime();
+            VCDiffStreamingDecoder decoder = decoderBuilder.buildStreaming();
+            decoder.startDecoding(ByteBuffer.wrap(dictionary));
+            int deltaOffset = 0;
+            for (int window = 0; window < windows; window++) {
+                final long windowStart = System.nanoTime();
+                decoder.decodeChunk(ByteBuffer.wrap(deltaBytes, deltaOffset, deltaWindowEnds[window] - deltaOffset), decoded);
+                if (measured) {
+                    result.decodeLatencies[latencyOffset + window] = System.nanoTime() - windowStart;
+                }
+                deltaOffset = deltaWindowEnds[window];
+            }
+            if (deltaOffset < deltaBytes.length) {
+                decoder.decodeChunk(ByteBuffer.wrap(deltaBytes, deltaOffset, deltaBytes.length - deltaOffset), decoded);
+            }
+            decoder.finishDecoding();
+            if (measured) {
+                result.decodeNanos += System.nanoTime() - start;
+                result.decodeAllocated = AddAllocated(result.decodeAllocated, allocated);
+            }
+
+            if (run == 0 && !Arrays.equals(target, decoded.toByteArray())) {
+                throw new IOException("Decoded target does not match original target");
+            }
+        }
+
+        return result;
+    }
+
+    static void PrintHeader(PrintStream out) {
+        out.printf("%-11s %-8s %-14s %11s %7s %11s %11s %11s %11s %9s %9s %9s %9s%n",
+                "interleaved", "checksum", "target_matches", "buffer_size", "ratio",
+                "enc_MB/s", "dec_MB/s", "enc_B/MB", "dec_B/MB",
+                "enc_p50us", "enc_p99us", "dec_p50us", "dec_p99us"
+        );
+    }
+
+    static void Print(PrintStream out, Result result) {
+        // Of target, over all the measured runs
+        final double megabytes = result.targetSize * result.iterations / kMegabyte;
+        out.printf("%-11s %-8s %-14s %11d %7.4f %11.2f %11.2f %11s %11s %9.1f %9.1f %9.1f %9.1f%n",
+                result.interleaved, result.checksum, result.targetMatches, result.bufferSize,
+                result.targetSize > 0 ? (double) result.deltaSize / result.targetSize : 0.0,
+                megabytes / (result.encodeNanos / 1e9),
+                megabytes / (result.decodeNanos / 1e9),
+                PerMegabyte(result.encodeAllocated, megabytes),
+                PerMegabyte(result.decodeAllocated, megabytes),
+                Percentile(result.encodeLatencies, 0.50) / 1e3,
+                Percentile(result.encodeLatencies, 0.99) / 1e3,
+                Percentile(result.decodeLatencies, 0.50) / 1e3,
+                Percentile(result.decodeLatencies, 0.99) / 1e3
+        );
+    }
+
+    static final String kCsvHeader = "scenario,content,size,interleaved,checksum,target_matches,buffer_size," +
+            "target_size,delta_size,ratio,encode_mb_s,decode_mb_s,encode_p99_us,decode_p99_us";
+
+    /**
+     * Prints a result as a line of CSV, with columns as in kCsvHeader.  Fields
+     * are numbers, booleans, or the names of a scenario and a content, so
+     * none need quoting.
+     */
+    static void PrintCsv(PrintStream out, String scenario, String content, int size, Result result) {
+        final double megabytes = result.targetSize * result.iterations / kMegabyte;
+        out.printf(Locale.ROOT, "%s,%s,%d,%s,%s,%s,%d,%d,%d,%.6f,%.2f,%.2f,%.1f,%.1f%n",
+                scenario, content, size,
+                result.interleaved, result.checksum, result.targetMatches, result.bufferSize,
+                result.targetSize, result.deltaSize,
+                result.targetSize > 0 ? (double) result.deltaSize / result.targetSize : 0.0,
+                megabytes / (result.encodeNanos / 1e9),
+                megabytes / (result.decodeNanos / 1e9),
+                Percentile(result.encodeLatencies, 0.99) / 1e3,
+                Percentile(result.decodeLatencies, 0.99) / 1e3
+        );
+    }
+
+    /**
+     * @return the p-th percentile of values, by the nearest-rank method
+     */
+    static long Percentile(long[] values, double p) {
+        if (values.length == 0) {
+            return 0;
+        }
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+    }
+
+    private static String PerMegabyte(long allocated, double megabytes) {
+        return allocated < 0 ? "n/a" : String.format("%.0f", allocated / megabytes);
+    }
+
+    private static long AddAllocated(long total, long before) {
+        final long after = AllocatedBytes();
+        if (before < 0 || after < 0) {
+            return -1;
+        }
+        return Math.max(total, 0) + (after - before);
+    }
+
+    private static long AllocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+            if (hotSpotThreads.isThreadAllocatedMemorySupported() && hotSpotThreads.isThreadAllocatedMemoryEnabled()) {
+                return hotSpotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,393 @@
+package com.davidehrmann.vcdiff;
+
+import com.davidehrmann.vcdiff.VCDiffFileBasedCoder.FileSizes;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.davidehrmann.vcdiff.io.IOUtils.closeQuietly;
+
+/**
+ * A long-running server that encodes and decodes files for
+ * {@link VCDiffFileBasedCoder}'s client command, so that each request skips
+ * JVM startup and, through a {@link DictionaryCache}, reading and hashing
+ * dictionaries it has seen before.
+ *
+ * The server only listens on the loopback interface, and reads and writes the
+ * files named in requests itself, so file data never crosses the socket.
+ * Since it does that with its owner's permissions, a client has to prove it
+ * can read a token file, which the server creates at startup readable only by
+ * its owner, by sending the token in it.  A server can also be given a root
+ * directory, outside of which it won't read or write any file.
+ *
+ * A connection starts with the client sending kMagic and the token (modified
+ * UTF-8), and the server answering with kStatusOk, or with kStatusError and a
+ * message before closing the connection.  The connection then carries any
+ * number of requests, each answered before the next is read:
+ * <pre>
+ *   request:  op (byte), flags (byte), max target file size (long),
+ *             max target window size (int), buffer size (int),
+ *             dictionary, input and output file names (modified UTF-8)
+ *   response: kStatusOk, target size (long), delta size (long)
+ *          or kStatusError, message (modified UTF-8)
+ * </pre>
+ * A kOpShutdown request has no other fields; the server answers it, then
+ * stops accepting connections.  Each connection is served by one of a fixed
+ * number of threads.
+ */
+class VCDiffDaemon implements Runnable {
+
+    static final int kMagic = 0x56434431;  // "VCD1"
+
+    static final byte kOpEncode = 1;
+    static final byte kOpDecode = 2;
+    static final byte kOpShutdown = 3;
+
+    static final byte kFlagInterleaved = 1;
+    static final byte kFlagChecksum = 1 << 1;
+    static final byte kFlagTargetMatches = 1 << 2;
+    static final byte kFlagAllowVcdTarget = 1 << 3;
+    static final byte kFlagMmap = 1 << 4;
+
+    static final byte kStatusOk = 0;
+    static final byte kStatusError = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int kTokenSize = 32;
+
+    private final ServerSocket serverSocket;
+    private final DictionaryCache cache;
+    private final ExecutorService executor;
+    private final File tokenFile;
+    private final byte[] token;
+    private final File root;
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     * @param cacheSize approximate number of bytes of dictionaries to cache
+     * @param threads number of connections to serve at once
+     * @param tokenFile file to write the token to, replacing it if it exists,
+     *                  or null for {@link #DefaultTokenFile(int)}
+     * @param root directory that all files named in requests must be in, or
+     *             null to allow any file
+     * @throws IOException if the port can't be listened on, or the token file
+     * can't be written
+     */
+    VCDiffDaemon(int port, long cacheSize, int threads, File tokenFile, File root) throws IOException {
+        this.cache = new DictionaryCache(cacheSize);
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        try {
+            this.root = root != null ? root.getCanonicalFile() : null;
+            this.tokenFile = tokenFile != null ? tokenFile : DefaultTokenFile(serverSocket.getLocalPort());
+            this.token = NewToken();
+            WriteTokenFile(this.tokenFile, token);
+        } catch (IOException e) {
+            closeQuietly(serverSocket);
+            throw e;
+        }
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the file the server wrote its token to
+     */
+    File tokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * Returns the token file used when none is given: a file in the user's
+     * home directory named for the port.
+     *
+     * @param port the server's port
+     * @return the token file
+     */
+    static File DefaultTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".vcdiff-server-" + port + ".token");
+    }
+
+    // A random token, in hex so it can be sent as a string
+    private static byte[] NewToken() {
+        final byte[] random = new byte[kTokenSize];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder hex = new StringBuilder(2 * kTokenSize);
+        for (byte b : random) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString().getBytes(UTF_8);
+    }
+
+    // Creates the token file readable and writable only by its owner.  The
+    // file is created with those permissions, rather than restricted after
+    // it's created, so no one else can open it in between.
+    private static void WriteTokenFile(File file, byte[] token) throws IOException {
+        final Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            Files.createFile(path);
+            if (!(file.setReadable(false, false) && file.setReadable(true, true) &&
+                    file.setWritable(false, false) && file.setWritable(true, true))) {
+                throw new IOException(String.format("Error restricting permissions of %s", file));
+            }
+        }
+        Files.write(path, token);
+    }
+
+    private static String ReadTokenFile(File file) throws IOException {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), UTF_8).trim();
+        } catch (IOException e) {
+            throw new IOException(String.format("Error reading token file %s: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * @return the server's dictionary cache
+     */
+    DictionaryCache cache() {
+        return cache;
+    }
+
+    /**
+     * Accepts connections until {@link #close()} is called or a client asks
+     * the server to shut down.
+     */
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // Closed
+                    return;
+                } catch (IOException e) {
+                    System.err.printf("Error accepting connection: %s%n", e.getMessage());
+                    continue;
+                }
+
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            Serve(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    closeQuietly(socket);
+                    return;
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops accepting connections and interrupts the connections being served.
+     */
+    void close() {
+        closeQuietly(serverSocket);
+        executor.shutdownNow();
+        //noinspection ResultOfMethodCallIgnored
+        tokenFile.delete();
+    }
+
+    private void Serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != kMagic) {
+                return;
+            }
+            // Compared in constant time, so the token can't be guessed a byte
+            // at a time
+            if (!MessageDigest.isEqual(token, in.readUTF().getBytes(UTF_8))) {
+                WriteError(out, new IOException("Invalid token"));
+                out.flush();
+                return;
+            }
+            out.writeByte(kStatusOk);
+            out.flush();
+
+            while (true) {
+                final byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (op == kOpShutdown) {
+                    out.writeByte(kStatusOk);
+                    out.writeLong(0);
+                    out.writeLong(0);
+                    out.flush();
+                    close();
+                    return;
+                }
+
+                final byte flags = in.readByte();
+                final long maxTargetFileSize = in.readLong();
+                final int maxTargetWindowSize = in.readInt();
+                final int bufferSize = in.readInt();
+                final String dictionary = in.readUTF();
+                final String input = in.readUTF();
+                final String output = in.readUTF();
+
+                try {
+                    final FileSizes sizes;
+                    if (op == kOpEncode) {
+                        sizes = Encode(flags, bufferSize, Resolve(dictionary), Resolve(input), Resolve(output));
+                    } else if (op == kOpDecode) {
+                        sizes = Decode(flags, maxTargetFileSize, maxTargetWindowSize, bufferSize,
+                                Resolve(dictionary), Resolve(input), Resolve(output));
+                    } else {
+                        throw new IOException("Unknown request: " + op);
+                    }
+                    out.writeByte(kStatusOk);
+                    out.writeLong(sizes.target);
+                    out.writeLong(sizes.delta);
+                } catch (IOException e) {
+                    WriteError(out, e);
+                } catch (RuntimeException e) {
+                    // An invalid option, like a buffer size of 0
+                    WriteError(out, e);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The connection failed or the request was malformed; all that
+            // can be done is to drop it.
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    // Returns the canonical name of a file named in a request, which, if the
+    // server has a root, must be in it.  Resolving symbolic links first keeps
+    // a link within the root from naming a file outside of it.
+    private String Resolve(String name) throws IOException {
+        final File file = new File(name);
+        if (!file.isAbsolute()) {
+            throw new IOException(String.format("File name %s is not absolute", name));
+        }
+        final File canonical = file.getCanonicalFile();
+        if (root != null && !canonical.toPath().startsWith(root.toPath())) {
+            throw new IOException(String.format("File %s is outside of %s", name, root));
+        }
+        return canonical.getPath();
+    }
+
+    private static void WriteError(DataOutputStream out, Exception e) throws IOException {
+        out.writeByte(kStatusError);
+        out.writeUTF(e.getMessage() != null ? e.getMessage() : e.toString());
+    }
+
+    private FileSizes Encode(byte flags, int bufferSize, String dictionary, String target, String delta) throws IOException {
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                .withDictionary(cache.hashed(dictionary))
+                .withTargetMatches((flags & kFlagTargetMatches) != 0)
+                .withChecksum((flags & kFlagChecksum) != 0)
+                .withInterleaving((flags & kFlagInterleaved) != 0);
+        return (flags & kFlagMmap) != 0 ?
+                VCDiffFileBasedCoder.EncodeMappedFile(builder, bufferSize, target, delta) :
+                VCDiffFileBasedCoder.EncodeFile(builder, bufferSize, target, delta);
+    }
+
+    private FileSizes Decode(byte flags, long maxTargetFileSize, int maxTargetWindowSize, int bufferSize,
+                             String dictionary, String delta, String target) throws IOException {
+        VCDiffDecoderBuilder builder = VCDiffDecoderBuilder.builder()
+                .withMaxTargetFileSize(maxTargetFileSize)
+                .withMaxTargetWindowSize(maxTargetWindowSize)
+                .withAllowTargetMatches((flags & kFlagAllowVcdTarget) != 0);
+        final ByteBuffer contents = ByteBuffer.wrap(cache.contents(dictionary)).asReadOnlyBuffer();
+        return (flags & kFlagMmap) != 0 ?
+                VCDiffFileBasedCoder.DecodeMappedFile(builder.buildSimple(), DictionarySource.wrap(contents), delta, target) :
+                VCDiffFileBasedCoder.DecodeFile(builder, contents, bufferSize, delta, target);
+    }
+
+    /**
+     * Sends a request to the server listening on port, and waits for its
+     * response.  Relative file names are resolved against the client's
+     * working directory before being sent.
+     *
+     * @param tokenFile the server's token file, or null for
+     *                  {@link #DefaultTokenFile(int)}
+     * @return the sizes of the target and delta files
+     * @throws IOException if the server can't be reached or the request fails
+     */
+    static FileSizes Request(int port, File tokenFile, byte op, byte flags, long maxTargetFileSize,
+                             int maxTargetWindowSize, int bufferSize, String dictionary, String input,
+                             String output) throws IOException {
+        final String token = ReadTokenFile(tokenFile != null ? tokenFile : DefaultTokenFile(port));
+
+        final Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName(null), port);
+        } catch (IOException e) {
+            throw new IOException(String.format("Error connecting to server on port %d: %s", port, e.getMessage()));
+        }
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(kMagic);
+            out.writeUTF(token);
+            out.flush();
+            if (in.readByte() != kStatusOk) {
+                throw new IOException(in.readUTF());
+            }
+
+            out.writeByte(op);
+            if (op != kOpShutdown) {
+                out.writeByte(flags);
+                out.writeLong(maxTargetFileSize);
+                out.writeInt(maxTargetWindowSize);
+                out.writeInt(bufferSize);
+                out.writeUTF(new File(dictionary).getAbsolutePath());
+                out.writeUTF(new File(input).getAbsolutePath());
+                out.writeUTF(new File(output).getAbsolutePath());
+            }
+            out.flush();
+
+            if (in.readByte() != kStatusOk) {
+                throw new IOException(in.readUTF());
+            }
+            return new FileSizes(in.readLong(), in.readLong());
+        } catch (EOFException e) {
+            throw new IOException("Server closed the connection");
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+}
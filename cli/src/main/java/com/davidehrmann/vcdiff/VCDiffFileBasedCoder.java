@@ -20,12 +20,27 @@ import com.davidehrmann.vcdiff.io.ComparingOutputStream;
 import com.davidehrmann.vcdiff.io.CountingInputStream;
 import com.davidehrmann.vcdiff.io.CountingOutputStream;
 import com.davidehrmann.vcdiff.io.IOUtils;
+import com.davidehrmann.vcdiff.engine.HashedDictionary;
+import com.davidehrmann.vcdiff.util.DictionarySource;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.davidehrmann.vcdiff.io.IOUtils.closeQuietly;
 
@@ -35,6 +50,9 @@ import static com.davidehrmann.vcdiff.io.IOUtils.closeQuietly;
 public class VCDiffFileBasedCoder {
     public static final int DEFAULT_MAX_TARGET_SIZE = 1 << 26;      // 64 MB
 
+    // --mmap maps the target file in regions of at most this size
+    private static final long MAX_MAPPED_REGION_SIZE = 1L << 30;   // 1 GB
+
     public static class PositiveInteger implements IParameterValidator {
         public void validate(String name, String value)  throws ParameterException {
             int n = Integer.parseInt(value);
@@ -80,10 +98,137 @@ public class VCDiffFileBasedCoder {
         protected boolean allowVcdTarget = true;
     }
 
-    protected static class GlobalOptions {
+    protected static class InPlaceOptions {
+        @Parameter(names = {"-in_place", "--in_place"}, description = "Overwrite the dictionary file with the target, rather than writing a separate target file (requires --delta, and no --target)")
+        protected boolean inPlace = false;
+
+        @Parameter(names = {"-max_scratch_size", "--max_scratch_size"}, description = "With --in_place, the most megabytes of the dictionary held in memory while reordering copies that overwrite each other", validateWith = PositiveInteger.class)
+        protected int maxScratchSize = 64;
+    }
+
+    protected static class DictionaryOptions {
         @Parameter(names = {"-dictionary", "--dictionary"}, description = "File containing dictionary data (required)", required = true)
         protected String dictionary;
+    }
+
+    protected static class BatchOptions {
+        @Parameter(names = {"-manifest", "--manifest"}, description = "File listing one target and delta file per line, separated by a tab, optionally preceded by a dictionary file and a tab (required)", required = true)
+        protected String manifest;
+
+        @Parameter(names = {"-dictionary", "--dictionary"}, description = "File containing dictionary data, for manifest lines that don't name one")
+        protected String dictionary;
+
+        @Parameter(names = {"-decode", "--decode"}, description = "Decode each delta file into its target file, rather than encoding")
+        protected boolean decode = false;
+
+        @Parameter(names = {"-threads", "--threads"}, description = "Number of files to encode or decode at once", validateWith = PositiveInteger.class)
+        protected int threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    protected static class ServerOptions {
+        @Parameter(names = {"-port", "--port"}, description = "Port the server listens on, on the loopback interface; 0 picks a free port, which is printed on startup")
+        protected int port = 0;
+
+        @Parameter(names = {"-cache_size", "--cache_size"}, description = "Approximate number of megabytes of dictionaries the server keeps in memory")
+        protected long cacheSize = 256;
+
+        @Parameter(names = {"-threads", "--threads"}, description = "Number of connections to serve at once", validateWith = PositiveInteger.class)
+        protected int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"-token_file", "--token_file"}, description = "File the server writes the token clients must send to, readable only by its owner; defaults to .vcdiff-server-<port>.token in the home directory")
+        protected String tokenFile;
+
+        @Parameter(names = {"-root", "--root"}, description = "Directory that all files named in requests must be in")
+        protected String root;
+    }
+
+    protected static class ClientOptions {
+        @Parameter(names = {"-port", "--port"}, description = "Port of the server (required)", required = true, validateWith = PositiveInteger.class)
+        protected int port;
+
+        @Parameter(names = {"-dictionary", "--dictionary"}, description = "File containing dictionary data (required, except with --shutdown)")
+        protected String dictionary;
+
+        @Parameter(names = {"-decode", "--decode"}, description = "Have the server decode the delta file into the target file, rather than encoding")
+        protected boolean decode = false;
+
+        @Parameter(names = {"-shutdown", "--shutdown"}, description = "Stop the server")
+        protected boolean shutdown = false;
+
+        @Parameter(names = {"-token_file", "--token_file"}, description = "The server's token file; defaults to .vcdiff-server-<port>.token in the home directory")
+        protected String tokenFile;
+    }
+
+    protected static class SyntheticOptions {
+        @Parameter(names = {"-seed", "--seed"}, description = "Seed for synthetic dictionaries and targets")
+        protected long seed = 1;
+
+        @Parameter(names = {"-edit_rate", "--edit_rate"}, description = "Approximate fraction of a synthetic dictionary that's edited in its target")
+        protected double editRate = 0.01;
+
+        @Parameter(names = {"-edit_length", "--edit_length"}, description = "Mean length of an edit, or of a moved or repeated block, in a synthetic target", validateWith = PositiveInteger.class)
+        protected int editLength = 16;
+    }
+
+    protected static class BenchOptions {
+        @Parameter(names = {"-dictionary", "--dictionary"}, description = "File containing dictionary data (default is a synthetic dictionary)")
+        protected String dictionary;
+
+        @Parameter(names = {"-target", "--target"}, description = "Target file (default is a synthetic target, edited from the synthetic dictionary)")
+        protected String target;
+
+        @Parameter(names = {"-synthetic_size", "--synthetic_size"}, description = "Size of the synthetic dictionary, optionally with a k, m or g suffix")
+        protected String syntheticSize = "4m";
+
+        @Parameter(names = {"-scenario", "--scenario"}, description = "How the synthetic target is made: insertions, deletions, edits, moves, flips, shifted_duplicates or noise")
+        protected String scenario = "edits";
+
+        @Parameter(names = {"-content", "--content"}, description = "What the synthetic dictionary is made of: text, json, binary or mixed")
+        protected String content = "text";
+
+        @Parameter(names = {"-warmup", "--warmup"}, description = "Number of unmeasured runs of each combination of options")
+        protected int warmup = 2;
+
+        @Parameter(names = {"-iterations", "--iterations"}, description = "Number of measured runs of each combination of options", validateWith = PositiveInteger.class)
+        protected int iterations = 5;
+
+        @Parameter(names = {"-buffersizes", "--buffersizes"}, description = "Comma-separated window sizes to measure, optionally with k, m or g suffixes")
+        protected String bufferSizes = "64k,1m";
+    }
+
+    protected static class MacroBenchOptions {
+        @Parameter(names = {"-scenarios", "--scenarios"}, description = "Comma-separated scenarios to run (insertions, deletions, edits, moves, flips, shifted_duplicates, noise), or all")
+        protected String scenarios = "all";
+
+        @Parameter(names = {"-contents", "--contents"}, description = "Comma-separated contents to run (text, json, binary, mixed), or all")
+        protected String contents = "all";
+
+        @Parameter(names = {"-sizes", "--sizes"}, description = "Comma-separated dictionary sizes to run, optionally with k, m or g suffixes")
+        protected String sizes = "1k,1m";
+
+        @Parameter(names = {"-warmup", "--warmup"}, description = "Number of unmeasured runs of each workload")
+        protected int warmup = 1;
+
+        @Parameter(names = {"-iterations", "--iterations"}, description = "Number of measured runs of each workload", validateWith = PositiveInteger.class)
+        protected int iterations = 3;
+
+        @Parameter(names = {"-buffersize", "--buffersize"}, description = "Window size, optionally with a k, m or g suffix")
+        protected String bufferSize = "1m";
+
+        @Parameter(names = {"-csv", "--csv"}, description = "File to write results to, as CSV (default is stdout)")
+        protected String csv;
 
+        @Parameter(names = {"-corpus", "--corpus"}, description = "Directory to also write each workload's dictionary and target to")
+        protected String corpus;
+
+        @Parameter(names = {"-baseline", "--baseline"}, description = "CSV file from an earlier run; fail if any workload's delta grows by more than --tolerance")
+        protected String baseline;
+
+        @Parameter(names = {"-tolerance", "--tolerance"}, description = "Fraction a delta may grow by over --baseline before it counts as a regression")
+        protected double tolerance = 0.01;
+    }
+
+    protected static class GlobalOptions {
         @Parameter(names = {"-max_target_file_size", "--max_target_file_size"}, description = "Maximum target file size allowed by decoder")
         protected long maxTargetFileSize = (long) DEFAULT_MAX_TARGET_SIZE;
 
@@ -97,6 +242,9 @@ public class VCDiffFileBasedCoder {
 
         @Parameter(names = {"-stats", "--stats"}, description = "Report compression percentage")
         protected boolean stats = false;
+
+        @Parameter(names = {"-mmap", "--mmap"}, description = "Memory-map the dictionary and input files, and write the output file through a FileChannel (requires --target and --delta)")
+        protected boolean mmap = false;
     }
 
     private VCDiffFileBasedCoder() {
@@ -146,6 +294,216 @@ public class VCDiffFileBasedCoder {
         }
     }
 
+    private static FileChannel OpenChannelForReading(String file_name, String file_type) throws FileNotFoundException {
+        try {
+            return new RandomAccessFile(file_name, "r").getChannel();
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException(String.format(
+                    "Error opening %s file: %s",
+                    file_type, e.getMessage()
+            ));
+        }
+    }
+
+    private static FileChannel OpenChannelForUpdating(String file_name, String file_type) throws FileNotFoundException {
+        try {
+            return new RandomAccessFile(file_name, "rw").getChannel();
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException(String.format(
+                    "Error opening %s file: %s",
+                    file_type, e.getMessage()
+            ));
+        }
+    }
+
+    private static FileChannel OpenChannelForWriting(String file_name, String file_type) throws FileNotFoundException {
+        try {
+            return new FileOutputStream(file_name).getChannel();
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException(String.format(
+                    "Error opening %s file: %s",
+                    file_type, e.getMessage()
+            ));
+        }
+    }
+
+    // Maps the dictionary file and copies it into a newly allocated buffer with
+    // a single bulk read, since the encoder needs the dictionary in an array.
+    protected static byte[] MapDictionary(String dictionary) throws IOException {
+        FileChannel channel = OpenChannelForReading(dictionary, "dictionary");
+        try {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Dictionary file is too large to encode with: %d bytes", size));
+            }
+            byte[] contents = new byte[(int) size];
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, size).get(contents);
+            return contents;
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    protected static void CheckMappedFiles(String target, String delta) throws IOException {
+        if (target == null || target.isEmpty() || delta == null || delta.isEmpty()) {
+            throw new IOException("--mmap requires --target and --delta files");
+        }
+    }
+
+    // The sizes of a target file and its delta file
+    protected static class FileSizes {
+        protected final long target;
+        protected final long delta;
+
+        protected FileSizes(long target, long delta) {
+            this.target = target;
+            this.delta = delta;
+        }
+    }
+
+    // Encodes a target file into a delta file, reading the target through a
+    // --buffersize buffer.
+    protected static FileSizes EncodeFile(VCDiffEncoderBuilder builder, int bufferSize, String target, String delta) throws IOException {
+        CountingInputStream in = new CountingInputStream(OpenFileForReading(target, "target"));
+        try {
+            CountingOutputStream out = new CountingOutputStream(OpenFileForWriting(delta, "delta"));
+            try {
+                OutputStream vcDiffOut = builder.buildOutputStream(out);
+                try {
+                    IOUtils.copyLarge(in, vcDiffOut, new byte[bufferSize]);
+                    vcDiffOut.close();
+                } finally {
+                    closeQuietly(vcDiffOut);
+                }
+                return new FileSizes(in.getBytesRead(), out.getBytesWritten());
+            } finally {
+                closeQuietly(out);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Encodes the target from a mapping of the target file, one --buffersize
+    // window at a time, and writes each delta window to the delta file with
+    // a single gathering write.  The windows are the same as EncodeFile()'s,
+    // so the delta is too.
+    protected static FileSizes EncodeMappedFile(VCDiffEncoderBuilder builder, int bufferSize, String target, String delta) throws IOException {
+        FileChannel targetChannel = OpenChannelForReading(target, "target");
+        try {
+            FileChannel deltaChannel = OpenChannelForWriting(delta, "delta");
+            try {
+                VCDiffStreamingEncoder<GatheringByteChannel> encoder = builder.buildStreamingChannel();
+
+                final long targetSize = targetChannel.size();
+                final long regionSize = Math.max(bufferSize, (MAX_MAPPED_REGION_SIZE / bufferSize) * bufferSize);
+                byte[] window = new byte[(int) Math.min(bufferSize, targetSize)];
+
+                encoder.startEncoding(deltaChannel);
+                for (long position = 0; position < targetSize; position += regionSize) {
+                    ByteBuffer region = targetChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, targetSize - position));
+                    while (region.hasRemaining()) {
+                        final int length = Math.min(window.length, region.remaining());
+                        region.get(window, 0, length);
+                        encoder.encodeChunk(window, 0, length, deltaChannel);
+                    }
+                }
+                encoder.finishEncoding(deltaChannel);
+                return new FileSizes(targetSize, deltaChannel.position());
+            } finally {
+                closeQuietly(deltaChannel);
+            }
+        } finally {
+            closeQuietly(targetChannel);
+        }
+    }
+
+    // Decodes a delta file into a target file, reading the delta through a
+    // --buffersize buffer.
+    protected static FileSizes DecodeFile(VCDiffDecoderBuilder builder, ByteBuffer dictionary, int bufferSize, String delta, String target) throws IOException {
+        CountingInputStream in = new CountingInputStream(OpenFileForReading(delta, "delta"));
+        try {
+            InputStream vcDiffIn = builder.buildInputStream(in, dictionary);
+            try {
+                CountingOutputStream out = new CountingOutputStream(OpenFileForWriting(target, "target"));
+                try {
+                    IOUtils.copyLarge(vcDiffIn, out, new byte[bufferSize]);
+                    out.close();
+                    return new FileSizes(out.getBytesWritten(), in.getBytesRead());
+                } finally {
+                    closeQuietly(out);
+                }
+            } finally {
+                closeQuietly(vcDiffIn);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Decodes from a mapping of the delta file, reading the dictionary
+    // as the delta copies from it, and writes the target file through its
+    // FileChannel.
+    protected static FileSizes DecodeMappedFile(VCDiffDecoder decoder, DictionarySource dictionary, String delta, String target) throws IOException {
+        FileChannel deltaChannel = OpenChannelForReading(delta, "delta");
+        try {
+            final long deltaSize = deltaChannel.size();
+            if (deltaSize > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Delta file is too large to map: %d bytes", deltaSize));
+            }
+            ByteBuffer deltaBuffer = deltaChannel.map(FileChannel.MapMode.READ_ONLY, 0, deltaSize);
+
+            CountingOutputStream out = new CountingOutputStream(new OutputStreamExceptionMapper(
+                    Channels.newOutputStream(OpenChannelForWriting(target, "target")),
+                    "target"
+            ));
+            try {
+                decoder.decode(dictionary, deltaBuffer, out);
+                out.close();
+                return new FileSizes(out.getBytesWritten(), deltaSize);
+            } finally {
+                closeQuietly(out);
+            }
+        } finally {
+            closeQuietly(deltaChannel);
+        }
+    }
+
+    // Parses a comma-separated list of sizes, each optionally with a k, m or
+    // g suffix for binary kilobytes, megabytes or gigabytes.
+    protected static List<Integer> ParseSizes(String sizes, String size_type) throws IOException {
+        final List<Integer> parsed = new ArrayList<Integer>();
+        for (String size : sizes.split(",")) {
+            final String trimmed = size.trim().toLowerCase(Locale.ENGLISH);
+            final int shift = trimmed.endsWith("k") ? 10 : trimmed.endsWith("m") ? 20 : trimmed.endsWith("g") ? 30 : 0;
+            long value;
+            try {
+                value = Long.parseLong(shift == 0 ? trimmed : trimmed.substring(0, trimmed.length() - 1)) << shift;
+            } catch (NumberFormatException e) {
+                value = 0;
+            }
+            if (value <= 0 || value > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Invalid %s: %s", size_type, size));
+            }
+            parsed.add((int) value);
+        }
+        return parsed;
+    }
+
+    protected static <E extends Enum<E>> E[] ParseNames(Class<E> type, String names, String name_type) throws IOException {
+        try {
+            return WorkloadGenerator.Parse(type, names);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(String.format("Invalid %s: %s", name_type, names));
+        }
+    }
+
+    protected static void CheckSyntheticOptions(SyntheticOptions syntheticOptions) throws IOException {
+        if (!(syntheticOptions.editRate >= 0 && syntheticOptions.editRate <= 1)) {
+            throw new IOException("--edit_rate must be between 0 and 1");
+        }
+    }
+
     protected static class InputStreamExceptionMapper extends FilterInputStream {
 
         private final String type;
@@ -288,6 +646,9 @@ public class VCDiffFileBasedCoder {
         @ParametersDelegate
         private EncodeOptions encodeOptions = new EncodeOptions();
 
+        @ParametersDelegate
+        private DictionaryOptions dictionaryOptions = new DictionaryOptions();
+
         @ParametersDelegate
         private GlobalOptions globalOptions = new GlobalOptions();
 
@@ -295,7 +656,12 @@ public class VCDiffFileBasedCoder {
         private OptionalTargetAndDeltaOptions targetAndDeltaOptions = new OptionalTargetAndDeltaOptions();
 
         public void Encode() throws IOException {
-            byte[] dictionary = OpenDictionary(globalOptions.dictionary);
+            if (globalOptions.mmap) {
+                EncodeMapped();
+                return;
+            }
+
+            byte[] dictionary = OpenDictionary(dictionaryOptions.dictionary);
 
             // FIXME: support encodeOptions.json
             /*
@@ -347,11 +713,38 @@ public class VCDiffFileBasedCoder {
                 closeQuietly(fileIn);
             }
         }
+
+        // Encodes the target from a mapping of the target file, one --buffersize
+        // window at a time, and writes each delta window to the delta file with
+        // a single gathering write.  The windows are the same as Encode()'s, so
+        // the delta is too.
+        private void EncodeMapped() throws IOException {
+            CheckMappedFiles(targetAndDeltaOptions.target, targetAndDeltaOptions.delta);
+            byte[] dictionary = MapDictionary(dictionaryOptions.dictionary);
+
+            VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                    .withDictionary(dictionary)
+                    .withTargetMatches(encodeOptions.targetMatches)
+                    .withChecksum(encodeOptions.checksum)
+                    .withInterleaving(encodeOptions.interleaved);
+
+            FileSizes sizes = EncodeMappedFile(builder, globalOptions.bufferSize, targetAndDeltaOptions.target, targetAndDeltaOptions.delta);
+            if (globalOptions.stats && (sizes.target > 0)) {
+                System.err.printf("Original size: %d\tCompressed size: %d (%.2f%% of original)%n",
+                        sizes.target,
+                        sizes.delta,
+                        100.0 * sizes.delta / sizes.target
+                );
+            }
+        }
     }
 
     @Parameters(commandDescription = "Reconstruct target file from dictionary and delta file", separators = " =")
     private static class DecodeCommand extends VCDiffFileBasedCoder {
 
+        @ParametersDelegate
+        private DictionaryOptions dictionaryOptions = new DictionaryOptions();
+
         @ParametersDelegate
         private GlobalOptions globalOptions = new GlobalOptions();
 
@@ -361,8 +754,20 @@ public class VCDiffFileBasedCoder {
         @ParametersDelegate
         private OptionalTargetAndDeltaOptions targetAndDeltaFlags = new OptionalTargetAndDeltaOptions();
 
+        @ParametersDelegate
+        private InPlaceOptions inPlaceOptions = new InPlaceOptions();
+
         public void Decode() throws IOException {
-            byte[] dictionary = OpenDictionary(globalOptions.dictionary);
+            if (inPlaceOptions.inPlace) {
+                DecodeInPlace();
+                return;
+            }
+            if (globalOptions.mmap) {
+                DecodeMapped();
+                return;
+            }
+
+            byte[] dictionary = OpenDictionary(dictionaryOptions.dictionary);
 
             boolean useStdin = (targetAndDeltaFlags.delta == null || targetAndDeltaFlags.delta.isEmpty());
             boolean useStdout = (targetAndDeltaFlags.target == null || targetAndDeltaFlags.target.isEmpty());
@@ -399,12 +804,81 @@ public class VCDiffFileBasedCoder {
                 closeQuietly(countedIn);
             }
         }
+
+        // Decodes from a mapping of the delta file, reading the dictionary
+        // through a mapping of the dictionary file as the delta copies from it,
+        // and writes the target file through its FileChannel.
+        private void DecodeMapped() throws IOException {
+            CheckMappedFiles(targetAndDeltaFlags.target, targetAndDeltaFlags.delta);
+
+            DictionarySource dictionary = DictionarySource.memoryMapped(OpenChannelForReading(dictionaryOptions.dictionary, "dictionary"));
+            try {
+                VCDiffDecoder decoder = VCDiffDecoderBuilder.builder()
+                        .withMaxTargetFileSize(globalOptions.maxTargetFileSize)
+                        .withMaxTargetWindowSize(globalOptions.maxTargetWindowSize)
+                        .withAllowTargetMatches(decodeOptions.allowVcdTarget)
+                        .buildSimple();
+
+                FileSizes sizes = DecodeMappedFile(decoder, dictionary, targetAndDeltaFlags.delta, targetAndDeltaFlags.target);
+                if (globalOptions.stats && (sizes.target > 0)) {
+                    System.err.printf("Decompressed size: %d\tCompressed size: %d (%.2f%% of original)%n",
+                            sizes.target,
+                            sizes.delta,
+                            100.0 * sizes.delta / sizes.target
+                    );
+                }
+            } finally {
+                closeQuietly(dictionary);
+            }
+        }
+
+        // Patches the dictionary file into the target through its FileChannel,
+        // from a mapping of the delta file.
+        private void DecodeInPlace() throws IOException {
+            if (targetAndDeltaFlags.delta == null || targetAndDeltaFlags.delta.isEmpty() ||
+                    (targetAndDeltaFlags.target != null && !targetAndDeltaFlags.target.isEmpty())) {
+                throw new IOException("--in_place requires a --delta file, and no --target file");
+            }
+
+            VCDiffInPlacePatcher patcher = VCDiffDecoderBuilder.builder()
+                    .withMaxTargetFileSize(globalOptions.maxTargetFileSize)
+                    .buildInPlace((int) Math.min(Integer.MAX_VALUE - 8, (long) inPlaceOptions.maxScratchSize << 20));
+
+            FileChannel deltaChannel = OpenChannelForReading(targetAndDeltaFlags.delta, "delta");
+            try {
+                final long deltaSize = deltaChannel.size();
+                if (deltaSize > Integer.MAX_VALUE) {
+                    throw new IOException(String.format("Delta file is too large to map: %d bytes", deltaSize));
+                }
+                ByteBuffer deltaBuffer = deltaChannel.map(FileChannel.MapMode.READ_ONLY, 0, deltaSize);
+
+                FileChannel dictionary = OpenChannelForUpdating(dictionaryOptions.dictionary, "dictionary");
+                try {
+                    patcher.patch(dictionary, deltaBuffer);
+                    final long targetSize = dictionary.size();
+                    if (globalOptions.stats && (targetSize > 0)) {
+                        System.err.printf("Decompressed size: %d\tCompressed size: %d (%.2f%% of original)%n",
+                                targetSize,
+                                deltaSize,
+                                100.0 * deltaSize / targetSize
+                        );
+                    }
+                } finally {
+                    closeQuietly(dictionary);
+                }
+            } finally {
+                closeQuietly(deltaChannel);
+            }
+        }
     }
 
     // for "vcdiff test"; compare target with original
     @Parameters(hidden = true, separators = " =")
     private static class DecodeAndCompareCommand extends VCDiffFileBasedCoder {
 
+        @ParametersDelegate
+        private DictionaryOptions dictionaryOptions = new DictionaryOptions();
+
         @ParametersDelegate
         private GlobalOptions globalOptions = new GlobalOptions();
 
@@ -418,7 +892,7 @@ public class VCDiffFileBasedCoder {
         private RequiredTargetAndDeltaOptions targetAndDeltaOptions = new RequiredTargetAndDeltaOptions();
 
         public void DecodeAndCompare() throws IOException {
-            byte[] dictionary = OpenDictionary(globalOptions.dictionary);
+            byte[] dictionary = OpenDictionary(dictionaryOptions.dictionary);
 
             CountingInputStream countedIn = new CountingInputStream(OpenFileForReading(targetAndDeltaOptions.delta, "delta"));
             try {
@@ -461,6 +935,483 @@ public class VCDiffFileBasedCoder {
         }
     }
 
+    @Parameters(commandDescription = "Encode or decode many files, listed in a manifest, against shared dictionaries", separators = " =")
+    private static class BatchCommand extends VCDiffFileBasedCoder {
+
+        @ParametersDelegate
+        private BatchOptions batchOptions = new BatchOptions();
+
+        @ParametersDelegate
+        private EncodeOptions encodeOptions = new EncodeOptions();
+
+        @ParametersDelegate
+        private DecodeOptions decodeOptions = new DecodeOptions();
+
+        @ParametersDelegate
+        private GlobalOptions globalOptions = new GlobalOptions();
+
+        // A line of the manifest
+        private static class ManifestEntry {
+            private final String dictionary;
+            private final String target;
+            private final String delta;
+
+            private ManifestEntry(String dictionary, String target, String delta) {
+                this.dictionary = dictionary;
+                this.target = target;
+                this.delta = delta;
+            }
+        }
+
+        // Encodes or decodes every entry of the manifest, reading and (for
+        // encoding) hashing each dictionary once, and running up to --threads
+        // entries at once.  An entry that fails is reported and skipped.
+        // Returns whether every entry succeeded.
+        public boolean Batch() throws IOException {
+            final List<ManifestEntry> entries = ReadManifest();
+            final long startTime = System.nanoTime();
+
+            ExecutorService executor = Executors.newFixedThreadPool(batchOptions.threads);
+            try {
+                // Dictionaries are loaded first, so entries waiting for one
+                // only wait for tasks that have already started.
+                final Map<String, Future<?>> dictionaries = new HashMap<String, Future<?>>();
+                for (ManifestEntry entry : entries) {
+                    if (!dictionaries.containsKey(entry.dictionary)) {
+                        dictionaries.put(entry.dictionary, executor.submit(LoadDictionary(entry.dictionary)));
+                    }
+                }
+
+                List<Future<FileSizes>> results = new ArrayList<Future<FileSizes>>(entries.size());
+                for (ManifestEntry entry : entries) {
+                    results.add(executor.submit(CodeEntry(entry, dictionaries.get(entry.dictionary))));
+                }
+
+                int failures = 0;
+                long totalTarget = 0;
+                long totalDelta = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    final ManifestEntry entry = entries.get(i);
+                    final String input = batchOptions.decode ? entry.delta : entry.target;
+                    final FileSizes sizes;
+                    try {
+                        sizes = results.get(i).get();
+                    } catch (ExecutionException e) {
+                        failures++;
+                        System.err.printf("%s: %s%n", input, e.getCause().getMessage());
+                        continue;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for " + input);
+                    }
+
+                    totalTarget += sizes.target;
+                    totalDelta += sizes.delta;
+                    if (globalOptions.stats) {
+                        System.err.printf("%s: Original size: %d\tCompressed size: %d (%.2f%% of original)%n",
+                                input, sizes.target, sizes.delta, sizes.target > 0 ? 100.0 * sizes.delta / sizes.target : 0.0
+                        );
+                    }
+                }
+
+                if (globalOptions.stats) {
+                    System.err.printf("%s %d of %d files in %.3f s%s%n",
+                            batchOptions.decode ? "Decoded" : "Encoded",
+                            entries.size() - failures,
+                            entries.size(),
+                            (System.nanoTime() - startTime) / 1e9,
+                            failures > 0 ? String.format(" (%d failed)", failures) : ""
+                    );
+                    if (totalTarget > 0) {
+                        System.err.printf("Total original size: %d\tTotal compressed size: %d (%.2f%% of original)%n",
+                                totalTarget, totalDelta, 100.0 * totalDelta / totalTarget
+                        );
+                    }
+                }
+                return failures == 0;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // Reads the manifest.  Blank lines and lines starting with # are skipped.
+        private List<ManifestEntry> ReadManifest() throws IOException {
+            final List<ManifestEntry> entries = new ArrayList<ManifestEntry>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(OpenFileForReading(batchOptions.manifest, "manifest"), "UTF-8"));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+
+                    final String[] fields = line.split("\t", -1);
+                    if (fields.length == 2 && batchOptions.dictionary != null) {
+                        entries.add(new ManifestEntry(batchOptions.dictionary, fields[0], fields[1]));
+                    } else if (fields.length == 3) {
+                        entries.add(new ManifestEntry(fields[0], fields[1], fields[2]));
+                    } else if (fields.length == 2) {
+                        throw new IOException(String.format(
+                                "%s:%d: no dictionary file given, and no --dictionary set", batchOptions.manifest, lineNumber
+                        ));
+                    } else {
+                        throw new IOException(String.format(
+                                "%s:%d: expected [dictionary<TAB>]target<TAB>delta", batchOptions.manifest, lineNumber
+                        ));
+                    }
+                }
+            } finally {
+                closeQuietly(reader);
+            }
+            return entries;
+        }
+
+        // Reads a dictionary; for encoding, the result is hashed.  With --mmap,
+        // dictionaries for decoding are mapped rather than read.
+        private Callable<Object> LoadDictionary(final String dictionary) {
+            return new Callable<Object>() {
+                public Object call() throws IOException {
+                    if (!batchOptions.decode) {
+                        return new HashedDictionary(globalOptions.mmap ? MapDictionary(dictionary) : OpenDictionary(dictionary));
+                    } else if (!globalOptions.mmap) {
+                        return ByteBuffer.wrap(OpenDictionary(dictionary)).asReadOnlyBuffer();
+                    }
+
+                    FileChannel channel = OpenChannelForReading(dictionary, "dictionary");
+                    try {
+                        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    } finally {
+                        closeQuietly(channel);
+                    }
+                }
+            };
+        }
+
+        private Callable<FileSizes> CodeEntry(final ManifestEntry entry, final Future<?> dictionary) {
+            return new Callable<FileSizes>() {
+                public FileSizes call() throws Exception {
+                    final Object loaded;
+                    try {
+                        loaded = dictionary.get();
+                    } catch (ExecutionException e) {
+                        throw new IOException(String.format("Error loading dictionary %s: %s", entry.dictionary, e.getCause().getMessage()));
+                    }
+
+                    if (!batchOptions.decode) {
+                        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                                .withDictionary((HashedDictionary) loaded)
+                                .withTargetMatches(encodeOptions.targetMatches)
+                                .withChecksum(encodeOptions.checksum)
+                                .withInterleaving(encodeOptions.interleaved);
+                        return globalOptions.mmap ?
+                                EncodeMappedFile(builder, globalOptions.bufferSize, entry.target, entry.delta) :
+                                EncodeFile(builder, globalOptions.bufferSize, entry.target, entry.delta);
+                    }
+
+                    VCDiffDecoderBuilder builder = VCDiffDecoderBuilder.builder()
+                            .withMaxTargetFileSize(globalOptions.maxTargetFileSize)
+                            .withMaxTargetWindowSize(globalOptions.maxTargetWindowSize)
+                            .withAllowTargetMatches(decodeOptions.allowVcdTarget);
+                    final ByteBuffer dictionaryBuffer = ((ByteBuffer) loaded).duplicate();
+                    return globalOptions.mmap ?
+                            DecodeMappedFile(builder.buildSimple(), DictionarySource.wrap(dictionaryBuffer), entry.delta, entry.target) :
+                            DecodeFile(builder, dictionaryBuffer, globalOptions.bufferSize, entry.delta, entry.target);
+                }
+            };
+        }
+    }
+
+    @Parameters(commandDescription = "Serve encode and decode requests from the client command, caching dictionaries between them", separators = " =")
+    private static class ServeCommand extends VCDiffFileBasedCoder {
+
+        @ParametersDelegate
+        private ServerOptions serverOptions = new ServerOptions();
+
+        public void Serve() throws IOException {
+            if (serverOptions.cacheSize < 0) {
+                throw new IOException("--cache_size must be non-negative");
+            }
+
+            File root = null;
+            if (serverOptions.root != null) {
+                root = new File(serverOptions.root);
+                if (!root.isDirectory()) {
+                    throw new IOException(String.format("--root %s is not a directory", serverOptions.root));
+                }
+            }
+
+            final VCDiffDaemon daemon;
+            try {
+                daemon = new VCDiffDaemon(serverOptions.port, serverOptions.cacheSize << 20, serverOptions.threads,
+                        serverOptions.tokenFile != null ? new File(serverOptions.tokenFile) : null, root);
+            } catch (IOException e) {
+                throw new IOException(String.format("Error starting server on port %d: %s", serverOptions.port, e.getMessage()));
+            }
+
+            System.out.printf("Listening on port %d, token in %s%n", daemon.port(), daemon.tokenFile());
+            System.out.flush();
+            daemon.run();
+        }
+    }
+
+    @Parameters(commandDescription = "Have a server started with the serve command encode or decode a file", separators = " =")
+    private static class ClientCommand extends VCDiffFileBasedCoder {
+
+        @ParametersDelegate
+        private ClientOptions clientOptions = new ClientOptions();
+
+        @ParametersDelegate
+        private EncodeOptions encodeOptions = new EncodeOptions();
+
+        @ParametersDelegate
+        private DecodeOptions decodeOptions = new DecodeOptions();
+
+        @ParametersDelegate
+        private GlobalOptions globalOptions = new GlobalOptions();
+
+        @ParametersDelegate
+        private OptionalTargetAndDeltaOptions targetAndDeltaOptions = new OptionalTargetAndDeltaOptions();
+
+        public void Request() throws IOException {
+            final File tokenFile = clientOptions.tokenFile != null ? new File(clientOptions.tokenFile) : null;
+            if (clientOptions.shutdown) {
+                VCDiffDaemon.Request(clientOptions.port, tokenFile, VCDiffDaemon.kOpShutdown, (byte) 0, 0, 0, 0, null, null, null);
+                return;
+            }
+
+            // The server reads and writes the files itself
+            if (clientOptions.dictionary == null || targetAndDeltaOptions.target == null || targetAndDeltaOptions.delta == null) {
+                throw new IOException("The client command requires --dictionary, --target and --delta files");
+            }
+            if (encodeOptions.json) {
+                throw new IOException("The client command doesn't support --json");
+            }
+
+            byte flags = 0;
+            if (encodeOptions.interleaved) {
+                flags |= VCDiffDaemon.kFlagInterleaved;
+            }
+            if (encodeOptions.checksum) {
+                flags |= VCDiffDaemon.kFlagChecksum;
+            }
+            if (encodeOptions.targetMatches) {
+                flags |= VCDiffDaemon.kFlagTargetMatches;
+            }
+            if (decodeOptions.allowVcdTarget) {
+                flags |= VCDiffDaemon.kFlagAllowVcdTarget;
+            }
+            if (globalOptions.mmap) {
+                flags |= VCDiffDaemon.kFlagMmap;
+            }
+
+            FileSizes sizes = VCDiffDaemon.Request(
+                    clientOptions.port,
+                    tokenFile,
+                    clientOptions.decode ? VCDiffDaemon.kOpDecode : VCDiffDaemon.kOpEncode,
+                    flags,
+                    globalOptions.maxTargetFileSize,
+                    globalOptions.maxTargetWindowSize,
+                    globalOptions.bufferSize,
+                    clientOptions.dictionary,
+                    clientOptions.decode ? targetAndDeltaOptions.delta : targetAndDeltaOptions.target,
+                    clientOptions.decode ? targetAndDeltaOptions.target : targetAndDeltaOptions.delta
+            );
+            if (globalOptions.stats && (sizes.target > 0)) {
+                System.err.printf("Original size: %d\tCompressed size: %d (%.2f%% of original)%n",
+                        sizes.target,
+                        sizes.delta,
+                        100.0 * sizes.delta / sizes.target
+                );
+            }
+        }
+    }
+
+    @Parameters(commandDescription = "Measure encoding and decoding throughput, delta size, allocation and per-window latency for each combination of --interleaved, --checksum, --target_matches and buffer size", separators = " =")
+    private static class BenchCommand extends VCDiffFileBasedCoder {
+
+        @ParametersDelegate
+        private BenchOptions benchOptions = new BenchOptions();
+
+        @ParametersDelegate
+        private SyntheticOptions syntheticOptions = new SyntheticOptions();
+
+        public void Bench() throws IOException {
+            if ((benchOptions.dictionary == null) != (benchOptions.target == null)) {
+                throw new IOException("The bench command takes both --dictionary and --target, or neither");
+            }
+            if (benchOptions.warmup < 0) {
+                throw new IOException("--warmup must be non-negative");
+            }
+            CheckSyntheticOptions(syntheticOptions);
+            final List<Integer> bufferSizes = ParseSizes(benchOptions.bufferSizes, "buffer size");
+
+            final byte[] dictionary;
+            final byte[] target;
+            if (benchOptions.dictionary != null) {
+                dictionary = OpenDictionary(benchOptions.dictionary);
+                InputStream in = OpenFileForReading(benchOptions.target, "target");
+                try {
+                    target = IOUtils.toByteArray(in);
+                } finally {
+                    closeQuietly(in);
+                }
+            } else {
+                byte[][] pair = WorkloadGenerator.Generate(
+                        syntheticOptions.seed,
+                        ParseNames(WorkloadGenerator.Content.class, benchOptions.content, "content")[0],
+                        ParseNames(WorkloadGenerator.Scenario.class, benchOptions.scenario, "scenario")[0],
+                        ParseSizes(benchOptions.syntheticSize, "synthetic size").get(0),
+                        syntheticOptions.editRate,
+                        syntheticOptions.editLength
+                );
+                dictionary = pair[0];
+                target = pair[1];
+            }
+
+            System.out.printf("Dictionary size: %d\tTarget size: %d\tWarm-up runs: %d\tMeasured runs: %d%n",
+                    dictionary.length, target.length, benchOptions.warmup, benchOptions.iterations
+            );
+            VCDiffBenchmark benchmark = new VCDiffBenchmark(dictionary, target, benchOptions.warmup, benchOptions.iterations);
+            VCDiffBenchmark.PrintHeader(System.out);
+            for (int bufferSize : bufferSizes) {
+                for (int flags = 0; flags < 8; flags++) {
+                    VCDiffBenchmark.Print(System.out, benchmark.Run(
+                            (flags & 4) != 0, (flags & 2) != 0, (flags & 1) != 0, bufferSize
+                    ));
+                }
+            }
+        }
+    }
+
+    @Parameters(commandDescription = "Encode and decode synthetic workloads for each scenario, content and size, and record delta ratio and throughput as CSV", separators = " =")
+    private static class MacroBenchCommand extends VCDiffFileBasedCoder {
+
+        @ParametersDelegate
+        private MacroBenchOptions macroBenchOptions = new MacroBenchOptions();
+
+        @ParametersDelegate
+        private SyntheticOptions syntheticOptions = new SyntheticOptions();
+
+        @ParametersDelegate
+        private EncodeOptions encodeOptions = new EncodeOptions();
+
+        // Returns false if a workload's delta regressed against --baseline
+        public boolean MacroBench() throws IOException {
+            if (macroBenchOptions.warmup < 0) {
+                throw new IOException("--warmup must be non-negative");
+            }
+            if (encodeOptions.json) {
+                throw new IOException("The macrobench command doesn't support --json");
+            }
+            CheckSyntheticOptions(syntheticOptions);
+            final WorkloadGenerator.Scenario[] scenarios = ParseNames(WorkloadGenerator.Scenario.class, macroBenchOptions.scenarios, "scenarios");
+            final WorkloadGenerator.Content[] contents = ParseNames(WorkloadGenerator.Content.class, macroBenchOptions.contents, "contents");
+            final List<Integer> sizes = ParseSizes(macroBenchOptions.sizes, "size");
+            final int bufferSize = ParseSizes(macroBenchOptions.bufferSize, "buffer size").get(0);
+            final Map<String, Long> baseline = macroBenchOptions.baseline != null ? ReadBaseline() : null;
+
+            final List<String> regressions = new ArrayList<String>();
+            PrintStream out = macroBenchOptions.csv != null ?
+                    new PrintStream(OpenFileForWriting(macroBenchOptions.csv, "CSV"), false, "UTF-8") :
+                    System.out;
+            try {
+                out.println(VCDiffBenchmark.kCsvHeader);
+                for (int size : sizes) {
+                    for (WorkloadGenerator.Scenario scenario : scenarios) {
+                        for (WorkloadGenerator.Content content : contents) {
+                            final String scenarioName = scenario.name().toLowerCase(Locale.ENGLISH);
+                            final String contentName = content.name().toLowerCase(Locale.ENGLISH);
+                            final byte[][] pair = WorkloadGenerator.Generate(
+                                    syntheticOptions.seed, content, scenario, size, syntheticOptions.editRate, syntheticOptions.editLength
+                            );
+                            if (macroBenchOptions.corpus != null) {
+                                final String prefix = new File(macroBenchOptions.corpus, scenarioName + "-" + contentName + "-" + size).getPath();
+                                WriteFile(prefix + ".dictionary", pair[0]);
+                                WriteFile(prefix + ".target", pair[1]);
+                            }
+
+                            final VCDiffBenchmark.Result result = new VCDiffBenchmark(
+                                    pair[0], pair[1], macroBenchOptions.warmup, macroBenchOptions.iterations
+                            ).Run(encodeOptions.interleaved, encodeOptions.checksum, encodeOptions.targetMatches, bufferSize);
+                            VCDiffBenchmark.PrintCsv(out, scenarioName, contentName, size, result);
+                            out.flush();
+
+                            final String key = BaselineKey(scenarioName, contentName, Integer.toString(size),
+                                    Boolean.toString(result.interleaved), Boolean.toString(result.checksum),
+                                    Boolean.toString(result.targetMatches), Integer.toString(result.bufferSize));
+                            final Long expected = baseline != null ? baseline.get(key) : null;
+                            if (expected != null && result.deltaSize > expected * (1 + macroBenchOptions.tolerance)) {
+                                regressions.add(String.format("%s: delta size %d, was %d (%+.2f%%)",
+                                        key, result.deltaSize, expected, 100.0 * (result.deltaSize - expected) / expected
+                                ));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                if (out != System.out) {
+                    out.close();
+                }
+            }
+
+            for (String regression : regressions) {
+                System.err.println("Regression: " + regression);
+            }
+            return regressions.isEmpty();
+        }
+
+        // Reads the delta sizes from a CSV file written by an earlier run
+        private Map<String, Long> ReadBaseline() throws IOException {
+            final Map<String, Long> deltaSizes = new HashMap<String, Long>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(OpenFileForReading(macroBenchOptions.baseline, "baseline"), "UTF-8"));
+            try {
+                final String header = reader.readLine();
+                if (header == null || !header.equals(VCDiffBenchmark.kCsvHeader)) {
+                    throw new IOException(String.format("%s: not a CSV file from the macrobench command", macroBenchOptions.baseline));
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(",");
+                    if (fields.length < 9) {
+                        throw new IOException(String.format("%s: invalid line: %s", macroBenchOptions.baseline, line));
+                    }
+                    try {
+                        deltaSizes.put(BaselineKey(Arrays.copyOf(fields, 7)), Long.parseLong(fields[8]));
+                    } catch (NumberFormatException e) {
+                        throw new IOException(String.format("%s: invalid line: %s", macroBenchOptions.baseline, line));
+                    }
+                }
+            } finally {
+                closeQuietly(reader);
+            }
+            return deltaSizes;
+        }
+
+        // The columns that identify a workload and its options
+        private static String BaselineKey(String... fields) {
+            final StringBuilder key = new StringBuilder();
+            for (String field : fields) {
+                if (key.length() > 0) {
+                    key.append(',');
+                }
+                key.append(field);
+            }
+            return key.toString();
+        }
+
+        private static void WriteFile(String file_name, byte[] contents) throws IOException {
+            OutputStream out = OpenFileForWriting(file_name, "corpus");
+            try {
+                out.write(contents);
+                out.close();
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
     public static void main(String[] argv) throws Exception {
 
         // TODO: JCommander has an issue with boolean arity. Rewrite allow_vcd_target.
@@ -494,11 +1445,21 @@ public class VCDiffFileBasedCoder {
         EncodeCommand encodeCommand = new EncodeCommand();
         DecodeCommand decodeCommand = new DecodeCommand();
         DecodeAndCompareCommand decodeAndCompareCommand = new DecodeAndCompareCommand();
+        BatchCommand batchCommand = new BatchCommand();
+        ServeCommand serveCommand = new ServeCommand();
+        ClientCommand clientCommand = new ClientCommand();
+        BenchCommand benchCommand = new BenchCommand();
+        MacroBenchCommand macroBenchCommand = new MacroBenchCommand();
 
         JCommander jCommander = new JCommander();
         jCommander.addCommand("encode", encodeCommand, "delta");
         jCommander.addCommand("decode", decodeCommand, "patch");
         jCommander.addCommand("test", decodeAndCompareCommand);
+        jCommander.addCommand("batch", batchCommand);
+        jCommander.addCommand("serve", serveCommand);
+        jCommander.addCommand("client", clientCommand);
+        jCommander.addCommand("bench", benchCommand);
+        jCommander.addCommand("macrobench", macroBenchCommand);
 
         try {
             jCommander.parse(argv);
@@ -515,6 +1476,20 @@ public class VCDiffFileBasedCoder {
                 encodeCommand.Encode();
             } else if ("decode".equals(command_option) || "patch".equals(command_option)) {
                 decodeCommand.Decode();
+            } else if ("batch".equals(command_option)) {
+                if (!batchCommand.Batch()) {
+                    System.exit(1);
+                }
+            } else if ("serve".equals(command_option)) {
+                serveCommand.Serve();
+            } else if ("client".equals(command_option)) {
+                clientCommand.Request();
+            } else if ("bench".equals(command_option)) {
+                benchCommand.Bench();
+            } else if ("macrobench".equals(command_option)) {
+                if (!macroBenchCommand.MacroBench()) {
+                    System.exit(1);
+                }
             } else if ("test".equals(command_option)) {
                 // "vcdiff test" does not appear in the usage string, but can be
                 // used for debugging.  It encodes, then decodes, then compares the result
@@ -0,0 +1,359 @@
+package com.davidehrmann.vcdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Makes synthetic dictionary and target pairs for benchmarks.  A pair is
+ * determined by its seed, {@link Content}, {@link Scenario}, size and edit
+ * parameters, so the same arguments always give the same bytes, regardless
+ * of what else has been generated.
+ *
+ * The dictionary is made of {@link Content}, and the target is edited from
+ * it as the {@link Scenario} describes.  Both are held in arrays, so sizes
+ * are limited to what an array holds, which is also the limit on dictionary
+ * sizes.
+ */
+final class WorkloadGenerator {
+
+    /**
+     * What the dictionary, and anything inserted into the target, is made of.
+     */
+    enum Content {
+        /** Lines of words from a small vocabulary, like source code or logs */
+        TEXT,
+        /** One JSON record per line, with a fixed set of keys */
+        JSON,
+        /** Fixed-size binary records with increasing ids and timestamps */
+        BINARY,
+        /** Runs of 4 to 64 KB of each of the others */
+        MIXED
+    }
+
+    /**
+     * How the target is made from the dictionary.
+     */
+    enum Scenario {
+        /** Runs of new content inserted */
+        INSERTIONS,
+        /** Runs of the dictionary deleted */
+        DELETIONS,
+        /** Runs of the dictionary replaced, inserted before, or deleted */
+        EDITS,
+        /** Blocks of the dictionary swapped with each other */
+        MOVES,
+        /** Single bytes changed */
+        FLIPS,
+        /** The dictionary, shifted by a few bytes, with blocks of the target repeated in it */
+        SHIFTED_DUPLICATES,
+        /** Random bytes, unrelated to the dictionary */
+        NOISE
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] kJsonKeys = { "id", "name", "status", "owner", "tags", "value", "updated" };
+    private static final int kBinaryRecordSize = 32;
+
+    private final Content content;
+    private final double editRate;
+    private final int editLength;
+    private final Random random;
+    private final byte[][] vocabulary;
+
+    // Counters for the records of JSON and binary content
+    private long recordId = 0;
+    private long timestamp = 1500000000L;
+
+    /**
+     * @param seed seed for the random number generator
+     * @param content what the dictionary is made of
+     * @param scenario how the target is made from the dictionary
+     * @param size size of the dictionary
+     * @param editRate approximate fraction of the dictionary's bytes edited
+     * @param editLength mean length of an edit, or of a moved block
+     */
+    private WorkloadGenerator(long seed, Content content, Scenario scenario, int size, double editRate, int editLength) {
+        this.content = content;
+        this.editRate = editRate;
+        this.editLength = editLength;
+
+        // Every pair gets its own stream of random numbers
+        long mixed = seed;
+        mixed = 31 * mixed + content.ordinal();
+        mixed = 31 * mixed + scenario.ordinal();
+        mixed = 31 * mixed + size;
+        mixed = 31 * mixed + Double.doubleToLongBits(editRate);
+        mixed = 31 * mixed + editLength;
+        this.random = new Random(mixed);
+
+        this.vocabulary = new byte[512][];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = Letters(2 + random.nextInt(9));
+        }
+    }
+
+    /**
+     * Makes a dictionary and target pair.
+     *
+     * @param seed seed for the random number generator
+     * @param content what the dictionary is made of
+     * @param scenario how the target is made from the dictionary
+     * @param size size of the dictionary
+     * @param editRate approximate fraction of the dictionary's bytes edited,
+     *                 from 0 to 1; unused for {@link Scenario#NOISE}
+     * @param editLength mean length of an edit, or of a moved or repeated
+     *                   block; must be positive
+     * @return the dictionary and the target
+     */
+    static byte[][] Generate(long seed, Content content, Scenario scenario, int size, double editRate, int editLength) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must be non-negative: " + size);
+        }
+        if (!(editRate >= 0 && editRate <= 1)) {
+            throw new IllegalArgumentException("editRate must be between 0 and 1: " + editRate);
+        }
+        if (editLength <= 0) {
+            throw new IllegalArgumentException("editLength must be positive: " + editLength);
+        }
+
+        WorkloadGenerator generator = new WorkloadGenerator(seed, content, scenario, size, editRate, editLength);
+        final byte[] dictionary = generator.Content(size);
+        return new byte[][] { dictionary, generator.Target(scenario, dictionary) };
+    }
+
+    /**
+     * Parses a comma-separated list of names, or "all".
+     */
+    static <E extends Enum<E>> E[] Parse(Class<E> type, String names) {
+        final E[] values = type.getEnumConstants();
+        if ("all".equalsIgnoreCase(names.trim())) {
+            return values;
+        }
+        final String[] split = names.split(",");
+        final E[] parsed = Arrays.copyOf(values, split.length);
+        for (int i = 0; i < split.length; i++) {
+            parsed[i] = Enum.valueOf(type, split[i].trim().toUpperCase(Locale.ENGLISH));
+        }
+        return parsed;
+    }
+
+    private byte[] Target(Scenario scenario, byte[] dictionary) {
+        switch (scenario) {
+            case INSERTIONS:
+                return Edit(dictionary, true, false, false);
+            case DELETIONS:
+                return Edit(dictionary, false, true, false);
+            case EDITS:
+                return Edit(dictionary, true, true, true);
+            case MOVES:
+                return Move(dictionary);
+            case FLIPS:
+                return Flip(dictionary);
+            case SHIFTED_DUPLICATES:
+                return ShiftAndDuplicate(dictionary);
+            case NOISE:
+                final byte[] noise = new byte[dictionary.length];
+                random.nextBytes(noise);
+                return noise;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+    }
+
+    // Sorted positions of the edits in data of the given size, about
+    // editRate * size / length of them.
+    private int[] EditPositions(int size, int length) {
+        final int[] positions = new int[Edits(size, length)];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = random.nextInt(size);
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    // About editRate * size / length, but at least one edit of any data
+    // that's edited at all
+    private int Edits(int size, int length) {
+        if (size == 0 || editRate == 0) {
+            return 0;
+        }
+        return Math.max(1, (int) (size * editRate / length));
+    }
+
+    // A length averaging editLength
+    private int EditLength() {
+        return 1 + random.nextInt(2 * editLength - 1);
+    }
+
+    private byte[] Edit(byte[] dictionary, boolean insert, boolean delete, boolean replace) {
+        final int size = dictionary.length;
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(size + size / 8);
+        int position = 0;
+        for (int edit : EditPositions(size, editLength)) {
+            if (edit < position) {
+                continue;
+            }
+            target.write(dictionary, position, edit - position);
+            position = edit;
+
+            final int length = EditLength();
+            final int kind = random.nextInt(3);
+            if (kind == 0 && replace) {
+                target.write(Content(length), 0, length);
+                position = Math.min(size, edit + length);
+            } else if ((kind == 1 || !delete) && insert) {
+                target.write(Content(length), 0, length);
+            } else if (delete) {
+                position = Math.min(size, edit + length);
+            }
+        }
+        target.write(dictionary, position, size - position);
+        return target.toByteArray();
+    }
+
+    // Swaps pairs of equal-length, non-overlapping blocks
+    private byte[] Move(byte[] dictionary) {
+        final byte[] target = dictionary.clone();
+        final int size = target.length;
+        final int moves = (Edits(size, editLength) + 1) / 2;
+        final byte[] swap = new byte[2 * editLength];
+        for (int i = 0; i < moves; i++) {
+            final int length = Math.min(EditLength(), size / 2);
+            if (length == 0) {
+                break;
+            }
+            final int a = random.nextInt(size - 2 * length + 1);
+            final int b = a + length + random.nextInt(size - a - 2 * length + 1);
+            System.arraycopy(target, a, swap, 0, length);
+            System.arraycopy(target, b, target, a, length);
+            System.arraycopy(swap, 0, target, b, length);
+        }
+        return target;
+    }
+
+    private byte[] Flip(byte[] dictionary) {
+        final byte[] target = dictionary.clone();
+        for (int position : EditPositions(target.length, 1)) {
+            target[position] ^= (byte) (1 + random.nextInt(255));
+        }
+        return target;
+    }
+
+    // Starts with a few new bytes, so nothing is where it was in the
+    // dictionary, then at each edit repeats a block already in the target.
+    private byte[] ShiftAndDuplicate(byte[] dictionary) {
+        final int size = dictionary.length;
+        final int[] edits = EditPositions(size, editLength);
+        final int shift = 1 + random.nextInt(255);
+        final byte[] target = new byte[shift + size + edits.length * 2 * editLength];
+        System.arraycopy(Content(shift), 0, target, 0, shift);
+
+        int length = shift;
+        int position = 0;
+        for (int edit : edits) {
+            if (edit < position) {
+                continue;
+            }
+            System.arraycopy(dictionary, position, target, length, edit - position);
+            length += edit - position;
+            position = edit;
+
+            final int repeated = Math.min(EditLength(), length);
+            System.arraycopy(target, random.nextInt(length - repeated + 1), target, length, repeated);
+            length += repeated;
+        }
+        System.arraycopy(dictionary, position, target, length, size - position);
+        return Arrays.copyOf(target, length + size - position);
+    }
+
+    private byte[] Content(int length) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(length + 256);
+        Content kind = content;
+        while (out.size() < length) {
+            if (content == Content.MIXED) {
+                kind = Content.values()[random.nextInt(Content.MIXED.ordinal())];
+            }
+            final int end = content == Content.MIXED ?
+                    Math.min(length, out.size() + (4 << 10) + random.nextInt(60 << 10)) : length;
+            while (out.size() < end) {
+                switch (kind) {
+                    case TEXT:
+                        WriteLine(out);
+                        break;
+                    case JSON:
+                        WriteJsonRecord(out);
+                        break;
+                    default:
+                        WriteBinaryRecord(out);
+                        break;
+                }
+            }
+        }
+        return Arrays.copyOf(out.toByteArray(), length);
+    }
+
+    private void WriteLine(ByteArrayOutputStream out) {
+        final int words = 3 + random.nextInt(12);
+        for (int i = 0; i < words; i++) {
+            final byte[] word = vocabulary[random.nextInt(vocabulary.length)];
+            out.write(word, 0, word.length);
+            out.write(i + 1 < words ? ' ' : '\n');
+        }
+    }
+
+    private void WriteJsonRecord(ByteArrayOutputStream out) {
+        final StringBuilder record = new StringBuilder(128);
+        record.append("{\"").append(kJsonKeys[0]).append("\":").append(recordId++);
+        for (int i = 1; i < kJsonKeys.length; i++) {
+            if (random.nextInt(4) == 0) {
+                continue;
+            }
+            record.append(",\"").append(kJsonKeys[i]).append("\":");
+            switch (i % 3) {
+                case 0:
+                    record.append(random.nextInt(100000) / 100.0);
+                    break;
+                case 1:
+                    record.append('"').append(new String(vocabulary[random.nextInt(vocabulary.length)], UTF_8)).append('"');
+                    break;
+                default:
+                    record.append("[\"").append(new String(vocabulary[random.nextInt(32)], UTF_8))
+                            .append("\",\"").append(new String(vocabulary[random.nextInt(32)], UTF_8)).append("\"]");
+                    break;
+            }
+        }
+        record.append("}\n");
+        final byte[] bytes = record.toString().getBytes(UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    // Big-endian id, timestamp, a few small counters, and random bytes
+    private void WriteBinaryRecord(ByteArrayOutputStream out) {
+        final byte[] record = new byte[kBinaryRecordSize];
+        final long id = recordId++;
+        timestamp += random.nextInt(1000);
+        for (int i = 0; i < 8; i++) {
+            record[i] = (byte) (id >>> (56 - 8 * i));
+            record[8 + i] = (byte) (timestamp >>> (56 - 8 * i));
+        }
+        for (int i = 16; i < 24; i++) {
+            record[i] = (byte) random.nextInt(4);
+        }
+        for (int i = 24; i < kBinaryRecordSize; i++) {
+            record[i] = (byte) random.nextInt(256);
+        }
+        out.write(record, 0, record.length);
+    }
+
+    private byte[] Letters(int length) {
+        final byte[] letters = new byte[length];
+        for (int i = 0; i < length; i++) {
+            letters[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return letters;
+    }
+}
@@ -0,0 +1,69 @@
+package com.davidehrmann.vcdiff;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DictionaryCacheTest {
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        File a = newDictionary("a", 1000, (byte) 'a');
+        File b = newDictionary("b", 1000, (byte) 'b');
+        File c = newDictionary("c", 1000, (byte) 'c');
+
+        DictionaryCache cache = new DictionaryCache(2500);
+        byte[] contents = cache.contents(a.getPath());
+        cache.contents(b.getPath());
+        assertSame(contents, cache.contents(a.getPath()));
+        assertEquals(2000, cache.size());
+
+        // b is the least recently used
+        cache.contents(c.getPath());
+        assertEquals(2000, cache.size());
+        assertSame(contents, cache.contents(a.getPath()));
+        assertEquals("2 dictionaries, 2000 bytes, 2 hits, 3 misses", cache.toString());
+
+        // Hashing a makes it cost 3000 bytes, so only it is kept
+        assertSame(cache.hashed(a.getPath()), cache.hashed(a.getPath()));
+        assertEquals(3000, cache.size());
+        cache.contents(b.getPath());
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    public void rereadsChangedFiles() throws IOException {
+        File a = newDictionary("a", 1000, (byte) 'a');
+        DictionaryCache cache = new DictionaryCache(1 << 20);
+        assertEquals(1000, cache.contents(a.getPath()).length);
+
+        newDictionary("a", 500, (byte) 'b');
+        byte[] contents = cache.contents(a.getPath());
+        assertEquals(500, contents.length);
+        assertEquals('b', contents[0]);
+        assertEquals(500, cache.size());
+    }
+
+    private File newDictionary(String name, int length, byte fill) throws IOException {
+        File file = new File(tempFolder.getRoot(), name);
+        byte[] contents = new byte[length];
+        Arrays.fill(contents, fill);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -20,9 +20,15 @@ import org.junit.contrib.java.lang.system.ExpectedSystemExit;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.*;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
 @SuppressWarnings("ThrowFromFinallyBlock")
@@ -106,6 +112,372 @@ public class VCDiffFileBasedCoderTest {
         assertFileEquals(targetFile, outputTargetFile);
     }
 
+    @Test
+    public void testVCDiffWithMmap() throws Exception {
+        // The mapped encoder produces the same delta as the streaming one,
+        // and the mapped decoder reconstructs the target from it.
+        File streamedDeltaFile = tempFolder.newFile("configure.ac.streamed.vcdiff");
+        for (File delta : new File[] { streamedDeltaFile, deltaFile }) {
+            VCDiffFileBasedCoder.main(new String[] {
+                    "encode",
+                    "-interleaved",
+                    "-checksum",
+                    "-buffersize", "256",
+                    "-dictionary", dictionaryFile.getCanonicalPath(),
+                    "-target", targetFile.getCanonicalPath(),
+                    "-delta", delta.getCanonicalPath(),
+                    delta == deltaFile ? "-mmap" : "-stats"
+            });
+        }
+        assertFileEquals(streamedDeltaFile, deltaFile);
+
+        VCDiffFileBasedCoder.main(new String[] {
+                "decode",
+                "-mmap",
+                "-stats",
+                "-dictionary", dictionaryFile.getCanonicalPath(),
+                "-delta", deltaFile.getCanonicalPath(),
+                "-target", outputTargetFile.getCanonicalPath(),
+        });
+
+        assertFileEquals(targetFile, outputTargetFile);
+    }
+
+    @Test
+    public void testVCDiffInPlace() throws Exception {
+        // Patching a copy of the dictionary in place turns it into the target
+        VCDiffFileBasedCoder.main(new String[] {
+                "encode",
+                "-checksum",
+                "-dictionary", dictionaryFile.getCanonicalPath(),
+                "-target", targetFile.getCanonicalPath(),
+                "-delta", deltaFile.getCanonicalPath()
+        });
+
+        copyResourceToFile(outputTargetFile, "configure.ac.v0.1");
+        VCDiffFileBasedCoder.main(new String[] {
+                "decode",
+                "-in_place",
+                "-stats",
+                "-dictionary", outputTargetFile.getCanonicalPath(),
+                "-delta", deltaFile.getCanonicalPath()
+        });
+
+        assertFileEquals(targetFile, outputTargetFile);
+    }
+
+    @Test
+    public void testInPlaceWithTarget() throws Exception {
+        // --in_place writes over the dictionary, so a target file is an error
+        exit.expectSystemExit();
+        VCDiffFileBasedCoder.main(new String[] {
+                "decode",
+                "-in_place",
+                "-dictionary", outputTargetFile.getCanonicalPath(),
+                "-delta", deltaFile.getCanonicalPath(),
+                "-target", targetFile.getCanonicalPath()
+        });
+    }
+
+    @Test
+    public void testMmapWithStdout() throws Exception {
+        // --mmap needs a delta file to write to
+        exit.expectSystemExit();
+        VCDiffFileBasedCoder.main(new String[] {
+                "encode",
+                "-mmap",
+                "-dictionary", dictionaryFile.getCanonicalPath(),
+                "-target", targetFile.getCanonicalPath()
+        });
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        // Entries using the default dictionary and one using its own, plus a
+        // comment and a blank line; encode them all, then decode them all.
+        File otherDictionary = tempFolder.newFile("other_dictionary");
+        copyResourceToFile(otherDictionary, "configure.ac.v0.2");
+        File[] deltas = new File[3];
+        File[] outputs = new File[3];
+        StringBuilder encodeManifest = new StringBuilder("# [dictionary<TAB>]target<TAB>delta\n\n");
+        StringBuilder decodeManifest = new StringBuilder();
+        for (int i = 0; i < deltas.length; i++) {
+            deltas[i] = new File(tempFolder.getRoot(), "batch" + i + ".vcdiff");
+            outputs[i] = new File(tempFolder.getRoot(), "batch" + i + ".output");
+            final String prefix = i == 2 ? otherDictionary.getCanonicalPath() + "\t" : "";
+            encodeManifest.append(prefix).append(targetFile.getCanonicalPath()).append('\t')
+                    .append(deltas[i].getCanonicalPath()).append('\n');
+            decodeManifest.append(prefix).append(outputs[i].getCanonicalPath()).append('\t')
+                    .append(deltas[i].getCanonicalPath()).append('\n');
+        }
+        File encodeManifestFile = tempFolder.newFile("encode.manifest");
+        writeFile(encodeManifestFile, encodeManifest.toString());
+        File decodeManifestFile = tempFolder.newFile("decode.manifest");
+        writeFile(decodeManifestFile, decodeManifest.toString());
+
+        VCDiffFileBasedCoder.main(new String[] {
+                "batch",
+                "-manifest", encodeManifestFile.getCanonicalPath(),
+                "-dictionary", dictionaryFile.getCanonicalPath(),
+                "-threads", "2",
+                "-interleaved",
+                "-stats"
+        });
+        assertTrue(deltas[2].length() < deltas[0].length());
+
+        for (String mode : new String[] { "-stats", "-mmap" }) {
+            VCDiffFileBasedCoder.main(new String[] {
+                    "batch",
+                    "-decode",
+                    "-manifest", decodeManifestFile.getCanonicalPath(),
+                    "-dictionary", dictionaryFile.getCanonicalPath(),
+                    mode
+            });
+            for (File output : outputs) {
+                assertFileEquals(targetFile, output);
+                assertTrue(output.delete());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchWithMissingDictionary() throws Exception {
+        // A two-field entry needs --dictionary
+        File manifest = tempFolder.newFile("batch.manifest");
+        writeFile(manifest, targetFile.getCanonicalPath() + "\t" + deltaFile.getCanonicalPath() + "\n");
+        exit.expectSystemExit();
+        VCDiffFileBasedCoder.main(new String[] {
+                "batch",
+                "-manifest", manifest.getCanonicalPath()
+        });
+    }
+
+    @Test
+    public void testClientAndServer() throws Exception {
+        // Encode, then decode, through a server; the dictionary is only read
+        // and hashed once.
+        File tokenFile = new File(tempFolder.getRoot(), "server.token");
+        VCDiffDaemon daemon = new VCDiffDaemon(0, 1 << 20, 2, tokenFile, null);
+        Thread server = new Thread(daemon);
+        server.start();
+        try {
+            for (int i = 0; i < 2; i++) {
+                VCDiffFileBasedCoder.main(new String[] {
+                        "client",
+                        "-port", Integer.toString(daemon.port()),
+                        "-token_file", tokenFile.getCanonicalPath(),
+                        "-dictionary", dictionaryFile.getCanonicalPath(),
+                        "-target", targetFile.getCanonicalPath(),
+                        "-delta", deltaFile.getCanonicalPath(),
+                        "-checksum",
+                        "-stats"
+                });
+            }
+
+            VCDiffFileBasedCoder.main(new String[] {
+                    "client",
+                    "-decode",
+                    "-mmap",
+                    "-port", Integer.toString(daemon.port()),
+                    "-token_file", tokenFile.getCanonicalPath(),
+                    "-dictionary", dictionaryFile.getCanonicalPath(),
+                    "-delta", deltaFile.getCanonicalPath(),
+                    "-target", outputTargetFile.getCanonicalPath()
+            });
+            assertFileEquals(targetFile, outputTargetFile);
+            assertEquals("1 dictionaries, " + 3 * dictionaryFile.length() + " bytes, 2 hits, 1 misses", daemon.cache().toString());
+
+            VCDiffFileBasedCoder.main(new String[] {
+                    "client",
+                    "-shutdown",
+                    "-port", Integer.toString(daemon.port()),
+                    "-token_file", tokenFile.getCanonicalPath()
+            });
+            server.join(10000);
+            assertFalse(server.isAlive());
+            assertFalse(tokenFile.exists());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    @Test
+    public void testServerRejectsWrongToken() throws Exception {
+        File tokenFile = new File(tempFolder.getRoot(), "server.token");
+        VCDiffDaemon daemon = new VCDiffDaemon(0, 1 << 20, 1, tokenFile, null);
+        Thread server = new Thread(daemon);
+        server.start();
+        try {
+            // Only the owner can read the token
+            if (tokenFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+            }
+
+            File wrongTokenFile = tempFolder.newFile("wrong.token");
+            writeFile(wrongTokenFile, "0123456789abcdef");
+            for (byte op : new byte[] { VCDiffDaemon.kOpEncode, VCDiffDaemon.kOpShutdown }) {
+                try {
+                    VCDiffDaemon.Request(daemon.port(), wrongTokenFile, op, (byte) 0, 0, 0, 4096,
+                            dictionaryFile.getCanonicalPath(), targetFile.getCanonicalPath(), deltaFile.getCanonicalPath());
+                    fail("Expected IOException");
+                } catch (IOException e) {
+                    assertEquals("Invalid token", e.getMessage());
+                }
+            }
+            assertEquals(0, deltaFile.length());
+            assertTrue(server.isAlive());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    @Test
+    public void testServerRoot() throws Exception {
+        File root = tempFolder.newFolder("root");
+        File tokenFile = new File(tempFolder.getRoot(), "server.token");
+        VCDiffDaemon daemon = new VCDiffDaemon(0, 1 << 20, 1, tokenFile, root);
+        Thread server = new Thread(daemon);
+        server.start();
+        try {
+            File dictionary = new File(root, "dictionary");
+            writeFile(dictionary, "0123456789abcdef0123456789abcdef");
+            File target = new File(root, "target");
+            writeFile(target, "0123456789abcdef0123456789abcdefghij");
+            File delta = new File(root, "delta");
+
+            VCDiffDaemon.Request(daemon.port(), tokenFile, VCDiffDaemon.kOpEncode, (byte) 0, 0, 0, 4096,
+                    dictionary.getPath(), target.getPath(), delta.getPath());
+            assertTrue(delta.length() > 0);
+
+            // The delta file is outside of the root, and so is the target
+            // file a ".." leads to
+            for (String[] files : new String[][] {
+                    { target.getPath(), deltaFile.getPath() },
+                    { new File(root, "../" + outputTargetFile.getName()).getPath(), delta.getPath() }
+            }) {
+                try {
+                    VCDiffDaemon.Request(daemon.port(), tokenFile, VCDiffDaemon.kOpEncode, (byte) 0, 0, 0, 4096,
+                            dictionary.getPath(), files[0], files[1]);
+                    fail("Expected IOException");
+                } catch (IOException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("outside of"));
+                }
+            }
+            assertEquals(0, deltaFile.length());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    @Test
+    public void testClientWithoutServer() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        final int port = socket.getLocalPort();
+        socket.close();
+
+        File tokenFile = tempFolder.newFile("server.token");
+        writeFile(tokenFile, "0123456789abcdef");
+
+        exit.expectSystemExit();
+        VCDiffFileBasedCoder.main(new String[] {
+                "client",
+                "-port", Integer.toString(port),
+                "-token_file", tokenFile.getCanonicalPath(),
+                "-dictionary", dictionaryFile.getCanonicalPath(),
+                "-target", targetFile.getCanonicalPath(),
+                "-delta", deltaFile.getCanonicalPath()
+        });
+    }
+
+    @Test
+    public void testBench() throws Exception {
+        // A synthetic pair, then the test files; each checks that every
+        // combination of options round-trips.
+        VCDiffFileBasedCoder.main(new String[] {
+                "bench",
+                "-synthetic_size", "65536",
+                "-warmup", "0",
+                "-iterations", "1",
+                "-buffersizes", "4096"
+        });
+        VCDiffFileBasedCoder.main(new String[] {
+                "bench",
+                "-dictionary", dictionaryFile.getCanonicalPath(),
+                "-target", targetFile.getCanonicalPath(),
+                "-warmup", "1",
+                "-iterations", "2",
+                "-buffersizes", "256,1048576"
+        });
+    }
+
+    @Test
+    public void testBenchWithInvalidBufferSize() throws Exception {
+        exit.expectSystemExit();
+        VCDiffFileBasedCoder.main(new String[] {
+                "bench",
+                "-synthetic_size", "1024",
+                "-buffersizes", "4096,0"
+        });
+    }
+
+    @Test
+    public void testMacroBench() throws Exception {
+        File csv = new File(tempFolder.getRoot(), "results.csv");
+        File corpus = tempFolder.newFolder("corpus");
+        VCDiffFileBasedCoder.main(new String[] {
+                "macrobench",
+                "-scenarios", "edits,noise",
+                "-contents", "json",
+                "-sizes", "2k,16k",
+                "-warmup", "0",
+                "-iterations", "1",
+                "-csv", csv.getCanonicalPath(),
+                "-corpus", corpus.getCanonicalPath()
+        });
+
+        BufferedReader reader = new BufferedReader(new FileReader(csv));
+        try {
+            assertEquals(VCDiffBenchmark.kCsvHeader, reader.readLine());
+            assertTrue(reader.readLine().startsWith("edits,json,2048,false,false,false,1048576,"));
+            assertTrue(reader.readLine().startsWith("noise,json,2048,"));
+            assertTrue(reader.readLine().startsWith("edits,json,16384,"));
+            assertTrue(reader.readLine().startsWith("noise,json,16384,"));
+            assertEquals(null, reader.readLine());
+        } finally {
+            reader.close();
+        }
+        assertEquals(16384, new File(corpus, "noise-json-16384.dictionary").length());
+        assertEquals(16384, new File(corpus, "noise-json-16384.target").length());
+
+        // The same run against its own results has no regressions
+        VCDiffFileBasedCoder.main(new String[] {
+                "macrobench",
+                "-scenarios", "edits",
+                "-contents", "json",
+                "-sizes", "16k",
+                "-iterations", "1",
+                "-csv", new File(tempFolder.getRoot(), "again.csv").getCanonicalPath(),
+                "-baseline", csv.getCanonicalPath()
+        });
+    }
+
+    @Test
+    public void testMacroBenchRegression() throws Exception {
+        // A baseline with a smaller delta than the run produces
+        File baseline = tempFolder.newFile("baseline.csv");
+        writeFile(baseline, VCDiffBenchmark.kCsvHeader + "\n" +
+                "edits,text,4096,false,false,false,1048576,4096,1,0.000244,1.00,1.00,1.0,1.0\n");
+        exit.expectSystemExit();
+        VCDiffFileBasedCoder.main(new String[] {
+                "macrobench",
+                "-scenarios", "edits",
+                "-contents", "text",
+                "-sizes", "4096",
+                "-iterations", "1",
+                "-baseline", baseline.getCanonicalPath()
+        });
+    }
+
     @Test
     public void testVCDiffWithStdio() throws Exception {
         // vcdiff using stdin/stdout.  Verify that output file matches target file.
@@ -886,6 +1258,15 @@ public class VCDiffFileBasedCoderTest {
         assertFileEquals(targetFile, outputTargetFile);
     }
 
+    private static void writeFile(File dest, String contents) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(dest), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
     private static void copyResourceToFile(File dest, String resource) throws IOException {
         InputStream in = VCDiffFileBasedCoderTest.class.getResource(resource).openStream();
         try {
@@ -0,0 +1,81 @@
+package com.davidehrmann.vcdiff;
+
+import com.davidehrmann.vcdiff.WorkloadGenerator.Content;
+import com.davidehrmann.vcdiff.WorkloadGenerator.Scenario;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WorkloadGeneratorTest {
+
+    private static final int kSize = 64 * 1024;
+
+    @Test
+    public void pairsAreReproducible() {
+        for (Content content : Content.values()) {
+            for (Scenario scenario : Scenario.values()) {
+                byte[][] pair = WorkloadGenerator.Generate(7, content, scenario, kSize, 0.01, 16);
+                byte[][] again = WorkloadGenerator.Generate(7, content, scenario, kSize, 0.01, 16);
+                assertArrayEquals(pair[0], again[0]);
+                assertArrayEquals(pair[1], again[1]);
+                assertEquals(kSize, pair[0].length);
+
+                byte[][] other = WorkloadGenerator.Generate(8, content, scenario, kSize, 0.01, 16);
+                assertFalse(Arrays.equals(pair[0], other[0]));
+            }
+        }
+    }
+
+    @Test
+    public void scenariosEditAsDescribed() {
+        for (Content content : Content.values()) {
+            assertTrue(Generate(content, Scenario.INSERTIONS)[1].length > kSize);
+            assertTrue(Generate(content, Scenario.DELETIONS)[1].length < kSize);
+            assertTrue(Generate(content, Scenario.SHIFTED_DUPLICATES)[1].length > kSize);
+
+            // Moves and flips keep the size, and moves keep the bytes too
+            byte[][] moves = Generate(content, Scenario.MOVES);
+            assertFalse(Arrays.equals(moves[0], moves[1]));
+            assertArrayEquals(Sorted(moves[0]), Sorted(moves[1]));
+
+            byte[][] flips = Generate(content, Scenario.FLIPS);
+            int differences = 0;
+            for (int i = 0; i < kSize; i++) {
+                if (flips[0][i] != flips[1][i]) {
+                    differences++;
+                }
+            }
+            assertTrue(differences > 0 && differences <= kSize / 100);
+        }
+
+        // Even the smallest pair is edited
+        byte[][] tiny = WorkloadGenerator.Generate(1, Content.TEXT, Scenario.FLIPS, 16, 0.01, 16);
+        assertFalse(Arrays.equals(tiny[0], tiny[1]));
+
+        byte[][] unedited = WorkloadGenerator.Generate(1, Content.JSON, Scenario.EDITS, kSize, 0, 16);
+        assertArrayEquals(unedited[0], unedited[1]);
+    }
+
+    @Test
+    public void parsesNames() {
+        assertArrayEquals(Scenario.values(), WorkloadGenerator.Parse(Scenario.class, "all"));
+        assertArrayEquals(new Content[] { Content.JSON, Content.MIXED }, WorkloadGenerator.Parse(Content.class, "json, Mixed"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownNames() {
+        WorkloadGenerator.Parse(Scenario.class, "edits,typos");
+    }
+
+    private static byte[][] Generate(Content content, Scenario scenario) {
+        return WorkloadGenerator.Generate(1, content, scenario, kSize, 0.01, 16);
+    }
+
+    private static byte[] Sorted(byte[] data) {
+        byte[] sorted = data.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
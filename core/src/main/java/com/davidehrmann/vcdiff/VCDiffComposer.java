@@ -0,0 +1,29 @@
+package com.davidehrmann.vcdiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Merges a chain of delta files into one.  Given deltas from A to B and from
+ * B to C, it writes a delta from A to C, without decoding B or C: COPY
+ * instructions into B are followed through the instructions that made B.
+ * Only the data the deltas ADD is held in memory, never a whole target.
+ *
+ * Implementations are threadsafe.
+ */
+public interface VCDiffComposer {
+
+    /**
+     * Composes deltas into one delta, from the first delta's dictionary to the
+     * last delta's target.
+     *
+     * @param deltas whole delta files, each from its position to its limit,
+     *               where each one's dictionary is the target of the one before;
+     *               their positions aren't changed
+     * @param out stream to write the composed delta to
+     * @throws IOException if a delta is invalid, or out can't be written to
+     */
+    void compose(List<ByteBuffer> deltas, OutputStream out) throws IOException;
+}
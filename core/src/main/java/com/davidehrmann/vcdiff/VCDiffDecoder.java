@@ -1,5 +1,6 @@
 package com.davidehrmann.vcdiff;
 
+import com.davidehrmann.vcdiff.util.DictionarySource;
 import com.davidehrmann.vcdiff.util.Objects;
 
 import java.io.IOException;
@@ -48,6 +49,20 @@ public class VCDiffDecoder {
         decoder.finishDecoding();
     }
 
+    /**
+     * decode the contents of encoding using a dictionary read from dictionary, writing the decoded data to target
+     *
+     * @param dictionary dictionary source; it isn't closed
+     * @param encoding data to decode
+     * @param target output writer for decoded data
+     * @throws IOException if there was an exception decoding, reading the dictionary, or writing to the output target
+     */
+    public void decode(DictionarySource dictionary, ByteBuffer encoding, OutputStream target) throws IOException {
+        decoder.startDecoding(dictionary);
+        decoder.decodeChunk(encoding, target);
+        decoder.finishDecoding();
+    }
+
     /**
      * Convenience method equivalent to decode(ByteBuffer.wrap(dictionary), ByteBuffer.wrap(encoding), target)
      *
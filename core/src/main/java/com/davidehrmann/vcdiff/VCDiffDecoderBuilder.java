@@ -21,9 +21,16 @@
 
 package com.davidehrmann.vcdiff;
 
+import com.davidehrmann.vcdiff.engine.VCDiffInPlacePatcherImpl;
 import com.davidehrmann.vcdiff.engine.VCDiffStreamingDecoderImpl;
+import com.davidehrmann.vcdiff.engine.VCDiffWindowIndex;
 import com.davidehrmann.vcdiff.io.VCDiffInputStream;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+import com.davidehrmann.vcdiff.util.Objects;
+import com.davidehrmann.vcdiff.util.TargetStorage;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
@@ -32,6 +39,8 @@ public class VCDiffDecoderBuilder {
     protected long maximumTargetFileSize = -1;
     protected int maximumTargetWindowSize = -1;
     protected boolean allowTargetMatches = true;
+    protected BufferPool bufferPool = BufferPool.unpooled();
+    protected TargetStorage targetStorage = TargetStorage.heap();
 
     protected VCDiffDecoderBuilder() {
 
@@ -58,8 +67,33 @@ public class VCDiffDecoderBuilder {
         return this;
     }
 
-    public VCDiffStreamingDecoder buildStreaming() {
-        return buildStreaming(new VCDiffStreamingDecoderImpl());
+    /**
+     * Sets the pool that decoders take their working buffers from.  The
+     * default, {@link BufferPool#unpooled()}, allocates fresh buffers.
+     *
+     * @param bufferPool buffer pool
+     * @return this builder
+     */
+    public synchronized VCDiffDecoderBuilder withBufferPool(BufferPool bufferPool) {
+        this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+        return this;
+    }
+
+    /**
+     * Sets where decoders keep the target data they decode.  The default,
+     * {@link TargetStorage#heap()}, keeps it in a byte array; segmented storage
+     * keeps it off the Java heap, which suits very large targets.
+     *
+     * @param targetStorage target storage
+     * @return this builder
+     */
+    public synchronized VCDiffDecoderBuilder withTargetStorage(TargetStorage targetStorage) {
+        this.targetStorage = Objects.requireNotNull(targetStorage, "targetStorage was null");
+        return this;
+    }
+
+    public synchronized VCDiffStreamingDecoder buildStreaming() {
+        return buildStreaming(new VCDiffStreamingDecoderImpl(bufferPool, targetStorage));
     }
 
     public synchronized VCDiffStreamingDecoder buildStreaming(VCDiffStreamingDecoder decoder) {
@@ -89,6 +123,48 @@ public class VCDiffDecoderBuilder {
         return new VCDiffDecoder(buildStreaming(decoder));
     }
 
+    /**
+     * Builds a reader for ranges of the target a delta file decodes to,
+     * indexing the delta's windows first.
+     *
+     * @param dictionary the dictionary the delta was encoded against
+     * @param delta the whole delta file, from its position to its limit
+     * @return the new reader
+     * @throws IOException if the delta is invalid, or has windows that can't
+     * be decoded on their own
+     */
+    public VCDiffRandomAccessReader buildRandomAccess(DictionarySource dictionary, ByteBuffer delta) throws IOException {
+        return buildRandomAccess(dictionary, delta, VCDiffWindowIndex.build(delta));
+    }
+
+    /**
+     * Builds a reader for ranges of the target a delta file decodes to, using
+     * an index saved from an earlier {@link VCDiffWindowIndex#build(ByteBuffer)}.
+     *
+     * @param dictionary the dictionary the delta was encoded against
+     * @param delta the whole delta file, from its position to its limit
+     * @param index the delta file's index
+     * @return the new reader
+     * @throws IOException if the delta has windows that can't be decoded on
+     * their own
+     */
+    public VCDiffRandomAccessReader buildRandomAccess(DictionarySource dictionary, ByteBuffer delta, VCDiffWindowIndex index) throws IOException {
+        return new VCDiffRandomAccessReader(buildStreaming(), dictionary, delta, index);
+    }
+
+    /**
+     * Builds a patcher that overwrites a delta's dictionary file with its
+     * target.  Only the maximum target file size applies.
+     *
+     * @param maximumScratchSize most bytes of the file the patcher holds in
+     *                           memory, to break cycles of COPY instructions
+     *                           that each overwrite what another reads
+     * @return the new patcher
+     */
+    public synchronized VCDiffInPlacePatcher buildInPlace(int maximumScratchSize) {
+        return new VCDiffInPlacePatcherImpl(maximumTargetFileSize, maximumScratchSize);
+    }
+
     public static VCDiffDecoderBuilder builder() {
         return new VCDiffDecoderBuilder();
     }
@@ -22,12 +22,21 @@
 package com.davidehrmann.vcdiff;
 
 import com.davidehrmann.vcdiff.engine.HashedDictionary;
+import com.davidehrmann.vcdiff.engine.VCDiffChannelCodeTableWriter;
+import com.davidehrmann.vcdiff.engine.VCDiffCodeTableTuner;
+import com.davidehrmann.vcdiff.engine.VCDiffComposerImpl;
 import com.davidehrmann.vcdiff.engine.JSONCodeTableWriter;
 import com.davidehrmann.vcdiff.engine.VCDiffStreamingEncoderImpl;
 import com.davidehrmann.vcdiff.engine.VCDiffCodeTableWriterImpl;
+import com.davidehrmann.vcdiff.engine.VCDiffSignature;
+import com.davidehrmann.vcdiff.engine.VCDiffSizeEstimatorImpl;
 import com.davidehrmann.vcdiff.io.VCDiffOutputStream;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.Objects;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
 import java.util.EnumSet;
 
 public class VCDiffEncoderBuilder {
@@ -35,7 +44,13 @@ public class VCDiffEncoderBuilder {
     protected boolean interleaved = false;
     protected boolean checksum = false;
     protected boolean targetMatches = true;
+    protected boolean narrowSourceSegments = false;
+    protected int matchAcceleration = 0;
     protected byte[] dictionary = null;
+    protected HashedDictionary hashedDictionary = null;
+    protected VCDiffSignature signature = null;
+    protected byte[] codeTableSample = null;
+    protected BufferPool bufferPool = BufferPool.unpooled();
 
     protected VCDiffEncoderBuilder() {
 
@@ -53,6 +68,41 @@ public class VCDiffEncoderBuilder {
 
     public synchronized VCDiffEncoderBuilder withDictionary(byte[] dictionary) {
         this.dictionary = dictionary;
+        this.hashedDictionary = null;
+        this.signature = null;
+        return this;
+    }
+
+    /**
+     * Sets a dictionary that has already been hashed.  Hashing a dictionary
+     * takes time proportional to its size, so when many encoders use the same
+     * dictionary, hash it once and share it; a HashedDictionary is thread-safe.
+     *
+     * @param hashedDictionary hashed dictionary
+     * @return this builder
+     */
+    public synchronized VCDiffEncoderBuilder withDictionary(HashedDictionary hashedDictionary) {
+        this.hashedDictionary = hashedDictionary;
+        this.dictionary = null;
+        this.signature = null;
+        return this;
+    }
+
+    /**
+     * Encodes against a signature of the dictionary, in place of the
+     * dictionary, so only whoever decodes needs the dictionary itself.  COPY
+     * instructions then only copy whole blocks of the dictionary, and matches
+     * within the target aren't looked for.  Turn on checksums, so a block
+     * wrongly matched by its hashes makes decoding fail rather than produce
+     * the wrong target.  Size estimators can't use a signature.
+     *
+     * @param signature signature of the dictionary
+     * @return this builder
+     */
+    public synchronized VCDiffEncoderBuilder withSignature(VCDiffSignature signature) {
+        this.signature = Objects.requireNotNull(signature, "signature was null");
+        this.dictionary = null;
+        this.hashedDictionary = null;
         return this;
     }
 
@@ -61,26 +111,105 @@ public class VCDiffEncoderBuilder {
         return this;
     }
 
-    public synchronized VCDiffStreamingEncoder<OutputStream> buildStreaming() {
-        if (dictionary == null) {
-            throw new IllegalArgumentException("dictionary not set");
-        }
+    /**
+     * Sets whether each delta window's source segment only covers the part of
+     * the dictionary that the window copies from, rather than the whole
+     * dictionary.  COPY addresses become smaller, which shrinks the delta when
+     * a large dictionary is mostly used in order, and a decoder reading the
+     * dictionary from a file only needs that part of it.  The default is false.
+     * JSON encoders ignore this.
+     *
+     * @param narrowSourceSegments whether to narrow source segments
+     * @return this builder
+     */
+    public synchronized VCDiffEncoderBuilder withNarrowSourceSegments(boolean narrowSourceSegments) {
+        this.narrowSourceSegments = narrowSourceSegments;
+        return this;
+    }
 
-        EnumSet<VCDiffFormatExtension> formatFlags = EnumSet.noneOf(VCDiffFormatExtension.class);
-        if (interleaved) {
-            formatFlags.add(VCDiffFormatExtension.GOOGLE_INTERLEAVED);
-        }
-        if (checksum) {
-            formatFlags.add(VCDiffFormatExtension.GOOGLE_CHECKSUM);
+    /**
+     * Sets how quickly the encoder gives up on looking for matches in parts of
+     * the target that don't match anything, such as already-compressed data.
+     * After every 64 / matchAcceleration consecutive lookups without a match,
+     * one more position is skipped between each lookup, up to 63; the first
+     * match resets this.  Higher values encode such data faster, but may miss
+     * matches that start inside it.  The default, 0, looks for a match at
+     * every position.
+     *
+     * @param matchAcceleration match acceleration; must be non-negative
+     * @return this builder
+     */
+    public synchronized VCDiffEncoderBuilder withMatchAcceleration(int matchAcceleration) {
+        if (matchAcceleration < 0) {
+            throw new IllegalArgumentException("matchAcceleration must be non-negative: " + matchAcceleration);
         }
+        this.matchAcceleration = matchAcceleration;
+        return this;
+    }
+
+    /**
+     * Tunes the code table, which maps instructions to opcodes, to the
+     * instructions produced by encoding sample against the dictionary, such
+     * as a typical target, and writes the table to the header of each delta.
+     * The table costs a few hundred bytes, but can make the instructions of
+     * similar targets smaller, so this pays off for deltas with many windows
+     * or many instructions.  The sample is encoded once, when the encoder is
+     * built; to tune the table to a single target, pass the target itself.
+     * The default, null, uses the standard code table.  JSON encoders and
+     * size estimators ignore this.
+     *
+     * @param sample sample target, or null
+     * @return this builder
+     */
+    public synchronized VCDiffEncoderBuilder withCodeTableTunedTo(byte[] sample) {
+        this.codeTableSample = sample;
+        return this;
+    }
+
+    /**
+     * Sets the pool that encoders take their working buffers from.  The
+     * default, {@link BufferPool#unpooled()}, allocates fresh buffers.
+     *
+     * @param bufferPool buffer pool
+     * @return this builder
+     */
+    public synchronized VCDiffEncoderBuilder withBufferPool(BufferPool bufferPool) {
+        this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+        return this;
+    }
 
-        VCDiffCodeTableWriter<OutputStream> coder = new VCDiffCodeTableWriterImpl(interleaved);
+    public synchronized VCDiffStreamingEncoder<OutputStream> buildStreaming() {
+        HashedDictionary hashedDictionary = hashedDictionary();
+        VCDiffCodeTableWriterImpl coder = newCodeTableWriter(hashedDictionary);
+        coder.setNarrowSourceSegments(narrowSourceSegments);
 
         return new VCDiffStreamingEncoderImpl<OutputStream>(
                 coder,
-                new HashedDictionary(dictionary),
-                formatFlags,
-                targetMatches
+                hashedDictionary,
+                formatFlags(),
+                targetMatches,
+                matchAcceleration
+        );
+    }
+
+    /**
+     * Builds a streaming encoder that writes to a {@link GatheringByteChannel},
+     * emitting each delta window with a single gathering write.
+     *
+     * @return the new encoder
+     */
+    public synchronized VCDiffStreamingEncoder<GatheringByteChannel> buildStreamingChannel() {
+        HashedDictionary hashedDictionary = hashedDictionary();
+        VCDiffCodeTableWriterImpl writer = newCodeTableWriter(hashedDictionary);
+        writer.setNarrowSourceSegments(narrowSourceSegments);
+        VCDiffCodeTableWriter<GatheringByteChannel> coder = new VCDiffChannelCodeTableWriter(writer);
+
+        return new VCDiffStreamingEncoderImpl<GatheringByteChannel>(
+                coder,
+                hashedDictionary,
+                formatFlags(),
+                targetMatches,
+                matchAcceleration
         );
     }
 
@@ -89,7 +218,7 @@ public class VCDiffEncoderBuilder {
     }
 
     public synchronized VCDiffStreamingEncoder<Appendable> buildStreamingJson() {
-        if (dictionary == null) {
+        if (dictionary == null && hashedDictionary == null && signature == null) {
             throw new IllegalArgumentException("dictionary not set");
         }
         if (interleaved) {
@@ -103,12 +232,46 @@ public class VCDiffEncoderBuilder {
 
         return new VCDiffStreamingEncoderImpl<Appendable>(
                 coder,
-                new HashedDictionary(dictionary),
+                hashedDictionary(),
                 EnumSet.noneOf(VCDiffFormatExtension.class),
-                targetMatches
+                targetMatches,
+                matchAcceleration
+        );
+    }
+
+    /**
+     * Builds an estimator for the sizes of the deltas {@link #buildSimple()}
+     * encoders would produce.  Narrowed source segments aren't accounted for.
+     *
+     * @return the new estimator
+     */
+    public synchronized VCDiffSizeEstimator buildSizeEstimator() {
+        if (signature != null) {
+            throw new IllegalArgumentException("Size estimates not supported with a signature");
+        }
+        return new VCDiffSizeEstimatorImpl(
+                hashedDictionary(),
+                formatFlags(),
+                targetMatches,
+                matchAcceleration
         );
     }
 
+    /**
+     * Builds a composer that merges chains of deltas into one delta, written
+     * in the interleaved format if that's set.  No dictionary is needed.
+     * Composed deltas use the default code table, and can't have checksums,
+     * since those would mean decoding the targets.
+     *
+     * @return the new composer
+     */
+    public synchronized VCDiffComposer buildComposer() {
+        if (checksum) {
+            throw new IllegalArgumentException("Checksum not supported when composing deltas");
+        }
+        return new VCDiffComposerImpl(interleaved, bufferPool);
+    }
+
     public VCDiffEncoder<OutputStream> buildSimple() {
         return new VCDiffEncoder<OutputStream>(buildStreaming());
     }
@@ -117,6 +280,51 @@ public class VCDiffEncoderBuilder {
         return new VCDiffEncoder<Appendable>(buildStreamingJson());
     }
 
+    private HashedDictionary hashedDictionary() {
+        if (hashedDictionary != null) {
+            return hashedDictionary;
+        }
+        if (signature != null) {
+            return new HashedDictionary(signature);
+        }
+        if (dictionary == null) {
+            throw new IllegalArgumentException("dictionary not set");
+        }
+        return new HashedDictionary(dictionary);
+    }
+
+    // Creates the writer for binary encoders, with a code table tuned to
+    // codeTableSample if that's set.
+    private VCDiffCodeTableWriterImpl newCodeTableWriter(HashedDictionary hashedDictionary) {
+        if (codeTableSample == null) {
+            return new VCDiffCodeTableWriterImpl(interleaved, bufferPool);
+        }
+
+        VCDiffCodeTableTuner tuner = new VCDiffCodeTableTuner();
+        VCDiffStreamingEncoderImpl<Void> encoder = new VCDiffStreamingEncoderImpl<Void>(
+                tuner, hashedDictionary, formatFlags(), targetMatches, matchAcceleration
+        );
+        try {
+            encoder.startEncoding(null);
+            encoder.encodeChunk(codeTableSample, null);
+            encoder.finishEncoding(null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode code table sample", e);
+        }
+        return tuner.newCodeTableWriter(interleaved, bufferPool);
+    }
+
+    protected EnumSet<VCDiffFormatExtension> formatFlags() {
+        EnumSet<VCDiffFormatExtension> formatFlags = EnumSet.noneOf(VCDiffFormatExtension.class);
+        if (interleaved) {
+            formatFlags.add(VCDiffFormatExtension.GOOGLE_INTERLEAVED);
+        }
+        if (checksum) {
+            formatFlags.add(VCDiffFormatExtension.GOOGLE_CHECKSUM);
+        }
+        return formatFlags;
+    }
+
     public static VCDiffEncoderBuilder builder() {
         return new VCDiffEncoderBuilder();
     }
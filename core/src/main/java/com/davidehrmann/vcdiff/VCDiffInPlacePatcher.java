@@ -0,0 +1,37 @@
+package com.davidehrmann.vcdiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Applies a delta to the file holding its dictionary, overwriting the
+ * dictionary with the target, so no second copy of the file is needed.
+ *
+ * COPY instructions are reordered so that each range of the dictionary is
+ * read before anything overwrites it.  Where copies depend on each other in
+ * a cycle, one of them is read into memory first and written with the added
+ * data; how much memory that takes is bounded when the patcher is built.
+ * The whole plan is made before the file is written to, so a delta that's
+ * invalid, or would need more memory than that, leaves the file unchanged.
+ * An I/O error or crash while the file is being written leaves it neither
+ * the dictionary nor the target.
+ *
+ * Implementations are threadsafe.
+ */
+public interface VCDiffInPlacePatcher {
+
+    /**
+     * Patches a file in place.  Windows with checksums are checked after the
+     * file has been written.
+     *
+     * @param file the dictionary, which becomes the target; it must be open
+     *             for reading and writing
+     * @param delta the whole delta file, from its position to its limit; its
+     *              position isn't changed
+     * @throws IOException if the delta is invalid, copies from past the end of
+     * the file, would need too much memory, or if the file can't be read or
+     * written, or the target doesn't match its checksums
+     */
+    void patch(FileChannel file, ByteBuffer delta) throws IOException;
+}
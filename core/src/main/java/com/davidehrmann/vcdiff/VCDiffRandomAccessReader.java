@@ -0,0 +1,170 @@
+package com.davidehrmann.vcdiff;
+
+import com.davidehrmann.vcdiff.engine.VCDiffWindowIndex;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads ranges of the target a delta file decodes to, decoding only the
+ * windows that cover each range, found through a {@link VCDiffWindowIndex}.
+ * Reads are positional, like {@link java.nio.channels.FileChannel#read(ByteBuffer, long)}.
+ *
+ * Each window is decoded on its own, after the delta file's header, so none
+ * of the delta's windows may copy from earlier target data (VCD_TARGET).
+ * This library's encoder never writes such windows.  The most recently
+ * decoded window is kept, so sequential reads decode each window once.
+ *
+ * This object is thread-safe, though reads are serialized.
+ */
+public class VCDiffRandomAccessReader {
+
+    private final VCDiffStreamingDecoder decoder;
+    private final DictionarySource dictionary;
+    private final ByteBuffer delta;
+    private final VCDiffWindowIndex index;
+
+    private final WindowBuffer window = new WindowBuffer();
+    private int decodedWindow = -1;
+
+    /**
+     * @param decoder decoder to decode each window with
+     * @param dictionary the dictionary the delta was encoded against; it
+     *                   isn't closed by this reader
+     * @param delta the whole delta file, from its position to its limit
+     * @param index the delta file's index
+     * @throws IOException if the delta has windows that copy from earlier target data
+     * @throws IllegalArgumentException if index is for a different delta
+     */
+    VCDiffRandomAccessReader(VCDiffStreamingDecoder decoder, DictionarySource dictionary, ByteBuffer delta, VCDiffWindowIndex index) throws IOException {
+        this.decoder = Objects.requireNotNull(decoder, "decoder was null");
+        this.dictionary = Objects.requireNotNull(dictionary, "dictionary was null");
+        this.delta = Objects.requireNotNull(delta, "delta was null").slice();
+        this.index = Objects.requireNotNull(index, "index was null");
+
+        if (index.deltaSize() != this.delta.remaining()) {
+            throw new IllegalArgumentException(String.format(
+                    "Index is for a delta of %d bytes, not %d", index.deltaSize(), this.delta.remaining()
+            ));
+        }
+        for (int i = 0; i < index.windowCount(); i++) {
+            if (index.copiesFromTarget(i)) {
+                throw new IOException(String.format(
+                        "Window %d copies from earlier target data (VCD_TARGET), so windows can't be decoded on their own", i
+                ));
+            }
+        }
+    }
+
+    /**
+     * @return the size of the target
+     */
+    public long size() {
+        return index.targetSize();
+    }
+
+    /**
+     * @return the index of the delta file
+     */
+    public VCDiffWindowIndex index() {
+        return index;
+    }
+
+    /**
+     * Reads target data starting at position into dst, until dst is full or
+     * the end of the target is reached.
+     *
+     * @param dst buffer to read into
+     * @param position offset in the target to start reading at
+     * @return the number of bytes read, or -1 if position is at or past the
+     * end of the target
+     * @throws IOException if the delta can't be decoded
+     */
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must be non-negative: " + position);
+        }
+        if (position >= size()) {
+            return -1;
+        }
+
+        int read = 0;
+        while (dst.hasRemaining() && position < size()) {
+            final int length = decodeWindowContaining(position, dst.remaining());
+            dst.put(window.array(), (int) (position - index.targetOffset(decodedWindow)), length);
+            position += length;
+            read += length;
+        }
+        return read;
+    }
+
+    /**
+     * Writes count bytes of target data starting at position to out, or fewer
+     * if the end of the target is reached first.
+     *
+     * @param position offset in the target to start at
+     * @param count the most bytes to write
+     * @param out stream to write to
+     * @return the number of bytes written
+     * @throws IOException if the delta can't be decoded, or out can't be written to
+     */
+    public synchronized long transferTo(long position, long count, OutputStream out) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "position and count must be non-negative: %d, %d", position, count
+            ));
+        }
+
+        long written = 0;
+        while (written < count && position < size()) {
+            final int length = decodeWindowContaining(position, count - written);
+            out.write(window.array(), (int) (position - index.targetOffset(decodedWindow)), length);
+            position += length;
+            written += length;
+        }
+        return written;
+    }
+
+    // Decodes the window containing position, unless it's the last one
+    // decoded.  Returns the number of bytes, up to limit, that the window has
+    // from position on.
+    private int decodeWindowContaining(long position, long limit) throws IOException {
+        final int windowIndex = index.windowContaining(position);
+        if (windowIndex != decodedWindow) {
+            decodedWindow = -1;
+            window.reset();
+
+            final ByteBuffer header = delta.duplicate();
+            header.limit(index.headerLength());
+            final ByteBuffer body = delta.duplicate();
+            body.position((int) index.deltaOffset(windowIndex));
+            body.limit((int) (index.deltaOffset(windowIndex) + index.deltaLength(windowIndex)));
+
+            // decodeChunk() resets the decoder if it fails
+            decoder.startDecoding(dictionary);
+            decoder.decodeChunk(header, window);
+            decoder.decodeChunk(body, window);
+            decoder.finishDecoding();
+            if (window.size() != index.targetLength(windowIndex)) {
+                throw new IOException(String.format(
+                        "Window %d decoded to %d bytes, not %d", windowIndex, window.size(), index.targetLength(windowIndex)
+                ));
+            }
+            decodedWindow = windowIndex;
+        }
+
+        final long remaining = index.targetOffset(windowIndex) + index.targetLength(windowIndex) - position;
+        return (int) Math.min(remaining, limit);
+    }
+
+    // Exposes its array, so that reads don't copy each window again
+    private static final class WindowBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
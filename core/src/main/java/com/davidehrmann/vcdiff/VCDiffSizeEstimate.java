@@ -0,0 +1,62 @@
+package com.davidehrmann.vcdiff;
+
+/**
+ * A predicted delta size, from {@link VCDiffSizeEstimator#estimateDeltaSize(byte[], int, int, double)}.
+ * The size of the delta is within {@link #error()} bytes of {@link #size()}
+ * with about 95% confidence, as far as it depends on how much of the target
+ * matches the dictionary.
+ */
+public final class VCDiffSizeEstimate {
+    private final long size;
+    private final long error;
+    private final boolean exact;
+
+    public VCDiffSizeEstimate(long size, long error, boolean exact) {
+        if (size < 0 || error < 0) {
+            throw new IllegalArgumentException("size and error must be non-negative");
+        }
+        this.size = size;
+        this.error = error;
+        this.exact = exact;
+    }
+
+    /**
+     * @return the predicted size of the delta in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the half-width of the confidence interval around {@link #size()}; 0 if exact
+     */
+    public long error() {
+        return error;
+    }
+
+    /**
+     * @return the smallest size within the confidence interval
+     */
+    public long lowerBound() {
+        return Math.max(0, size - error);
+    }
+
+    /**
+     * @return the largest size within the confidence interval
+     */
+    public long upperBound() {
+        return size + error;
+    }
+
+    /**
+     * @return whether the target was encoded to get the size, rather than sampled
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    @Override
+    public String toString() {
+        return exact ? Long.toString(size) : size + " +/- " + error;
+    }
+}
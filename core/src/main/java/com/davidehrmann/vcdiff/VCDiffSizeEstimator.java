@@ -0,0 +1,45 @@
+package com.davidehrmann.vcdiff;
+
+import java.io.IOException;
+
+/**
+ * Works out how large a delta would be without producing it, for deciding
+ * whether a delta is worth sending instead of the target itself.  The sizes
+ * are those of the delta {@link VCDiffEncoder#encode(byte[], int, int, Object)}
+ * would produce with the same settings.
+ *
+ * Implementations are threadsafe.
+ */
+public interface VCDiffSizeEstimator {
+
+    /**
+     * Encodes data without keeping the output, returning the exact size of the
+     * delta.  This costs about as much as encoding, but allocates no buffers
+     * for the delta.
+     *
+     * @param data target data
+     * @param offset offset into data of the target
+     * @param length length of the target
+     * @return size of the delta in bytes
+     * @throws IOException if there's an encoding exception
+     */
+    long deltaSize(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Predicts the size of the delta from a sample of target positions, each
+     * checked for a match in the dictionary.  sampleFraction is roughly the
+     * fraction of the dictionary lookups that encoding could make, and so of
+     * its cost.  Matches within the target itself aren't sampled, so targets
+     * that repeat themselves may get an estimate that's too large.  When
+     * sampling wouldn't be much cheaper than encoding, such as for small
+     * targets, this encodes and returns the exact size instead.
+     *
+     * @param data target data
+     * @param offset offset into data of the target
+     * @param length length of the target
+     * @param sampleFraction fraction of the encoding cost to spend, greater than 0 and at most 1
+     * @return the estimate
+     * @throws IOException if there's an encoding exception
+     */
+    VCDiffSizeEstimate estimateDeltaSize(byte[] data, int offset, int length, double sampleFraction) throws IOException;
+}
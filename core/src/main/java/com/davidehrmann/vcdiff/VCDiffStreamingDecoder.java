@@ -17,6 +17,8 @@ package com.davidehrmann.vcdiff;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+
 import java.nio.ByteBuffer;
 
 
@@ -38,6 +40,17 @@ public interface VCDiffStreamingDecoder {
      */
     void startDecoding(ByteBuffer dictionary);
 
+    /**
+     * Like {@link #startDecoding(ByteBuffer)}, but reads the dictionary from
+     * a source that needn't be in memory, such as a file read through
+     * {@link DictionarySource#cached(java.nio.channels.FileChannel)}.  Only the
+     * ranges that COPY instructions refer to are read.  The source isn't closed
+     * by the decoder.
+     *
+     * @param dictionary dictionary the decoder is initialized with
+     */
+    void startDecoding(DictionarySource dictionary);
+
     /**
      * @deprecated use {@link #decodeChunk(ByteBuffer, OutputStream)}
      *
@@ -97,11 +110,10 @@ public interface VCDiffStreamingDecoder {
      * input data is known never to exceed a particular size, and/or the input
      * data may be maliciously constructed, a lower value can be supplied in order
      * to guard against running out of memory or swapping to disk while decoding
-     * an extremely large target file.  The argument must be between 0 and
-     * INT32_MAX (2G); if it is within these bounds, the function will set the
-     * limit and return true.  Otherwise, the function will return false and will
-     * not change the limit.  Setting the limit to 0 will cause all decode
-     * operations of non-empty target files to fail.
+     * an extremely large target file.  The limit may exceed 2GB, since the
+     * target is decoded and written out window by window; only individual
+     * windows are limited to INT32_MAX bytes.  Setting the limit to 0 will cause
+     * all decode operations of non-empty target files to fail.
      *
      * @param newMaximumTargetFileSize maximum size allowed output size
      * @return whether or not the maximum target file size was changed successfully
@@ -125,7 +137,10 @@ public interface VCDiffStreamingDecoder {
      * segment to be chosen from the previously-decoded target data.  (This is the
      * default behavior.)  If it is false, then specifying the VCD_TARGET flag is
      * considered an error, and the decoder does not need to keep in memory any
-     * decoded target data prior to the current window.
+     * decoded target data prior to the current window.  Even when it is true,
+     * the decoder only keeps up to INT32_MAX bytes of target data, less the
+     * maximum target window size.  The data kept is discarded after the window
+     * that exceeds that amount, and later VCD_TARGET segments can't refer to it.
      *
      * @param allowVcdTarget whether or not to allow the decoder to use decoded VCD
      *                       data as a target
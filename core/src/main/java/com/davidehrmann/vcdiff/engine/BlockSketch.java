@@ -0,0 +1,226 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * A bottom-k MinHash sketch of the substrings of some data: the k smallest
+ * distinct hashes of its fingerprints.  A fingerprint combines the
+ * {@link RollingHash} values of the two consecutive blocks starting at a
+ * position, so it covers {@link VCDiffEngine#kMinimumMatchSize} bytes, the
+ * smallest match the encoder copies.  Every position is fingerprinted, not
+ * just block-aligned ones.
+ *
+ * Comparing a target's sketch with a dictionary's estimates how much of the
+ * target could be copied from that dictionary, without building a
+ * {@link HashedDictionary} for it.  See {@link BlockSketchIndex} for choosing
+ * among many dictionaries.
+ *
+ * Sketches are immutable and thread-safe.
+ */
+public final class BlockSketch {
+
+    /**
+     * The default number of hashes kept.  The error of a containment estimate
+     * is about 1 / sqrt(size).
+     */
+    public static final int DEFAULT_SIZE = 256;
+
+    static final int kFingerprintSize = 2 * BlockHash.kBlockSize;
+
+    // Serialized form: magic, size, count, then the hashes.  The magic's last
+    // character is the format version.
+    private static final int kMagic = 0x56534b31;  // "VSK1"
+
+    private final int size;
+
+    // The smallest distinct hashes, in increasing order.  There are fewer than
+    // size of them only if the data didn't have that many distinct fingerprints.
+    private final long[] hashes;
+
+    private BlockSketch(int size, long[] hashes) {
+        this.size = size;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Sketches data, keeping {@link #DEFAULT_SIZE} hashes.
+     *
+     * @param data data to sketch
+     * @return the sketch
+     */
+    public static BlockSketch of(byte[] data) {
+        return of(data, 0, data.length, DEFAULT_SIZE);
+    }
+
+    /**
+     * Sketches data[offset, offset + length), keeping size hashes.
+     *
+     * @param data data to sketch
+     * @param offset offset of the data to sketch
+     * @param length length of the data to sketch
+     * @param size number of hashes to keep; must be positive
+     * @return the sketch
+     */
+    public static BlockSketch of(byte[] data, int offset, int length, int size) {
+        Objects.requireNotNull(data, "data was null");
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+
+        final TreeSet<Long> smallest = new TreeSet<Long>();
+        if (length >= kFingerprintSize) {
+            final int blockSize = BlockHash.kBlockSize;
+            final RollingHash hasher = new RollingHash(blockSize);
+            long first = hasher.Hash(data, offset, blockSize);
+            long second = hasher.Hash(data, offset + blockSize, blockSize);
+            final int end = offset + length - kFingerprintSize;
+            for (int position = offset; ; position++) {
+                final long hash = mix((first << 32) | second);
+                if (smallest.size() < size) {
+                    smallest.add(hash);
+                } else if (hash < smallest.last() && smallest.add(hash)) {
+                    smallest.pollLast();
+                }
+
+                if (position == end) {
+                    break;
+                }
+                first = hasher.UpdateHash(first, data[position], data[position + blockSize]);
+                second = hasher.UpdateHash(second, data[position + blockSize], data[position + kFingerprintSize]);
+            }
+        }
+
+        final long[] hashes = new long[smallest.size()];
+        int i = 0;
+        for (Long hash : smallest) {
+            hashes[i++] = hash;
+        }
+        return new BlockSketch(size, hashes);
+    }
+
+    /**
+     * Reads a sketch written by {@link #toByteArray()}.
+     *
+     * @param serialized the serialized sketch
+     * @return the sketch
+     * @throws IllegalArgumentException if serialized isn't a valid sketch
+     */
+    public static BlockSketch fromByteArray(byte[] serialized) {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(serialized);
+            if (buffer.getInt() != kMagic) {
+                throw new IllegalArgumentException("Not a serialized sketch");
+            }
+            final int size = buffer.getInt();
+            final int count = buffer.getInt();
+            if (size <= 0 || count < 0 || count > size || buffer.remaining() != 8 * count) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid sketch: size %d, %d hashes in %d bytes", size, count, buffer.remaining()
+                ));
+            }
+            final long[] hashes = new long[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = buffer.getLong();
+                if (hashes[i] < 0 || (i > 0 && hashes[i] <= hashes[i - 1])) {
+                    throw new IllegalArgumentException("Invalid sketch: hashes out of order");
+                }
+            }
+            return new BlockSketch(size, hashes);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated sketch", e);
+        }
+    }
+
+    /**
+     * @return this sketch in a form {@link #fromByteArray(byte[])} reads
+     */
+    public byte[] toByteArray() {
+        final ByteBuffer buffer = ByteBuffer.allocate(12 + 8 * hashes.length);
+        buffer.putInt(kMagic);
+        buffer.putInt(size);
+        buffer.putInt(hashes.length);
+        for (long hash : hashes) {
+            buffer.putLong(hash);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the number of hashes this sketch keeps
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the fraction of this sketch's fingerprints that are also in
+     * dictionary's.  For a target's sketch, that's roughly the fraction of the
+     * target that can be encoded by copying from the dictionary.
+     *
+     * Only hashes up to the smaller of the two sketches' largest hashes are
+     * compared, since below that both sketches hold every hash their data had.
+     *
+     * @param dictionary sketch of the dictionary
+     * @return the estimated containment, from 0 to 1
+     */
+    public double containmentIn(BlockSketch dictionary) {
+        final long limit = Math.min(threshold(), dictionary.threshold());
+        final long[] other = dictionary.hashes;
+
+        int compared = 0;
+        int contained = 0;
+        int j = 0;
+        for (int i = 0; i < hashes.length && hashes[i] <= limit; i++) {
+            compared++;
+            while (j < other.length && other[j] < hashes[i]) {
+                j++;
+            }
+            if (j < other.length && other[j] == hashes[i]) {
+                contained++;
+            }
+        }
+        return compared == 0 ? 0.0 : (double) contained / compared;
+    }
+
+    // Hashes above this may be missing from the sketch
+    private long threshold() {
+        return hashes.length < size ? Long.MAX_VALUE : hashes[hashes.length - 1];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BlockSketch)) {
+            return false;
+        }
+        BlockSketch that = (BlockSketch) o;
+        return size == that.size && Arrays.equals(hashes, that.hashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * size + Arrays.hashCode(hashes);
+    }
+
+    // The rolling hashes are only 23 bits each, and not uniform enough to
+    // take the smallest of directly; this finalizer from MurmurHash3 spreads
+    // them over 63 bits.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h >>> 1;
+    }
+}
@@ -0,0 +1,141 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sketches of candidate dictionaries, such as earlier versions of a file,
+ * for choosing which one to encode a new target against.  Candidates are
+ * ranked by how much of the target's sketch their sketches contain (see
+ * {@link BlockSketch#containmentIn(BlockSketch)}), which takes time
+ * proportional to the sketch size for each candidate, without reading the
+ * candidates themselves.
+ *
+ * All methods in this class are thread-safe.
+ *
+ * @param <K> the type of the keys candidates are stored under
+ */
+public class BlockSketchIndex<K> {
+
+    /**
+     * A candidate dictionary and its estimated containment of a target.
+     *
+     * @param <K> the type of the candidate's key
+     */
+    public static final class Candidate<K> {
+        private final K key;
+        private final double containment;
+
+        Candidate(K key, double containment) {
+            this.key = key;
+            this.containment = containment;
+        }
+
+        /**
+         * @return the key the candidate was stored under
+         */
+        public K key() {
+            return key;
+        }
+
+        /**
+         * @return the estimated fraction of the target the candidate contains
+         */
+        public double containment() {
+            return containment;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + containment;
+        }
+    }
+
+    private final Map<K, BlockSketch> sketches = new LinkedHashMap<K, BlockSketch>();
+
+    /**
+     * Stores the sketch of a candidate dictionary, replacing any sketch already
+     * stored under key.
+     *
+     * @param key key of the candidate
+     * @param sketch sketch of the candidate
+     * @return the sketch previously stored under key, or null
+     */
+    public synchronized BlockSketch put(K key, BlockSketch sketch) {
+        return sketches.put(
+                Objects.requireNotNull(key, "key was null"),
+                Objects.requireNotNull(sketch, "sketch was null"));
+    }
+
+    /**
+     * @param key key of the candidate
+     * @return the sketch stored under key, or null
+     */
+    public synchronized BlockSketch get(K key) {
+        return sketches.get(key);
+    }
+
+    /**
+     * @param key key of the candidate
+     * @return the sketch that was stored under key, or null
+     */
+    public synchronized BlockSketch remove(K key) {
+        return sketches.remove(key);
+    }
+
+    /**
+     * @return the number of candidates stored
+     */
+    public synchronized int size() {
+        return sketches.size();
+    }
+
+    /**
+     * Ranks the stored candidates by their estimated containment of a target,
+     * best first.  Candidates with the same estimate keep the order they were
+     * first stored in.
+     *
+     * @param target sketch of the target
+     * @param maxCandidates the most candidates to return
+     * @return up to maxCandidates candidates, best first
+     */
+    public List<Candidate<K>> rank(BlockSketch target, int maxCandidates) {
+        Objects.requireNotNull(target, "target was null");
+        if (maxCandidates < 0) {
+            throw new IllegalArgumentException("maxCandidates must be non-negative: " + maxCandidates);
+        }
+
+        final List<Candidate<K>> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<Candidate<K>>(sketches.size());
+            for (Map.Entry<K, BlockSketch> entry : sketches.entrySet()) {
+                candidates.add(new Candidate<K>(entry.getKey(), target.containmentIn(entry.getValue())));
+            }
+        }
+
+        // Stable, so ties stay in insertion order
+        Collections.sort(candidates, new Comparator<Candidate<K>>() {
+            @Override
+            public int compare(Candidate<K> a, Candidate<K> b) {
+                return Double.compare(b.containment, a.containment);
+            }
+        });
+        return candidates.size() > maxCandidates ? new ArrayList<Candidate<K>>(candidates.subList(0, maxCandidates)) : candidates;
+    }
+
+    /**
+     * @param target sketch of the target
+     * @return the key of the candidate with the highest estimated containment
+     * of the target, or null if there are no candidates
+     */
+    public K best(BlockSketch target) {
+        final List<Candidate<K>> best = rank(target, 1);
+        return best.isEmpty() ? null : best.get(0).key();
+    }
+}
@@ -0,0 +1,35 @@
+package com.davidehrmann.vcdiff.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// The target data decoded so far by a VCDiffStreamingDecoderImpl.  Positions
+// are relative to the start of the stored data, which is the start of the
+// target file unless the decoder has flushed earlier windows.
+interface DecodedTarget {
+
+    // Returns the number of bytes stored.
+    int size();
+
+    // Appends a single byte.
+    void write(int b) throws IOException;
+
+    // Appends the next len bytes of src, advancing its position.
+    void write(ByteBuffer src, int len) throws IOException;
+
+    // Appends len bytes copied from position from onwards.  The range may
+    // extend past the current end of the data, in which case the bytes from
+    // from to the end repeat as a pattern.
+    void replicate(int from, int len) throws IOException;
+
+    // Returns buffers that together hold the len bytes starting at from, in
+    // order.  The buffers are only valid until the next modification.
+    ByteBuffer[] slices(int from, int len);
+
+    // Discards the data, keeping the storage for reuse.
+    void reset();
+
+    // Discards the data at the end of a decode, returning whatever storage
+    // shouldn't be held until the next decode.
+    void release();
+}
@@ -32,5 +32,11 @@ public class HashedDictionary {
         engine = new VCDiffEngine(dictionaryContents);
     }
 
+    // Encodes against a signature of the dictionary instead of its contents;
+    // see VCDiffSignature.
+    public HashedDictionary(VCDiffSignature signature) {
+        engine = new SignatureEngine(signature);
+    }
+
     public VCDiffEngine engine() { return engine; }
 }
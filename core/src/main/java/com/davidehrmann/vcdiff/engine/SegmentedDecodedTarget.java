@@ -0,0 +1,152 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.util.Objects;
+import com.davidehrmann.vcdiff.util.TargetStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// A DecodedTarget kept in fixed-size segments from a TargetStorage.  Growing
+// adds a segment rather than copying the data into a larger buffer, and
+// ranges that cross a segment boundary are copied piece by piece.
+class SegmentedDecodedTarget implements DecodedTarget {
+
+    private final TargetStorage.SegmentAllocator allocator;
+    private final int segmentSize;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private int count;
+
+    SegmentedDecodedTarget(TargetStorage.SegmentAllocator allocator) {
+        this.allocator = Objects.requireNotNull(allocator, "allocator was null");
+        this.segmentSize = allocator.getStorage().getSegmentSize();
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        this.segmentMask = segmentSize - 1;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(count + 1);
+        segments.get(count >>> segmentShift).put(count & segmentMask, (byte) b);
+        count++;
+    }
+
+    @Override
+    public void write(ByteBuffer src, int len) throws IOException {
+        if (len < 0 || len > src.remaining()) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        while (len > 0) {
+            final int offset = count & segmentMask;
+            final int chunk = Math.min(len, segmentSize - offset);
+
+            ByteBuffer source = src.duplicate();
+            source.limit(source.position() + chunk);
+            ByteBuffer dest = segments.get(count >>> segmentShift).duplicate();
+            dest.position(offset);
+            dest.put(source);
+
+            src.position(src.position() + chunk);
+            count += chunk;
+            len -= chunk;
+        }
+    }
+
+    // Like DecoratedByteArrayOutputStream.replicate(), each copy doubles the
+    // length of the replicated run.
+    @Override
+    public void replicate(int from, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (from < 0 || from >= count || len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        final int end = count + len;
+        while (count < end) {
+            final int chunk = Math.min(count - from, end - count);
+            copyWithin(from, count, chunk);
+            count += chunk;
+        }
+    }
+
+    @Override
+    public ByteBuffer[] slices(int from, int len) {
+        if (from < 0 || len < 0 || from + len > count || from + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return new ByteBuffer[0];
+        }
+        final int first = from >>> segmentShift;
+        final int last = (from + len - 1) >>> segmentShift;
+        ByteBuffer[] slices = new ByteBuffer[last - first + 1];
+        for (int i = 0; i < slices.length; i++) {
+            final int offset = (i == 0) ? (from & segmentMask) : 0;
+            final int chunk = Math.min(len, segmentSize - offset);
+            ByteBuffer slice = segments.get(first + i).duplicate();
+            slice.limit(offset + chunk);
+            slice.position(offset);
+            slices[i] = slice;
+            len -= chunk;
+        }
+        return slices;
+    }
+
+    @Override
+    public void reset() {
+        count = 0;
+    }
+
+    // Direct segments are kept for the next decode, since direct memory is
+    // only freed by the garbage collector; mapped segments are dropped along
+    // with their temporary file.
+    @Override
+    public void release() {
+        count = 0;
+        if (allocator.getStorage().isMemoryMapped()) {
+            segments.clear();
+            allocator.close();
+        }
+    }
+
+    // Copies len bytes from src to dest.  The ranges must not overlap.
+    private void copyWithin(int src, int dest, int len) {
+        while (len > 0) {
+            final int srcOffset = src & segmentMask;
+            final int destOffset = dest & segmentMask;
+            final int chunk = Math.min(len, segmentSize - Math.max(srcOffset, destOffset));
+
+            ByteBuffer source = segments.get(src >>> segmentShift).duplicate();
+            source.limit(srcOffset + chunk);
+            source.position(srcOffset);
+            ByteBuffer target = segments.get(dest >>> segmentShift).duplicate();
+            target.position(destOffset);
+            target.put(source);
+
+            src += chunk;
+            dest += chunk;
+            len -= chunk;
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) throws IOException {
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError();
+        }
+        while (((long) segments.size() << segmentShift) < minCapacity) {
+            segments.add(allocator.allocateSegment());
+        }
+    }
+}
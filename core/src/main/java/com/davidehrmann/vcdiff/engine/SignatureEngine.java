@@ -0,0 +1,180 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffCodeTableWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * An engine that encodes against a {@link VCDiffSignature} rather than the
+ * dictionary.  At each position in the target, the rolling hash of the next
+ * blockSize bytes is looked up in a hash table of the signature's blocks,
+ * and a block whose strong hash also matches is copied.  After a match the
+ * following block of the dictionary is tried first, so runs of consecutive
+ * blocks become one COPY, and a run that reaches the dictionary's last full
+ * block is extended over its shorter last block if that matches too.
+ *
+ * Matches within the target aren't looked for, since the bytes COPYs are
+ * verified against aren't known.
+ *
+ * All methods in this class are thread-safe.
+ */
+class SignatureEngine extends VCDiffEngine {
+
+    private final VCDiffSignature signature;
+
+    // Chained hash table of the full blocks, by rolling hash: the first
+    // block with each masked hash, and the next block with the same one
+    private final int[] first_block_;
+    private final int[] next_block_;
+    private final int hash_mask_;
+
+    SignatureEngine(VCDiffSignature signature) {
+        super(new byte[0]);
+        this.signature = signature;
+
+        final int blocks = signature.fullBlockCount();
+        int table_size = 1;
+        while (table_size < 2 * blocks) {
+            table_size <<= 1;
+        }
+        first_block_ = new int[table_size];
+        next_block_ = new int[blocks];
+        hash_mask_ = table_size - 1;
+        Arrays.fill(first_block_, -1);
+
+        // Added last to first, so chains are in dictionary order
+        for (int block = blocks - 1; block >= 0; block--) {
+            final int bucket = signature.weakHash(block) & hash_mask_;
+            next_block_[block] = first_block_[bucket];
+            first_block_[bucket] = block;
+        }
+    }
+
+    @Override
+    public int dictionary_size() {
+        return signature.dictionarySize();
+    }
+
+    @Override
+    int DictionaryMatchSizeAt(ByteBuffer targetData, int position) {
+        throw new UnsupportedOperationException("Can't estimate sizes against a signature");
+    }
+
+    @Override
+    public <OUT> void Encode(ByteBuffer targetData, boolean lookForTargetMatches, int match_acceleration,
+                             OUT diff, VCDiffCodeTableWriter<OUT> coder) throws IOException {
+        if (!targetData.hasRemaining()) {
+            return;  // Do nothing for empty target
+        }
+
+        final ByteBuffer local_target_data = targetData.slice();
+        final byte[] data = local_target_data.array();
+        final int base = local_target_data.arrayOffset();
+        final int target_size = local_target_data.remaining();
+
+        final int block_size = signature.blockSize();
+        final int full_blocks = signature.fullBlockCount();
+        final int tail_size = signature.dictionarySize() - full_blocks * block_size;
+        final RollingHash hasher = new RollingHash(block_size);
+        final MessageDigest digest = VCDiffSignature.newDigest();
+        final byte[] strong_hash = new byte[VCDiffSignature.kStrongHashSize];
+
+        // The pending COPY, of copy_size bytes from copy_source, and the
+        // start of the bytes not yet encoded, which end at the COPY
+        int copy_source = 0;
+        int copy_size = 0;
+        int unencoded = 0;
+
+        int position = 0;
+        int hash_value = 0;
+        boolean hash_valid = false;
+        int expected_block = -1;
+        while (position + block_size <= target_size) {
+            if (!hash_valid) {
+                hash_value = (int) hasher.Hash(data, base + position, block_size);
+                hash_valid = true;
+            }
+
+            final int block = FindBlock(hash_value, expected_block, data, base + position, digest, strong_hash);
+            if (block >= 0) {
+                if (copy_size > 0 && (position != unencoded || block * block_size != copy_source + copy_size)) {
+                    coder.copy(copy_source, copy_size);
+                    copy_size = 0;
+                }
+                if (position > unencoded) {
+                    coder.add(data, base + unencoded, position - unencoded);
+                }
+                if (copy_size == 0) {
+                    copy_source = block * block_size;
+                }
+                copy_size += block_size;
+                position += block_size;
+
+                if (block == full_blocks - 1 && tail_size > 0 && position + tail_size <= target_size) {
+                    VCDiffSignature.strongHash(digest, data, base + position, tail_size, strong_hash, 0);
+                    if (signature.strongHashEquals(full_blocks, strong_hash, 0)) {
+                        copy_size += tail_size;
+                        position += tail_size;
+                    }
+                }
+
+                unencoded = position;
+                expected_block = block + 1;
+                hash_valid = false;
+            } else {
+                expected_block = -1;
+                if (position + block_size >= target_size) {
+                    break;  // Reached end of target data
+                }
+                hash_value = (int) hasher.UpdateHash(hash_value, data[base + position], data[base + position + block_size]);
+                position++;
+            }
+        }
+
+        if (copy_size > 0) {
+            coder.copy(copy_source, copy_size);
+        }
+        if (unencoded < target_size) {
+            coder.add(data, base + unencoded, target_size - unencoded);
+        }
+        coder.output(diff);
+
+        targetData.position(targetData.position() + target_size);
+    }
+
+    /**
+     * Finds a full block of the dictionary that's the same as the block_size
+     * bytes at data[offset], trying expected_block first.
+     *
+     * @return the block, or -1 if there isn't one
+     */
+    private int FindBlock(int hash_value, int expected_block, byte[] data, int offset,
+                          MessageDigest digest, byte[] strong_hash) {
+        boolean hashed = false;
+        if (expected_block >= 0 && expected_block < signature.fullBlockCount() &&
+                signature.weakHash(expected_block) == hash_value) {
+            VCDiffSignature.strongHash(digest, data, offset, signature.blockSize(), strong_hash, 0);
+            hashed = true;
+            if (signature.strongHashEquals(expected_block, strong_hash, 0)) {
+                return expected_block;
+            }
+        }
+
+        for (int block = first_block_[hash_value & hash_mask_]; block >= 0; block = next_block_[block]) {
+            if (signature.weakHash(block) != hash_value) {
+                continue;
+            }
+            if (!hashed) {
+                VCDiffSignature.strongHash(digest, data, offset, signature.blockSize(), strong_hash, 0);
+                hashed = true;
+            }
+            if (signature.strongHashEquals(block, strong_hash, 0)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+}
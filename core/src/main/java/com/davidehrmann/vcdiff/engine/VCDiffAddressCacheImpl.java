@@ -246,44 +246,48 @@ class VCDiffAddressCacheImpl extends VCDiffAddressCache {
             return RESULT_END_OF_DATA;
         }
 
-        ByteBuffer duplicateAddressStream = addressStream.duplicate();
-
+        // addressStream is read in place; its position is restored unless a
+        // valid address was decoded.
+        final int start = addressStream.position();
+        boolean valid = false;
         int decoded_address;
-        if (IsSameMode(vcDiffMode)) {
-            // SAME mode expects an unsigned byte value as the encoded address
-            short encoded_address = (short)(duplicateAddressStream.get() & 0xff);
-            decoded_address = DecodeSameAddress(vcDiffMode, encoded_address);
-        } else {
-            // All modes except SAME mode expect a VarintBE as the encoded address
-            int encoded_address;
-            try {
-                encoded_address = VarInt.getInt(duplicateAddressStream);
-            } catch (VarInt.VarIntParseException e) {
-                throw new IOException("Found invalid variable-length integer as encoded address value");
-            } catch (VarInt.VarIntEndOfBufferException e) {
-                return RESULT_END_OF_DATA;
-            }
-
-            if (IsSelfMode(vcDiffMode)) {
-                decoded_address = DecodeSelfAddress(encoded_address);
-            } else if (IsHereMode(vcDiffMode)) {
-                decoded_address = DecodeHereAddress(encoded_address, here_address);
-            } else if (IsNearMode(vcDiffMode)) {
-                decoded_address = DecodeNearAddress(vcDiffMode, encoded_address);
+        try {
+            if (IsSameMode(vcDiffMode)) {
+                // SAME mode expects an unsigned byte value as the encoded address
+                short encoded_address = (short)(addressStream.get() & 0xff);
+                decoded_address = DecodeSameAddress(vcDiffMode, encoded_address);
             } else {
-                throw new IllegalArgumentException(
-                        "Invalid mode value (" + vcDiffMode +
-                        ") passed to DecodeAddress; maximum mode value = " +
-                        this.LastMode());
+                // All modes except SAME mode expect a VarintBE as the encoded address
+                final int encoded_address = VarInt.parseInt(addressStream);
+                if (encoded_address == VarInt.END_OF_BUFFER) {
+                    return RESULT_END_OF_DATA;
+                } else if (encoded_address == VarInt.PARSE_ERROR) {
+                    throw new IOException("Found invalid variable-length integer as encoded address value");
+                }
+
+                if (IsSelfMode(vcDiffMode)) {
+                    decoded_address = DecodeSelfAddress(encoded_address);
+                } else if (IsHereMode(vcDiffMode)) {
+                    decoded_address = DecodeHereAddress(encoded_address, here_address);
+                } else if (IsNearMode(vcDiffMode)) {
+                    decoded_address = DecodeNearAddress(vcDiffMode, encoded_address);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Invalid mode value (" + vcDiffMode +
+                            ") passed to DecodeAddress; maximum mode value = " +
+                            this.LastMode());
+                }
+            }
+            // Check for an out-of-bounds address (corrupt/malicious data)
+            requireValidDecodedAddress(decoded_address, here_address);
+            valid = true;
+        } finally {
+            if (!valid) {
+                addressStream.position(start);
             }
         }
-        // Check for an out-of-bounds address (corrupt/malicious data)
-        requireValidDecodedAddress(decoded_address, here_address);
 
         UpdateCache(decoded_address);
-
-        // Update the paramater address stream's position
-        addressStream.position(duplicateAddressStream.position());
         return decoded_address;
     }
 }
@@ -0,0 +1,81 @@
+// Copyright 2016 David Ehrmann
+// Author: David Ehrmann
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffCodeTableWriter;
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.EnumSet;
+
+/**
+ * Adapts a {@link VCDiffCodeTableWriterImpl} to write to a
+ * {@link GatheringByteChannel}.  Each delta window is handed to the channel
+ * with a single gathering write.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffChannelCodeTableWriter implements VCDiffCodeTableWriter<GatheringByteChannel> {
+
+    private final VCDiffCodeTableWriterImpl writer;
+
+    public VCDiffChannelCodeTableWriter(boolean interleaved) {
+        this(new VCDiffCodeTableWriterImpl(interleaved));
+    }
+
+    public VCDiffChannelCodeTableWriter(boolean interleaved, BufferPool bufferPool) {
+        this(new VCDiffCodeTableWriterImpl(interleaved, bufferPool));
+    }
+
+    public VCDiffChannelCodeTableWriter(VCDiffCodeTableWriterImpl writer) {
+        this.writer = Objects.requireNotNull(writer, "writer was null");
+    }
+
+    public void init(int dictionarySize) {
+        writer.init(dictionarySize);
+    }
+
+    public void writeHeader(GatheringByteChannel out, EnumSet<VCDiffFormatExtension> formatExtensions) throws IOException {
+        writer.writeHeader(out, formatExtensions);
+    }
+
+    public void add(byte[] data, int offset, int length) {
+        writer.add(data, offset, length);
+    }
+
+    public void copy(int offset, int size) {
+        writer.copy(offset, size);
+    }
+
+    public void run(int size, byte b) {
+        writer.run(size, b);
+    }
+
+    public void addChecksum(int checksum) {
+        writer.addChecksum(checksum);
+    }
+
+    public void output(GatheringByteChannel out) throws IOException {
+        writer.output(out);
+    }
+
+    public void finishEncoding(GatheringByteChannel out) throws IOException {
+        writer.releaseBuffers();
+    }
+}
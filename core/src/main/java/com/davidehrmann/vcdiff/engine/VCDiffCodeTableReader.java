@@ -2,8 +2,6 @@ package com.davidehrmann.vcdiff.engine;
 
 import com.davidehrmann.vcdiff.util.Objects;
 import com.davidehrmann.vcdiff.util.VarInt;
-import com.davidehrmann.vcdiff.util.VarInt.VarIntEndOfBufferException;
-import com.davidehrmann.vcdiff.util.VarInt.VarIntParseException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -13,6 +11,19 @@ public class VCDiffCodeTableReader {
 
     protected static final short NO_OPCODE = 0x100; // outside the opcode range 0x00 - 0xFF
 
+    // The first and second instructions of each opcode in the default code
+    // table, packed as inst | (size << 8) | (mode << 16).  An entry of 0 means
+    // VCD_NOOP.  These let VCDiffDeltaFileWindow decode the default code table
+    // with a single array lookup per instruction.
+    static final int[] DEFAULT_FIRST_INSTRUCTIONS;
+    static final int[] DEFAULT_SECOND_INSTRUCTIONS;
+
+    static {
+        final VCDiffCodeTableData defaultTable = VCDiffCodeTableData.kDefaultCodeTableData;
+        DEFAULT_FIRST_INSTRUCTIONS = packInstructions(defaultTable.inst1, defaultTable.size1, defaultTable.mode1);
+        DEFAULT_SECOND_INSTRUCTIONS = packInstructions(defaultTable.inst2, defaultTable.size2, defaultTable.mode2);
+    }
+
     // A pointer to the code table.  This is the object that will be used
     // to interpret opcodes in getNextInstruction().
     private final VCDiffCodeTableData codeTableData;
@@ -42,6 +53,11 @@ public class VCDiffCodeTableReader {
         this.codeTableData = Objects.requireNotNull(codeTableData, "codeTableData was null");
     }
 
+    // Returns true if this reader interprets opcodes using the default code table.
+    public boolean usesDefaultCodeTable() {
+        return codeTableData == VCDiffCodeTableData.kDefaultCodeTableData;
+    }
+
     // Defines the buffer containing the instructions and sizes.
     // This method must be called before getNextInstruction() may be used.
     // init() may be called any number of times to reset the state of
@@ -88,7 +104,7 @@ public class VCDiffCodeTableReader {
                 opcode = (byte) pendingSecondInstruction;
                 pendingSecondInstruction = NO_OPCODE;
                 instruction_type = codeTableData.inst2[opcode & 0xff];
-                instruction_size = codeTableData.size2[opcode & 0xff];
+                instruction_size = codeTableData.size2[opcode & 0xff] & 0xff;
                 instruction_mode = codeTableData.mode2[opcode & 0xff];
                 break;
             }
@@ -106,7 +122,7 @@ public class VCDiffCodeTableReader {
             }
 
             instruction_type = codeTableData.inst1[opcode & 0xff];
-            instruction_size = codeTableData.size1[opcode & 0xff];
+            instruction_size = codeTableData.size1[opcode & 0xff] & 0xff;
             instruction_mode = codeTableData.mode1[opcode & 0xff];
             // This do-while loop is necessary in case inst1 == VCD_NOOP for an opcode
             // that was actually used in the encoding.  That case is unusual, but it
@@ -114,14 +130,14 @@ public class VCDiffCodeTableReader {
         } while (instruction_type == VCDiffCodeTableData.VCD_NOOP);
         if (instruction_size == 0) {
             // Parse the size as a Varint in the instruction stream.
-            try {
-                size.set(VarInt.getInt(instructionsAndSizes));
-            } catch (VarIntParseException e) {
-                throw new IOException("Instruction size is not a valid variable-length integer");
-            } catch (VarIntEndOfBufferException e) {
+            final int parsedSize = VarInt.parseInt(instructionsAndSizes);
+            if (parsedSize == VarInt.END_OF_BUFFER) {
                 unGetInstruction();  // Rewind to instruction start
                 return VCDiffCodeTableData.VCD_INSTRUCTION_END_OF_DATA;
+            } else if (parsedSize == VarInt.PARSE_ERROR) {
+                throw new IOException("Instruction size is not a valid variable-length integer");
             }
+            size.set(parsedSize);
         } else {
             size.set(instruction_size);
         }
@@ -161,4 +177,14 @@ public class VCDiffCodeTableReader {
         // pendingSecondInstruction is unchanged
         lastPendingSecondInstruction = pendingSecondInstruction;
     }
+
+    private static int[] packInstructions(byte[] inst, byte[] size, byte[] mode) {
+        final int[] packed = new int[VCDiffCodeTableData.kCodeTableSize];
+        for (int opcode = 0; opcode < packed.length; opcode++) {
+            if (inst[opcode] != VCDiffCodeTableData.VCD_NOOP) {
+                packed[opcode] = (inst[opcode] & 0xff) | ((size[opcode] & 0xff) << 8) | ((mode[opcode] & 0xff) << 16);
+            }
+        }
+        return packed;
+    }
 }
@@ -0,0 +1,376 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffCodeTableWriter;
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.VarInt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author David Ehrmann
+ * A code table writer that writes nothing, but counts the sizes and modes of
+ * the instructions it's given, and which instructions follow which.  Once a
+ * sample target has been encoded into it, {@link #newCodeTableWriter(boolean, BufferPool)}
+ * creates a {@link VCDiffCodeTableWriterImpl} with a code table tuned to
+ * those counts, which it writes to the delta file header.
+ *
+ * The default code table only has opcodes with a fixed size for ADDs of up
+ * to 17 bytes and COPYs of 4 to 18 bytes, but {@link VCDiffEngine} never
+ * copies fewer than {@link VCDiffEngine#kMinimumMatchSize} bytes, so every
+ * COPY it produces needs its size written after its opcode, and is never
+ * combined with an ADD into a single opcode.  A tuned table spends its
+ * opcodes on the sizes and pairs of instructions the sample actually used.
+ *
+ * The method calls must follow the same pattern as for
+ * {@link VCDiffCodeTableWriterImpl}.  Nothing is written to the output; pass
+ * null.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffCodeTableTuner implements VCDiffCodeTableWriter<Void> {
+
+    /**
+     * Sizes and pairs seen fewer times than this don't get an opcode of
+     * their own unless there are opcodes to spare.
+     */
+    protected static final int kMinimumCount = 2;
+
+    private static final byte kMaxMode = VCDiffAddressCache.DefaultLastMode();
+
+    // Instruction types and modes are combined as in VCDiffInstructionMap:
+    // 1 (ADD), 2 (RUN), 3 (COPY mode 0), 4 (COPY mode 1), ...
+    private static final int kNumberOfTypesAndModes = VCDiffCodeTableData.VCD_LAST_INSTRUCTION_TYPE + kMaxMode + 1;
+
+    private final VCDiffAddressCache addressCache = new VCDiffAddressCacheImpl();
+
+    private final AtomicInteger encodedAddress = new AtomicInteger(0);
+
+    // singleCounts[typeAndMode][size] counts instructions of each size that
+    // fits in a code table entry
+    private final long[][] singleCounts = new long[kNumberOfTypesAndModes][VCDiffCodeTableData.kCodeTableSize];
+
+    // Counts of consecutive pairs of instructions in the same window, keyed by
+    // pairKey().  A size that doesn't fit in a code table entry is counted as 0.
+    private final Map<Integer, long[]> pairCounts = new HashMap<Integer, long[]>();
+
+    private int dictionarySize;
+
+    private int targetLength;
+
+    // The type and mode and the size (0 if too large) of the previous
+    // instruction in this window, or -1 if there is none or it was counted
+    // as the second half of a pair.
+    private int lastTypeAndMode;
+    private int lastSize;
+
+    public VCDiffCodeTableTuner() {
+        lastTypeAndMode = -1;
+    }
+
+    public void init(int dictionarySize) {
+        this.dictionarySize = dictionarySize;
+        addressCache.Init();
+        targetLength = 0;
+        lastTypeAndMode = -1;
+    }
+
+    public void writeHeader(Void out, EnumSet<VCDiffFormatExtension> formatExtensions) {
+    }
+
+    public void add(byte[] data, int offset, int length) {
+        if (offset + length > data.length || length < 0) {
+            throw new IllegalArgumentException();
+        }
+        count(VCDiffCodeTableData.VCD_ADD, length);
+        targetLength += length;
+    }
+
+    public void copy(int offset, int size) {
+        final int mode = addressCache.EncodeAddress(offset, dictionarySize + targetLength, encodedAddress);
+        count(VCDiffCodeTableData.VCD_COPY + mode, size);
+        targetLength += size;
+    }
+
+    public void run(int size, byte b) {
+        count(VCDiffCodeTableData.VCD_RUN, size);
+        targetLength += size;
+    }
+
+    public void addChecksum(int checksum) {
+    }
+
+    public void output(Void out) {
+        init(dictionarySize);
+    }
+
+    public void finishEncoding(Void out) {
+    }
+
+    /**
+     * Creates a code table writer that encodes with a code table tuned to the
+     * instructions counted so far, and writes that table to the header of the
+     * delta file.  The table costs a few hundred bytes in the header, which
+     * pays off when the delta has many windows, or many instructions, like
+     * those counted.
+     *
+     * @param interleaved Whether or not to interleave the output data
+     * @param bufferPool pool to take section buffers from
+     * @return the new writer
+     */
+    public VCDiffCodeTableWriterImpl newCodeTableWriter(boolean interleaved, BufferPool bufferPool) {
+        return new VCDiffCodeTableWriterImpl(
+                interleaved,
+                bufferPool,
+                VCDiffAddressCache.kDefaultNearCacheSize,
+                VCDiffAddressCache.kDefaultSameCacheSize,
+                codeTable(),
+                kMaxMode
+        );
+    }
+
+    /**
+     * Builds a code table from the counts.  The table has:
+     *
+     * 1) the opcodes with size 0 that every table needs, one for each
+     *    instruction type and mode;
+     * 2) up to half of the remaining opcodes for the most common sizes,
+     *    ranked by the bytes their sizes would otherwise take;
+     * 3) opcodes for the most common pairs of instructions, whose first
+     *    instruction has an opcode from 1) or 2);
+     * 4) opcodes for the sizes that didn't make it into 2), if any are left;
+     * 5) entries from the default code table that aren't in the table yet,
+     *    until all 256 opcodes are used.
+     *
+     * Sizes in 4) and 5) are skipped for instruction types and modes with
+     * pairs keyed by their opcode with size 0.
+     *
+     * @return the tuned code table
+     */
+    VCDiffCodeTableData codeTable() {
+        final Set<Entry> entries = new LinkedHashSet<Entry>();
+
+        entries.add(new Entry(VCDiffCodeTableData.VCD_RUN, 0));
+        entries.add(new Entry(VCDiffCodeTableData.VCD_ADD, 0));
+        for (int mode = 0; mode <= kMaxMode; mode++) {
+            entries.add(new Entry(VCDiffCodeTableData.VCD_COPY + mode, 0));
+        }
+
+        final List<Candidate> singles = new ArrayList<Candidate>();
+        for (int typeAndMode = VCDiffCodeTableData.VCD_ADD; typeAndMode < kNumberOfTypesAndModes; typeAndMode++) {
+            for (int size = 1; size < VCDiffCodeTableData.kCodeTableSize; size++) {
+                final long count = singleCounts[typeAndMode][size];
+                if (count > 0) {
+                    singles.add(new Candidate(new Entry(typeAndMode, size), count * VarInt.calculateIntLength(size), count));
+                }
+            }
+        }
+        sortByBenefit(singles);
+
+        final int singleLimit = entries.size() + (VCDiffCodeTableData.kCodeTableSize - entries.size()) / 2;
+        for (Candidate single : singles) {
+            if (entries.size() >= singleLimit || single.count < kMinimumCount) {
+                break;
+            }
+            entries.add(single.entry);
+        }
+
+        // Each pair is keyed by its first instruction's opcode: the one with
+        // its size if the table has that, or else the one with size 0.  A pair
+        // with a fixed second size saves that size as well as an opcode; one
+        // with size 0 saves an opcode for every second size.
+        final Map<Entry, Candidate> pairs = new HashMap<Entry, Candidate>();
+        for (Map.Entry<Integer, long[]> pair : pairCounts.entrySet()) {
+            final int key = pair.getKey();
+            final long count = pair.getValue()[0];
+            final int typeAndMode1 = key >>> 24;
+            final int size1 = (key >>> 16) & 0xff;
+            final int typeAndMode2 = (key >>> 8) & 0xff;
+            final int size2 = key & 0xff;
+
+            final boolean sized = entries.contains(new Entry(typeAndMode1, size1));
+            final int firstSize = sized ? size1 : 0;
+            addPairCount(pairs, new Entry(typeAndMode1, firstSize, typeAndMode2, 0), count, count);
+            if (size2 > 0) {
+                addPairCount(pairs, new Entry(typeAndMode1, firstSize, typeAndMode2, size2),
+                        count * (1 + VarInt.calculateIntLength(size2)), count);
+            }
+        }
+        final List<Candidate> rankedPairs = new ArrayList<Candidate>(pairs.values());
+        sortByBenefit(rankedPairs);
+
+        final boolean[] pairedWithoutSize = new boolean[kNumberOfTypesAndModes];
+        for (Candidate pair : rankedPairs) {
+            if (entries.size() >= VCDiffCodeTableData.kCodeTableSize || pair.count < kMinimumCount) {
+                break;
+            }
+            entries.add(pair.entry);
+            if (pair.entry.size1 == 0) {
+                pairedWithoutSize[pair.entry.typeAndMode1] = true;
+            }
+        }
+
+        // An opcode with a fixed size would take over instructions of that
+        // size from the opcode with size 0, and with them, the pairs keyed by
+        // the latter, so only add sizes that have no such pairs.
+        for (Candidate single : singles) {
+            if (entries.size() >= VCDiffCodeTableData.kCodeTableSize) {
+                break;
+            }
+            if (!pairedWithoutSize[single.entry.typeAndMode1]) {
+                entries.add(single.entry);
+            }
+        }
+
+        final VCDiffCodeTableData defaults = VCDiffCodeTableData.kDefaultCodeTableData;
+        for (int opcode = 0; opcode < VCDiffCodeTableData.kCodeTableSize && entries.size() < VCDiffCodeTableData.kCodeTableSize; opcode++) {
+            final int typeAndMode1 = (defaults.inst1[opcode] & 0xff) + (defaults.mode1[opcode] & 0xff);
+            final int typeAndMode2 = (defaults.inst2[opcode] & 0xff) + (defaults.mode2[opcode] & 0xff);
+            if (typeAndMode2 != VCDiffCodeTableData.VCD_NOOP || !pairedWithoutSize[typeAndMode1]) {
+                entries.add(new Entry(typeAndMode1, defaults.size1[opcode] & 0xff, typeAndMode2, defaults.size2[opcode] & 0xff));
+            }
+        }
+
+        // If sizes from the default table were left out for the reason above,
+        // pad with pairs, which can't take instructions away from other opcodes.
+        for (int size = 0; size < VCDiffCodeTableData.kCodeTableSize && entries.size() < VCDiffCodeTableData.kCodeTableSize; size++) {
+            for (int mode = 0; mode <= kMaxMode && entries.size() < VCDiffCodeTableData.kCodeTableSize; mode++) {
+                entries.add(new Entry(VCDiffCodeTableData.VCD_COPY + mode, 0, VCDiffCodeTableData.VCD_ADD, size));
+            }
+        }
+
+        final VCDiffCodeTableData codeTable = new VCDiffCodeTableData();
+        int opcode = 0;
+        for (Entry entry : entries) {
+            entry.store(codeTable, opcode++);
+        }
+        if (opcode != VCDiffCodeTableData.kCodeTableSize || !codeTable.Validate(kMaxMode)) {
+            throw new IllegalStateException("Internal error: tuned code table is not valid");
+        }
+        return codeTable;
+    }
+
+    private void count(int typeAndMode, int size) {
+        final int tableSize = size < VCDiffCodeTableData.kCodeTableSize ? size : 0;
+        singleCounts[typeAndMode][tableSize]++;
+
+        // Like the encoder, only combine an instruction with one that wasn't
+        // itself combined with the instruction before it
+        if (lastTypeAndMode >= 0) {
+            final Integer key = pairKey(lastTypeAndMode, lastSize, typeAndMode, tableSize);
+            long[] count = pairCounts.get(key);
+            if (count == null) {
+                count = new long[1];
+                pairCounts.put(key, count);
+            }
+            count[0]++;
+            lastTypeAndMode = -1;
+        } else {
+            lastTypeAndMode = typeAndMode;
+            lastSize = tableSize;
+        }
+    }
+
+    private static int pairKey(int typeAndMode1, int size1, int typeAndMode2, int size2) {
+        return (typeAndMode1 << 24) | (size1 << 16) | (typeAndMode2 << 8) | size2;
+    }
+
+    private static void addPairCount(Map<Entry, Candidate> pairs, Entry entry, long benefit, long count) {
+        final Candidate candidate = pairs.get(entry);
+        if (candidate == null) {
+            pairs.put(entry, new Candidate(entry, benefit, count));
+        } else {
+            candidate.benefit += benefit;
+            candidate.count += count;
+        }
+    }
+
+    private static void sortByBenefit(List<Candidate> candidates) {
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return a.benefit != b.benefit ? (a.benefit > b.benefit ? -1 : 1) : a.entry.compareTo(b.entry);
+            }
+        });
+    }
+
+    // A code table entry, with each instruction's type and mode combined.  A
+    // single instruction has NOOP (0) as its second instruction.
+    private static final class Entry implements Comparable<Entry> {
+        final int typeAndMode1;
+        final int size1;
+        final int typeAndMode2;
+        final int size2;
+
+        Entry(int typeAndMode, int size) {
+            this(typeAndMode, size, VCDiffCodeTableData.VCD_NOOP, 0);
+        }
+
+        Entry(int typeAndMode1, int size1, int typeAndMode2, int size2) {
+            this.typeAndMode1 = typeAndMode1;
+            this.size1 = size1;
+            this.typeAndMode2 = typeAndMode2;
+            this.size2 = size2;
+        }
+
+        void store(VCDiffCodeTableData codeTable, int opcode) {
+            codeTable.inst1[opcode] = instruction(typeAndMode1);
+            codeTable.mode1[opcode] = mode(typeAndMode1);
+            codeTable.size1[opcode] = (byte) size1;
+            codeTable.inst2[opcode] = instruction(typeAndMode2);
+            codeTable.mode2[opcode] = mode(typeAndMode2);
+            codeTable.size2[opcode] = (byte) size2;
+        }
+
+        private static byte instruction(int typeAndMode) {
+            return (byte) Math.min(typeAndMode, VCDiffCodeTableData.VCD_COPY);
+        }
+
+        private static byte mode(int typeAndMode) {
+            return (byte) Math.max(typeAndMode - VCDiffCodeTableData.VCD_COPY, 0);
+        }
+
+        private int key() {
+            return pairKey(typeAndMode1, size1, typeAndMode2, size2);
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return key() < o.key() ? -1 : (key() == o.key() ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).key() == key();
+        }
+
+        @Override
+        public int hashCode() {
+            return key();
+        }
+    }
+
+    private static final class Candidate {
+        final Entry entry;
+
+        // Bytes the entry would save over the sample, and how many
+        // instructions (or pairs) it would have been used for
+        long benefit;
+        long count;
+
+        Candidate(Entry entry, long benefit, long count) {
+            this.entry = entry;
+            this.benefit = benefit;
+            this.count = count;
+        }
+    }
+}
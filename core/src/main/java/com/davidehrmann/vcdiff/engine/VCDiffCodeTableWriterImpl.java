@@ -1,14 +1,19 @@
 package com.davidehrmann.vcdiff.engine;
 
 import com.davidehrmann.vcdiff.VCDiffFormatExtension;
-import com.davidehrmann.vcdiff.io.CountingOutputStream;
 import com.davidehrmann.vcdiff.mina_buffer.IoBuffer;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.Objects;
 import com.davidehrmann.vcdiff.util.VarInt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -50,22 +55,43 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
     static final int VCD_TARGET = 0x02;
     static final int VCD_CHECKSUM = 0x04;
 
+    /**
+     * Windows up to this size (header plus sections) are written to an
+     * OutputStream with a single write() call.
+     */
+    static final int COALESCED_WRITE_LIMIT = 64 * 1024;
+
+    // Win_Indicator and Delta_Indicator, seven 32-bit varints (source segment
+    // size and position, length of the delta encoding, target window length
+    // and the three section lengths), and the checksum, which is masked to 32
+    // bits.  assembleWindowHeader() writes through buf(), which doesn't
+    // auto-expand, so this has to be an upper bound.
+    private static final int MAX_WINDOW_HEADER_SIZE = 2 + 7 * 5 + 5;
+
+    private static final int INITIAL_SECTION_SIZE = 1024;
+
     /**
      * The maximum value for the mode of a COPY instruction.
      */
     private final int maxMode;
 
+    // Supplies the section buffers below.  If it recycles buffers, they are
+    // returned to it by finishEncoding() and acquired again by init().
+    private final BufferPool bufferPool;
+
+    private final boolean interleaved;
+
     // A series of instruction opcodes, each of which may be followed
     // by one or two Varint values representing the size parameters
     // of the first and second instruction in the opcode.
-    private IoBuffer instructionsAndSizes = IoBuffer.allocate(1024);
+    private IoBuffer instructionsAndSizes;
 
     // A series of data arguments (byte values) used for ADD and RUN
     // instructions.  Depending on whether interleaved output is used
     // for streaming or not, the pointer may point to
     // separateDataForAddAndRun or to instructionsAndSizes.
     private IoBuffer dataForAddAndRun;
-    private final IoBuffer separateDataForAddAndRun = IoBuffer.allocate(1024);
+    private IoBuffer separateDataForAddAndRun;
 
     // A series of Varint addresses used for COPY instructions.
     // For the SAME mode, a byte value is stored instead of a Varint.
@@ -73,12 +99,45 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
     // for streaming or not, the pointer may point to
     // separateAddressesForCopy or to instructionsAndSizes.
     private IoBuffer addressesForCopy;
-    private final IoBuffer separateAddressesForCopy = IoBuffer.allocate(1024);
+    private IoBuffer separateAddressesForCopy;
+
+    // Holds the delta window header while it is assembled.  For windows no
+    // larger than COALESCED_WRITE_LIMIT, the sections are copied behind it so the
+    // whole window reaches the OutputStream in one write.  Reused across windows.
+    private IoBuffer windowHeader;
+
+    // Scratch array for the gathering write in output(GatheringByteChannel)
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[4];
 
     private final VCDiffAddressCache addraddressCachess_cache_;
+    private final short nearCacheSize;
+    private final short sameCacheSize;
 
     private int dictionarySize;
 
+    // The source segment written to the current window's header.  Unless
+    // narrowSourceSegments is set, it's the whole dictionary.
+    private int sourceSegmentPosition;
+    private int sourceSegmentLength;
+
+    // If true, each window's source segment only covers the part of the
+    // dictionary that its COPY instructions use.  Since that isn't known until
+    // the window is complete, add(), copy() and run() record the instructions
+    // in pendingInstructions (with the ADD data in pendingData), and output()
+    // encodes them against the narrowed segment.  Latched from
+    // narrowSourceSegmentsRequested by init(), so it doesn't change while a
+    // window's instructions are pending.
+    private boolean narrowSourceSegments;
+    private boolean narrowSourceSegmentsRequested;
+    private int[] pendingInstructions = new int[0];
+    private int pendingInstructionsLength;
+    private IoBuffer pendingData;
+
+    // The range of the dictionary used by the pending COPY instructions, or
+    // [Integer.MAX_VALUE, 0) if there aren't any.
+    private int pendingSourceStart;
+    private int pendingSourceEnd;
+
     // The number of bytes of target data that has been encoded so far.
     // Each time add(), copy(), or run() is called, this will be incremented.
     // The target length is used to compute HERE mode addresses
@@ -88,6 +147,10 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
 
     private final VCDiffCodeTableData codeTableData;
 
+    // The cache sizes and the code table, encoded for the delta file header
+    // by encodeCodeTable(), if the code table isn't the default one.
+    private byte[] encodedCodeTable;
+
     // The instruction map facilitates finding an opcode quickly given an
     // instruction inst, size, and mode.  This is an alternate representation
     // of the same information that is found in codeTableData.
@@ -131,6 +194,19 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
      * @param interleaved Whether or not to interleave the output data
      */
     public VCDiffCodeTableWriterImpl(boolean interleaved) {
+        this(interleaved, BufferPool.unpooled());
+    }
+
+    /**
+     * This constructor uses the default code table and takes its section
+     * buffers from bufferPool.
+     *
+     * @param interleaved Whether or not to interleave the output data
+     * @param bufferPool pool to take section buffers from
+     */
+    public VCDiffCodeTableWriterImpl(boolean interleaved, BufferPool bufferPool) {
+        this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+        this.interleaved = interleaved;
         maxMode = VCDiffAddressCache.DefaultLastMode();
         dictionarySize = 0;
         targetLength = 0;
@@ -140,34 +216,47 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
         addChecksum = false;
         checksum = 0;
         addraddressCachess_cache_ = new VCDiffAddressCacheImpl();
+        nearCacheSize = VCDiffAddressCache.kDefaultNearCacheSize;
+        sameCacheSize = VCDiffAddressCache.kDefaultSameCacheSize;
 
-        instructionsAndSizes.setAutoExpand(true);
-        separateDataForAddAndRun.setAutoExpand(true);
-        separateAddressesForCopy.setAutoExpand(true);
-
-        initSectionPointers(interleaved);
+        acquireBuffers();
     }
 
-    // TODO: expose this constructor safely
     /**
+     * Uses a non-standard code table and non-standard cache sizes, allocating
+     * fresh section buffers.
      *
-     * Uses a non-standard code table and non-standard cache sizes.  The caller
-     * must guarantee that codeTableData remains allocated for the lifetime of
-     * the VCDiffCodeTableWriter object.  Note that this is different from how
-     * VCDiffCodeTableReader::useCodeTable works.  It is assumed that a given
-     * encoder will use either the default code table or a statically-defined
-     * non-standard code table, whereas the decoder must have the ability to read
-     * an arbitrary non-standard code table from a delta file and discard it once
-     * the file has been decoded.
+     * @see #VCDiffCodeTableWriterImpl(boolean, BufferPool, short, short, VCDiffCodeTableData, short)
+     */
+    VCDiffCodeTableWriterImpl(boolean interleaved, short nearCacheSize, short sameCacheSize, VCDiffCodeTableData codeTableData, short maxMode) {
+        this(interleaved, BufferPool.unpooled(), nearCacheSize, sameCacheSize, codeTableData, maxMode);
+    }
+
+    /**
+     * Uses a non-standard code table and non-standard cache sizes, which are
+     * written to the header of the delta file.  The caller must have verified
+     * that codeTableData.Validate(maxMode) returns true, and must not change
+     * codeTableData for the lifetime of the VCDiffCodeTableWriter object.  Note
+     * that this is different from how VCDiffCodeTableReader::useCodeTable
+     * works.  It is assumed that a given encoder will use either the default
+     * code table or a fixed non-standard code table, such as one from
+     * {@link VCDiffCodeTableTuner}, whereas the decoder must have the ability
+     * to read an arbitrary non-standard code table from a delta file and
+     * discard it once the file has been decoded.
      *
      * @param interleaved Whether or not to interleave the output data
+     * @param bufferPool pool to take section buffers from
      * @param nearCacheSize size of the near cache
      * @param sameCacheSize size of the same cache
      * @param codeTableData custom code table data
      * @param maxMode maximum value for the mode of a COPY instruction.
      */
-    VCDiffCodeTableWriterImpl(boolean interleaved, short nearCacheSize, short sameCacheSize, VCDiffCodeTableData codeTableData, short maxMode) {
+    VCDiffCodeTableWriterImpl(boolean interleaved, BufferPool bufferPool, short nearCacheSize, short sameCacheSize, VCDiffCodeTableData codeTableData, short maxMode) {
+        this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+        this.interleaved = interleaved;
         addraddressCachess_cache_ = new VCDiffAddressCacheImpl(nearCacheSize, sameCacheSize);
+        this.nearCacheSize = nearCacheSize;
+        this.sameCacheSize = sameCacheSize;
         dictionarySize = 0;
         targetLength = 0;
         this.codeTableData = codeTableData;
@@ -176,7 +265,7 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
         addChecksum = false;
         checksum = 0;
         this.maxMode = maxMode;
-        initSectionPointers(interleaved);
+        acquireBuffers();
     }
 
     /**
@@ -189,6 +278,18 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
      */
     public void init(int dictionarySize) {
         this.dictionarySize = dictionarySize;
+        narrowSourceSegments = narrowSourceSegmentsRequested;
+        sourceSegmentPosition = 0;
+        sourceSegmentLength = dictionarySize;
+        pendingInstructionsLength = 0;
+        pendingSourceStart = Integer.MAX_VALUE;
+        pendingSourceEnd = 0;
+        if (pendingData != null) {
+            pendingData.clear();
+        }
+        if (instructionsAndSizes == null) {
+            acquireBuffers();
+        }
         if (instructionMap == null) {
             if (codeTableData == VCDiffCodeTableData.kDefaultCodeTableData) {
                 instructionMap = VCDiffInstructionMap.DEFAULT_INSTRUCTION_MAP;
@@ -203,6 +304,20 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
         lastOpcodeIndex = -1;
     }
 
+    /**
+     * Sets whether each window's source segment only covers the part of the
+     * dictionary that the window's COPY instructions use, rather than the
+     * whole dictionary.  This makes COPY addresses smaller and lets a decoder
+     * read less of the dictionary, at the cost of buffering each window's
+     * instructions until output() is called.  It takes effect with the next
+     * call to init().
+     *
+     * @param narrowSourceSegments whether to narrow source segments
+     */
+    public void setNarrowSourceSegments(boolean narrowSourceSegments) {
+        this.narrowSourceSegmentsRequested = narrowSourceSegments;
+    }
+
     /**
      *  encode an ADD opcode with the "size" bytes starting at data
      */
@@ -211,9 +326,21 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
             throw new IllegalArgumentException();
         }
 
+        if (narrowSourceSegments) {
+            addPendingInstruction(VCDiffCodeTableData.VCD_ADD, length, 0);
+            if (pendingData == null) {
+                pendingData = bufferPool.acquire(Math.max(length, INITIAL_SECTION_SIZE));
+            }
+            pendingData.put(data, offset, length);
+        } else {
+            encodeAdd(data, offset, length);
+        }
+        targetLength += length;
+    }
+
+    private void encodeAdd(byte[] data, int offset, int length) {
         encodeInstruction(VCDiffCodeTableData.VCD_ADD, length);
         dataForAddAndRun.put(data, offset, length);
-        targetLength += length;
     }
 
     public void addChecksum(int checksum) {
@@ -229,13 +356,28 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
             throw new IllegalStateException("copy called without calling init().");
         }
 
+        if (narrowSourceSegments) {
+            addPendingInstruction(VCDiffCodeTableData.VCD_COPY, size, offset);
+            if (offset < dictionarySize) {
+                pendingSourceStart = Math.min(pendingSourceStart, offset);
+                pendingSourceEnd = Math.max(pendingSourceEnd, (int) Math.min((long) offset + size, dictionarySize));
+            }
+        } else {
+            encodeCopy(offset, size);
+        }
+        targetLength += size;
+    }
+
+    // Encodes a COPY from address, which is relative to the start of the
+    // current source segment.
+    private void encodeCopy(int address, int size) {
         // If a single interleaved stream of encoded values is used
         // instead of separate sections for instructions, addresses, and data,
         // then the string instructionsAndSizes may be the same as
         // addressesForCopy.  The address should therefore be encoded
         // *after* the instruction and its size.
         AtomicInteger encoded_addr = new AtomicInteger(0);
-        final byte mode = (byte) addraddressCachess_cache_.EncodeAddress(offset, dictionarySize + targetLength, encoded_addr);
+        final byte mode = (byte) addraddressCachess_cache_.EncodeAddress(address, sourceSegmentLength + targetLength, encoded_addr);
         encodeInstruction(VCDiffCodeTableData.VCD_COPY, size, mode);
         if (addraddressCachess_cache_.WriteAddressAsVarintForMode(mode)) {
             addressesForCopy.expand(VarInt.calculateIntLength(encoded_addr.get()));
@@ -243,7 +385,6 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
         } else {
             addressesForCopy.put((byte)encoded_addr.get());
         }
-        targetLength += size;
     }
 
     /**
@@ -251,86 +392,82 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
      * since encodeChunk() encodes a complete target window
      * and there is no end-of-delta-file marker.
      *
+     * If the buffer pool recycles buffers, the section buffers are returned
+     * to it; init() must be called before the writer is used again.
+     *
      * @param out
      */
     public void finishEncoding(OutputStream out) throws IOException {
+        releaseBuffers();
+    }
 
+    /**
+     * Returns the section buffers to the buffer pool if it recycles buffers.
+     * init() must be called before the writer is used again.
+     */
+    public void releaseBuffers() {
+        if (bufferPool.recyclesBuffers() && instructionsAndSizes != null) {
+            bufferPool.release(instructionsAndSizes);
+            bufferPool.release(separateDataForAddAndRun);
+            bufferPool.release(separateAddressesForCopy);
+            bufferPool.release(windowHeader);
+            if (pendingData != null) {
+                bufferPool.release(pendingData);
+                pendingData = null;
+            }
+            instructionsAndSizes = null;
+            separateDataForAddAndRun = null;
+            separateAddressesForCopy = null;
+            windowHeader = null;
+            dataForAddAndRun = null;
+            addressesForCopy = null;
+        }
     }
 
     public int getDeltaWindowSize() {
+        encodePendingInstructions();
         final int length_of_the_delta_encoding = calculateLengthOfTheDeltaEncoding();
-        return
-                length_of_the_delta_encoding +
-                        1 +  // Win_Indicator
-                        VarInt.calculateIntLength(dictionarySize) +
-                        VarInt.calculateIntLength(0) +
-                        VarInt.calculateIntLength(length_of_the_delta_encoding)
-                ;
+        int size = length_of_the_delta_encoding +
+                1 +  // Win_Indicator
+                VarInt.calculateIntLength(length_of_the_delta_encoding);
+        if (hasSourceSegment()) {
+            size += VarInt.calculateIntLength(sourceSegmentLength) + VarInt.calculateIntLength(sourceSegmentPosition);
+        }
+        return size;
     }
 
     /**
      * Appends the encoded delta window to the output
      * string.  The output string is not null-terminated and may contain embedded
      * '\0' characters.
+     *
+     * The window header is assembled in a reusable buffer.  Windows no larger
+     * than {@link #COALESCED_WRITE_LIMIT} are copied behind the header and
+     * handed to out with a single write() call, so an unbuffered stream costs
+     * one system call per window; larger windows are written as the header
+     * followed by one write() per section.
      */
     public void output(OutputStream out) throws IOException {
+        encodePendingInstructions();
         if (instructionsAndSizes.position() == 0) {
             LOGGER.warn("Empty input; no delta window produced");
         } else {
-            CountingOutputStream countedOut = new CountingOutputStream(out);
-
-            // add first element: Win_Indicator
-            if (addChecksum) {
-                countedOut.write(VCD_SOURCE | VCD_CHECKSUM);
+            assembleWindowHeader();
+
+            final int windowLength = windowHeader.position() + sectionsLength();
+            if (windowLength <= COALESCED_WRITE_LIMIT) {
+                windowHeader.put(separateDataForAddAndRun.array(), separateDataForAddAndRun.arrayOffset(), separateDataForAddAndRun.position());
+                windowHeader.put(instructionsAndSizes.array(), instructionsAndSizes.arrayOffset(), instructionsAndSizes.position());
+                windowHeader.put(separateAddressesForCopy.array(), separateAddressesForCopy.arrayOffset(), separateAddressesForCopy.position());
+                out.write(windowHeader.array(), windowHeader.arrayOffset(), windowHeader.position());
             } else {
-                countedOut.write(VCD_SOURCE);
-            }
-
-            // Source segment size: dictionary size
-            VarInt.writeInt(countedOut, dictionarySize);
-
-            // Source segment position: 0 (start of dictionary)
-            VarInt.writeInt(countedOut, 0);
-
-            // [Here is where a secondary compressor would be used
-            //  if the encoder and decoder supported that feature.]
-
-            final int length_of_the_delta_encoding = this.calculateLengthOfTheDeltaEncoding();
-
-            VarInt.writeInt(countedOut, length_of_the_delta_encoding);
-
-            // Start of Delta Encoding
-            final int size_before_delta_encoding = (int) countedOut.getBytesWritten();
-
-            VarInt.writeInt(countedOut, targetLength);
-            countedOut.write(0x00);  // Delta_Indicator: no compression
-            VarInt.writeInt(countedOut, separateDataForAddAndRun.position());
-            VarInt.writeInt(countedOut, instructionsAndSizes.position());
-            VarInt.writeInt(countedOut, separateAddressesForCopy.position());
-            if (addChecksum) {
-                // The checksum is a 32-bit *unsigned* integer.  VarintBE requires a
-                // signed type, so use a 64-bit signed integer to store the checksum.
-                VarInt.writeLong(countedOut, checksum);
+                out.write(windowHeader.array(), windowHeader.arrayOffset(), windowHeader.position());
+                writeSection(out, separateDataForAddAndRun);
+                writeSection(out, instructionsAndSizes);
+                writeSection(out, separateAddressesForCopy);
             }
 
-            countedOut.write(separateDataForAddAndRun.array(), separateDataForAddAndRun.arrayOffset(), separateDataForAddAndRun.position());
-            countedOut.write(instructionsAndSizes.array(), instructionsAndSizes.arrayOffset(), instructionsAndSizes.position());
-            countedOut.write(separateAddressesForCopy.array(), separateAddressesForCopy.arrayOffset(), separateAddressesForCopy.position());
-
-            // End of Delta Encoding
-            final int size_after_delta_encoding = (int) countedOut.getBytesWritten();
-            if (length_of_the_delta_encoding != (size_after_delta_encoding - size_before_delta_encoding)) {
-                throw new IllegalStateException(String.format(
-                        "Internal error: calculated length of the delta encoding (%d) does not match actual length (%d)",
-                        length_of_the_delta_encoding, size_after_delta_encoding - size_before_delta_encoding
-                ));
-            }
-            separateDataForAddAndRun.clear();
-            instructionsAndSizes.clear();
-            separateAddressesForCopy.clear();
-            if (targetLength == 0) {
-                LOGGER.warn("Empty target window");
-            }
+            finishWindow();
         }
 
         // reset state for next window; assume we are using same code table
@@ -342,13 +479,125 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
         init(dictionarySize);
     }
 
+    /**
+     * Appends the encoded delta window to a channel.  The window header and the
+     * three sections are passed to the channel with a single gathering write
+     * (repeated only if the channel accepts fewer bytes than offered), without
+     * copying the sections.
+     *
+     * @param out channel to write to
+     * @throws IOException if there's an exception writing to out
+     */
+    public void output(GatheringByteChannel out) throws IOException {
+        encodePendingInstructions();
+        if (instructionsAndSizes.position() == 0) {
+            LOGGER.warn("Empty input; no delta window produced");
+        } else {
+            assembleWindowHeader();
+
+            gatherBuffers[0] = flippedView(windowHeader);
+            gatherBuffers[1] = flippedView(separateDataForAddAndRun);
+            gatherBuffers[2] = flippedView(instructionsAndSizes);
+            gatherBuffers[3] = flippedView(separateAddressesForCopy);
+            try {
+                writeFully(out, gatherBuffers);
+            } finally {
+                Arrays.fill(gatherBuffers, null);
+            }
+
+            finishWindow();
+        }
+
+        init(dictionarySize);
+    }
+
     /**
      *  encode a RUN opcode for "size" copies of the value "byte".
      */
     public void run(int size, byte b) {
+        if (narrowSourceSegments) {
+            addPendingInstruction(VCDiffCodeTableData.VCD_RUN, size, b);
+        } else {
+            encodeRun(size, b);
+        }
+        targetLength += size;
+    }
+
+    private void encodeRun(int size, byte b) {
         encodeInstruction(VCDiffCodeTableData.VCD_RUN, size);
         dataForAddAndRun.put(b);
-        targetLength += size;
+    }
+
+    private void addPendingInstruction(byte inst, int size, int argument) {
+        if (instructionMap == null) {
+            throw new IllegalStateException("Instruction recorded without calling init()");
+        }
+        if (pendingInstructionsLength + 3 > pendingInstructions.length) {
+            pendingInstructions = Arrays.copyOf(pendingInstructions, Math.max(48, pendingInstructions.length * 2));
+        }
+        pendingInstructions[pendingInstructionsLength++] = inst;
+        pendingInstructions[pendingInstructionsLength++] = size;
+        pendingInstructions[pendingInstructionsLength++] = argument;
+    }
+
+    // Narrows the source segment to the range used by the pending COPY
+    // instructions, then encodes the pending instructions.  COPY addresses
+    // are rebased onto the narrowed segment; addresses in the target window
+    // keep their offset from the end of the segment.
+    private void encodePendingInstructions() {
+        if (pendingInstructionsLength == 0) {
+            return;
+        }
+
+        if (pendingSourceStart < pendingSourceEnd) {
+            sourceSegmentPosition = pendingSourceStart;
+            sourceSegmentLength = pendingSourceEnd - pendingSourceStart;
+        } else {
+            sourceSegmentPosition = 0;
+            sourceSegmentLength = 0;
+        }
+
+        final int pendingTargetLength = targetLength;
+        targetLength = 0;
+        int dataOffset = 0;
+        for (int i = 0; i < pendingInstructionsLength; i += 3) {
+            final int size = pendingInstructions[i + 1];
+            final int argument = pendingInstructions[i + 2];
+            switch (pendingInstructions[i]) {
+                case VCDiffCodeTableData.VCD_ADD:
+                    encodeAdd(pendingData.array(), pendingData.arrayOffset() + dataOffset, size);
+                    dataOffset += size;
+                    break;
+                case VCDiffCodeTableData.VCD_RUN:
+                    encodeRun(size, (byte) argument);
+                    break;
+                default:
+                    if (argument < dictionarySize) {
+                        encodeCopy(argument - sourceSegmentPosition, size);
+                    } else {
+                        encodeCopy(argument - dictionarySize + sourceSegmentLength, size);
+                    }
+                    break;
+            }
+            targetLength += size;
+        }
+        if (targetLength != pendingTargetLength) {
+            throw new IllegalStateException(String.format(
+                    "Internal error: encoded target length (%d) does not match recorded length (%d)",
+                    targetLength, pendingTargetLength
+            ));
+        }
+
+        pendingInstructionsLength = 0;
+        pendingSourceStart = Integer.MAX_VALUE;
+        pendingSourceEnd = 0;
+        pendingData.clear();
+    }
+
+    // A narrowed window whose COPY instructions don't use the dictionary has
+    // no source segment at all.
+    private boolean hasSourceSegment() {
+        return !narrowSourceSegments || sourceSegmentLength > 0;
     }
 
     /**
@@ -357,16 +606,68 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
      * before the first chunk of input is available.
      */
     public void writeHeader(OutputStream out, EnumSet<VCDiffFormatExtension> formatExtensions) throws IOException {
-        if (formatExtensions.isEmpty()) {
-            out.write(HEADER_STANDARD_FORMAT);
+        if (usesDefaultCodeTable()) {
+            out.write(formatExtensions.isEmpty() ? HEADER_STANDARD_FORMAT : HEADER_EXTENDED_FORMAT);
+        } else {
+            out.write(fileHeader(formatExtensions));
+        }
+    }
+
+    /**
+     * Writes the header (as defined in section 4.1 of the RFC) to a channel.
+     *
+     * @param out channel to write to
+     * @param formatExtensions Flags for enabling features that are extensions to the format
+     * @throws IOException if there's an exception writing to out
+     */
+    public void writeHeader(GatheringByteChannel out, EnumSet<VCDiffFormatExtension> formatExtensions) throws IOException {
+        final byte[] header;
+        if (usesDefaultCodeTable()) {
+            header = formatExtensions.isEmpty() ? HEADER_STANDARD_FORMAT : HEADER_EXTENDED_FORMAT;
         } else {
-            out.write(HEADER_EXTENDED_FORMAT);
+            header = fileHeader(formatExtensions);
+        }
+        writeFully(out, new ByteBuffer[] { ByteBuffer.wrap(header) });
+    }
+
+    private boolean usesDefaultCodeTable() {
+        return codeTableData == VCDiffCodeTableData.kDefaultCodeTableData &&
+                nearCacheSize == VCDiffAddressCache.kDefaultNearCacheSize &&
+                sameCacheSize == VCDiffAddressCache.kDefaultSameCacheSize;
+    }
+
+    // The file header with Hdr_Indicator set to VCD_CODETABLE, followed by the
+    // cache sizes and the custom code table.
+    private byte[] fileHeader(EnumSet<VCDiffFormatExtension> formatExtensions) throws IOException {
+        if (encodedCodeTable == null) {
+            encodedCodeTable = encodeCodeTable();
         }
 
-        // If custom cache table sizes or a custom code table were used
-        // for encoding, here is where they would be appended to *output.
-        // This implementation of the encoder does not use those features,
-        // although the decoder can understand and interpret them.
+        final byte[] header = formatExtensions.isEmpty() ? HEADER_STANDARD_FORMAT : HEADER_EXTENDED_FORMAT;
+        final byte[] result = Arrays.copyOf(header, header.length + encodedCodeTable.length);
+        result[header.length - 1] = VCDiffHeaderParser.VCD_CODETABLE;
+        System.arraycopy(encodedCodeTable, 0, result, header.length, encodedCodeTable.length);
+        return result;
+    }
+
+    // As section 7 of the RFC describes, the code table is written as a
+    // VCDIFF delta, using the default code table, of the code table against
+    // the default code table.
+    private byte[] encodeCodeTable() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        VarInt.writeInt(out, nearCacheSize);
+        VarInt.writeInt(out, sameCacheSize);
+
+        final VCDiffStreamingEncoderImpl<OutputStream> encoder = new VCDiffStreamingEncoderImpl<OutputStream>(
+                new VCDiffCodeTableWriterImpl(false),
+                new HashedDictionary(VCDiffCodeTableData.kDefaultCodeTableData.getBytes()),
+                EnumSet.noneOf(VCDiffFormatExtension.class),
+                true
+        );
+        encoder.startEncoding(out);
+        encoder.encodeChunk(codeTableData.getBytes(), out);
+        encoder.finishEncoding(out);
+        return out.toByteArray();
     }
 
     public int targetLength() {
@@ -383,6 +684,14 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
      * separate_... strings, so that the three sections will
      * be generated separately from one another.
      */
+    private void acquireBuffers() {
+        instructionsAndSizes = bufferPool.acquire(INITIAL_SECTION_SIZE);
+        separateDataForAddAndRun = bufferPool.acquire(INITIAL_SECTION_SIZE);
+        separateAddressesForCopy = bufferPool.acquire(INITIAL_SECTION_SIZE);
+        windowHeader = bufferPool.acquire(MAX_WINDOW_HEADER_SIZE);
+        initSectionPointers(interleaved);
+    }
+
     void initSectionPointers(boolean interleaved) {
         if (interleaved) {
             dataForAddAndRun = instructionsAndSizes;
@@ -459,6 +768,98 @@ public class VCDiffCodeTableWriterImpl implements com.davidehrmann.vcdiff.VCDiff
         encodeInstruction(inst, size, (byte)0);
     }
 
+    // Fills windowHeader with the delta window header, from Win_Indicator
+    // through the optional checksum, ready to be followed by the three sections.
+    private void assembleWindowHeader() {
+        final int length_of_the_delta_encoding = calculateLengthOfTheDeltaEncoding();
+
+        windowHeader.clear();
+        windowHeader.expand(MAX_WINDOW_HEADER_SIZE);
+
+        final ByteBuffer header = windowHeader.buf();
+
+        // add first element: Win_Indicator
+        final int source = hasSourceSegment() ? VCD_SOURCE : 0;
+        if (addChecksum) {
+            header.put((byte) (source | VCD_CHECKSUM));
+        } else {
+            header.put((byte) source);
+        }
+
+        if (hasSourceSegment()) {
+            // Source segment size: the whole dictionary unless narrowed
+            VarInt.putInt(header, sourceSegmentLength);
+
+            // Source segment position: 0 (start of dictionary) unless narrowed
+            VarInt.putInt(header, sourceSegmentPosition);
+        }
+
+        // [Here is where a secondary compressor would be used
+        //  if the encoder and decoder supported that feature.]
+
+        VarInt.putInt(header, length_of_the_delta_encoding);
+
+        // Start of Delta Encoding
+        final int size_before_delta_encoding = header.position();
+
+        VarInt.putInt(header, targetLength);
+        header.put((byte) 0x00);  // Delta_Indicator: no compression
+        VarInt.putInt(header, separateDataForAddAndRun.position());
+        VarInt.putInt(header, instructionsAndSizes.position());
+        VarInt.putInt(header, separateAddressesForCopy.position());
+        if (addChecksum) {
+            // The checksum is a 32-bit *unsigned* integer.  VarintBE requires a
+            // signed type, so use a 64-bit signed integer to store the checksum.
+            VarInt.putLong(header, checksum);
+        }
+
+        // End of Delta Encoding
+        final int size_after_delta_encoding = header.position() + sectionsLength();
+        if (length_of_the_delta_encoding != (size_after_delta_encoding - size_before_delta_encoding)) {
+            throw new IllegalStateException(String.format(
+                    "Internal error: calculated length of the delta encoding (%d) does not match actual length (%d)",
+                    length_of_the_delta_encoding, size_after_delta_encoding - size_before_delta_encoding
+            ));
+        }
+    }
+
+    // Clears the sections once the window has been written.
+    private void finishWindow() {
+        separateDataForAddAndRun.clear();
+        instructionsAndSizes.clear();
+        separateAddressesForCopy.clear();
+        if (targetLength == 0) {
+            LOGGER.warn("Empty target window");
+        }
+    }
+
+    private int sectionsLength() {
+        return separateDataForAddAndRun.position() + instructionsAndSizes.position() + separateAddressesForCopy.position();
+    }
+
+    private static void writeSection(OutputStream out, IoBuffer section) throws IOException {
+        if (section.position() > 0) {
+            out.write(section.array(), section.arrayOffset(), section.position());
+        }
+    }
+
+    // Returns a view of the bytes written so far to buffer, leaving buffer untouched.
+    private static ByteBuffer flippedView(IoBuffer buffer) {
+        ByteBuffer view = buffer.buf().duplicate();
+        view.flip();
+        return view;
+    }
+
+    private static void writeFully(GatheringByteChannel out, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= out.write(buffers);
+        }
+    }
+
     // Calculates the "Length of the delta encoding" field for the delta window
     // header, based on the sizes of the sections and of the other header
     // elements.
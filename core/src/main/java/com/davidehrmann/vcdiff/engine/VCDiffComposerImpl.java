@@ -0,0 +1,467 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffComposer;
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableData.*;
+import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableWriterImpl.VCD_CHECKSUM;
+import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableWriterImpl.VCD_TARGET;
+
+/**
+ * Composes deltas by reading each one's instructions into {@link Pieces}: an
+ * interval map from ranges of its target to where they come from.  A COPY
+ * from the previous target is replaced by the pieces of the previous target
+ * it covers, so every target's pieces refer only to the first dictionary, to
+ * data the deltas added, or to runs.  The last target's pieces are written
+ * out as the composed delta, one window for each of the last delta's windows,
+ * with the default code table.
+ *
+ * COPY instructions within the last delta's windows are kept as they are.
+ * Those in earlier deltas, and those from earlier windows (VCD_TARGET), are
+ * replaced by the pieces they copy.  Checksums in the deltas aren't checked,
+ * and none are written, since that would mean decoding the targets.
+ *
+ * This object is thread-safe.
+ */
+public class VCDiffComposerImpl implements VCDiffComposer {
+
+    private final boolean interleaved;
+    private final BufferPool bufferPool;
+
+    /**
+     * @param interleaved whether to write the composed delta in the interleaved format
+     * @param bufferPool pool to take the writer's section buffers from
+     */
+    public VCDiffComposerImpl(boolean interleaved, BufferPool bufferPool) {
+        this.interleaved = interleaved;
+        this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+    }
+
+    @Override
+    public void compose(List<ByteBuffer> deltas, OutputStream out) throws IOException {
+        Objects.requireNotNull(deltas, "deltas was null");
+        Objects.requireNotNull(out, "out was null");
+        if (deltas.isEmpty()) {
+            throw new IllegalArgumentException("No deltas to compose");
+        }
+
+        Pieces target = null;
+        for (int i = 0; i < deltas.size(); i++) {
+            final ByteBuffer delta = Objects.requireNotNull(deltas.get(i), "delta was null");
+            try {
+                target = parse(delta.slice(), target, i == deltas.size() - 1);
+            } catch (IOException e) {
+                throw new IOException(String.format("Delta %d of %d: %s", i + 1, deltas.size(), e.getMessage()), e);
+            }
+        }
+        write(target, out);
+    }
+
+    // Reads the instructions of delta into pieces, resolving COPY instructions
+    // from its dictionary through source, the pieces of the previous target,
+    // unless delta is the first one.  keepTargetCopies keeps COPY instructions
+    // within a window as TARGET pieces.
+    static Pieces parse(ByteBuffer delta, Pieces source, boolean keepTargetCopies) throws IOException {
+        final int headerLength = VCDiffWindowIndex.skipFileHeader(delta.duplicate());
+        final byte hdrIndicator = delta.get(DeltaFileHeader.SERIALIZED_SIZE - 1);
+        if ((hdrIndicator & VCDiffHeaderParser.VCD_DECOMPRESS) != 0) {
+            throw new IOException("Secondary compression is not supported");
+        }
+
+        VCDiffCodeTableReader reader = new VCDiffCodeTableReader();
+        VCDiffAddressCache addressCache = new VCDiffAddressCacheImpl();
+        if ((hdrIndicator & VCDiffHeaderParser.VCD_CODETABLE) != 0) {
+            final ByteBuffer codeTable = delta.duplicate();
+            codeTable.position(DeltaFileHeader.SERIALIZED_SIZE).limit(headerLength);
+            VCDiffHeaderParser parser = new VCDiffHeaderParser(codeTable.slice());
+            final int nearCacheSize = parser.parseInt32("size of near cache");
+            final int sameCacheSize = parser.parseInt32("size of same cache");
+            if (parser.getResult() != VCDiffHeaderParser.RESULT_SUCCESS) {
+                throw new IOException("Delta file is truncated in its code table");
+            }
+            addressCache = new VCDiffAddressCacheImpl((short) nearCacheSize, (short) sameCacheSize);
+            try {
+                reader = new VCDiffCodeTableReader(decodeCodeTable(parser.unparsedData()), addressCache.LastMode());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Delta file has an invalid code table", e);
+            }
+        }
+        delta.position(headerLength);
+
+        final Pieces target = new Pieces();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicInteger mode = new AtomicInteger();
+        for (int window = 0; delta.hasRemaining(); window++) {
+            VCDiffHeaderParser parser = new VCDiffHeaderParser(delta.slice());
+            if (!parser.parseWinIndicatorAndSourceSegment(source != null ? source.size() : Long.MAX_VALUE, target.size(), true)
+                    || !parser.ParseWindowLengths()
+                    || !parser.parseDeltaIndicator()
+                    || !parser.parseSectionLengths((parser.winIndicator & VCD_CHECKSUM) != 0)) {
+                throw new IOException(String.format("Delta file is truncated in the header of window %d", window));
+            }
+            if (parser.endOfDeltaWindow() > delta.remaining()) {
+                throw new IOException(String.format("Delta file is truncated in window %d", window));
+            }
+
+            // As in VCDiffDeltaFileWindow, a window with only instructions
+            // is in the interleaved format
+            final int instructionsStart = parser.addAndRunDataLength;
+            final int addressesStart = instructionsStart + parser.instructionsAndSizesLength;
+            final ByteBuffer sections = parser.unparsedData().slice();
+            sections.limit(addressesStart + parser.addressesLength);
+
+            final ByteBuffer instructions;
+            final ByteBuffer data;
+            final ByteBuffer addresses;
+            if (parser.addAndRunDataLength == 0 && parser.addressesLength == 0) {
+                instructions = sections;
+                data = sections;
+                addresses = sections;
+            } else {
+                data = sections.duplicate();
+                data.limit(instructionsStart);
+                instructions = sections.duplicate();
+                instructions.limit(addressesStart).position(instructionsStart);
+                addresses = sections.duplicate();
+                addresses.position(addressesStart);
+            }
+
+            final boolean sourceIsTarget = (parser.winIndicator & VCD_TARGET) != 0;
+            final int sourceLength = parser.sourceSegmentLength;
+            final long sourcePosition = parser.sourceSegmentPosition;
+            final long windowStart = target.size();
+            final int windowLength = parser.targetWindowLength;
+
+            target.startWindow((parser.winIndicator & VCD_CHECKSUM) != 0 ? parser.checksum & 0xffffffffL : -1);
+            reader.init(instructions);
+            addressCache.Init();
+            int decoded = 0;
+            while (decoded < windowLength) {
+                final byte instruction = reader.getNextInstruction(size, mode);
+                if (instruction == VCD_INSTRUCTION_END_OF_DATA) {
+                    throw new IOException(String.format("Delta file is truncated in the instructions of window %d", window));
+                }
+                final int length = size.get();
+                if (length > windowLength - decoded) {
+                    throw new IOException(String.format(
+                            "%s with size %d plus existing %d bytes of target data exceeds length of target window (%d bytes)",
+                            VCDiffInstructionName(instruction), length, decoded, windowLength
+                    ));
+                }
+
+                switch (instruction) {
+                    case VCD_ADD:
+                        if (data.remaining() < length) {
+                            throw new IOException(String.format("Delta file is truncated in the data of window %d", window));
+                        }
+                        target.add(data, length);
+                        break;
+                    case VCD_RUN:
+                        if (!data.hasRemaining()) {
+                            throw new IOException(String.format("Delta file is truncated in the data of window %d", window));
+                        }
+                        target.append(Pieces.RUN, data.get() & 0xff, length);
+                        break;
+                    case VCD_COPY:
+                        final int here = sourceLength + decoded;
+                        int address = addressCache.DecodeAddress(here, (short) mode.get(), addresses);
+                        if (address == VCDiffHeaderParser.RESULT_END_OF_DATA) {
+                            throw new IOException(String.format("Delta file is truncated in the addresses of window %d", window));
+                        }
+
+                        int remaining = length;
+                        if (address < sourceLength) {
+                            final int fromSource = Math.min(remaining, sourceLength - address);
+                            if (sourceIsTarget) {
+                                target.resolve(target, sourcePosition + address, fromSource);
+                            } else if (source != null) {
+                                source.resolve(target, sourcePosition + address, fromSource);
+                            } else {
+                                target.append(Pieces.SOURCE, sourcePosition + address, fromSource);
+                            }
+                            address += fromSource;
+                            remaining -= fromSource;
+                        }
+                        if (remaining > 0) {
+                            final long from = windowStart + address - sourceLength;
+                            if (keepTargetCopies) {
+                                target.append(Pieces.TARGET, from, remaining);
+                            } else {
+                                target.replicate(from, remaining);
+                            }
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unexpected instruction type " + instruction + " in opcode stream");
+                }
+                decoded += length;
+            }
+
+            if (instructions.hasRemaining()) {
+                throw new IOException("Excess instructions and sizes left over after decoding target window");
+            }
+            if (data != instructions && (data.hasRemaining() || addresses.hasRemaining())) {
+                throw new IOException("Excess ADD/RUN data or COPY addresses left over after decoding target window");
+            }
+            delta.position(delta.position() + parser.endOfDeltaWindow());
+        }
+        return target;
+    }
+
+    // Decodes a custom code table, which is a delta file of the code table
+    // against the default one.  codeTable holds the delta and nothing else.
+    private static VCDiffCodeTableData decodeCodeTable(ByteBuffer codeTable) throws IOException {
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream(SERIALIZED_BYTE_SIZE);
+        final VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.startDecoding(kDefaultCodeTableData.getBytes());
+        decoder.decodeChunk(codeTable, decoded);
+        decoder.finishDecoding();
+        if (decoded.size() != SERIALIZED_BYTE_SIZE) {
+            throw new IOException(String.format(
+                    "Decoded custom code table size (%d) does not match size of a code table (%d)",
+                    decoded.size(), SERIALIZED_BYTE_SIZE
+            ));
+        }
+        return new VCDiffCodeTableData(decoded.toByteArray());
+    }
+
+    // Writes target's pieces as a delta against the first dictionary.  Each
+    // window's source segment is narrowed to the range it copies.
+    private void write(Pieces target, OutputStream out) throws IOException {
+        long dictionarySize = 0;
+        for (int i = 0; i < target.count; i++) {
+            if (target.kinds[i] == Pieces.SOURCE) {
+                dictionarySize = Math.max(dictionarySize, target.from[i] + target.length(i));
+            }
+        }
+        if (dictionarySize > Integer.MAX_VALUE) {
+            throw new IOException("Composed delta copies from past the first 2GB of the dictionary");
+        }
+
+        final VCDiffCodeTableWriterImpl writer = new VCDiffCodeTableWriterImpl(interleaved, bufferPool);
+        writer.setNarrowSourceSegments(true);
+        writer.init((int) dictionarySize);
+        writer.writeHeader(out, interleaved ?
+                EnumSet.of(VCDiffFormatExtension.GOOGLE_INTERLEAVED) :
+                EnumSet.noneOf(VCDiffFormatExtension.class));
+
+        for (int window = 0; window < target.windows; window++) {
+            final int first = target.windowStarts[window];
+            final int end = window + 1 < target.windows ? target.windowStarts[window + 1] : target.count;
+            if (first == end) {
+                continue;
+            }
+            final long windowStart = target.starts[first];
+            for (int i = first; i < end; i++) {
+                final int length = (int) target.length(i);
+                switch (target.kinds[i]) {
+                    case Pieces.SOURCE:
+                        writer.copy((int) target.from[i], length);
+                        break;
+                    case Pieces.TARGET:
+                        writer.copy((int) (dictionarySize + target.from[i] - windowStart), length);
+                        break;
+                    case Pieces.ADD:
+                        writer.add(target.data, (int) target.from[i], length);
+                        break;
+                    default:
+                        writer.run(length, (byte) target.from[i]);
+                        break;
+                }
+            }
+            writer.output(out);
+        }
+        writer.finishEncoding(out);
+    }
+
+    /**
+     * A target as a sequence of pieces, each copied from the first dictionary
+     * (SOURCE), copied from earlier in the same window (TARGET), added (ADD),
+     * or a run of one byte (RUN).  Adjacent pieces that continue each other
+     * are merged, except across windows.
+     */
+    static final class Pieces {
+        static final byte SOURCE = 0;
+        static final byte TARGET = 1;
+        static final byte ADD = 2;
+        static final byte RUN = 3;
+
+        int count = 0;
+
+        // Where each piece starts in the target, with the target's size at
+        // the end
+        long[] starts = new long[17];
+
+        // The offset of each piece in the dictionary, in the target, or in
+        // data, or the byte it runs
+        long[] from = new long[16];
+        byte[] kinds = new byte[16];
+
+        // The data of ADD pieces
+        byte[] data = new byte[1024];
+        int dataLength = 0;
+
+        // The first piece of each window, and the window's checksum, or -1
+        // if it has none
+        int[] windowStarts = new int[16];
+        long[] windowChecksums = new long[16];
+        int windows = 0;
+
+        long size() {
+            return starts[count];
+        }
+
+        long length(int piece) {
+            return starts[piece + 1] - starts[piece];
+        }
+
+        void startWindow(long checksum) {
+            if (windows == windowStarts.length) {
+                windowStarts = Arrays.copyOf(windowStarts, 2 * windows);
+                windowChecksums = Arrays.copyOf(windowChecksums, 2 * windows);
+            }
+            windowChecksums[windows] = checksum;
+            windowStarts[windows++] = count;
+        }
+
+        void append(byte kind, long from, long length) {
+            if (length == 0) {
+                return;
+            }
+            final int last = count - 1;
+            if (windows > 0 && last >= windowStarts[windows - 1] && kinds[last] == kind &&
+                    (kind == RUN ? this.from[last] == from : this.from[last] + length(last) == from)) {
+                starts[count] += length;
+                return;
+            }
+
+            if (count == kinds.length) {
+                starts = Arrays.copyOf(starts, 2 * count + 1);
+                this.from = Arrays.copyOf(this.from, 2 * count);
+                kinds = Arrays.copyOf(kinds, 2 * count);
+            }
+            kinds[count] = kind;
+            this.from[count] = from;
+            starts[count + 1] = starts[count] + length;
+            count++;
+        }
+
+        // Appends length bytes of data as an ADD piece
+        void add(ByteBuffer source, int length) throws IOException {
+            reserveData(length);
+            source.get(data, dataLength, length);
+            dataLength += length;
+            append(ADD, dataLength - length, length);
+        }
+
+        // Appends length bytes of source's data, which may be this one's
+        void add(Pieces source, int offset, int length) throws IOException {
+            reserveData(length);
+            System.arraycopy(source.data, offset, data, dataLength, length);
+            dataLength += length;
+            append(ADD, dataLength - length, length);
+        }
+
+        private void reserveData(int length) throws IOException {
+            if (length > Integer.MAX_VALUE - 8 - dataLength) {
+                throw new IOException("Deltas add more than 2GB of data");
+            }
+            if (dataLength + length > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * data.length, dataLength + length)));
+            }
+        }
+
+        // Appends to dst the pieces of this target from position to
+        // position + length, following TARGET pieces back to what they copy.
+        // dst may be this, as long as the range has already been appended.
+        void resolve(Pieces dst, long position, long length) throws IOException {
+            // Ranges still to be appended, the next one last
+            long[] pending = new long[8];
+            int pendingLength = 0;
+
+            while (true) {
+                final int piece = find(position);
+                final long offset = position - starts[piece];
+                long chunk = Math.min(length, length(piece) - offset);
+                long copied = from[piece] + offset;
+                if (kinds[piece] == TARGET) {
+                    // A COPY that overlaps what it writes repeats the bytes
+                    // between its address and where it starts
+                    final long distance = starts[piece] - from[piece];
+                    if (distance < length(piece)) {
+                        copied = from[piece] + offset % distance;
+                        chunk = Math.min(chunk, distance - offset % distance);
+                    }
+                }
+
+                if (chunk < length) {
+                    if (pendingLength == pending.length) {
+                        pending = Arrays.copyOf(pending, 2 * pendingLength);
+                    }
+                    pending[pendingLength++] = position + chunk;
+                    pending[pendingLength++] = length - chunk;
+                }
+
+                switch (kinds[piece]) {
+                    case TARGET:
+                        // Resolved before the rest of this range
+                        if (pendingLength == pending.length) {
+                            pending = Arrays.copyOf(pending, 2 * pendingLength);
+                        }
+                        pending[pendingLength++] = copied;
+                        pending[pendingLength++] = chunk;
+                        break;
+                    case ADD:
+                        dst.add(this, (int) copied, (int) chunk);
+                        break;
+                    default:
+                        dst.append(kinds[piece], kinds[piece] == RUN ? from[piece] : copied, chunk);
+                        break;
+                }
+
+                if (pendingLength == 0) {
+                    return;
+                }
+                length = pending[--pendingLength];
+                position = pending[--pendingLength];
+            }
+        }
+
+        // Appends a COPY of length bytes from position, which may overlap
+        // what it appends.  Each step copies everything from position on,
+        // which repeats the pattern being copied, so the steps double.
+        void replicate(long position, long length) throws IOException {
+            while (length > 0) {
+                final long chunk = Math.min(length, size() - position);
+                resolve(this, position, chunk);
+                length -= chunk;
+            }
+        }
+
+        // The piece containing position, which must be in the target
+        private int find(long position) {
+            int low = 0;
+            int high = count - 1;
+            while (low < high) {
+                final int middle = (low + high + 1) >>> 1;
+                if (starts[middle] <= position) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -9,7 +9,6 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.Adler32;
 
 import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableData.*;
 import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableWriterImpl.*;
@@ -31,17 +30,20 @@ class VCDiffDeltaFileWindow {
         targetWindowStartPos = (parent != null) ? parent.decodedTarget().size() : 0;
         targetWindowLength = 0;
 
-        sourceSegment = null;
-        sourceSegmentLength.set(0);
+        dictionarySourceSegmentPosition = -1;
+        sourceSegmentLength = 0;
+        targetSourceSegmentPosition = -1;
 
         instructionsAndSizes = null;
         dataForAddAndRun = null;
         addressesForCopy = null;
 
         interleavedBytesExpected = 0;
+        pendingSecondOpcode = -1;
+        bytesNeededForWindow = 0;
 
         hasChecksum = false;
-        expectedChecksum.set(0);
+        expectedChecksum = 0;
     }
 
     public void useCodeTable(VCDiffCodeTableData code_table_data, short max_mode) {
@@ -105,6 +107,15 @@ class VCDiffDeltaFileWindow {
         return isInterleaved() && (interleavedBytesExpected > 0);
     }
 
+    // Returns the number of input bytes, counted from the start of the window
+    // header, that must be available before the current window can be decoded,
+    // or 0 if that isn't known.  This is only known after readHeader() has
+    // returned RESULT_END_OF_DATA for a window that doesn't use the interleaved
+    // format, since those windows can't be decoded until they are complete.
+    public int bytesNeededForWindow() {
+        return bytesNeededForWindow;
+    }
+
     public int targetWindowStartPos() { return targetWindowStartPos; }
 
     public void setTargetWindowStartPos(int new_start_pos) {
@@ -153,25 +164,24 @@ class VCDiffDeltaFileWindow {
         //		                 Instructions and sizes section   - array of bytes
         //		                 Addresses section for COPYs      - array of bytes
         //
-        VCDiffStreamingDecoderImpl.DecoratedByteArrayOutputStream decoded_target = parent.decodedTarget();
+        DecodedTarget decoded_target = parent.decodedTarget();
         VCDiffHeaderParser header_parser = new VCDiffHeaderParser(parseableChunk.slice());
 
-        VCDiffHeaderParser.DeltaWindowHeader deltaWindowHeader = header_parser.parseWinIndicatorAndSourceSegment(
-                parent.dictionary_ptr().limit(),
-                decoded_target.size(),
-                parent.allowVcdTarget()
-        );
-
-        if (deltaWindowHeader == null) {
+        if (!header_parser.parseWinIndicatorAndSourceSegment(
+                parent.dictionary().size(),
+                parent.decodedTargetStart() + decoded_target.size(),
+                parent.allowVcdTarget())) {
             return header_parser.getResult();
         }
 
-        this.sourceSegmentLength.set(deltaWindowHeader.source_segment_length);
+        final byte win_indicator = header_parser.winIndicator;
+        this.sourceSegmentLength = header_parser.sourceSegmentLength;
 
-        hasChecksum = parent.allowChecksum() && ((deltaWindowHeader.win_indicator & VCD_CHECKSUM) != 0);
-        if ((targetWindowLength = header_parser.ParseWindowLengths()) == null) {
+        hasChecksum = parent.allowChecksum() && ((win_indicator & VCD_CHECKSUM) != 0);
+        if (!header_parser.ParseWindowLengths()) {
             return header_parser.getResult();
         }
+        targetWindowLength = header_parser.targetWindowLength;
 
         // Throws an exception if targetWindowWouldExceedSizeLimits
         parent.targetWindowWouldExceedSizeLimits(targetWindowLength);
@@ -189,16 +199,19 @@ class VCDiffDeltaFileWindow {
         }
         */
 
-        // Get a pointer to the start of the source segment.
-        if ((deltaWindowHeader.win_indicator & VCD_SOURCE) != 0) {
-            sourceSegment = (ByteBuffer) parent.dictionary_ptr().duplicate().rewind();
-            sourceSegment.position(deltaWindowHeader.source_segment_position);
-        } else if ((deltaWindowHeader.win_indicator & VCD_TARGET) != 0) {
-            // This assignment must happen after the reserve().
-            // decodedTarget should not be resized again while processing this window,
-            // so sourceSegment should remain valid.
-            sourceSegment = decoded_target.toByteBuffer();
-            sourceSegment.position(deltaWindowHeader.source_segment_position);
+        // Find the start of the source segment.
+        if ((win_indicator & VCD_SOURCE) != 0) {
+            dictionarySourceSegmentPosition = header_parser.sourceSegmentPosition;
+        } else if ((win_indicator & VCD_TARGET) != 0) {
+            // The source segment is earlier target data, so COPY instructions
+            // that refer to it are resolved against decodedTarget itself.
+            if (header_parser.sourceSegmentPosition < parent.decodedTargetStart()) {
+                throw new IOException(String.format(
+                        "Source segment position (%d) refers to target data before position %d, which is no longer retained",
+                        header_parser.sourceSegmentPosition, parent.decodedTargetStart()
+                ));
+            }
+            targetSourceSegmentPosition = (int) (header_parser.sourceSegmentPosition - parent.decodedTargetStart());
         }
         // The whole window header was found and parsed successfully.
         foundHeader = true;
@@ -227,52 +240,58 @@ class VCDiffDeltaFileWindow {
     // if standard format is being used and there is not enough input data to read
     // the entire window body.  Otherwise, returns RESULT_SUCCESS.
     private int setUpWindowSections(VCDiffHeaderParser header_parser) throws IOException {
-        VCDiffHeaderParser.SectionLengths sectionLengths = header_parser.parseSectionLengths(hasChecksum);
-        if (sectionLengths == null) {
+        if (!header_parser.parseSectionLengths(hasChecksum)) {
             return header_parser.getResult();
         }
+        final int add_and_run_data_length = header_parser.addAndRunDataLength;
+        final int instructions_and_sizes_length = header_parser.instructionsAndSizesLength;
+        final int addresses_length = header_parser.addressesLength;
 
         // KLUDGE: this code knows what the structure of the data looks like
         int parsed_delta_encoding_length =
                 VarInt.calculateIntLength(targetWindowLength)
                         + 1
-                        + VarInt.calculateIntLength(sectionLengths.add_and_run_data_length)
-                        + VarInt.calculateIntLength(sectionLengths.addresses_length)
-                        + VarInt.calculateIntLength(sectionLengths.instructions_and_sizes_length)
-                        + sectionLengths.add_and_run_data_length
-                        + sectionLengths.addresses_length
-                        + sectionLengths.instructions_and_sizes_length;
+                        + VarInt.calculateIntLength(add_and_run_data_length)
+                        + VarInt.calculateIntLength(addresses_length)
+                        + VarInt.calculateIntLength(instructions_and_sizes_length)
+                        + add_and_run_data_length
+                        + addresses_length
+                        + instructions_and_sizes_length;
 
         if (hasChecksum) {
-            this.expectedChecksum.set(sectionLengths.checksum);
-            parsed_delta_encoding_length += VarInt.calculateIntLength(sectionLengths.checksum);
+            this.expectedChecksum = header_parser.checksum;
+            parsed_delta_encoding_length += VarInt.calculateLongLength(header_parser.checksum & 0xffffffffL);
         }
 
         if (parent.allowInterleaved() &&
-                (sectionLengths.add_and_run_data_length == 0) &&
-                (sectionLengths.addresses_length == 0)) {
+                (add_and_run_data_length == 0) &&
+                (addresses_length == 0)) {
             // The interleaved format is being used.
-            interleavedBytesExpected = sectionLengths.instructions_and_sizes_length;
+            interleavedBytesExpected = instructions_and_sizes_length;
             updateInterleavedSectionPointers(header_parser.unparsedData());
         } else {
             // If interleaved format is not used, then the whole window contents
             // must be available before decoding can begin.  If only part of
             // the current window is available, then report end of data
             // and re-parse the whole header when decodeChunk() is called again.
-            if (header_parser.unparsedData().remaining() < (sectionLengths.add_and_run_data_length +
-                    sectionLengths.instructions_and_sizes_length +
-                    sectionLengths.addresses_length)) {
+            final long sections_length = (long) add_and_run_data_length +
+                    instructions_and_sizes_length +
+                    addresses_length;
+            if (header_parser.unparsedData().remaining() < sections_length) {
+                bytesNeededForWindow = (int) Math.min(Integer.MAX_VALUE,
+                        header_parser.unparsedData().position() + sections_length);
                 return VCDiffHeaderParser.RESULT_END_OF_DATA;
             }
+            bytesNeededForWindow = 0;
 
             dataForAddAndRun = header_parser.unparsedData().slice();
-            dataForAddAndRun.position(sectionLengths.add_and_run_data_length);
+            dataForAddAndRun.position(add_and_run_data_length);
 
             instructionsAndSizes = dataForAddAndRun.slice();
-            instructionsAndSizes.position(sectionLengths.instructions_and_sizes_length);
+            instructionsAndSizes.position(instructions_and_sizes_length);
 
             addressesForCopy = instructionsAndSizes.slice();
-            addressesForCopy.position(sectionLengths.addresses_length);
+            addressesForCopy.position(addresses_length);
 
             dataForAddAndRun.flip();
             instructionsAndSizes.flip();
@@ -302,13 +321,73 @@ class VCDiffDeltaFileWindow {
         if (isInterleaved() && false) {
             throw new IllegalStateException("Internal error: interleaved format is used, but the input pointer does not point to the instructions section");
         }
+        final int result = reader.usesDefaultCodeTable()
+                ? decodeInstructionsWithDefaultCodeTable()
+                : decodeInstructions();
+        if (result == VCDiffHeaderParser.RESULT_END_OF_DATA) {
+            updateInstructionPointer(parseable_chunk);
+            return VCDiffHeaderParser.RESULT_END_OF_DATA;
+        }
+        if (targetBytesDecoded() != targetWindowLength) {
+            throw new IOException(String.format(
+                    "Decoded target window size (%d bytes) does not match expected size (%d bytes)",
+                    targetBytesDecoded(), targetWindowLength
+            ));
+        }
+
+        if (hasChecksum) {
+            for (ByteBuffer slice : parent.decodedTarget().slices(targetWindowStartPos, targetWindowLength)) {
+                if (slice.hasArray()) {
+                    adler32.update(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+                } else {
+                    adler32.update(slice);
+                }
+            }
+            int checksum = (int)adler32.getValue();
+            adler32.reset();
+
+            if (checksum != expectedChecksum) {
+                throw new IOException("Target data does not match checksum; this could mean that the wrong dictionary was used");
+            }
+        }
+        if (instructionsAndSizes.hasRemaining()) {
+            throw new IOException("Excess instructions and sizes left over after decoding target window");
+        }
+        if (!isInterleaved()) {
+            // Standard format is being used, with three separate sections for the
+            // instructions, data, and addresses.
+            if (dataForAddAndRun.hasRemaining()) {
+                throw new IOException("Excess ADD/RUN data left over after decoding target window");
+            }
+            if (addressesForCopy.hasRemaining()) {
+                throw new IOException("Excess COPY addresses left over after decoding target window");
+            }
+            // Reached the end of the window.  Update the ParseableChunk to point to the
+            // end of the addresses section, which is the last section in the window.
+
+            parseable_chunk.position(
+                    parseable_chunk.position() +
+                            instructionsAndSizes.limit() +
+                            dataForAddAndRun.limit() +
+                            addressesForCopy.limit());
+        } else {
+            // Interleaved format is being used.
+            updateInstructionPointer(parseable_chunk);
+        }
+        return VCDiffHeaderParser.RESULT_SUCCESS;
+    }
+
+    // Decodes instructions until the target window is complete, using reader
+    // to interpret the opcodes.  Returns RESULT_SUCCESS, or RESULT_END_OF_DATA
+    // if the end of input was reached first; in that case the instruction that
+    // could not be completed is left unread.
+    private int decodeInstructions() throws IOException {
+        final AtomicInteger decoded_size = new AtomicInteger(0);
+        final AtomicInteger mode = new AtomicInteger(0);
         while (targetBytesDecoded() < targetWindowLength) {
-            final AtomicInteger decoded_size = new AtomicInteger(0);
-            final AtomicInteger mode = new AtomicInteger(0);
             int instruction = reader.getNextInstruction(decoded_size, mode);
             switch (instruction) {
                 case VCD_INSTRUCTION_END_OF_DATA:
-                    updateInstructionPointer(parseable_chunk);
                     return VCDiffHeaderParser.RESULT_END_OF_DATA;
                 default:
                     break;
@@ -341,51 +420,85 @@ class VCDiffDeltaFileWindow {
             switch (result) {
                 case VCDiffHeaderParser.RESULT_END_OF_DATA:
                     reader.unGetInstruction();
-                    updateInstructionPointer(parseable_chunk);
                     return VCDiffHeaderParser.RESULT_END_OF_DATA;
                 case VCDiffHeaderParser.RESULT_SUCCESS:
                     break;
             }
         }
-        if (targetBytesDecoded() != targetWindowLength) {
-            throw new IOException(String.format(
-                    "Decoded target window size (%d bytes) does not match expected size (%d bytes)",
-                    targetBytesDecoded(), targetWindowLength
-            ));
-        }
+        return VCDiffHeaderParser.RESULT_SUCCESS;
+    }
 
-        if (hasChecksum) {
-            adler32.update(parent.decodedTarget().getBuffer(), targetWindowStartPos, targetWindowLength);
-            int checksum = (int)adler32.getValue();
-            adler32.reset();
+    // Equivalent to decodeInstructions(), specialized for the default code
+    // table: each opcode is resolved with one lookup in the packed tables of
+    // VCDiffCodeTableReader, and the reader's state is kept in local variables
+    // and pendingSecondOpcode.
+    private int decodeInstructionsWithDefaultCodeTable() throws IOException {
+        final ByteBuffer instructions = instructionsAndSizes;
+        final int[] firstInstructions = VCDiffCodeTableReader.DEFAULT_FIRST_INSTRUCTIONS;
+        final int[] secondInstructions = VCDiffCodeTableReader.DEFAULT_SECOND_INSTRUCTIONS;
 
-            if (checksum != expectedChecksum.get()) {
-                throw new IOException("Target data does not match checksum; this could mean that the wrong dictionary was used");
+        final int window_length = targetWindowLength;
+        int target_bytes_decoded = targetBytesDecoded();
+        while (target_bytes_decoded < window_length) {
+            final int instructionStart = instructions.position();
+            final int pendingBefore = pendingSecondOpcode;
+
+            final int packed;
+            if (pendingSecondOpcode >= 0) {
+                packed = secondInstructions[pendingSecondOpcode];
+                pendingSecondOpcode = -1;
+            } else {
+                if (!instructions.hasRemaining()) {
+                    return VCDiffHeaderParser.RESULT_END_OF_DATA;
+                }
+                final int opcode = instructions.get() & 0xff;
+                packed = firstInstructions[opcode];
+                if (secondInstructions[opcode] != 0) {
+                    pendingSecondOpcode = opcode;
+                }
             }
-        }
-        if (instructionsAndSizes.hasRemaining()) {
-            throw new IOException("Excess instructions and sizes left over after decoding target window");
-        }
-        if (!isInterleaved()) {
-            // Standard format is being used, with three separate sections for the
-            // instructions, data, and addresses.
-            if (dataForAddAndRun.hasRemaining()) {
-                throw new IOException("Excess ADD/RUN data left over after decoding target window");
+
+            final byte instruction = (byte) packed;
+            int size = (packed >>> 8) & 0xff;
+            if (size == 0) {
+                size = VarInt.parseInt(instructions);
+                if (size == VarInt.END_OF_BUFFER) {
+                    instructions.position(instructionStart);
+                    pendingSecondOpcode = pendingBefore;
+                    return VCDiffHeaderParser.RESULT_END_OF_DATA;
+                } else if (size == VarInt.PARSE_ERROR) {
+                    throw new IOException("Instruction size is not a valid variable-length integer");
+                }
             }
-            if (addressesForCopy.hasRemaining()) {
-                throw new IOException("Excess COPY addresses left over after decoding target window");
+
+            if ((size > window_length) ||
+                    ((size + target_bytes_decoded) > window_length)) {
+                throw new IOException(String.format(
+                        "%s with size %d plus existing %d bytes of target data exceeds length of target window (%d bytes)",
+                        VCDiffCodeTableData.VCDiffInstructionName(instruction), size, target_bytes_decoded, window_length
+                ));
             }
-            // Reached the end of the window.  Update the ParseableChunk to point to the
-            // end of the addresses section, which is the last section in the window.
 
-            parseable_chunk.position(
-                    parseable_chunk.position() +
-                            instructionsAndSizes.limit() +
-                            dataForAddAndRun.limit() +
-                            addressesForCopy.limit());
-        } else {
-            // Interleaved format is being used.
-            updateInstructionPointer(parseable_chunk);
+            final int result;
+            switch (instruction) {
+                case VCD_ADD:
+                    result = decodeAdd(size);
+                    break;
+                case VCD_RUN:
+                    result = decodeRun(size);
+                    break;
+                case VCD_COPY:
+                    result = decodeCopy(size, (short) (packed >>> 16));
+                    break;
+                default:
+                    throw new IOException("Unexpected instruction type " + instruction + " in opcode stream");
+            }
+            if (result == VCDiffHeaderParser.RESULT_END_OF_DATA) {
+                instructions.position(instructionStart);
+                pendingSecondOpcode = pendingBefore;
+                return VCDiffHeaderParser.RESULT_END_OF_DATA;
+            }
+            target_bytes_decoded += size;
         }
         return VCDiffHeaderParser.RESULT_SUCCESS;
     }
@@ -396,7 +509,7 @@ class VCDiffDeltaFileWindow {
     }
 
     // Decodes a single ADD instruction, updating parent->decoded_target_.
-    private int decodeAdd(int size) {
+    private int decodeAdd(int size) throws IOException {
         if (size > dataForAddAndRun.remaining()) {
             return VCDiffHeaderParser.RESULT_END_OF_DATA;
         }
@@ -406,7 +519,7 @@ class VCDiffDeltaFileWindow {
     }
 
     // Decodes a single RUN instruction, updating parent->decoded_target_.
-    private int decodeRun(int size) {
+    private int decodeRun(int size) throws IOException {
         if (!dataForAddAndRun.hasRemaining()) {
             return VCDiffHeaderParser.RESULT_END_OF_DATA;
         }
@@ -417,10 +530,7 @@ class VCDiffDeltaFileWindow {
 
     // Decodes a single COPY instruction, updating parent->decoded_target_.
     private int decodeCopy(int size, short mode) throws IOException {
-        // Keep track of the number of target bytes decoded as a local variable
-        // to avoid recalculating it each time it is needed.
-        int target_bytes_decoded = targetBytesDecoded();
-        final int here_address = sourceSegmentLength.get() + target_bytes_decoded;
+        final int here_address = sourceSegmentLength + targetBytesDecoded();
         final int decodedAddress;
         try {
             decodedAddress = parent.addrCache().DecodeAddress(
@@ -445,43 +555,25 @@ class VCDiffDeltaFileWindow {
             ));
         }
 
-        // TODO: source_segment_length should be sourceSegment.remaining()
         int address = decodedAddress;
-        if ((address + size) <= sourceSegmentLength.get()) {
+        if ((address + size) <= sourceSegmentLength) {
             // copy all data from source segment
-            copyBytes((ByteBuffer) sourceSegment.slice().position(address), size);
+            copyFromSourceSegment(address, size);
             return VCDiffHeaderParser.RESULT_SUCCESS;
         }
         // copy some data from target window...
-        if (address < sourceSegmentLength.get()) {
+        if (address < sourceSegmentLength) {
             // ... plus some data from source segment
-            final int partial_copy_size = sourceSegmentLength.get() - address;
-            copyBytes((ByteBuffer) sourceSegment.slice().position(address), partial_copy_size);
-            target_bytes_decoded += partial_copy_size;
+            final int partial_copy_size = sourceSegmentLength - address;
+            copyFromSourceSegment(address, partial_copy_size);
             address += partial_copy_size;
             size -= partial_copy_size;
         }
-        address -= sourceSegmentLength.get();
-        // address is now based at start of target window
-        // const char* const target_segment_ptr = parent.decodedTarget().data() + targetWindowStartPos;
-
-        ByteBuffer targetSegment = parent.decodedTarget().toByteBuffer();
-        targetSegment.position(targetWindowStartPos);
-
-        while (size > (target_bytes_decoded - address)) {
-            // Recursive copy that extends into the yet-to-be-copied target data
-            final int partial_copy_size = target_bytes_decoded - address;
-            // TODO: does targetSegment need to be recreated each time?
-            copyBytes((ByteBuffer) targetSegment.slice().position(address), partial_copy_size);
-            target_bytes_decoded += partial_copy_size;
-            address += partial_copy_size;
-            size -= partial_copy_size;
-
-            // This might not be needed, but refresh targetSegment since bytes were just copied into target
-            targetSegment = parent.decodedTarget().toByteBuffer();
-            targetSegment.position(targetWindowStartPos);
-        }
-        copyBytes((ByteBuffer) targetSegment.slice().position(address), size);
+        address -= sourceSegmentLength;
+        // address is now based at start of target window.  If the copy extends
+        // into the yet-to-be-copied target data, the bytes from address to the
+        // current end of the target window repeat; replicate() handles that case.
+        parent.decodedTarget().replicate(targetWindowStartPos + address, size);
         return VCDiffHeaderParser.RESULT_SUCCESS;
     }
 
@@ -517,18 +609,36 @@ class VCDiffDeltaFileWindow {
 
     // Executes a single COPY or ADD instruction, appending data to
     // parent->decodedTarget().
-    private void copyBytes(ByteBuffer buffer, int size) {
-        // TODO: optimize
-        while (size-- > 0) {
-            parent.decodedTarget().write(buffer.get());
+    private void copyBytes(ByteBuffer buffer, int size) throws IOException {
+        parent.decodedTarget().write(buffer, size);
+    }
+
+    // Copies size bytes starting at address in the source segment to
+    // parent->decodedTarget().
+    private void copyFromSourceSegment(int address, int size) throws IOException {
+        if (targetSourceSegmentPosition >= 0) {
+            // The range lies before the current window, so it doesn't overlap
+            // the bytes being written.
+            parent.decodedTarget().replicate(targetSourceSegmentPosition + address, size);
+        } else {
+            // The dictionary may hand the range over in several pieces
+            long position = dictionarySourceSegmentPosition + address;
+            while (size > 0) {
+                ByteBuffer bytes = parent.dictionary().read(position, size);
+                final int read = bytes.remaining();
+                copyBytes(bytes, read);
+                position += read;
+                size -= read;
+            }
         }
     }
 
     // Executes a single RUN instruction, appending data to
     // parent->decodedTarget().
-    private void runByte(byte b, int size) {
-        for (int i = 0; i < size; i++) {
+    private void runByte(byte b, int size) throws IOException {
+        if (size > 0) {
             parent.decodedTarget().write(b);
+            parent.decodedTarget().replicate(parent.decodedTarget().size() - 1, size - 1);
         }
     }
 
@@ -545,6 +655,9 @@ class VCDiffDeltaFileWindow {
         }
     }
 
+    // See bytesNeededForWindow().
+    private int bytesNeededForWindow;
+
     // The parent object which was passed to init().
     private final VCDiffStreamingDecoderImpl parent;
 
@@ -553,12 +666,15 @@ class VCDiffDeltaFileWindow {
     // entire window has not yet been decoded.
     private boolean foundHeader;
 
-    // Contents and length of the current source window.  sourceSegment
-    // will be non-NULL if (a) the window section header for the current window
-    // has been read, but the window has not yet finished decoding; or
-    // (b) the window did not specify a source segment.
-    private ByteBuffer sourceSegment;
-    private final AtomicInteger sourceSegmentLength = new AtomicInteger(0);
+    // Position and length of the current source window.  If the window
+    // section header for the current window has been read, the window has not
+    // yet finished decoding, and the source segment comes from the dictionary,
+    // dictionarySourceSegmentPosition is its position in parent->dictionary().
+    // If it comes from the target, targetSourceSegmentPosition is its position
+    // in parent->decodedTarget().  Otherwise, they are -1.
+    private long dictionarySourceSegmentPosition;
+    private int sourceSegmentLength;
+    private int targetSourceSegmentPosition;
 
     // The delta encoding window sections as defined in RFC section 4.3.
     // The pointer for each section will be incremented as data is consumed and
@@ -573,8 +689,12 @@ class VCDiffDeltaFileWindow {
     // for the interleaved format.
     private int interleavedBytesExpected;
 
+    // The opcode whose second instruction is still to be executed when
+    // decoding with the default code table, or -1.
+    private int pendingSecondOpcode;
+
     // The expected length of the target window once it has been decoded.
-    private Integer targetWindowLength;
+    private int targetWindowLength;
 
     // The index in decodedTarget at which the first byte of the current
     // target window was/will be written.
@@ -584,9 +704,9 @@ class VCDiffDeltaFileWindow {
     // checksum of the target window data.  This is an extension included in the
     // VCDIFF 'S' (SDCH) format, but is not part of the RFC 3284 draft standard.
     private boolean hasChecksum;
-    private final AtomicInteger expectedChecksum = new AtomicInteger(0);
+    private int expectedChecksum;
 
-    private final Adler32 adler32 = new ZeroInitializedAdler32();
+    private final ZeroInitializedAdler32 adler32 = new ZeroInitializedAdler32();
 
     private VCDiffCodeTableReader reader = new VCDiffCodeTableReader();
 }
@@ -33,11 +33,29 @@ class VCDiffEngine {
      */
     public static final int kMinimumMatchSize = 32;
 
+    /**
+     * With match acceleration, the number of consecutive misses after which
+     * another probe is skipped between each probe, times the acceleration.
+     */
+    protected static final int kAccelerationMissesShift = 6;
+
+    /**
+     * The most probes skipped between each probe with match acceleration.
+     * This bounds how much of a match can go unnoticed after a long run of
+     * target data that matches nothing.
+     */
+    protected static final int kMaxSkippedProbes = 63;
+
     /**
      * A copy of the dictionary contents
      */
     protected final byte[] dictionary_;
 
+    /**
+     * dictionary_, for comparing against the target several bytes at a time
+     */
+    private final ByteBuffer dictionary_buffer_;
+
     /**
      * A hash that contains one element for every kBlockSize bytes of dictionary_.
      * This can be reused to encode many different target strings using the
@@ -47,6 +65,7 @@ class VCDiffEngine {
 
     public VCDiffEngine(byte[] dictionary) {
         dictionary_ = dictionary;
+        dictionary_buffer_ = ByteBuffer.wrap(dictionary).asReadOnlyBuffer();
         hashed_dictionary_ = BlockHash.CreateDictionaryHash(dictionary_);
     }
 
@@ -67,6 +86,31 @@ class VCDiffEngine {
      * @throws IOException if there's an encoding exception or an exception while writing to diff
      */
     public <OUT> void Encode(ByteBuffer targetData, boolean lookForTargetMatches, OUT diff, VCDiffCodeTableWriter<OUT> coder) throws IOException {
+        Encode(targetData, lookForTargetMatches, 0, diff, coder);
+    }
+
+    /**
+     * Like {@link #Encode(ByteBuffer, boolean, Object, VCDiffCodeTableWriter)},
+     * but after consecutive positions in the target with no match, the matcher
+     * probes fewer of the following positions, as in LZ4's acceleration.  The
+     * stride grows by one for every 64 / match_acceleration misses, and goes
+     * back to one when a match is found.  Skipped positions are still hashed,
+     * so this only saves the match lookups; matches starting at them may be
+     * found later or not at all.
+     *
+     * @param targetData data to encoder
+     * @param lookForTargetMatches whether to look for matches within the previously encoded target data, or just
+     *                             within the source (dictionary) data.
+     * @param match_acceleration how quickly the stride grows; 0 probes every position
+     * @param diff writer to write diff to
+     * @param coder CodeTableWriter to write encoded data to
+     * @throws IOException if there's an encoding exception or an exception while writing to diff
+     */
+    public <OUT> void Encode(ByteBuffer targetData, boolean lookForTargetMatches, int match_acceleration,
+                             OUT diff, VCDiffCodeTableWriter<OUT> coder) throws IOException {
+        if (match_acceleration < 0) {
+            throw new IllegalArgumentException("match_acceleration must be non-negative: " + match_acceleration);
+        }
         if (!targetData.hasRemaining()) {
             return;  // Do nothing for empty target
         }
@@ -80,22 +124,81 @@ class VCDiffEngine {
         }
 
         final ByteBuffer local_target_data = targetData.slice();
+        final int target_size = local_target_data.remaining();
+
+        // Targets that are revisions of the dictionary often share a long
+        // prefix and suffix with it.  Those are copied directly, so that only
+        // the bytes in between have to be hashed and matched.
+        int prefix_size = MatchingPrefixSize(dictionary_buffer_, local_target_data, target_size);
+        if (!ShouldGenerateCopyInstructionForMatchOfSize(prefix_size)) {
+            prefix_size = 0;
+        }
+        int suffix_size = MatchingSuffixSize(dictionary_buffer_, local_target_data, target_size - prefix_size);
+        if (!ShouldGenerateCopyInstructionForMatchOfSize(suffix_size)) {
+            suffix_size = 0;
+        }
+
+        if (prefix_size > 0) {
+            coder.copy(0, prefix_size);
+        }
+
+        local_target_data.position(prefix_size);
+        local_target_data.limit(target_size - suffix_size);
+        EncodeMatches(local_target_data, lookForTargetMatches, match_acceleration, coder);
+
+        if (suffix_size > 0) {
+            coder.copy(dictionary_size() - suffix_size, suffix_size);
+        }
+        coder.output(diff);
+
+        targetData.position(targetData.position() + target_size);
+    }
+
+    /**
+     * Finds matches between the dictionary and target data, and adds them to
+     * coder as COPY instructions, with ADD instructions for the bytes between
+     * them.
+     *
+     * @param local_target_data the target window, with the bytes to encode
+     *                          between its position and limit
+     * @param lookForTargetMatches whether to look for matches within the previously encoded target data
+     * @param match_acceleration how quickly probes are skipped after misses; 0 to probe every position
+     * @param coder CodeTableWriter to write encoded data to
+     */
+    protected void EncodeMatches(ByteBuffer local_target_data, boolean lookForTargetMatches, int match_acceleration,
+                                 VCDiffCodeTableWriter<?> coder) {
+        if (local_target_data.remaining() < BlockHash.kBlockSize) {
+            AddUnmatchedRemainder(local_target_data, coder);
+            return;
+        }
 
         RollingHash hasher = new RollingHash(BlockHash.kBlockSize);
         final BlockHash target_hash;
         if (lookForTargetMatches) {
-            target_hash = BlockHash.CreateTargetHash(local_target_data.slice(), dictionary_size());
+            ByteBuffer target_window = local_target_data.duplicate();
+            target_window.clear();
+            target_hash = BlockHash.CreateTargetHash(target_window, dictionary_size());
+            if (local_target_data.position() > 0) {
+                // Blocks before the position were copied from the dictionary,
+                // but later matches can still extend back into them.
+                target_hash.AddAllBlocksThroughIndex(local_target_data.position());
+            }
         } else {
             target_hash = null;
         }
 
-        //final int initial_position = local_target_data.position();
+        final ByteBuffer candidate_pos = local_target_data.duplicate();
 
-        final ByteBuffer candidate_pos = local_target_data.slice();
+        // Consecutive probes without a match, and the number of positions
+        // left to pass over before the next probe
+        int misses = 0;
+        int probes_to_skip = 0;
 
         int hash_value = (int)hasher.Hash(candidate_pos.array(), candidate_pos.arrayOffset() + candidate_pos.position(), candidate_pos.remaining());
         while (true) {
-            if (EncodeCopyForBestMatch(lookForTargetMatches, hash_value, candidate_pos, local_target_data, target_hash, coder)) {
+            if (probes_to_skip == 0 &&
+                    EncodeCopyForBestMatch(lookForTargetMatches, hash_value, candidate_pos, local_target_data, target_hash, coder)) {
+                misses = 0;
                 candidate_pos.position(local_target_data.position());
                 if (candidate_pos.remaining() < BlockHash.kBlockSize) {
                     break;  // Reached end of target data
@@ -112,6 +215,14 @@ class VCDiffEngine {
             } else {
                 // No match, or match is too small to be worth a COPY instruction.
                 // Move to the next position in the target data.
+                if (probes_to_skip > 0) {
+                    probes_to_skip--;
+                } else if (match_acceleration > 0) {
+                    misses++;
+                    probes_to_skip = (int) Math.min((long) misses * match_acceleration >> kAccelerationMissesShift,
+                            kMaxSkippedProbes);
+                }
+
                 if (candidate_pos.remaining() - 1 < BlockHash.kBlockSize) {
                     break;  // Reached end of target data
                 }
@@ -128,9 +239,96 @@ class VCDiffEngine {
         }
 
         AddUnmatchedRemainder(local_target_data, coder);
-        coder.output(diff);
+    }
+
+    /**
+     * Returns the number of bytes at the start of target (from index 0) that
+     * are the same as the bytes at the start of the dictionary, comparing eight
+     * bytes at a time.
+     */
+    protected static int MatchingPrefixSize(ByteBuffer dictionary, ByteBuffer target, int max_bytes) {
+        final int limit = Math.min(dictionary.limit(), max_bytes);
+        int matched = 0;
+        while (matched <= limit - 8 && dictionary.getLong(matched) == target.getLong(matched)) {
+            matched += 8;
+        }
+        while (matched < limit && dictionary.get(matched) == target.get(matched)) {
+            matched++;
+        }
+        return matched;
+    }
 
-        targetData.position(targetData.position() + local_target_data.position());
+    /**
+     * Returns the number of bytes at the end of target (up to its limit) that
+     * are the same as the bytes at the end of the dictionary, comparing eight
+     * bytes at a time.  At most max_bytes bytes are compared.
+     */
+    protected static int MatchingSuffixSize(ByteBuffer dictionary, ByteBuffer target, int max_bytes) {
+        final int limit = Math.min(dictionary.limit(), max_bytes);
+        final int dictionary_end = dictionary.limit();
+        final int target_end = target.limit();
+        int matched = 0;
+        while (matched <= limit - 8 &&
+                dictionary.getLong(dictionary_end - matched - 8) == target.getLong(target_end - matched - 8)) {
+            matched += 8;
+        }
+        while (matched < limit && dictionary.get(dictionary_end - matched - 1) == target.get(target_end - matched - 1)) {
+            matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * The positions DictionaryMatchSizeAt() probes start this many bytes
+     * before the sampled position.  A match of at least kMinimumMatchSize bytes
+     * covering the sampled position always contains kBlockSize consecutive
+     * probed positions, one of which starts a block that's aligned in the
+     * dictionary.
+     */
+    static final int kProbeBytesBefore = kMinimumMatchSize - 1;
+
+    /**
+     * The positions DictionaryMatchSizeAt() probes end this many bytes after
+     * the sampled position.
+     */
+    static final int kProbeBytesAfter = BlockHash.kBlockSize - 1;
+
+    /**
+     * Looks for a match with the dictionary, worth a COPY instruction, that
+     * includes the byte at position, by probing the positions up to
+     * kProbeBytesBefore before it and kProbeBytesAfter after it.  Matches are
+     * extended in both directions as far as the target allows, as they are
+     * when encoding.  Matches within the target itself aren't considered.
+     *
+     * @param targetData target data, from index 0 to its limit
+     * @param position position to look for a match at
+     * @return the size of the match found, or 0 if there isn't one
+     */
+    int DictionaryMatchSizeAt(ByteBuffer targetData, int position) {
+        final int first_probe = Math.max(0, position - kProbeBytesBefore);
+        final int last_probe = Math.min(position + kProbeBytesAfter, targetData.limit() - BlockHash.kBlockSize);
+        if (first_probe > last_probe) {
+            return 0;
+        }
+
+        final ByteBuffer target = targetData.duplicate();
+        target.position(first_probe);
+        RollingHash hasher = new RollingHash(BlockHash.kBlockSize);
+        int hash_value = (int) hasher.Hash(target.array(), target.arrayOffset() + first_probe, targetData.limit() - first_probe);
+        for (int probe = first_probe; ; probe++) {
+            target.position(probe);
+            BlockHash.Match match = new BlockHash.Match();
+            hashed_dictionary_.FindBestMatch(hash_value, target, match);
+            if (ShouldGenerateCopyInstructionForMatchOfSize(match.size()) &&
+                    match.target_offset() <= position && position < match.target_offset() + match.size()) {
+                return match.size();
+            }
+
+            if (probe == last_probe) {
+                return 0;
+            }
+            hash_value = (int) hasher.UpdateHash(hash_value, target.get(probe), target.get(probe + BlockHash.kBlockSize));
+        }
     }
 
     protected static boolean ShouldGenerateCopyInstructionForMatchOfSize(int size) {
@@ -37,14 +37,29 @@ class VCDiffHeaderParser {
     // Will be zero until ParseWindowLengths() has been called.  After
     // ParseWindowLengths() has been called successfully, this contains the
     // parsed length of the delta encoding.
-    protected Integer deltaEncodingLength;
+    protected int deltaEncodingLength;
+
+    // Position in buffer of the first byte after the length of the delta
+    // encoding, or -1 until ParseWindowLengths() has parsed that length.
+    protected int deltaEncodingStart;
+
+    // The window header fields, populated by parseWinIndicatorAndSourceSegment(),
+    // ParseWindowLengths() and parseSectionLengths() when they return true.
+    protected byte winIndicator;
+    protected int sourceSegmentLength;
+    protected long sourceSegmentPosition;
+    protected int targetWindowLength;
+    protected int addAndRunDataLength;
+    protected int instructionsAndSizesLength;
+    protected int addressesLength;
+    protected int checksum;
 
     protected final ByteBuffer buffer;
-    protected ByteBuffer deltaEncodingStart;
 
     public VCDiffHeaderParser(ByteBuffer buffer) {
         this.returnCode = RESULT_SUCCESS;
         this.deltaEncodingLength = 0;
+        this.deltaEncodingStart = -1;
         // TODO: or slice?
         this.buffer = buffer.duplicate();
     }
@@ -52,108 +67,110 @@ class VCDiffHeaderParser {
     // One of these functions should be called for each element of the header.
     // variable_description is a description of the value that we are attempting
     // to parse, and will only be used to create descriptive error messages.
-    // If the function returns true, then the element was parsed successfully
-    // and its value has been placed in *value.  If the function returns false,
-    // then *value is unchanged, and getResult() can be called to return the
-    // reason that the element could not be parsed, which will be either
-    // RESULT_ERROR (an error occurred), or RESULT_END_OF_DATA (the limit data_end
-    // was reached before the end of the element to be parsed.)  Once one of these
-    // functions has returned false, further calls to any of the Parse...
-    // functions will also return false without performing any additional actions.
-    // Typical usage is as follows:
-    //     int32_t segment_length = 0;
-    //     if (!header_parser.parseInt32("segment length", &segment_length)) {
+    // If the element was parsed successfully, its (non-negative) value is
+    // returned.  Otherwise, RESULT_END_OF_DATA is returned if the end of the
+    // buffer was reached before the end of the element to be parsed, and an
+    // IOException is thrown if the element is invalid.  Truncated input is
+    // expected whenever the delta arrives in small chunks, so it is reported
+    // through the return value rather than an exception.  Once one of these
+    // functions has returned RESULT_END_OF_DATA, further calls to any of the
+    // Parse... functions will also return RESULT_END_OF_DATA without performing
+    // any additional actions.  Typical usage is as follows:
+    //     int segment_length = header_parser.parseInt32("segment length");
+    //     if (segment_length == RESULT_END_OF_DATA) {
     //       return header_parser.getResult();
     //     }
     //
     // The following example takes advantage of the fact that calling a Parse...
-    // function after an error or end-of-data condition is legal and does nothing.
+    // function after an end-of-data condition is legal and does nothing.
     // It can thus parse more than one element in a row and check the status
     // afterwards.  If the first call to parseInt32() fails, the second will have
     // no effect:
     //
-    //     int32_t segment_length = 0, segment_position = 0;
-    //     header_parser.parseInt32("segment length", &segment_length));
-    //     header_parser.parseInt32("segment position", &segment_position));
+    //     int segment_length = header_parser.parseInt32("segment length");
+    //     int segment_position = header_parser.parseInt32("segment position");
     //     if (RESULT_SUCCESS != header_parser.getResult()) {
     //       return header_parser.getResult();
     //     }
-    public Byte parseByte() throws IOException {
+
+    // Returns the next byte as an unsigned value (0-255), or RESULT_END_OF_DATA.
+    public int parseByte() throws IOException {
         if (RESULT_SUCCESS != returnCode) {
-            return null;
+            return RESULT_END_OF_DATA;
         } else if (null != exception) {
             throw exception;
         }
         if (!buffer.hasRemaining()) {
             returnCode = RESULT_END_OF_DATA;
-            return null;
+            return RESULT_END_OF_DATA;
         }
-        return buffer.get();
+        return buffer.get() & 0xff;
     }
 
-    public Integer parseInt32(String variable_description) throws IOException {
+    public int parseInt32(String variable_description) throws IOException {
         if (RESULT_SUCCESS != returnCode) {
-            return null;
+            return RESULT_END_OF_DATA;
         } else if (null != exception) {
             throw exception;
         }
 
-        buffer.mark();
-        try {
-            return VarInt.getInt(buffer);
-        } catch (VarInt.VarIntParseException e) {
-            buffer.reset();
+        final int parsedValue = VarInt.parseInt(buffer);
+        if (parsedValue == VarInt.END_OF_BUFFER) {
+            returnCode = RESULT_END_OF_DATA;
+            return RESULT_END_OF_DATA;
+        } else if (parsedValue == VarInt.PARSE_ERROR) {
             exception = new IOException("Expected " + variable_description + "; found invalid variable-length integer");
             throw exception;
-        } catch (VarInt.VarIntEndOfBufferException e) {
-            buffer.reset();
-            returnCode = RESULT_END_OF_DATA;
-            return null;
         }
+        return parsedValue;
     }
 
-    // When an unsigned 32-bit integer is expected, parse a signed 64-bit value
-    // instead, then check the value limit.  The uint32_t type can't be parsed
-    // directly because two negative values are given special meanings (RESULT_ERROR
-    // and RESULT_END_OF_DATA) and could not be expressed in an unsigned format.
-    public Integer parseUInt32(String variable_description) throws IOException {
+    // Parses a non-negative value of up to 63 bits.
+    public long parseInt64(String variable_description) throws IOException {
         if (RESULT_SUCCESS != returnCode) {
-            return null;
+            return RESULT_END_OF_DATA;
         } else if (exception != null) {
             throw exception;
         }
-        try {
-            buffer.mark();
-            long parsedValue = VarInt.getLong(buffer);
-            if ((parsedValue & 0xffffffff00000000L) != 0) {
-                buffer.reset();
-                exception = new IOException(String.format(
-                        "Value of {} ({}) is too large for unsigned 32-bit integer",
-                        variable_description, parsedValue
-                ));
-                throw exception;
-            } else {
-                return (int) parsedValue;
-            }
-        } catch (VarInt.VarIntEndOfBufferException e) {
+
+        final long parsedValue = VarInt.parseLong(buffer);
+        if (parsedValue == VarInt.END_OF_BUFFER) {
             returnCode = RESULT_END_OF_DATA;
-            buffer.reset();
-        } catch (VarInt.VarIntParseException e) {
-            buffer.reset();
+            return RESULT_END_OF_DATA;
+        } else if (parsedValue == VarInt.PARSE_ERROR) {
             exception = new IOException(String.format(
-                    "Expected {}; found invalid variable-length integer", variable_description
+                    "Expected %s; found invalid variable-length integer", variable_description
             ));
             throw exception;
         }
+        return parsedValue;
+    }
 
-        return null;
+    // When an unsigned 32-bit integer is expected, parse a signed 64-bit value
+    // instead, then check the value limit.  The result is returned as a long
+    // because RESULT_END_OF_DATA could not be told apart from a uint32 value
+    // stored in an int.
+    public long parseUInt32(String variable_description) throws IOException {
+        final int start = buffer.position();
+        final long parsedValue = parseInt64(variable_description);
+        if (parsedValue == RESULT_END_OF_DATA) {
+            return RESULT_END_OF_DATA;
+        } else if ((parsedValue & 0xffffffff00000000L) != 0) {
+            buffer.position(start);
+            exception = new IOException(String.format(
+                    "Value of %s (%d) is too large for unsigned 32-bit integer",
+                    variable_description, parsedValue
+            ));
+            throw exception;
+        }
+        return parsedValue;
     }
 
-    public Integer parseChecksum(String variable_description) throws IOException {
+    public long parseChecksum(String variable_description) throws IOException {
         return parseUInt32(variable_description);
     }
 
-    public Integer parseSize(String variable_description) throws IOException {
+    public int parseSize(String variable_description) throws IOException {
         return parseInt32(variable_description);
     }
 
@@ -169,34 +186,31 @@ class VCDiffHeaderParser {
     // could not be validated.  This will be either RESULT_ERROR (an error
     // occurred and was logged), or RESULT_END_OF_DATA (the limit data_end was
     // reached before the end of the values to be parsed.)  If return value is
-    // true, then *win_indicator, *source_segment_length, and
-    // *source_segment_position are populated with the parsed values.  Otherwise,
-    // the values of these output arguments are undefined.
+    // true, then winIndicator, sourceSegmentLength, and sourceSegmentPosition
+    // are populated with the parsed values.  Otherwise, the values of these
+    // fields are undefined.
     //
     // dictionarySize: The size of the dictionary (source) file.  Used to
     //     validate the limits of source_segment_length and
     //     source_segment_position if the source segment is taken from the
     //     dictionary (i.e., if the parsed *win_indicator equals VCD_SOURCE.)
     // decoded_target_size: The size of the target data that has been decoded
-    //     so far, including all target windows.  Used to validate the limits of
+    //     so far, including all target windows, even those already flushed.  Used to validate the limits of
     //     source_segment_length and source_segment_position if the source segment
     //     is taken from the target (i.e., if the parsed *win_indicator equals
     //     VCD_TARGET.)
     // allowVcdTarget: If this argument is false, and the parsed *win_indicator
     //     is VCD_TARGET, then an error is produced; if true, VCD_TARGET is
     //     allowed.
-    // win_indicator (output): Points to a single unsigned char (not an array)
-    //     that will receive the parsed value of Win_Indicator.
-    // source_segment_length (output): The parsed length of the source segment.
-    // source_segment_position (output): The parsed zero-based index in the
-    //     source/target file from which the source segment is to be taken.
-    public DeltaWindowHeader parseWinIndicatorAndSourceSegment(
-            int dictionary_size, int decoded_target_size, boolean allow_vcd_target)
+    public boolean parseWinIndicatorAndSourceSegment(
+            long dictionary_size, long decoded_target_size, boolean allow_vcd_target)
             throws IOException {
-        Byte win_indicator = this.parseByte();
-        if (win_indicator == null) {
-            return null;
+        final int parsedWinIndicator = this.parseByte();
+        if (parsedWinIndicator == RESULT_END_OF_DATA) {
+            return false;
         }
+        final byte win_indicator = (byte) parsedWinIndicator;
+        winIndicator = win_indicator;
 
         // VCD_CHECKSUM is a Google open-vcdiff extension
         int unrecognized_flags = win_indicator & 0xff & ~(VCD_SOURCE | VCD_TARGET | VCD_CHECKSUM);
@@ -209,7 +223,6 @@ class VCDiffHeaderParser {
             case VCD_SOURCE:
                 return parseSourceSegmentLengthAndPosition(
                         dictionary_size,
-                        win_indicator,
                         "end of dictionary",
                         "dictionary"
                 );
@@ -220,7 +233,6 @@ class VCDiffHeaderParser {
                 }
                 return parseSourceSegmentLengthAndPosition(
                         decoded_target_size,
-                        win_indicator,
                         "current target position",
                         "target file"
                 );
@@ -228,7 +240,9 @@ class VCDiffHeaderParser {
                 exception = new IOException("Win_Indicator must not have both VCD_SOURCE and VCD_TARGET set");
                 throw exception;
             default:
-                return new DeltaWindowHeader(win_indicator, 0, 0);
+                sourceSegmentLength = 0;
+                sourceSegmentPosition = 0;
+                return true;
         }
     }
 
@@ -237,31 +251,38 @@ class VCDiffHeaderParser {
     //     Length of the delta encoding             - integer (VarintBE format)
     //     Size of the target window                - integer (VarintBE format)
     //
-    // Return conditions and values are the same as for
-    // parseWinIndicatorAndSourceSegment(), above.
-    public Integer ParseWindowLengths() throws IOException {
-        if (deltaEncodingStart != null) {
+    // Return conditions are the same as for parseWinIndicatorAndSourceSegment(),
+    // above.  On success, deltaEncodingLength and targetWindowLength are
+    // populated with the parsed values.
+    public boolean ParseWindowLengths() throws IOException {
+        if (deltaEncodingStart >= 0) {
             exception = new IOException("Internal error: VCDiffHeaderParser.ParseWindowLengths was called twice for the same delta window");
             throw exception;
         }
 
-        deltaEncodingLength = parseSize("length of the delta encoding");
-        if (deltaEncodingLength == null) {
-            return null;
+        final int parsedDeltaEncodingLength = parseSize("length of the delta encoding");
+        if (parsedDeltaEncodingLength == RESULT_END_OF_DATA) {
+            return false;
         }
+        deltaEncodingLength = parsedDeltaEncodingLength;
+        deltaEncodingStart = buffer.position();
 
-        deltaEncodingStart = buffer.duplicate();
-        return parseSize("size of the target window");
+        final int parsedTargetWindowLength = parseSize("size of the target window");
+        if (parsedTargetWindowLength == RESULT_END_OF_DATA) {
+            return false;
+        }
+        targetWindowLength = parsedTargetWindowLength;
+        return true;
     }
 
     // May only be called after parseWindowLengths() has returned RESULT_SUCCESS.
     // Returns a pointer to the end of the delta window (which might not point to
     // a valid memory location if there is insufficient input data.)
-    public Integer endOfDeltaWindow() {
-        if (deltaEncodingStart == null) {
+    public int endOfDeltaWindow() {
+        if (deltaEncodingStart < 0) {
             throw new IllegalStateException("Internal error: VCDiffHeaderParser.GetDeltaWindowEnd was called before ParseWindowLengths");
         }
-        return deltaEncodingStart.position() + deltaEncodingLength;
+        return deltaEncodingStart + deltaEncodingLength;
     }
 
     // Parses the following element of the delta window header:
@@ -273,8 +294,8 @@ class VCDiffHeaderParser {
     // value of that field.  It may return RESULT_SUCCESS, RESULT_ERROR, or
     // RESULT_END_OF_DATA as with the other Parse...() functions.
     public boolean parseDeltaIndicator() throws IOException {
-        Byte deltaIndicator = parseByte();
-        if (deltaIndicator == null) {
+        final int deltaIndicator = parseByte();
+        if (deltaIndicator == RESULT_END_OF_DATA) {
             return false;
         }
         if ((deltaIndicator & (VCD_DATACOMP | VCD_INSTCOMP | VCD_ADDRCOMP)) != 0) {
@@ -294,28 +315,30 @@ class VCDiffHeaderParser {
     //
     //     Adler32 checksum            - unsigned 32-bit integer (VarintBE format)
     //
-    // Return conditions and values are the same as for
-    // parseWinIndicatorAndSourceSegment(), above.
+    // Return conditions are the same as for parseWinIndicatorAndSourceSegment(),
+    // above.  On success, addAndRunDataLength, instructionsAndSizesLength,
+    // addressesLength and checksum (zero if has_checksum is false) are populated
+    // with the parsed values.
     //
-    public SectionLengths parseSectionLengths(boolean has_checksum) throws IOException {
-        Integer add_and_run_data_length = parseSize("length of data for ADDs and RUNs");
-        Integer instructions_and_sizes_length = parseSize("length of instructions section");
-        Integer addresses_length = parseSize("length of addresses for COPYs");
-        Integer checksum = null;
+    public boolean parseSectionLengths(boolean has_checksum) throws IOException {
+        final int add_and_run_data_length = parseSize("length of data for ADDs and RUNs");
+        final int instructions_and_sizes_length = parseSize("length of instructions section");
+        final int addresses_length = parseSize("length of addresses for COPYs");
+        long parsedChecksum = 0;
         if (has_checksum) {
-            checksum = parseChecksum("Adler32 checksum value");
+            parsedChecksum = parseChecksum("Adler32 checksum value");
         }
         if (RESULT_SUCCESS != returnCode) {
-            return null;
+            return false;
         } else if (exception != null) {
             throw exception;
         }
-        if (deltaEncodingStart == null) {
+        if (deltaEncodingStart < 0) {
             exception = new IOException("Internal error: VCDiffHeaderParser.parseSectionLengths was called before ParseWindowLengths");
             throw exception;
         }
 
-        long delta_encoding_header_length = buffer.position() - deltaEncodingStart.position();
+        long delta_encoding_header_length = buffer.position() - deltaEncodingStart;
         long expected_delta_encoding_length = delta_encoding_header_length + add_and_run_data_length +
                 instructions_and_sizes_length + addresses_length;
 
@@ -324,7 +347,11 @@ class VCDiffHeaderParser {
             throw exception;
         }
 
-        return new SectionLengths(add_and_run_data_length, instructions_and_sizes_length, addresses_length, checksum != null ? checksum : 0);
+        addAndRunDataLength = add_and_run_data_length;
+        instructionsAndSizesLength = instructions_and_sizes_length;
+        addressesLength = addresses_length;
+        checksum = (int) parsedChecksum;
+        return true;
     }
 
     // If one of the Parse... functions returned false, this function
@@ -353,17 +380,16 @@ class VCDiffHeaderParser {
     //     source or target file, used in error messages.
     // from_name: A NULL-terminated string naming the source or target file,
     //     also used in error messages.
-    // source_segment_length (output): The parsed length of the source segment.
-    // source_segment_position (output): The parsed zero-based index in the
-    //     source/target file from which the source segment is to be taken.
+    // On success, sourceSegmentLength and sourceSegmentPosition are populated
+    // with the parsed values.
     //
-    private DeltaWindowHeader parseSourceSegmentLengthAndPosition(long from_size, byte win_indicator,
-                                                                  String from_boundary_name,
-                                                                  String from_name) throws IOException {
+    private boolean parseSourceSegmentLengthAndPosition(long from_size,
+                                                        String from_boundary_name,
+                                                        String from_name) throws IOException {
         // Verify the length and position values
-        Integer source_segment_length = parseSize("source segment length");
-        if (source_segment_length == null) {
-            return null;
+        final int source_segment_length = parseSize("source segment length");
+        if (source_segment_length == RESULT_END_OF_DATA) {
+            return false;
         }
         // Guard against overflow by checking source length first
         if (source_segment_length > from_size) {
@@ -374,9 +400,10 @@ class VCDiffHeaderParser {
             throw exception;
         }
 
-        Integer source_segment_position = parseSize("source segment position");
-        if (source_segment_position == null) {
-            return null;
+        // Positions may be past 2GB in dictionaries read from a file
+        final long source_segment_position = parseInt64("source segment position");
+        if (source_segment_position == RESULT_END_OF_DATA) {
+            return false;
         }
         if ((source_segment_position >= from_size) && (source_segment_length > 0)) {
             exception = new IOException(String.format(
@@ -385,40 +412,16 @@ class VCDiffHeaderParser {
             ));
             throw exception;
         }
-        int source_segment_end = source_segment_position + source_segment_length;
+        long source_segment_end = source_segment_position + source_segment_length;
         if (source_segment_end > from_size) {
             exception = new IOException(String.format(
-                    "Source segment end position ({}) is past {} ({})",
+                    "Source segment end position (%d) is past %s (%d)",
                     source_segment_end, from_boundary_name, from_size
             ));
             throw exception;
         }
-        return new DeltaWindowHeader(win_indicator, source_segment_length, source_segment_position);
-    }
-
-    public static final class DeltaWindowHeader {
-        public final byte win_indicator;
-        public final int source_segment_length;
-        public final int source_segment_position;
-
-        public DeltaWindowHeader(byte win_indicator, int source_segment_length, int source_segment_position) {
-            this.win_indicator = win_indicator;
-            this.source_segment_length = source_segment_length;
-            this.source_segment_position = source_segment_position;
-        }
-    }
-
-    public static final class SectionLengths {
-        public final int add_and_run_data_length;
-        public final int instructions_and_sizes_length;
-        public final int addresses_length;
-        public final int checksum;
-
-        public SectionLengths(int add_and_run_data_length, int instructions_and_sizes_length, int addresses_length, int checksum) {
-            this.add_and_run_data_length = add_and_run_data_length;
-            this.instructions_and_sizes_length = instructions_and_sizes_length;
-            this.addresses_length = addresses_length;
-            this.checksum = checksum;
-        }
+        sourceSegmentLength = source_segment_length;
+        sourceSegmentPosition = source_segment_position;
+        return true;
     }
 }
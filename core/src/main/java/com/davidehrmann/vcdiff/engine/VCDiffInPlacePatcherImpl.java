@@ -0,0 +1,397 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffInPlacePatcher;
+import com.davidehrmann.vcdiff.util.Objects;
+import com.davidehrmann.vcdiff.util.ZeroInitializedAdler32;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Patches in place by reading the delta into the pieces of its target, as
+ * {@link VCDiffComposerImpl} does, so every range of the target is a copy of
+ * the file, added data, or a run.  A copy that reads a range another copy
+ * writes has to go first, which makes the copies a graph; they're written in
+ * a topological order of it.  When every copy left is waiting on another,
+ * the waits form a cycle, and the shortest copy in that cycle is read into
+ * scratch memory and written later, with the added data and runs, after all
+ * the copies.  This is the approach of Burns and Long's in-place
+ * reconstruction.
+ *
+ * A copy that overlaps its own source is copied front to back or back to
+ * front, as memmove does.
+ *
+ * This object is thread-safe.
+ */
+public class VCDiffInPlacePatcherImpl implements VCDiffInPlacePatcher {
+
+    private static final int kChunkSize = 64 * 1024;
+
+    // States of copies while they're ordered
+    private static final byte PENDING = 0;
+    private static final byte QUEUED = 1;
+    private static final byte ORDERED = 2;
+    private static final byte CONVERTED = 3;
+
+    private final long maximumTargetFileSize;
+    private final int maximumScratchSize;
+
+    /**
+     * @param maximumTargetFileSize largest target allowed, or -1 for no limit
+     * @param maximumScratchSize most bytes of copies held in memory to break
+     *                           cycles
+     */
+    public VCDiffInPlacePatcherImpl(long maximumTargetFileSize, int maximumScratchSize) {
+        if (maximumScratchSize < 0) {
+            throw new IllegalArgumentException("maximumScratchSize can't be negative");
+        }
+        this.maximumTargetFileSize = maximumTargetFileSize;
+        this.maximumScratchSize = maximumScratchSize;
+    }
+
+    @Override
+    public void patch(FileChannel file, ByteBuffer delta) throws IOException {
+        Objects.requireNotNull(file, "file was null");
+        Objects.requireNotNull(delta, "delta was null");
+
+        final VCDiffComposerImpl.Pieces target = VCDiffComposerImpl.parse(delta.slice(), null, false);
+        final long sourceSize = file.size();
+        final long targetSize = target.size();
+        if (maximumTargetFileSize >= 0 && targetSize > maximumTargetFileSize) {
+            throw new IOException(String.format(
+                    "Length of target (%d bytes) exceeds limit of %d bytes", targetSize, maximumTargetFileSize
+            ));
+        }
+
+        final Plan plan = new Plan(file, target, sourceSize);
+        plan.order();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(kChunkSize);
+        plan.writeCopies(buffer);
+        plan.writeLiterals(buffer);
+        if (targetSize < sourceSize) {
+            file.truncate(targetSize);
+        }
+        verifyChecksums(file, target, buffer);
+    }
+
+    // Checks the windows that have checksums against what was written
+    private static void verifyChecksums(FileChannel file, VCDiffComposerImpl.Pieces target, ByteBuffer buffer) throws IOException {
+        for (int window = 0; window < target.windows; window++) {
+            if (target.windowChecksums[window] < 0) {
+                continue;
+            }
+            long position = target.starts[target.windowStarts[window]];
+            final long end = window + 1 < target.windows ? target.starts[target.windowStarts[window + 1]] : target.size();
+
+            final Adler32 adler32 = new ZeroInitializedAdler32();
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                readFully(file, buffer, position);
+                adler32.update(buffer.array(), 0, buffer.limit());
+                position += buffer.limit();
+            }
+            if ((int) adler32.getValue() != (int) target.windowChecksums[window]) {
+                throw new IOException(String.format(
+                        "Target data does not match checksum in window %d; this could mean that the wrong dictionary was patched", window
+                ));
+            }
+        }
+    }
+
+    /**
+     * The copies of a target that move data within the file, and the order
+     * to write them in.
+     */
+    private final class Plan {
+        private final FileChannel file;
+        private final VCDiffComposerImpl.Pieces target;
+
+        // The pieces that are copies, in target order, so the ranges they
+        // write are in order
+        private final int[] pieces;
+
+        // Copies that have to go after each copy, because they write what it
+        // reads, and the copies each one has to go after
+        private int[] outStarts;
+        private int[] outEdges;
+        private int[] inStarts;
+        private int[] inEdges;
+
+        private final byte[] states;
+        private final int[] order;
+        private int ordered = 0;
+
+        // Copies read into memory, and where each one is in scratch
+        private byte[] scratch = new byte[0];
+        private int scratchLength = 0;
+        private final int[] scratchOffsets;
+
+        Plan(FileChannel file, VCDiffComposerImpl.Pieces target, long sourceSize) throws IOException {
+            this.file = file;
+            this.target = target;
+
+            int copies = 0;
+            int[] pieces = new int[16];
+            for (int piece = 0; piece < target.count; piece++) {
+                if (target.kinds[piece] != VCDiffComposerImpl.Pieces.SOURCE) {
+                    continue;
+                }
+                if (target.from[piece] + target.length(piece) > sourceSize) {
+                    throw new IOException(String.format(
+                            "Delta copies from past the end of the file (%d bytes)", sourceSize
+                    ));
+                }
+                // Copies that don't move anything can be left out
+                if (target.from[piece] != target.starts[piece]) {
+                    if (copies == pieces.length) {
+                        pieces = Arrays.copyOf(pieces, 2 * copies);
+                    }
+                    pieces[copies++] = piece;
+                }
+            }
+            this.pieces = Arrays.copyOf(pieces, copies);
+            this.states = new byte[copies];
+            this.order = new int[copies];
+            this.scratchOffsets = new int[copies];
+            buildEdges();
+        }
+
+        private long start(int copy) {
+            return target.starts[pieces[copy]];
+        }
+
+        private long end(int copy) {
+            return target.starts[pieces[copy] + 1];
+        }
+
+        private long from(int copy) {
+            return target.from[pieces[copy]];
+        }
+
+        private int length(int copy) {
+            return (int) target.length(pieces[copy]);
+        }
+
+        // The first copy that writes past position
+        private int firstWriterAfter(long position) {
+            int low = 0;
+            int high = pieces.length;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (end(middle) <= position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private void buildEdges() throws IOException {
+            final int copies = pieces.length;
+            outStarts = new int[copies + 1];
+            inStarts = new int[copies + 1];
+
+            // Counts the edges, then fills them in
+            long edges = 0;
+            for (int copy = 0; copy < copies; copy++) {
+                final long readEnd = from(copy) + length(copy);
+                for (int writer = firstWriterAfter(from(copy)); writer < copies && start(writer) < readEnd; writer++) {
+                    if (writer != copy) {
+                        outStarts[copy + 1]++;
+                        inStarts[writer + 1]++;
+                        edges++;
+                    }
+                }
+            }
+            if (edges > Integer.MAX_VALUE - 8) {
+                throw new IOException("Delta has too many overlapping copies to patch in place");
+            }
+            for (int copy = 0; copy < copies; copy++) {
+                outStarts[copy + 1] += outStarts[copy];
+                inStarts[copy + 1] += inStarts[copy];
+            }
+
+            outEdges = new int[(int) edges];
+            inEdges = new int[(int) edges];
+            final int[] outFilled = Arrays.copyOf(outStarts, copies);
+            final int[] inFilled = Arrays.copyOf(inStarts, copies);
+            for (int copy = 0; copy < copies; copy++) {
+                final long readEnd = from(copy) + length(copy);
+                for (int writer = firstWriterAfter(from(copy)); writer < copies && start(writer) < readEnd; writer++) {
+                    if (writer != copy) {
+                        outEdges[outFilled[copy]++] = writer;
+                        inEdges[inFilled[writer]++] = copy;
+                    }
+                }
+            }
+        }
+
+        // Orders the copies, converting one copy of each cycle into scratch
+        // data until there are no cycles left
+        void order() throws IOException {
+            final int copies = pieces.length;
+            final int[] waiting = new int[copies];
+            for (int copy = 0; copy < copies; copy++) {
+                waiting[copy] = inStarts[copy + 1] - inStarts[copy];
+            }
+
+            // The queue of copies that can go next is the end of order
+            int queued = 0;
+            for (int copy = 0; copy < copies; copy++) {
+                if (waiting[copy] == 0) {
+                    states[copy] = QUEUED;
+                    order[queued++] = copy;
+                }
+            }
+
+            final int[] marks = new int[copies];
+            final int[] next = new int[copies];
+            int mark = 0;
+            int done = 0;
+            int scan = 0;
+            while (done < copies) {
+                if (ordered < queued) {
+                    final int copy = order[ordered++];
+                    states[copy] = ORDERED;
+                    done++;
+                    queued = release(copy, waiting, queued);
+                    continue;
+                }
+
+                // Every copy left waits on another one left, so following
+                // what each waits on must come back around
+                while (states[scan] != PENDING) {
+                    scan++;
+                }
+                mark++;
+                int copy = scan;
+                while (marks[copy] != mark) {
+                    marks[copy] = mark;
+                    next[copy] = pendingPredecessor(copy);
+                    copy = next[copy];
+                }
+                int shortest = copy;
+                for (int other = next[copy]; other != copy; other = next[other]) {
+                    if (length(other) < length(shortest)) {
+                        shortest = other;
+                    }
+                }
+
+                convert(shortest);
+                done++;
+                queued = release(shortest, waiting, queued);
+            }
+        }
+
+        // Lets the copies that were waiting on copy go, once they're not
+        // waiting on anything else
+        private int release(int copy, int[] waiting, int queued) {
+            for (int edge = outStarts[copy]; edge < outStarts[copy + 1]; edge++) {
+                final int writer = outEdges[edge];
+                if (states[writer] == PENDING && --waiting[writer] == 0) {
+                    states[writer] = QUEUED;
+                    order[queued++] = writer;
+                }
+            }
+            return queued;
+        }
+
+        private int pendingPredecessor(int copy) {
+            for (int edge = inStarts[copy]; edge < inStarts[copy + 1]; edge++) {
+                if (states[inEdges[edge]] == PENDING) {
+                    return inEdges[edge];
+                }
+            }
+            throw new IllegalStateException("Copy is waiting on nothing");
+        }
+
+        // Reads a copy into scratch, before anything has been written
+        private void convert(int copy) throws IOException {
+            final int length = length(copy);
+            if (length > maximumScratchSize - scratchLength) {
+                throw new IOException(String.format(
+                        "Patching in place needs more than %d bytes of scratch space to break cycles of copies", maximumScratchSize
+                ));
+            }
+            if (scratchLength + length > scratch.length) {
+                scratch = Arrays.copyOf(scratch, (int) Math.min(maximumScratchSize, Math.max(2L * scratch.length, scratchLength + length)));
+            }
+            readFully(file, ByteBuffer.wrap(scratch, scratchLength, length), from(copy));
+            states[copy] = CONVERTED;
+            scratchOffsets[copy] = scratchLength;
+            scratchLength += length;
+        }
+
+        void writeCopies(ByteBuffer buffer) throws IOException {
+            for (int i = 0; i < ordered; i++) {
+                move(order[i], buffer);
+            }
+        }
+
+        // Copies within the file a chunk at a time, starting from the end
+        // that the copy's own write can't reach before it's read
+        private void move(int copy, ByteBuffer buffer) throws IOException {
+            final long from = from(copy);
+            final long to = start(copy);
+            final int length = length(copy);
+            for (int done = 0; done < length; ) {
+                final int chunk = Math.min(buffer.capacity(), length - done);
+                final long offset = from > to ? done : length - done - chunk;
+                buffer.clear();
+                buffer.limit(chunk);
+                readFully(file, buffer, from + offset);
+                buffer.flip();
+                writeFully(file, buffer, to + offset);
+                done += chunk;
+            }
+        }
+
+        // Writes the added data, runs, and copies read into scratch
+        void writeLiterals(ByteBuffer buffer) throws IOException {
+            for (int piece = 0; piece < target.count; piece++) {
+                final long start = target.starts[piece];
+                final long length = target.length(piece);
+                if (target.kinds[piece] == VCDiffComposerImpl.Pieces.ADD) {
+                    writeFully(file, ByteBuffer.wrap(target.data, (int) target.from[piece], (int) length), start);
+                } else if (target.kinds[piece] == VCDiffComposerImpl.Pieces.RUN) {
+                    Arrays.fill(buffer.array(), 0, (int) Math.min(buffer.capacity(), length), (byte) target.from[piece]);
+                    for (long done = 0; done < length; ) {
+                        final int chunk = (int) Math.min(buffer.capacity(), length - done);
+                        buffer.clear();
+                        buffer.limit(chunk);
+                        writeFully(file, buffer, start + done);
+                        done += chunk;
+                    }
+                }
+            }
+            for (int copy = 0; copy < pieces.length; copy++) {
+                if (states[copy] == CONVERTED) {
+                    writeFully(file, ByteBuffer.wrap(scratch, scratchOffsets[copy], length(copy)), start(copy));
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended while patching it");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+    }
+}
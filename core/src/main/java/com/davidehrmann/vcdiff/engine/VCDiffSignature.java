@@ -0,0 +1,260 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A summary of a dictionary that an encoder can encode against in place of
+ * the dictionary itself, as in rsync.  The dictionary is split into blocks
+ * of a fixed size, and each block is summarized by a {@link RollingHash} and
+ * the first 8 bytes of its MD5 digest; a last block shorter than the rest
+ * only has the digest.  A signature is about 12 / blockSize of the size of
+ * its dictionary.
+ *
+ * Whoever holds the dictionary computes its signature and sends it to whoever
+ * holds the target, who encodes with
+ * {@link com.davidehrmann.vcdiff.VCDiffEncoderBuilder#withSignature(VCDiffSignature)}.
+ * The delta only copies whole blocks from the dictionary, so it's usually
+ * bigger than one encoded against the dictionary, but the dictionary never
+ * has to be sent.  Two blocks with the same hashes are taken to be the same,
+ * so deltas encoded against a signature should have checksums: a decoder
+ * then rejects a delta that relied on a collision.
+ *
+ * Signatures are immutable and thread-safe.
+ */
+public final class VCDiffSignature {
+
+    /**
+     * The default block size.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    /**
+     * The smallest block size.  Smaller blocks would save little over adding
+     * their bytes, and make the signature bigger.
+     */
+    public static final int MIN_BLOCK_SIZE = 16;
+
+    // Serialized form: magic, block size, dictionary size, then each full
+    // block's rolling hash and strong hash, and the last block's strong hash
+    // if it's shorter than the rest
+    private static final int kMagic = 0x56534731;  // "VSG1"
+
+    static final int kStrongHashSize = 8;
+
+    private final int blockSize;
+    private final int dictionarySize;
+
+    // Rolling hashes of the full blocks
+    private final int[] weakHashes;
+
+    // Strong hashes of every block, kStrongHashSize bytes each
+    private final byte[] strongHashes;
+
+    private VCDiffSignature(int blockSize, int dictionarySize, int[] weakHashes, byte[] strongHashes) {
+        this.blockSize = blockSize;
+        this.dictionarySize = dictionarySize;
+        this.weakHashes = weakHashes;
+        this.strongHashes = strongHashes;
+    }
+
+    /**
+     * Computes the signature of a dictionary.
+     *
+     * @param dictionary the dictionary
+     * @param blockSize size of each block
+     * @return the signature
+     */
+    public static VCDiffSignature compute(byte[] dictionary, int blockSize) {
+        try {
+            return compute(new ByteArrayInputStream(Objects.requireNotNull(dictionary, "dictionary was null")), blockSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the signature of a dictionary read from a stream, a block at a
+     * time, so the dictionary needn't fit in memory.
+     *
+     * @param dictionary stream to read the dictionary from, to its end
+     * @param blockSize size of each block
+     * @return the signature
+     * @throws IOException if dictionary can't be read, or is longer than
+     * Integer.MAX_VALUE bytes
+     */
+    public static VCDiffSignature compute(InputStream dictionary, int blockSize) throws IOException {
+        Objects.requireNotNull(dictionary, "dictionary was null");
+        if (blockSize < MIN_BLOCK_SIZE) {
+            throw new IllegalArgumentException(String.format("blockSize must be at least %d: %d", MIN_BLOCK_SIZE, blockSize));
+        }
+
+        final RollingHash hasher = new RollingHash(blockSize);
+        final MessageDigest digest = newDigest();
+        final byte[] block = new byte[blockSize];
+        int[] weakHashes = new int[16];
+        byte[] strongHashes = new byte[16 * kStrongHashSize];
+        int blocks = 0;
+        long dictionarySize = 0;
+        while (true) {
+            int read = 0;
+            for (int n; read < blockSize && (n = dictionary.read(block, read, blockSize - read)) >= 0; ) {
+                read += n;
+            }
+            if (read == 0) {
+                break;
+            }
+            dictionarySize += read;
+            if (dictionarySize > Integer.MAX_VALUE) {
+                throw new IOException("Dictionary is too large for a signature");
+            }
+
+            if (blocks == weakHashes.length) {
+                weakHashes = Arrays.copyOf(weakHashes, 2 * blocks);
+                strongHashes = Arrays.copyOf(strongHashes, 2 * blocks * kStrongHashSize);
+            }
+            if (read == blockSize) {
+                weakHashes[blocks] = (int) hasher.Hash(block, 0, blockSize);
+            }
+            strongHash(digest, block, 0, read, strongHashes, blocks * kStrongHashSize);
+            blocks++;
+            if (read < blockSize) {
+                break;
+            }
+        }
+
+        final int fullBlocks = (int) (dictionarySize / blockSize);
+        return new VCDiffSignature(blockSize, (int) dictionarySize,
+                Arrays.copyOf(weakHashes, fullBlocks), Arrays.copyOf(strongHashes, blocks * kStrongHashSize));
+    }
+
+    /**
+     * Reads a signature written by {@link #toByteArray()}.
+     *
+     * @param serialized the serialized signature
+     * @return the signature
+     * @throws IllegalArgumentException if serialized isn't a valid signature
+     */
+    public static VCDiffSignature fromByteArray(byte[] serialized) {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(serialized);
+            if (buffer.getInt() != kMagic) {
+                throw new IllegalArgumentException("Not a serialized signature");
+            }
+            final int blockSize = buffer.getInt();
+            final int dictionarySize = buffer.getInt();
+            if (blockSize < MIN_BLOCK_SIZE || dictionarySize < 0) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid signature: block size %d, dictionary size %d", blockSize, dictionarySize
+                ));
+            }
+
+            final int fullBlocks = dictionarySize / blockSize;
+            final int blocks = fullBlocks + (dictionarySize % blockSize != 0 ? 1 : 0);
+            if (buffer.remaining() != 4L * fullBlocks + (long) kStrongHashSize * blocks) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid signature: %d blocks in %d bytes", blocks, buffer.remaining()
+                ));
+            }
+
+            final int[] weakHashes = new int[fullBlocks];
+            final byte[] strongHashes = new byte[blocks * kStrongHashSize];
+            for (int i = 0; i < blocks; i++) {
+                if (i < fullBlocks) {
+                    weakHashes[i] = buffer.getInt();
+                }
+                buffer.get(strongHashes, i * kStrongHashSize, kStrongHashSize);
+            }
+            return new VCDiffSignature(blockSize, dictionarySize, weakHashes, strongHashes);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated signature", e);
+        }
+    }
+
+    /**
+     * @return this signature in a form {@link #fromByteArray(byte[])} reads
+     */
+    public byte[] toByteArray() {
+        final ByteBuffer buffer = ByteBuffer.allocate(12 + 4 * weakHashes.length + strongHashes.length);
+        buffer.putInt(kMagic);
+        buffer.putInt(blockSize);
+        buffer.putInt(dictionarySize);
+        for (int i = 0; i < blockCount(); i++) {
+            if (i < weakHashes.length) {
+                buffer.putInt(weakHashes[i]);
+            }
+            buffer.put(strongHashes, i * kStrongHashSize, kStrongHashSize);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the size of each block, except perhaps the last
+     */
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the size of the dictionary
+     */
+    public int dictionarySize() {
+        return dictionarySize;
+    }
+
+    /**
+     * @return the number of blocks, including a last one shorter than the rest
+     */
+    public int blockCount() {
+        return strongHashes.length / kStrongHashSize;
+    }
+
+    /**
+     * @return the number of blocks blockSize long
+     */
+    int fullBlockCount() {
+        return weakHashes.length;
+    }
+
+    int weakHash(int block) {
+        return weakHashes[block];
+    }
+
+    /**
+     * @return whether a block's strong hash is the one in hash at offset
+     */
+    boolean strongHashEquals(int block, byte[] hash, int offset) {
+        for (int i = 0; i < kStrongHashSize; i++) {
+            if (strongHashes[block * kStrongHashSize + i] != hash[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the strong hash of data[offset, offset + length) to
+     * hash[hashOffset, hashOffset + kStrongHashSize).
+     */
+    static void strongHash(MessageDigest digest, byte[] data, int offset, int length, byte[] hash, int hashOffset) {
+        digest.update(data, offset, length);
+        System.arraycopy(digest.digest(), 0, hash, hashOffset, kStrongHashSize);
+    }
+}
@@ -0,0 +1,200 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffCodeTableWriter;
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+import com.davidehrmann.vcdiff.util.VarInt;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author David Ehrmann
+ * A code table writer that only counts the bytes {@link VCDiffCodeTableWriterImpl}
+ * would write for the same calls, without keeping the data, instructions or
+ * addresses.  It chooses opcodes and address modes the same way, so the count
+ * is exact for the default code table with the source segment covering the
+ * whole dictionary.  Nothing is written to the output; pass null.
+ *
+ * The method calls must follow the same pattern as for
+ * {@link VCDiffCodeTableWriterImpl}.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffSizeCountingCodeTableWriter implements VCDiffCodeTableWriter<Void> {
+
+    // Header1-4 and Hdr_Indicator
+    private static final int FILE_HEADER_SIZE = 5;
+
+    private final boolean interleaved;
+
+    private final VCDiffAddressCache addressCache = new VCDiffAddressCacheImpl();
+
+    private final VCDiffInstructionMap instructionMap = VCDiffInstructionMap.DEFAULT_INSTRUCTION_MAP;
+
+    private final AtomicInteger encodedAddress = new AtomicInteger(0);
+
+    private int dictionarySize;
+
+    // Sizes of the current window's three sections.  With interleaving, the
+    // data and addresses are counted in instructionsAndSizesLength.
+    private int dataForAddAndRunLength;
+    private int instructionsAndSizesLength;
+    private int addressesForCopyLength;
+
+    private int targetLength;
+
+    // The last single-instruction opcode, which the next instruction may be
+    // combined with, or -1 if there isn't one.  See
+    // VCDiffCodeTableWriterImpl.encodeInstruction().
+    private short lastOpcode;
+
+    private boolean addChecksum;
+    private long checksum;
+
+    // Bytes counted by writeHeader() and output() so far
+    private long deltaSize;
+
+    /**
+     * @param interleaved whether to count the interleaved format, as with
+     *                    {@link VCDiffCodeTableWriterImpl#VCDiffCodeTableWriterImpl(boolean)}
+     */
+    public VCDiffSizeCountingCodeTableWriter(boolean interleaved) {
+        this.interleaved = interleaved;
+        lastOpcode = -1;
+    }
+
+    public void init(int dictionarySize) {
+        this.dictionarySize = dictionarySize;
+        addressCache.Init();
+        dataForAddAndRunLength = 0;
+        instructionsAndSizesLength = 0;
+        addressesForCopyLength = 0;
+        targetLength = 0;
+        lastOpcode = -1;
+    }
+
+    public void writeHeader(Void out, EnumSet<VCDiffFormatExtension> formatExtensions) {
+        deltaSize += FILE_HEADER_SIZE;
+    }
+
+    public void add(byte[] data, int offset, int length) {
+        if (offset + length > data.length || length < 0) {
+            throw new IllegalArgumentException();
+        }
+        countInstruction(VCDiffCodeTableData.VCD_ADD, length, (byte) 0);
+        countData(length);
+        targetLength += length;
+    }
+
+    public void copy(int offset, int size) {
+        final byte mode = (byte) addressCache.EncodeAddress(offset, dictionarySize + targetLength, encodedAddress);
+        countInstruction(VCDiffCodeTableData.VCD_COPY, size, mode);
+        final int addressLength = addressCache.WriteAddressAsVarintForMode(mode) ? VarInt.calculateIntLength(encodedAddress.get()) : 1;
+        if (interleaved) {
+            instructionsAndSizesLength += addressLength;
+        } else {
+            addressesForCopyLength += addressLength;
+        }
+        targetLength += size;
+    }
+
+    public void run(int size, byte b) {
+        countInstruction(VCDiffCodeTableData.VCD_RUN, size, (byte) 0);
+        countData(1);
+        targetLength += size;
+    }
+
+    public void addChecksum(int checksum) {
+        addChecksum = true;
+        this.checksum = checksum & 0xffffffffL;
+    }
+
+    public void output(Void out) {
+        if (instructionsAndSizesLength > 0) {
+            final int lengthOfTheDeltaEncoding = calculateLengthOfTheDeltaEncoding();
+            deltaSize += 1 +  // Win_Indicator
+                    VarInt.calculateIntLength(dictionarySize) +  // Source segment size
+                    1 +  // Source segment position: 0
+                    VarInt.calculateIntLength(lengthOfTheDeltaEncoding) +
+                    lengthOfTheDeltaEncoding;
+        }
+        init(dictionarySize);
+    }
+
+    public void finishEncoding(Void out) {
+    }
+
+    /**
+     * @return the number of bytes counted so far: the file header, if
+     * writeHeader() was called, and every window passed to output()
+     */
+    public long deltaSize() {
+        return deltaSize;
+    }
+
+    /**
+     * @return the number of target bytes in the current window
+     */
+    public int targetLength() {
+        return targetLength;
+    }
+
+    private void countData(int length) {
+        if (interleaved) {
+            instructionsAndSizesLength += length;
+        } else {
+            dataForAddAndRunLength += length;
+        }
+    }
+
+    // Follows VCDiffCodeTableWriterImpl.encodeInstruction(), counting bytes
+    // instead of writing them.  A compound opcode replaces the previous
+    // opcode, so it adds nothing but its size.
+    private void countInstruction(byte inst, int size, byte mode) {
+        if (lastOpcode >= 0) {
+            if (size <= 255 && instructionMap.LookupSecondOpcode((byte) lastOpcode, inst, (byte) size, mode) != VCDiffCodeTableData.kNoOpcode) {
+                lastOpcode = -1;
+                return;
+            }
+            if (instructionMap.LookupSecondOpcode((byte) lastOpcode, inst, (byte) 0, mode) != VCDiffCodeTableData.kNoOpcode) {
+                lastOpcode = -1;
+                instructionsAndSizesLength += VarInt.calculateIntLength(size);
+                return;
+            }
+        }
+
+        if (size <= 255) {
+            final short opcode = instructionMap.LookupFirstOpcode(inst, (byte) size, mode);
+            if (opcode != VCDiffCodeTableData.kNoOpcode) {
+                instructionsAndSizesLength++;
+                lastOpcode = opcode;
+                return;
+            }
+        }
+
+        final short opcode = instructionMap.LookupFirstOpcode(inst, (byte) 0, mode);
+        if (opcode == VCDiffCodeTableData.kNoOpcode) {
+            throw new IllegalStateException(String.format(
+                    "No matching opcode found for inst %d, mode %d, size 0", inst, mode
+            ));
+        }
+        instructionsAndSizesLength += 1 + VarInt.calculateIntLength(size);
+        lastOpcode = opcode;
+    }
+
+    private int calculateLengthOfTheDeltaEncoding() {
+        int lengthOfTheDeltaEncoding =
+                VarInt.calculateIntLength(targetLength) +
+                1 +  // Delta_Indicator
+                VarInt.calculateIntLength(dataForAddAndRunLength) +
+                VarInt.calculateIntLength(instructionsAndSizesLength) +
+                VarInt.calculateIntLength(addressesForCopyLength) +
+                dataForAddAndRunLength +
+                instructionsAndSizesLength +
+                addressesForCopyLength;
+        if (addChecksum) {
+            lengthOfTheDeltaEncoding += VarInt.calculateLongLength(checksum);
+        }
+        return lengthOfTheDeltaEncoding;
+    }
+}
@@ -0,0 +1,142 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+import com.davidehrmann.vcdiff.VCDiffSizeEstimate;
+import com.davidehrmann.vcdiff.VCDiffSizeEstimator;
+import com.davidehrmann.vcdiff.util.Objects;
+import com.davidehrmann.vcdiff.util.VarInt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Random;
+
+/**
+ * Estimates delta sizes by sampling positions in the target, or computes them
+ * exactly by encoding into a {@link VCDiffSizeCountingCodeTableWriter}.
+ *
+ * A sample is a target position, checked for a dictionary match that
+ * includes it with {@link VCDiffEngine#DictionaryMatchSizeAt(ByteBuffer, int)}.
+ * The fraction of samples with a match estimates the fraction of the target
+ * that can be copied; the rest is ADDed.  Since a sample lands in a match in
+ * proportion to its length, the number of COPY instructions is estimated from
+ * the mean of the reciprocals of the sampled match lengths.  Samples are
+ * spread evenly over the target, each at a pseudo-random position within its
+ * share, so estimates are repeatable.
+ *
+ * This object is thread-safe.
+ */
+public class VCDiffSizeEstimatorImpl implements VCDiffSizeEstimator {
+
+    /**
+     * The estimated size of a COPY instruction: its opcode, its size when that
+     * isn't in the opcode, and its address.
+     */
+    protected static final int kEstimatedCopySize = 4;
+
+    /**
+     * The estimated size of an ADD instruction apart from its data.
+     */
+    protected static final int kEstimatedAddSize = 2;
+
+    /**
+     * With fewer samples than this, the target is encoded instead.
+     */
+    protected static final int kMinimumSamples = 32;
+
+    // The normal distribution's 97.5th percentile, for a 95% confidence interval
+    private static final double kConfidenceZ = 1.96;
+
+    private static final long kSampleSeed = 0x7c3a91d5L;
+
+    // Positions probed for each sample
+    private static final int kProbesPerSample = VCDiffEngine.kProbeBytesBefore + VCDiffEngine.kProbeBytesAfter + 1;
+
+    private final HashedDictionary dictionary;
+    private final EnumSet<VCDiffFormatExtension> formatExtensions;
+    private final boolean lookForTargetMatches;
+    private final int matchAcceleration;
+
+    public VCDiffSizeEstimatorImpl(HashedDictionary dictionary,
+                                   EnumSet<VCDiffFormatExtension> format_extensions,
+                                   boolean look_for_target_matches,
+                                   int match_acceleration) {
+        this.dictionary = Objects.requireNotNull(dictionary, "dictionary was null");
+        this.formatExtensions = format_extensions.clone();
+        this.lookForTargetMatches = look_for_target_matches;
+        this.matchAcceleration = match_acceleration;
+    }
+
+    public long deltaSize(byte[] data, int offset, int length) throws IOException {
+        VCDiffSizeCountingCodeTableWriter coder = new VCDiffSizeCountingCodeTableWriter(
+                formatExtensions.contains(VCDiffFormatExtension.GOOGLE_INTERLEAVED)
+        );
+        VCDiffStreamingEncoderImpl<Void> encoder = new VCDiffStreamingEncoderImpl<Void>(
+                coder, dictionary, formatExtensions, lookForTargetMatches, matchAcceleration
+        );
+        encoder.startEncoding(null);
+        encoder.encodeChunk(data, offset, length, null);
+        encoder.finishEncoding(null);
+        return coder.deltaSize();
+    }
+
+    public VCDiffSizeEstimate estimateDeltaSize(byte[] data, int offset, int length, double sampleFraction) throws IOException {
+        if (!(sampleFraction > 0 && sampleFraction <= 1)) {
+            throw new IllegalArgumentException("sampleFraction must be in (0, 1]: " + sampleFraction);
+        }
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        final int samples = (int) (length * sampleFraction / kProbesPerSample);
+        if (samples < kMinimumSamples || (long) samples * kProbesPerSample > length / 2) {
+            return new VCDiffSizeEstimate(deltaSize(data, offset, length), 0, true);
+        }
+
+        final VCDiffEngine engine = dictionary.engine();
+        final ByteBuffer target = ByteBuffer.wrap(data, offset, length).slice();
+        final Random random = new Random(kSampleSeed);
+        final double share = (double) length / samples;
+
+        int covered = 0;
+        double sumOfInverseMatchSizes = 0;
+        for (int i = 0; i < samples; i++) {
+            final int position = Math.min((int) ((i + random.nextDouble()) * share), length - 1);
+            final int matchSize = engine.DictionaryMatchSizeAt(target, position);
+            if (matchSize > 0) {
+                covered++;
+                sumOfInverseMatchSizes += 1.0 / matchSize;
+            }
+        }
+
+        final double addedBytes = length * (1 - (double) covered / samples);
+        final double copies = length * sumOfInverseMatchSizes / samples;
+        final double adds = Math.min(copies + 1, addedBytes);
+        final double size = headerSize(engine.dictionary_size(), length) +
+                addedBytes + copies * kEstimatedCopySize + adds * kEstimatedAddSize;
+
+        // Smoothed, so that a sample that all matched (or didn't) still gets
+        // an interval
+        final double p = (covered + 1.0) / (samples + 2.0);
+        final double error = kConfidenceZ * length * Math.sqrt(p * (1 - p) / samples);
+
+        return new VCDiffSizeEstimate(Math.round(size), (long) Math.ceil(error), false);
+    }
+
+    // The file header and a single window's header, with section sizes taken
+    // to be three bytes each.
+    private int headerSize(int dictionarySize, int targetSize) {
+        int size = 5 +  // File header
+                1 +  // Win_Indicator
+                VarInt.calculateIntLength(dictionarySize) +
+                1 +  // Source segment position
+                VarInt.calculateIntLength(targetSize) +  // Length of the delta encoding, about
+                VarInt.calculateIntLength(targetSize) +
+                1 +  // Delta_Indicator
+                3 * 3;  // Section sizes
+        if (formatExtensions.contains(VCDiffFormatExtension.GOOGLE_CHECKSUM)) {
+            size += 5;
+        }
+        return size;
+    }
+}
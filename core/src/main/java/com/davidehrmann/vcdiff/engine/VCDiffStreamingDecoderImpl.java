@@ -29,6 +29,11 @@
 package com.davidehrmann.vcdiff.engine;
 
 import com.davidehrmann.vcdiff.VCDiffStreamingDecoder;
+import com.davidehrmann.vcdiff.mina_buffer.IoBuffer;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+import com.davidehrmann.vcdiff.util.Objects;
+import com.davidehrmann.vcdiff.util.TargetStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,7 +56,9 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 
     /**
      * The largest value that can be passed to setMaximumTargetWindowSize().
-     * Using a larger value will result in an error.
+     * Using a larger value will result in an error.  This only limits
+     * individual windows; the target file as a whole is limited by
+     * setMaximumTargetFileSize(), which takes a long.
      */
     public static final int TARGET_SIZE_LIMIT = Integer.MAX_VALUE;
 
@@ -62,23 +69,39 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
      */
     public static final int UNLIMITED_BYTES = -3;
 
-    // Contents and length of the source (dictionary) data.
-    private ByteBuffer dictionary;
+    // Supplies the staging buffer for unparsedBytes and, with heap target
+    // storage, the storage behind decodedTarget.
+    private final BufferPool bufferPool;
 
-    // This string will be used to store any unparsed bytes left over when
-    // decodeChunk() reaches the end of its input and returns RESULT_END_OF_DATA.
-    // It will also be used to concatenate those unparsed bytes with the data
-    // supplied to the next call to decodeChunk(), so that they appear in
+    // The source (dictionary) data.
+    private DictionarySource dictionary;
+
+    // The unparsed bytes left over when decodeChunk() reaches the end of its
+    // input and returns RESULT_END_OF_DATA.  When it isn't empty, it is a view of
+    // stagingBuffer, and the data supplied to the next call to decodeChunk() is
+    // appended to it so that the unparsed bytes and the new data appear in
     // contiguous memory.
     private ByteBuffer unparsedBytes = ByteBuffer.allocate(0);
 
+    // Holds unparsedBytes, or null.  It grows geometrically as data is
+    // appended, and the consumed data before unparsedBytes is only discarded
+    // once it is at least as large as unparsedBytes, so each input byte is
+    // copied a bounded number of times no matter how small the chunks are.
+    private IoBuffer stagingBuffer;
+
     // The portion of the target file that has been decoded so far.  This will be
     // used to fill the output string for decodeChunk(), and will also be used to
     // execute COPY instructions that reference target data.  Since the source
     // window can come from a range of addresses in the previously decoded target
     // data, the entire target file needs to be available to the decoder, not just
-    // the current target window.
-    private final DecoratedByteArrayOutputStream decodedTarget = new DecoratedByteArrayOutputStream(512); //IoBuffer.allocate(512);
+    // the current target window.  Positions within decodedTarget are ints, so once
+    // it holds more than maximumRetainedTargetSize() bytes, earlier windows are
+    // flushed and only the target data from decodedTargetStart onwards is kept.
+    private final DecodedTarget decodedTarget;
+
+    // The position within the target file of the first byte of decodedTarget.
+    // This is zero unless earlier windows have been flushed.
+    private long decodedTargetStart;
 
     // The VCDIFF version byte (also known as "header4") from the
     // delta file header.
@@ -110,7 +133,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
     // stop processing the embedded data once the entire code table has
     // been decoded, and treat the rest of the available data as part
     // of the enclosing delta file.
-    private int plannedTargetFileSize;
+    private long plannedTargetFileSize;
 
     private long maximumTargetFileSize = DEFAULT_MAXIMUM_TARGET_FILE_SIZE;
 
@@ -139,17 +162,40 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
     private boolean allowVcdTarget = true;
 
     public VCDiffStreamingDecoderImpl() {
+        this(BufferPool.unpooled());
+    }
+
+    public VCDiffStreamingDecoderImpl(BufferPool bufferPool) {
+        this(bufferPool, TargetStorage.heap());
+    }
+
+    public VCDiffStreamingDecoderImpl(BufferPool bufferPool, TargetStorage targetStorage) {
+        this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+        Objects.requireNotNull(targetStorage, "targetStorage was null");
+        if (targetStorage.isSegmented()) {
+            decodedTarget = new SegmentedDecodedTarget(targetStorage.newSegmentAllocator());
+        } else {
+            decodedTarget = new DecoratedByteArrayOutputStream(bufferPool, 512);
+        }
         deltaWindow = new VCDiffDeltaFileWindow(this);
         reset();
     }
 
-    // Resets all member variables to their initial states.
+    // Resets all member variables to their initial states.  If the buffer pool
+    // recycles buffers, the staging buffer is returned to it, and the decoded
+    // target releases whatever storage it doesn't keep between decodes.
     public void reset() {
+        if (bufferPool.recyclesBuffers()) {
+            releaseStagingBuffer();
+            unparsedBytes = ByteBuffer.allocate(0);
+        }
+        decodedTarget.release();
         startDecodingWasCalled = false;
         dictionary = null;
         vcdiffVersionCode = 0;
         plannedTargetFileSize = UNLIMITED_BYTES;
         totalOfTargetWindowSizes = 0;
+        decodedTargetStart = 0;
         addrCache = null;
         custom_code_table_ = null;
         custom_code_table_decoder_ = null;
@@ -162,10 +208,16 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
     }
 
     public void startDecoding(ByteBuffer dictionary) {
+        startDecoding(DictionarySource.wrap(dictionary));
+    }
+
+    public void startDecoding(DictionarySource dictionary) {
+        Objects.requireNotNull(dictionary, "dictionary was null");
         if (startDecodingWasCalled) {
             throw new IllegalStateException("startDecoding() called twice without finishDecoding()");
         }
 
+        releaseStagingBuffer();
         unparsedBytes = ByteBuffer.allocate(0);
         decodedTarget.reset();  // deltaWindow.reset() depends on this
         reset();
@@ -182,12 +234,14 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
             reset();
             throw new IOException("decodeChunk() called without startDecoding()");
         }
-        // TODO: there's a lot of room for optimization here
-        ByteBuffer parseable_chunk = ByteBuffer.allocate(unparsedBytes.remaining() + data.remaining());
-        parseable_chunk.put(unparsedBytes);
-        parseable_chunk.put(data);
-        parseable_chunk.flip();
-        unparsedBytes = parseable_chunk.duplicate();
+        ByteBuffer parseable_chunk = appendToUnparsedBytes(data);
+
+        if (deltaWindow.bytesNeededForWindow() > parseable_chunk.remaining()) {
+            // The current window isn't complete yet, and parsing its header
+            // again won't change that.
+            unparsedBytes = parseable_chunk;
+            return;
+        }
 
         try {
             int result = readDeltaFileHeader(parseable_chunk);
@@ -209,6 +263,10 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
                         // start of the current window, so flush and clear the contents of
                         // decodedTarget.
                         flushDecodedTarget(out);
+                    } else if (decodedTarget.size() > maximumRetainedTargetSize()) {
+                        // The next window might not fit within decodedTarget.  VCD_TARGET
+                        // segments can't refer to the flushed data after this.
+                        flushDecodedTarget(out);
                     }
                 }
             }
@@ -217,10 +275,62 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
             throw e;
         }
 
-        unparsedBytes = parseable_chunk;
+        saveUnparsedBytes(parseable_chunk);
         appendNewOutputText(out);
     }
 
+    // Returns a buffer holding unparsedBytes followed by data.  If there are no
+    // unparsed bytes, data is parsed in place rather than copied.
+    private ByteBuffer appendToUnparsedBytes(ByteBuffer data) {
+        if (!unparsedBytes.hasRemaining() && data.hasArray()) {
+            return data.duplicate();
+        }
+
+        final int start;
+        if (!unparsedBytes.hasRemaining()) {
+            if (stagingBuffer == null) {
+                stagingBuffer = bufferPool.acquire(data.remaining());
+            }
+            stagingBuffer.clear();
+            start = 0;
+        } else if (unparsedBytes.position() >= unparsedBytes.remaining()) {
+            stagingBuffer.limit(unparsedBytes.limit());
+            stagingBuffer.position(unparsedBytes.position());
+            stagingBuffer.compact();
+            start = 0;
+        } else {
+            start = unparsedBytes.position();
+            stagingBuffer.limit(stagingBuffer.capacity());
+            stagingBuffer.position(unparsedBytes.limit());
+        }
+
+        stagingBuffer.put(data.duplicate());
+
+        // stagingBuffer.buf() may have been replaced when the buffer expanded
+        ByteBuffer parseable_chunk = stagingBuffer.buf().duplicate();
+        parseable_chunk.limit(parseable_chunk.position());
+        parseable_chunk.position(start);
+        return parseable_chunk;
+    }
+
+    // Keeps the data remaining in parseable_chunk for the next call to
+    // decodeChunk(), copying it into stagingBuffer if it was parsed in place.
+    private void saveUnparsedBytes(ByteBuffer parseable_chunk) {
+        if (!parseable_chunk.hasRemaining()
+                || (stagingBuffer != null && parseable_chunk.array() == stagingBuffer.array())) {
+            unparsedBytes = parseable_chunk;
+            return;
+        }
+
+        if (stagingBuffer == null) {
+            stagingBuffer = bufferPool.acquire(parseable_chunk.remaining());
+        }
+        stagingBuffer.clear();
+        stagingBuffer.put(parseable_chunk);
+        unparsedBytes = stagingBuffer.buf().duplicate();
+        unparsedBytes.flip();
+    }
+
     public void decodeChunk(byte[] data, OutputStream out) throws IOException {
         decodeChunk(ByteBuffer.wrap(data), out);
     }
@@ -275,7 +385,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
         return plannedTargetFileSize != UNLIMITED_BYTES;
     }
 
-    public void setPlannedTargetFileSize(int planned_target_file_size) {
+    public void setPlannedTargetFileSize(long planned_target_file_size) {
         plannedTargetFileSize = planned_target_file_size;
     }
 
@@ -377,11 +487,21 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
         }
     }
 
-    public ByteBuffer dictionary_ptr() { return dictionary; }
+    // The largest amount of target data that is kept in decodedTarget after a
+    // window has been decoded, such that a window of the maximum size can still
+    // be appended without overflowing its int positions.
+    private int maximumRetainedTargetSize() {
+        return Integer.MAX_VALUE - maximumTargetWindowSize;
+    }
+
+    public DictionarySource dictionary() { return dictionary; }
 
     VCDiffAddressCache addrCache() { return addrCache; }
 
-    DecoratedByteArrayOutputStream decodedTarget() { return decodedTarget; }
+    DecodedTarget decodedTarget() { return decodedTarget; }
+
+    // Returns the position within the target file of decodedTarget's first byte.
+    long decodedTargetStart() { return decodedTargetStart; }
 
     public boolean allowVcdTarget() { return allowVcdTarget; }
 
@@ -507,15 +627,15 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
     private int InitCustomCodeTable(byte[] data_start, int offset, int length) throws IOException {
         // A custom code table is being specified.  Parse the variable-length
         // cache sizes and begin parsing the encoded custom code table.
-        Integer near_cache_size;
-        Integer same_cache_size;
+        final int near_cache_size;
+        final int same_cache_size;
 
         VCDiffHeaderParser header_parser = new VCDiffHeaderParser(ByteBuffer.wrap(data_start, offset, length).slice());
-        if ((near_cache_size = header_parser.parseInt32("size of near cache")) == null) {
+        if ((near_cache_size = header_parser.parseInt32("size of near cache")) == VCDiffHeaderParser.RESULT_END_OF_DATA) {
             LOGGER.warn("Failed to parse size of near cache");
             return header_parser.getResult();
         }
-        if ((same_cache_size = header_parser.parseInt32("size of same cache")) == null) {
+        if ((same_cache_size = header_parser.parseInt32("size of same cache")) == VCDiffHeaderParser.RESULT_END_OF_DATA) {
             LOGGER.warn("Failed to parse size of same cache");
             return header_parser.getResult();
         }
@@ -523,7 +643,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
         custom_code_table_ = new VCDiffCodeTableData();
 
         custom_code_table_string_.reset();
-        addrCache = new VCDiffAddressCacheImpl(near_cache_size.shortValue(), same_cache_size.shortValue());
+        addrCache = new VCDiffAddressCacheImpl((short) near_cache_size, (short) same_cache_size);
 
         // addrCache->init() will be called
         // from VCDiffStreamingDecoderImpl::decodeChunk()
@@ -534,7 +654,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
         //
         // Instantiate a recursive decoder to interpret the custom code table
         // as a VCDIFF encoding of the default code table.
-        custom_code_table_decoder_ = new VCDiffStreamingDecoderImpl();
+        custom_code_table_decoder_ = new VCDiffStreamingDecoderImpl(bufferPool);
 
         byte[] codeTableBytes = VCDiffCodeTableData.kDefaultCodeTableData.getBytes();
         custom_code_table_decoder_.startDecoding(codeTableBytes);
@@ -575,6 +695,9 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
             return RESULT_END_OF_DATA;
         }
 
+        // Skip over the consumed data.  finishDecoding() discards the unconsumed
+        // data, so this has to happen first.
+        data.position(data.limit() - custom_code_table_decoder_.getUnconsumedDataSize());
         custom_code_table_decoder_.finishDecoding();
 
         if (custom_code_table_string_.size() != VCDiffCodeTableData.SERIALIZED_BYTE_SIZE) {
@@ -587,8 +710,6 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
         custom_code_table_ = new VCDiffCodeTableData(custom_code_table_string_.toByteArray());
         custom_code_table_string_.reset();
 
-        // Skip over the consumed data.
-        data.position(data.limit() - custom_code_table_decoder_.getUnconsumedDataSize());
         custom_code_table_decoder_ = null;
         deltaWindow.useCodeTable(custom_code_table_, addrCache.LastMode());
         return RESULT_SUCCESS;
@@ -599,41 +720,184 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
     // has not yet been output.  It sets decodedTargetOutputPosition
     // to mark the start of the next data that needs to be output.
     private void appendNewOutputText(OutputStream out) throws IOException {
-        ByteBuffer decodedTargetBuffer = decodedTarget.toByteBuffer();
-        decodedTargetBuffer.position(decodedTargetOutputPosition);
+        final int size = decodedTarget.size();
+        writeDecodedTarget(out, decodedTargetOutputPosition, size - decodedTargetOutputPosition);
+        decodedTargetOutputPosition = size;
+    }
 
-        // TODO: optimize
-        while (decodedTargetBuffer.hasRemaining()) {
-            out.write(decodedTargetBuffer.get());
+    // Writes len bytes of decodedTarget, starting at from, to out.
+    private void writeDecodedTarget(OutputStream out, int from, int len) throws IOException {
+        byte[] copyBuffer = null;
+        for (ByteBuffer slice : decodedTarget.slices(from, len)) {
+            if (slice.hasArray()) {
+                out.write(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+            } else {
+                if (copyBuffer == null) {
+                    copyBuffer = new byte[Math.min(len, 8192)];
+                }
+                int read;
+                while ((read = Math.min(copyBuffer.length, slice.remaining())) > 0) {
+                    slice.get(copyBuffer, 0, read);
+                    out.write(copyBuffer, 0, read);
+                }
+            }
         }
+    }
 
-        decodedTargetOutputPosition = decodedTargetBuffer.limit();
+    private void releaseStagingBuffer() {
+        bufferPool.release(stagingBuffer);
+        stagingBuffer = null;
     }
 
     // Appends to out the portion of decodedTarget that has
     // not yet been output, then clears decodedTarget.  This function is
     // called after each complete target window has been decoded if
     // allowVcdTarget is false.  In that case, there is no need to retain
-    // target data from any window except the current window.
+    // target data from any window except the current window.  It is also called
+    // when decodedTarget grows past maximumRetainedTargetSize().
     private void flushDecodedTarget(OutputStream out) throws IOException {
-        out.write(
-                decodedTarget.getBuffer(),
-                decodedTargetOutputPosition,
-                decodedTarget.size() - decodedTargetOutputPosition
-        );
+        writeDecodedTarget(out, decodedTargetOutputPosition, decodedTarget.size() - decodedTargetOutputPosition);
 
+        decodedTargetStart += decodedTarget.size();
         decodedTarget.reset();
         deltaWindow.setTargetWindowStartPos(0);
         decodedTargetOutputPosition = 0;
     }
 
-    protected static class DecoratedByteArrayOutputStream extends ByteArrayOutputStream {
+    // A ByteArrayOutputStream whose array comes from a BufferPool.  This is the
+    // DecodedTarget for heap target storage.
+    protected static class DecoratedByteArrayOutputStream extends ByteArrayOutputStream implements DecodedTarget {
+        private static final byte[] EMPTY = new byte[0];
+
+        // Some VMs reserve header words in an array, as in ByteArrayOutputStream
+        private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+        private final BufferPool bufferPool;
+        private final int initialSize;
+
+        // The pooled buffer backing buf, or null if nothing has been
+        // written since construction or the last release().
+        private IoBuffer storage;
+
         public DecoratedByteArrayOutputStream() {
-            super();
+            this(32);
         }
 
         public DecoratedByteArrayOutputStream(int size) {
-            super(size);
+            this(BufferPool.unpooled(), size);
+        }
+
+        public DecoratedByteArrayOutputStream(BufferPool bufferPool, int size) {
+            super(0);
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative initial size: " + size);
+            }
+            this.bufferPool = Objects.requireNotNull(bufferPool, "bufferPool was null");
+            this.initialSize = size;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) - b.length > 0)) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        // Appends the next len bytes of src, advancing its position.
+        @Override
+        public synchronized void write(ByteBuffer src, int len) {
+            if (len < 0 || len > src.remaining()) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureCapacity(count + len);
+            src.get(buf, count, len);
+            count += len;
+        }
+
+        // Appends len bytes copied from position from onwards.  The range may
+        // extend past the current end of the stream, in which case the bytes
+        // from from to the end repeat as a pattern.  Rather than copying such
+        // a pattern period by period, each copy doubles the length of the
+        // replicated run, so a short period expands in O(log(len)) copies.
+        @Override
+        public synchronized void replicate(int from, int len) {
+            if (len == 0) {
+                return;
+            }
+            if (from < 0 || from >= count || len < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureCapacity(count + len);
+            final int end = count + len;
+            while (count < end) {
+                final int chunk = Math.min(count - from, end - count);
+                System.arraycopy(buf, from, buf, count, chunk);
+                count += chunk;
+            }
+        }
+
+        @Override
+        public synchronized ByteBuffer[] slices(int from, int len) {
+            if (from < 0 || len < 0 || from + len > count || from + len < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new ByteBuffer[] { ByteBuffer.wrap(buf, from, len) };
+        }
+
+        // Discards the contents.  If the pool recycles buffers, the storage is
+        // returned to it; otherwise it is kept for reuse.
+        @Override
+        public synchronized void release() {
+            if (!bufferPool.recyclesBuffers()) {
+                count = 0;
+                return;
+            }
+            if (storage != null) {
+                bufferPool.release(storage);
+                storage = null;
+            }
+            buf = EMPTY;
+            count = 0;
+        }
+
+        private void ensureCapacity(int minCapacity) {
+            if (minCapacity < 0) {
+                throw new OutOfMemoryError();
+            }
+            if (minCapacity > buf.length) {
+                final int newCapacity = Math.max(newCapacity(buf.length, minCapacity), initialSize);
+
+                // The old storage is deliberately not released: a VCD_TARGET
+                // source segment for the current window may still refer to it.
+                IoBuffer newStorage = bufferPool.acquire(newCapacity);
+                System.arraycopy(buf, 0, newStorage.array(), 0, count);
+                storage = newStorage;
+                buf = newStorage.array();
+            }
+        }
+
+        // Grows as ByteArrayOutputStream does: doubles the capacity, but once
+        // doubling would overflow, goes straight to the largest array size
+        // rather than to exactly minCapacity, so a target past 1GB isn't
+        // reallocated on every write.
+        static int newCapacity(int oldCapacity, int minCapacity) {
+            int newCapacity = oldCapacity << 1;
+            if (newCapacity - minCapacity < 0) {
+                newCapacity = minCapacity;
+            }
+            if (newCapacity - MAX_ARRAY_SIZE > 0) {
+                newCapacity = (minCapacity > MAX_ARRAY_SIZE) ? Integer.MAX_VALUE : MAX_ARRAY_SIZE;
+            }
+            return newCapacity;
         }
 
         public synchronized ByteBuffer toByteBuffer() {
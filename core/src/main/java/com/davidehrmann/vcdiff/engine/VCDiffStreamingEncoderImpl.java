@@ -54,6 +54,10 @@ public class VCDiffStreamingEncoderImpl<OUT> implements VCDiffStreamingEncoder<O
     // vcencoder.h for a full explanation of this parameter.
     protected final boolean lookForTargetMatches;
 
+    // How quickly the engine starts skipping match lookups in stretches of
+    // target data that don't match anything; 0 looks up every position.
+    protected final int matchAcceleration;
+
     protected final VCDiffCodeTableWriter<OUT> coder;
 
     // This state variable is used to ensure that startEncoding(), encodeChunk(),
@@ -67,9 +71,21 @@ public class VCDiffStreamingEncoderImpl<OUT> implements VCDiffStreamingEncoder<O
                                       HashedDictionary dictionary,
                                       EnumSet<VCDiffFormatExtension> format_extensions,
                                       boolean look_for_target_matches) {
+        this(coder, dictionary, format_extensions, look_for_target_matches, 0);
+    }
+
+    public VCDiffStreamingEncoderImpl(VCDiffCodeTableWriter<OUT> coder,
+                                      HashedDictionary dictionary,
+                                      EnumSet<VCDiffFormatExtension> format_extensions,
+                                      boolean look_for_target_matches,
+                                      int match_acceleration) {
+        if (match_acceleration < 0) {
+            throw new IllegalArgumentException("match_acceleration must be non-negative: " + match_acceleration);
+        }
         this.engine = dictionary.engine();
         this.formatExtensions = format_extensions.clone();
         this.lookForTargetMatches = look_for_target_matches;
+        this.matchAcceleration = match_acceleration;
         this.coder = coder;
     }
 
@@ -90,7 +106,7 @@ public class VCDiffStreamingEncoderImpl<OUT> implements VCDiffStreamingEncoder<O
             adler32.update(data, offset, length);
             coder.addChecksum((int) adler32.getValue());
         }
-        engine.Encode(ByteBuffer.wrap(data, offset, length).slice(), lookForTargetMatches, out, coder);
+        engine.Encode(ByteBuffer.wrap(data, offset, length).slice(), lookForTargetMatches, matchAcceleration, out, coder);
     }
 
     public void encodeChunk(byte[] data, OUT out) throws IOException {
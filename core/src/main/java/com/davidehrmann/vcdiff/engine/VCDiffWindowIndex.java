@@ -0,0 +1,309 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableWriterImpl.VCD_TARGET;
+
+/**
+ * Where each window of a delta file starts, in the delta and in the target
+ * it decodes to, so that the windows covering a range of the target can be
+ * decoded without decoding the ones before them.
+ *
+ * An index is built by scanning the delta's window headers, skipping their
+ * contents.  It can be saved with {@link #toByteArray()} and kept alongside
+ * the delta, so that the delta needn't be scanned again.
+ *
+ * Indexes are immutable and thread-safe.
+ */
+public final class VCDiffWindowIndex {
+
+    // Serialized form: magic, delta size, header length, window count, then
+    // each window's delta offset and target offset, and the target size
+    private static final int kMagic = 0x56574931;  // "VWI1"
+
+    private final long deltaSize;
+    private final int headerLength;
+
+    // Offsets of each window in the delta, with the end of the last one
+    // at the end
+    private final long[] deltaOffsets;
+
+    // Offsets of each window in the target, with the target's size at the end
+    private final long[] targetOffsets;
+
+    // Windows whose source segment is earlier target data (VCD_TARGET)
+    private final boolean[] copiesFromTarget;
+
+    private VCDiffWindowIndex(long deltaSize, int headerLength, long[] deltaOffsets, long[] targetOffsets, boolean[] copiesFromTarget) {
+        this.deltaSize = deltaSize;
+        this.headerLength = headerLength;
+        this.deltaOffsets = deltaOffsets;
+        this.targetOffsets = targetOffsets;
+        this.copiesFromTarget = copiesFromTarget;
+    }
+
+    /**
+     * Indexes a delta file.
+     *
+     * @param delta the whole delta file, from its position to its limit;
+     *              its position isn't changed
+     * @return the index
+     * @throws IOException if the delta is invalid or truncated
+     */
+    public static VCDiffWindowIndex build(ByteBuffer delta) throws IOException {
+        final ByteBuffer buffer = Objects.requireNotNull(delta, "delta was null").slice();
+        final int headerLength = skipFileHeader(buffer);
+
+        long[] deltaOffsets = new long[16];
+        long[] targetOffsets = new long[16];
+        boolean[] copiesFromTarget = new boolean[16];
+        int windows = 0;
+        long targetOffset = 0;
+        while (buffer.hasRemaining()) {
+            if (windows + 1 == deltaOffsets.length) {
+                deltaOffsets = Arrays.copyOf(deltaOffsets, 2 * deltaOffsets.length);
+                targetOffsets = Arrays.copyOf(targetOffsets, 2 * targetOffsets.length);
+                copiesFromTarget = Arrays.copyOf(copiesFromTarget, 2 * copiesFromTarget.length);
+            }
+            deltaOffsets[windows] = buffer.position();
+            targetOffsets[windows] = targetOffset;
+
+            VCDiffHeaderParser parser = new VCDiffHeaderParser(buffer);
+            if (!parser.parseWinIndicatorAndSourceSegment(Long.MAX_VALUE, targetOffset, true) || !parser.ParseWindowLengths()) {
+                throw new IOException(String.format("Delta file is truncated in the header of window %d", windows));
+            }
+            copiesFromTarget[windows] = (parser.winIndicator & VCD_TARGET) != 0;
+            if (parser.endOfDeltaWindow() > buffer.limit()) {
+                throw new IOException(String.format("Delta file is truncated in window %d", windows));
+            }
+            buffer.position(parser.endOfDeltaWindow());
+            targetOffset += parser.targetWindowLength;
+            windows++;
+        }
+        deltaOffsets[windows] = buffer.position();
+        targetOffsets[windows] = targetOffset;
+
+        return new VCDiffWindowIndex(
+                buffer.limit(),
+                headerLength,
+                Arrays.copyOf(deltaOffsets, windows + 1),
+                Arrays.copyOf(targetOffsets, windows + 1),
+                Arrays.copyOf(copiesFromTarget, windows)
+        );
+    }
+
+    // Skips the file header, including any custom code table, which is
+    // itself a delta file whose windows decode to a code table.
+    static int skipFileHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < DeltaFileHeader.SERIALIZED_SIZE) {
+            throw new IOException("Delta file is truncated in its header");
+        }
+        final DeltaFileHeader header = new DeltaFileHeader((ByteBuffer) buffer.slice().limit(DeltaFileHeader.SERIALIZED_SIZE));
+        if (header.header1 != (byte) 0xD6 || header.header2 != (byte) 0xC3 || header.header3 != (byte) 0xC4) {
+            throw new IOException("Did not find VCDIFF header bytes; input is not a VCDIFF delta file");
+        }
+        buffer.position(buffer.position() + DeltaFileHeader.SERIALIZED_SIZE);
+
+        if ((header.hdr_indicator & VCDiffHeaderParser.VCD_CODETABLE) != 0) {
+            VCDiffHeaderParser parser = new VCDiffHeaderParser(buffer);
+            parser.parseInt32("size of near cache");
+            parser.parseInt32("size of same cache");
+            if (parser.getResult() != VCDiffHeaderParser.RESULT_SUCCESS) {
+                throw new IOException("Delta file is truncated in its code table");
+            }
+            buffer.position(parser.unparsedData().position());
+
+            skipFileHeader(buffer);
+            long codeTableSize = 0;
+            while (codeTableSize < VCDiffCodeTableData.SERIALIZED_BYTE_SIZE) {
+                VCDiffHeaderParser windowParser = new VCDiffHeaderParser(buffer);
+                if (!windowParser.parseWinIndicatorAndSourceSegment(Long.MAX_VALUE, codeTableSize, true)
+                        || !windowParser.ParseWindowLengths()
+                        || windowParser.endOfDeltaWindow() > buffer.limit()) {
+                    throw new IOException("Delta file is truncated in its code table");
+                }
+                buffer.position(windowParser.endOfDeltaWindow());
+                codeTableSize += windowParser.targetWindowLength;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Reads an index written by {@link #toByteArray()}.
+     *
+     * @param serialized the serialized index
+     * @return the index
+     * @throws IllegalArgumentException if serialized isn't a valid index
+     */
+    public static VCDiffWindowIndex fromByteArray(byte[] serialized) {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(serialized);
+            if (buffer.getInt() != kMagic) {
+                throw new IllegalArgumentException("Not a serialized window index");
+            }
+            final long deltaSize = buffer.getLong();
+            final int headerLength = buffer.getInt();
+            final int windows = buffer.getInt();
+            if (windows < 0 || buffer.remaining() != 17L * windows + 16) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid window index: %d windows in %d bytes", windows, buffer.remaining()
+                ));
+            }
+
+            final long[] deltaOffsets = new long[windows + 1];
+            final long[] targetOffsets = new long[windows + 1];
+            final boolean[] copiesFromTarget = new boolean[windows];
+            for (int i = 0; i <= windows; i++) {
+                deltaOffsets[i] = buffer.getLong();
+                targetOffsets[i] = buffer.getLong();
+                if (i < windows) {
+                    copiesFromTarget[i] = buffer.get() != 0;
+                }
+                final boolean ordered = i == 0 ?
+                        deltaOffsets[i] == headerLength && targetOffsets[i] == 0 :
+                        deltaOffsets[i] > deltaOffsets[i - 1] && targetOffsets[i] >= targetOffsets[i - 1];
+                if (!ordered) {
+                    throw new IllegalArgumentException("Invalid window index: windows out of order");
+                }
+            }
+            if (deltaOffsets[windows] != deltaSize) {
+                throw new IllegalArgumentException("Invalid window index: windows don't end at the end of the delta");
+            }
+            return new VCDiffWindowIndex(deltaSize, headerLength, deltaOffsets, targetOffsets, copiesFromTarget);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated window index", e);
+        }
+    }
+
+    /**
+     * @return this index in a form {@link #fromByteArray(byte[])} reads
+     */
+    public byte[] toByteArray() {
+        final int windows = windowCount();
+        final ByteBuffer buffer = ByteBuffer.allocate(20 + 17 * windows + 16);
+        buffer.putInt(kMagic);
+        buffer.putLong(deltaSize);
+        buffer.putInt(headerLength);
+        buffer.putInt(windows);
+        for (int i = 0; i <= windows; i++) {
+            buffer.putLong(deltaOffsets[i]);
+            buffer.putLong(targetOffsets[i]);
+            if (i < windows) {
+                buffer.put((byte) (copiesFromTarget[i] ? 1 : 0));
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the size of the indexed delta file
+     */
+    public long deltaSize() {
+        return deltaSize;
+    }
+
+    /**
+     * @return the length of the delta file's header, including any custom
+     * code table; every window needs it to be decoded
+     */
+    public int headerLength() {
+        return headerLength;
+    }
+
+    /**
+     * @return the size of the target the delta decodes to
+     */
+    public long targetSize() {
+        return targetOffsets[targetOffsets.length - 1];
+    }
+
+    /**
+     * @return the number of windows in the delta
+     */
+    public int windowCount() {
+        return copiesFromTarget.length;
+    }
+
+    /**
+     * @param window index of a window
+     * @return the offset of the window in the delta file
+     */
+    public long deltaOffset(int window) {
+        checkWindow(window);
+        return deltaOffsets[window];
+    }
+
+    /**
+     * @param window index of a window
+     * @return the length of the window in the delta file
+     */
+    public long deltaLength(int window) {
+        checkWindow(window);
+        return deltaOffsets[window + 1] - deltaOffsets[window];
+    }
+
+    /**
+     * @param window index of a window
+     * @return the offset of the window's data in the target
+     */
+    public long targetOffset(int window) {
+        checkWindow(window);
+        return targetOffsets[window];
+    }
+
+    /**
+     * @param window index of a window
+     * @return the length of the window's data in the target
+     */
+    public int targetLength(int window) {
+        checkWindow(window);
+        return (int) (targetOffsets[window + 1] - targetOffsets[window]);
+    }
+
+    /**
+     * @param window index of a window
+     * @return whether the window's source segment is earlier target data
+     * (VCD_TARGET), in which case it can't be decoded on its own
+     */
+    public boolean copiesFromTarget(int window) {
+        checkWindow(window);
+        return copiesFromTarget[window];
+    }
+
+    /**
+     * @param targetOffset an offset in the target
+     * @return the index of the window whose data includes targetOffset, or
+     * -1 if targetOffset isn't in the target
+     */
+    public int windowContaining(long targetOffset) {
+        if (targetOffset < 0 || targetOffset >= targetSize()) {
+            return -1;
+        }
+
+        // The last window starting at or before targetOffset, skipping
+        // empty windows
+        int low = 0;
+        int high = windowCount() - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (targetOffsets[middle] <= targetOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void checkWindow(int window) {
+        if (window < 0 || window >= windowCount()) {
+            throw new IndexOutOfBoundsException(String.format("window %d of %d", window, windowCount()));
+        }
+    }
+}
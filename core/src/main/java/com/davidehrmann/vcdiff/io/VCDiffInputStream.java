@@ -17,6 +17,7 @@ package com.davidehrmann.vcdiff.io;
 
 import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
 import com.davidehrmann.vcdiff.VCDiffStreamingDecoder;
+import com.davidehrmann.vcdiff.util.DictionarySource;
 import com.davidehrmann.vcdiff.util.Objects;
 
 import java.io.ByteArrayOutputStream;
@@ -31,7 +32,7 @@ public class VCDiffInputStream extends InputStream {
     public static final boolean DEFAULT_ALLOW_VCD_TARGET = false;
 
     private final VCDiffStreamingDecoder decoder;
-    private final ByteBuffer dictionary;
+    private final DictionarySource dictionary;
 
     private final InputStream in;
 
@@ -67,6 +68,10 @@ public class VCDiffInputStream extends InputStream {
     }
 
     public VCDiffInputStream(InputStream in, ByteBuffer dictionary, VCDiffStreamingDecoder decoder) {
+        this(in, DictionarySource.wrap(Objects.requireNotNull(dictionary, "dictionary was null")), decoder);
+    }
+
+    public VCDiffInputStream(InputStream in, DictionarySource dictionary, VCDiffStreamingDecoder decoder) {
         this.in = Objects.requireNotNull(in, "in was null");
         this.decoder = Objects.requireNotNull(decoder, "decoder was null");
         this.dictionary = Objects.requireNotNull(dictionary, "dictionary was null");
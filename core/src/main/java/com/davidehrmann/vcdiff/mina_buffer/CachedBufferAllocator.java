@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An {@link IoBufferAllocator} that caches the buffers which are likely to
@@ -54,6 +55,10 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * {@link CachedBufferAllocator} uses {@link ThreadLocal} to store the cached
  * buffer, allocates buffers whose capacity is power of 2 only and provides
  * performance advantage if {@link IoBuffer#free()} is called properly.
+ * <p>
+ * A shared instance (see {@link #CachedBufferAllocator(int, int, boolean)})
+ * keeps a single cache for all threads instead, so a buffer freed by one
+ * thread can be reused by another.
  *
  * @author <a href="http://mina.apache.org">Apache MINA Project</a>
  */
@@ -64,6 +69,11 @@ public class CachedBufferAllocator implements IoBufferAllocator {
     
     private final int maxPoolSize;
     private final int maxCachedBufferSize;
+    private final boolean threadLocal;
+
+    private final AtomicLong allocatedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong recycledCount = new AtomicLong();
 
     private final ThreadLocal<Map<Integer, Queue<CachedBuffer>>> heapBuffers;
     private final ThreadLocal<Map<Integer, Queue<CachedBuffer>>> directBuffers;
@@ -86,6 +96,21 @@ public class CachedBufferAllocator implements IoBufferAllocator {
      *                            not pooled. <tt>0</tt> disables this limitation.
      */
     public CachedBufferAllocator(int maxPoolSize, int maxCachedBufferSize) {
+        this(maxPoolSize, maxCachedBufferSize, true);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxPoolSize the maximum number of buffers with the same capacity per cache.
+     *                    <tt>0</tt> disables this limitation.
+     * @param maxCachedBufferSize the maximum capacity of a cached buffer.
+     *                            A buffer whose capacity is bigger than this value is
+     *                            not pooled. <tt>0</tt> disables this limitation.
+     * @param threadLocal <tt>true</tt> to keep a separate cache per thread,
+     *                    <tt>false</tt> to share one cache between all threads.
+     */
+    public CachedBufferAllocator(int maxPoolSize, int maxCachedBufferSize, boolean threadLocal) {
         if (maxPoolSize < 0) {
             throw new IllegalArgumentException("maxPoolSize: " + maxPoolSize);
         }
@@ -96,20 +121,26 @@ public class CachedBufferAllocator implements IoBufferAllocator {
         
         this.maxPoolSize = maxPoolSize;
         this.maxCachedBufferSize = maxCachedBufferSize;
+        this.threadLocal = threadLocal;
         
-        this.heapBuffers = new ThreadLocal<Map<Integer, Queue<CachedBuffer>>>() {
-            @Override
-            protected Map<Integer, Queue<CachedBuffer>> initialValue() {
-                return newPoolMap();
-            }
-        };
-        
-        this.directBuffers = new ThreadLocal<Map<Integer, Queue<CachedBuffer>>>() {
-            @Override
-            protected Map<Integer, Queue<CachedBuffer>> initialValue() {
-                return newPoolMap();
-            }
-        };
+        if (threadLocal) {
+            this.heapBuffers = new ThreadLocal<Map<Integer, Queue<CachedBuffer>>>() {
+                @Override
+                protected Map<Integer, Queue<CachedBuffer>> initialValue() {
+                    return newPoolMap();
+                }
+            };
+
+            this.directBuffers = new ThreadLocal<Map<Integer, Queue<CachedBuffer>>>() {
+                @Override
+                protected Map<Integer, Queue<CachedBuffer>> initialValue() {
+                    return newPoolMap();
+                }
+            };
+        } else {
+            this.heapBuffers = sharedPoolMap(newPoolMap());
+            this.directBuffers = sharedPoolMap(newPoolMap());
+        }
     }
     
     /**
@@ -129,6 +160,47 @@ public class CachedBufferAllocator implements IoBufferAllocator {
         return maxCachedBufferSize;
     }
 
+    /**
+     * Returns <tt>true</tt> if each thread has its own cache, or <tt>false</tt>
+     * if the cache is shared between all threads.
+     */
+    public boolean isThreadLocal() {
+        return threadLocal;
+    }
+
+    /**
+     * Returns the number of buffers that had to be newly allocated because
+     * no cached buffer was available, including those allocated while
+     * auto-expanding.
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    /**
+     * Returns the number of allocations satisfied from the cache.
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * Returns the number of freed buffers that were put back into the cache.
+     */
+    public long getRecycledCount() {
+        return recycledCount.get();
+    }
+
+    private static ThreadLocal<Map<Integer, Queue<CachedBuffer>>> sharedPoolMap(
+            final Map<Integer, Queue<CachedBuffer>> poolMap) {
+        return new ThreadLocal<Map<Integer, Queue<CachedBuffer>>>() {
+            @Override
+            public Map<Integer, Queue<CachedBuffer>> get() {
+                return poolMap;
+            }
+        };
+    }
+
     Map<Integer, Queue<CachedBuffer>> newPoolMap() {
         Map<Integer, Queue<CachedBuffer>> poolMap =
             new HashMap<Integer, Queue<CachedBuffer>>();
@@ -148,6 +220,7 @@ public class CachedBufferAllocator implements IoBufferAllocator {
         IoBuffer buf ;
         
         if ((maxCachedBufferSize != 0) && (actualCapacity > maxCachedBufferSize)) {
+            allocatedCount.incrementAndGet();
             if (direct) {
                 buf = wrap(ByteBuffer.allocateDirect(actualCapacity));
             } else {
@@ -169,7 +242,9 @@ public class CachedBufferAllocator implements IoBufferAllocator {
                 buf.clear();
                 buf.setAutoExpand(false);
                 buf.order(ByteOrder.BIG_ENDIAN);
+                reusedCount.incrementAndGet();
             } else {
+                allocatedCount.incrementAndGet();
                 if (direct) {
                     buf = wrap(ByteBuffer.allocateDirect(actualCapacity));
                 } else {
@@ -267,7 +342,7 @@ public class CachedBufferAllocator implements IoBufferAllocator {
                 ((maxCachedBufferSize != 0 ) && (oldBuf.capacity() > maxCachedBufferSize)) ||
                 oldBuf.isReadOnly() || 
                 isDerived() ||
-                (Thread.currentThread() != ownerThread)) {
+                (threadLocal && (Thread.currentThread() != ownerThread))) {
                 return;
             }
 
@@ -287,6 +362,7 @@ public class CachedBufferAllocator implements IoBufferAllocator {
             // Restrict the size of the pool to prevent OOM.
             if ((maxPoolSize == 0) || (pool.size() < maxPoolSize)) {
                 pool.offer(new CachedBuffer(oldBuf));
+                recycledCount.incrementAndGet();
             }
         }
     }
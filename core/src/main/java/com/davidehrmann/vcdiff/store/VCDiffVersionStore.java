@@ -0,0 +1,358 @@
+package com.davidehrmann.vcdiff.store;
+
+import com.davidehrmann.vcdiff.VCDiffDecoder;
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Histories of documents, each kept as a chain of versions where most
+ * versions are stored as a delta from the one before.  Every so often a
+ * version is stored whole, as a keyframe, so reading any version decodes at
+ * most the deltas since the keyframe before it.
+ *
+ * A version is stored as a keyframe when it's a document's first, when the
+ * chain since the last keyframe reaches the keyframe interval, or when the
+ * deltas since the last keyframe would add up to more than the version
+ * itself, at which point decoding them costs more than storing it whole.
+ * {@link #rebase(String)} rewrites a document's history under the current
+ * keyframe interval.
+ *
+ * Each document's history is a file, {@code <document>.vlog}, in the store's
+ * directory.  Versions read or written recently are kept in memory, up to
+ * the cache budget, and decoding starts from the latest cached version in
+ * the chain rather than the keyframe.
+ *
+ * This object is thread-safe.
+ */
+public class VCDiffVersionStore implements Closeable {
+
+    /**
+     * The default number of versions from one keyframe to the next.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 32;
+
+    /**
+     * The default number of bytes of versions kept in memory.
+     */
+    public static final long DEFAULT_CACHE_BUDGET = 64L * 1024 * 1024;
+
+    private static final String kSuffix = ".vlog";
+    private static final Pattern kDocumentName = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    private final File directory;
+    private final int keyframeInterval;
+    private final VersionCache cache;
+    private final Map<String, VersionLog> logs = new HashMap<String, VersionLog>();
+
+    private boolean closed = false;
+
+    /**
+     * Opens a store with the default keyframe interval and cache budget.
+     *
+     * @param directory directory the histories are kept in
+     * @throws IOException if directory isn't a directory
+     */
+    public VCDiffVersionStore(File directory) throws IOException {
+        this(directory, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_CACHE_BUDGET);
+    }
+
+    /**
+     * Opens a store.
+     *
+     * @param directory directory the histories are kept in
+     * @param keyframeInterval most versions from one keyframe to the next;
+     *                         1 stores every version whole
+     * @param cacheBudget most bytes of versions kept in memory
+     * @throws IOException if directory isn't a directory
+     */
+    public VCDiffVersionStore(File directory, int keyframeInterval, long cacheBudget) throws IOException {
+        this.directory = Objects.requireNotNull(directory, "directory was null");
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be positive");
+        }
+        if (!directory.isDirectory()) {
+            throw new IOException(directory + " is not a directory");
+        }
+        this.keyframeInterval = keyframeInterval;
+        this.cache = new VersionCache(cacheBudget);
+    }
+
+    /**
+     * Adds a version to the end of a document's history, creating the
+     * document if it doesn't exist.
+     *
+     * @param document name of the document: letters, digits, '.', '_' and
+     *                 '-', not starting with '.'
+     * @param content the new version
+     * @return the new version's number, counting from 0
+     * @throws IOException if the history can't be read or written
+     */
+    public synchronized int append(String document, byte[] content) throws IOException {
+        Objects.requireNotNull(content, "content was null");
+        final VersionLog log = open(document, true);
+
+        final int previous = log.count() - 1;
+        final byte[] delta;
+        if (previous < 0 || previous + 1 - log.keyframeOf(previous) >= keyframeInterval) {
+            delta = null;
+        } else {
+            delta = encodeDelta(log, previous, materialize(document, log, previous), content);
+        }
+
+        final byte[] copy = content.clone();
+        final int version = delta != null
+                ? log.append(VersionLog.DELTA, copy.length, delta)
+                : log.append(VersionLog.KEYFRAME, copy.length, copy);
+        cache.put(document, version, copy);
+        return version;
+    }
+
+    /**
+     * Reads a version of a document.
+     *
+     * @param document name of the document
+     * @param version number of the version, counting from 0
+     * @return the version
+     * @throws IOException if the history can't be read, or is corrupt
+     * @throws IndexOutOfBoundsException if the version doesn't exist
+     */
+    public synchronized byte[] read(String document, int version) throws IOException {
+        final VersionLog log = open(document, false);
+        if (log == null) {
+            throw new IndexOutOfBoundsException(String.format("%s has no versions", document));
+        }
+        return materialize(document, log, version).clone();
+    }
+
+    /**
+     * @param document name of the document
+     * @return the number of versions of the document, 0 if it doesn't exist
+     * @throws IOException if the history can't be read
+     */
+    public synchronized int versionCount(String document) throws IOException {
+        final VersionLog log = open(document, false);
+        return log != null ? log.count() : 0;
+    }
+
+    /**
+     * @param document name of the document
+     * @param version number of the version, counting from 0
+     * @return whether the version is stored whole
+     * @throws IOException if the history can't be read
+     * @throws IndexOutOfBoundsException if the version doesn't exist
+     */
+    public synchronized boolean isKeyframe(String document, int version) throws IOException {
+        final VersionLog log = open(document, false);
+        if (log == null) {
+            throw new IndexOutOfBoundsException(String.format("%s has no versions", document));
+        }
+        return log.isKeyframe(version);
+    }
+
+    /**
+     * @return the names of the documents in the store, sorted
+     */
+    public synchronized List<String> documents() {
+        checkOpen();
+        final String[] files = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(kSuffix) && kDocumentName.matcher(name.substring(0, name.length() - kSuffix.length())).matches();
+            }
+        });
+        final List<String> documents = new ArrayList<String>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (String file : files) {
+                documents.add(file.substring(0, file.length() - kSuffix.length()));
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Rewrites a document's history so its keyframes follow the store's
+     * keyframe interval, as if each version had been appended to this store.
+     * This shortens chains written under a longer interval.  The history is
+     * written to a new file that then replaces the old one, so a crash leaves
+     * one or the other.
+     *
+     * @param document name of the document
+     * @throws IOException if the history can't be read or written
+     */
+    public synchronized void rebase(String document) throws IOException {
+        final VersionLog log = open(document, false);
+        if (log == null) {
+            return;
+        }
+
+        final File rebased = new File(directory, document + kSuffix + ".tmp");
+        if (rebased.exists() && !rebased.delete()) {
+            throw new IOException("Unable to delete " + rebased);
+        }
+        final VersionLog out = new VersionLog(rebased);
+        try {
+            byte[] previous = null;
+            for (int version = 0; version < log.count(); version++) {
+                final byte[] content = decode(log, version, previous);
+                if (previous != null && version - out.keyframeOf(version - 1) < keyframeInterval) {
+                    final byte[] delta = encodeDelta(out, version - 1, previous, content);
+                    if (delta != null) {
+                        out.append(VersionLog.DELTA, content.length, delta);
+                        previous = content;
+                        continue;
+                    }
+                }
+                out.append(VersionLog.KEYFRAME, content.length, content);
+                previous = content;
+            }
+            out.sync();
+        } finally {
+            out.close();
+        }
+
+        log.close();
+        logs.remove(document);
+        if (!rebased.renameTo(log.file())) {
+            // Some platforms won't rename over an existing file
+            if (!log.file().delete() || !rebased.renameTo(log.file())) {
+                throw new IOException(String.format("Unable to replace %s with %s", log.file(), rebased));
+            }
+        }
+    }
+
+    /**
+     * Closes every open history.  The store can't be used afterwards.
+     *
+     * @throws IOException if a history can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        IOException failure = null;
+        for (VersionLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                failure = failure != null ? failure : e;
+            }
+        }
+        logs.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d open documents, %s", directory, logs.size(), cache);
+    }
+
+    // Decodes a version, starting from the latest cached version between it
+    // and its keyframe, and caches it
+    private byte[] materialize(String document, VersionLog log, int version) throws IOException {
+        byte[] content = cache.get(document, version);
+        if (content != null) {
+            return content;
+        }
+
+        final int keyframe = log.keyframeOf(version);
+        int start = version - 1;
+        while (start >= keyframe && !cache.contains(document, start)) {
+            start--;
+        }
+
+        content = start >= keyframe ? cache.get(document, start) : null;
+        for (int i = start + 1; i <= version; i++) {
+            content = decode(log, i, content);
+            if (i == keyframe && i < version) {
+                // Later reads of this chain can start here instead of on disk
+                cache.put(document, keyframe, content);
+            }
+        }
+        cache.put(document, version, content);
+        return content;
+    }
+
+    // Decodes a version given the one before it, which is ignored for a
+    // keyframe
+    private static byte[] decode(VersionLog log, int version, byte[] previous) throws IOException {
+        final byte[] payload = log.payload(version);
+        final long size = log.size(version);
+        if (log.isKeyframe(version)) {
+            if (payload.length != size) {
+                throw new IOException(String.format("Version %d of %s is %d bytes, expected %d", version, log.file(), payload.length, size));
+            }
+            return payload;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Version %d of %s is too large to read", version, log.file()));
+        }
+
+        final VCDiffDecoder decoder = VCDiffDecoderBuilder.builder()
+                .withMaxTargetFileSize(size)
+                .withMaxTargetWindowSize((int) size)
+                .buildSimple();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) size);
+        decoder.decode(previous, payload, out);
+        if (out.size() != size) {
+            throw new IOException(String.format("Version %d of %s decoded to %d bytes, expected %d", version, log.file(), out.size(), size));
+        }
+        return out.toByteArray();
+    }
+
+    // Returns a delta from previous to content, or null if content should be
+    // a keyframe because the chain would cost more to decode than it saves
+    private static byte[] encodeDelta(VersionLog log, int previousVersion, byte[] previous, byte[] content) throws IOException {
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        VCDiffEncoderBuilder.builder()
+                .withDictionary(previous)
+                .withChecksum(true)
+                .buildSimple()
+                .encode(content, delta);
+
+        long chain = delta.size();
+        for (int i = previousVersion; i > log.keyframeOf(previousVersion); i--) {
+            chain += log.payloadLength(i);
+        }
+        return chain < content.length ? delta.toByteArray() : null;
+    }
+
+    private VersionLog open(String document, boolean create) throws IOException {
+        Objects.requireNotNull(document, "document was null");
+        if (!kDocumentName.matcher(document).matches()) {
+            throw new IllegalArgumentException("Invalid document name: " + document);
+        }
+        checkOpen();
+
+        VersionLog log = logs.get(document);
+        if (log == null) {
+            final File file = new File(directory, document + kSuffix);
+            if (!create && !file.exists()) {
+                return null;
+            }
+            log = new VersionLog(file);
+            logs.put(document, log);
+        }
+        return log;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.davidehrmann.vcdiff.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Versions recently read or written, kept until their total size passes a
+ * budget, when those used least recently are evicted.  A version bigger than
+ * the whole budget is never kept.
+ *
+ * This object is not thread-safe.
+ */
+final class VersionCache {
+
+    private static final class Key {
+        final String document;
+        final int version;
+
+        Key(String document, int version) {
+            this.document = document;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return version == other.version && document.equals(other.document);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * document.hashCode() + version;
+        }
+    }
+
+    private final LinkedHashMap<Key, byte[]> versions = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+    private final long budget;
+
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    VersionCache(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget was negative");
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * @return the version, or null if it isn't cached
+     */
+    byte[] get(String document, int version) {
+        final byte[] content = versions.get(new Key(document, version));
+        if (content != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return content;
+    }
+
+    /**
+     * @return whether the version is cached, without counting a hit or miss or
+     * marking it as used
+     */
+    boolean contains(String document, int version) {
+        return versions.containsKey(new Key(document, version));
+    }
+
+    void put(String document, int version, byte[] content) {
+        if (content.length > budget) {
+            return;
+        }
+        final byte[] replaced = versions.put(new Key(document, version), content);
+        if (replaced != null) {
+            bytes -= replaced.length;
+        }
+        bytes += content.length;
+
+        Iterator<byte[]> eldest = versions.values().iterator();
+        while (bytes > budget) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d versions, %d bytes, %d hits, %d misses", versions.size(), bytes, hits, misses);
+    }
+}
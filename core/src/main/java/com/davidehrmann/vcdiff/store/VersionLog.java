@@ -0,0 +1,199 @@
+package com.davidehrmann.vcdiff.store;
+
+import com.davidehrmann.vcdiff.util.Objects;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * The versions of one document, in an append-only file: a magic number, then
+ * a record per version.  A record is a kind (keyframe or delta), the size of
+ * the version, the length of the payload, and the payload: the version itself
+ * for a keyframe, or a delta from the previous version.
+ *
+ * The records' headers are read when the file is opened, so any version's
+ * payload can be read with one seek.  A record left incomplete by a crash
+ * while it was being appended is dropped.
+ *
+ * This object is not thread-safe.
+ */
+final class VersionLog implements Closeable {
+
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+
+    private static final int kMagic = 0x56435631;  // "VCV1"
+    private static final int kRecordHeaderSize = 1 + 8 + 4;
+
+    private final File file;
+    private final RandomAccessFile raf;
+
+    private int count = 0;
+    private byte[] kinds = new byte[16];
+    private long[] sizes = new long[16];
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+
+    // The latest keyframe at or before each version
+    private int[] keyframes = new int[16];
+
+    private long end;
+
+    VersionLog(File file) throws IOException {
+        this.file = Objects.requireNotNull(file, "file was null");
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            load();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        final long length = raf.length();
+        if (length < 4) {
+            raf.setLength(0);
+            raf.writeInt(kMagic);
+            end = 4;
+            return;
+        }
+        if (raf.readInt() != kMagic) {
+            throw new IOException(file + " is not a version log");
+        }
+
+        end = 4;
+        while (end + kRecordHeaderSize <= length) {
+            raf.seek(end);
+            final byte kind = raf.readByte();
+            final long size = raf.readLong();
+            final int payloadLength = raf.readInt();
+            if ((kind != KEYFRAME && kind != DELTA) || size < 0 || payloadLength < 0 || (count == 0 && kind != KEYFRAME)) {
+                throw new IOException(String.format("%s has an invalid record at offset %d", file, end));
+            }
+            if (end + kRecordHeaderSize + payloadLength > length) {
+                break;
+            }
+            add(kind, size, end + kRecordHeaderSize, payloadLength);
+        }
+        if (end < length) {
+            raf.setLength(end);
+        }
+    }
+
+    private void add(byte kind, long size, long offset, int length) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, 2 * count);
+            sizes = Arrays.copyOf(sizes, 2 * count);
+            offsets = Arrays.copyOf(offsets, 2 * count);
+            lengths = Arrays.copyOf(lengths, 2 * count);
+            keyframes = Arrays.copyOf(keyframes, 2 * count);
+        }
+        kinds[count] = kind;
+        sizes[count] = size;
+        offsets[count] = offset;
+        lengths[count] = length;
+        keyframes[count] = kind == KEYFRAME ? count : keyframes[count - 1];
+        count++;
+        end = offset + length;
+    }
+
+    /**
+     * Appends a version.
+     *
+     * @param kind KEYFRAME or DELTA
+     * @param size size of the version
+     * @param payload the version, or a delta from the previous one
+     * @return the new version's number
+     * @throws IOException if the file can't be written
+     */
+    int append(byte kind, long size, byte[] payload) throws IOException {
+        if (kind != KEYFRAME && (kind != DELTA || count == 0)) {
+            throw new IllegalArgumentException("A version log starts with a keyframe");
+        }
+        final byte[] record = new byte[kRecordHeaderSize + payload.length];
+        record[0] = kind;
+        for (int i = 0; i < 8; i++) {
+            record[1 + i] = (byte) (size >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            record[9 + i] = (byte) (payload.length >>> (24 - 8 * i));
+        }
+        System.arraycopy(payload, 0, record, kRecordHeaderSize, payload.length);
+
+        raf.seek(end);
+        raf.write(record);
+        add(kind, size, end + kRecordHeaderSize, payload.length);
+        return count - 1;
+    }
+
+    /**
+     * @return the payload of a version
+     */
+    byte[] payload(int version) throws IOException {
+        checkVersion(version);
+        final byte[] payload = new byte[lengths[version]];
+        raf.seek(offsets[version]);
+        raf.readFully(payload);
+        return payload;
+    }
+
+    int payloadLength(int version) {
+        checkVersion(version);
+        return lengths[version];
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean isKeyframe(int version) {
+        checkVersion(version);
+        return kinds[version] == KEYFRAME;
+    }
+
+    /**
+     * @return the latest keyframe at or before version
+     */
+    int keyframeOf(int version) {
+        checkVersion(version);
+        return keyframes[version];
+    }
+
+    long size(int version) {
+        checkVersion(version);
+        return sizes[version];
+    }
+
+    /**
+     * @return the size of the file
+     */
+    long length() {
+        return end;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Forces appended versions to the disk.
+     */
+    void sync() throws IOException {
+        raf.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    private void checkVersion(int version) {
+        if (version < 0 || version >= count) {
+            throw new IndexOutOfBoundsException(String.format("version %d of %d", version, count));
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 David Ehrmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.davidehrmann.vcdiff.util;
+
+import com.davidehrmann.vcdiff.mina_buffer.CachedBufferAllocator;
+import com.davidehrmann.vcdiff.mina_buffer.IoBuffer;
+import com.davidehrmann.vcdiff.mina_buffer.IoBufferAllocator;
+import com.davidehrmann.vcdiff.mina_buffer.SimpleBufferAllocator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supplies the working buffers used by the encoder (delta window sections) and
+ * the decoder (input staging and decoded target).  A pooled instance recycles
+ * released buffers in power-of-two size classes, so encoders and decoders
+ * created at a high rate don't have to allocate and zero fresh buffers for
+ * every delta.
+ *
+ * Buffers come back from {@link #acquire(int)} heap-backed and auto-expanding;
+ * their contents are undefined.  A buffer must not be used after it has been
+ * passed to {@link #release(IoBuffer)}.
+ *
+ * Pools are threadsafe and may be shared between builders.
+ *
+ * @author      David Ehrmann
+ */
+public final class BufferPool {
+
+    /**
+     * The default maximum number of buffers cached per size class.
+     */
+    public static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 8;
+
+    /**
+     * The default capacity of the largest buffer that will be cached.
+     */
+    public static final int DEFAULT_MAX_CACHED_BUFFER_SIZE = 1 << 18; // 256KB
+
+    /**
+     * The capacity of the largest buffer that's allocated in a power-of-two
+     * size class.  Larger requests can't be rounded up to the next class,
+     * which would exceed the largest possible array, so they're allocated at
+     * exactly the requested size and never recycled.
+     */
+    public static final int MAX_SIZE_CLASS = 1 << 30;
+
+    private static final IoBufferAllocator EXACT_ALLOCATOR = new SimpleBufferAllocator();
+
+    private static final BufferPool UNPOOLED = new BufferPool(EXACT_ALLOCATOR, null);
+
+    private final IoBufferAllocator allocator;
+    private final CachedBufferAllocator cachedAllocator;
+
+    private final AtomicLong acquiredCount = new AtomicLong();
+    private final AtomicLong releasedCount = new AtomicLong();
+    private final AtomicLong exactAllocatedCount = new AtomicLong();
+
+    private BufferPool(IoBufferAllocator allocator, CachedBufferAllocator cachedAllocator) {
+        this.allocator = allocator;
+        this.cachedAllocator = cachedAllocator;
+    }
+
+    private BufferPool(CachedBufferAllocator cachedAllocator) {
+        this(cachedAllocator, cachedAllocator);
+    }
+
+    /**
+     * Returns a pool that allocates a new buffer for every request and never
+     * recycles them.  Holders of a buffer from this pool keep it for reuse
+     * instead of releasing it.  This is the default.
+     *
+     * @return the unpooled instance
+     */
+    public static BufferPool unpooled() {
+        return UNPOOLED;
+    }
+
+    /**
+     * Returns a new pool with a separate cache per thread, using the default limits.
+     * Buffers released by a thread other than the one that acquired them are
+     * left to the garbage collector.
+     *
+     * @return the new pool
+     */
+    public static BufferPool threadLocal() {
+        return threadLocal(DEFAULT_MAX_BUFFERS_PER_SIZE, DEFAULT_MAX_CACHED_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a new pool with a separate cache per thread.
+     *
+     * @param maxBuffersPerSize maximum number of buffers cached per size class and thread,
+     *                          or 0 for no limit
+     * @param maxCachedBufferSize capacity of the largest buffer that will be cached,
+     *                            or 0 for no limit
+     * @return the new pool
+     */
+    public static BufferPool threadLocal(int maxBuffersPerSize, int maxCachedBufferSize) {
+        return new BufferPool(new CachedBufferAllocator(maxBuffersPerSize, maxCachedBufferSize, true));
+    }
+
+    /**
+     * Returns a new pool with a single cache shared by all threads, using the default limits.
+     *
+     * @return the new pool
+     */
+    public static BufferPool shared() {
+        return shared(DEFAULT_MAX_BUFFERS_PER_SIZE, DEFAULT_MAX_CACHED_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a new pool with a single cache shared by all threads.
+     *
+     * @param maxBuffersPerSize maximum number of buffers cached per size class,
+     *                          or 0 for no limit
+     * @param maxCachedBufferSize capacity of the largest buffer that will be cached,
+     *                            or 0 for no limit
+     * @return the new pool
+     */
+    public static BufferPool shared(int maxBuffersPerSize, int maxCachedBufferSize) {
+        return new BufferPool(new CachedBufferAllocator(maxBuffersPerSize, maxCachedBufferSize, false));
+    }
+
+    /**
+     * Returns an empty, auto-expanding heap buffer with room for at least capacity bytes.
+     *
+     * @param capacity initial capacity of the buffer
+     * @return the buffer
+     */
+    public IoBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity can't be negative");
+        }
+
+        acquiredCount.incrementAndGet();
+        IoBuffer buffer;
+        if (capacity > MAX_SIZE_CLASS && cachedAllocator != null) {
+            exactAllocatedCount.incrementAndGet();
+            buffer = EXACT_ALLOCATOR.allocate(capacity, false);
+        } else {
+            buffer = allocator.allocate(capacity, false);
+        }
+        buffer.setAutoExpand(true);
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to the pool.  buffer must not be used afterwards.
+     *
+     * @param buffer buffer obtained from {@link #acquire(int)}, or null
+     */
+    public void release(IoBuffer buffer) {
+        if (buffer != null) {
+            releasedCount.incrementAndGet();
+            buffer.free();
+        }
+    }
+
+    /**
+     * Returns whether released buffers are kept for reuse.  When this is false,
+     * holders of long-lived buffers should keep them rather than releasing them
+     * and acquiring new ones.
+     *
+     * @return true if this pool recycles buffers
+     */
+    public boolean recyclesBuffers() {
+        return cachedAllocator != null;
+    }
+
+    /**
+     * Returns a snapshot of the pool's counters.
+     *
+     * @return the statistics
+     */
+    public Statistics getStatistics() {
+        if (cachedAllocator == null) {
+            long acquired = acquiredCount.get();
+            return new Statistics(acquired, releasedCount.get(), acquired, 0, 0);
+        } else {
+            return new Statistics(
+                    acquiredCount.get(),
+                    releasedCount.get(),
+                    cachedAllocator.getAllocatedCount() + exactAllocatedCount.get(),
+                    cachedAllocator.getReusedCount(),
+                    cachedAllocator.getRecycledCount()
+            );
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (cachedAllocator == null) {
+            return "BufferPool[unpooled]";
+        }
+        return String.format("BufferPool[%s, maxBuffersPerSize=%d, maxCachedBufferSize=%d]",
+                cachedAllocator.isThreadLocal() ? "thread-local" : "shared",
+                cachedAllocator.getMaxPoolSize(), cachedAllocator.getMaxCachedBufferSize());
+    }
+
+    /**
+     * Counters describing how a {@link BufferPool} has been used.
+     */
+    public static final class Statistics {
+        private final long acquired;
+        private final long released;
+        private final long allocated;
+        private final long reused;
+        private final long recycled;
+
+        Statistics(long acquired, long released, long allocated, long reused, long recycled) {
+            this.acquired = acquired;
+            this.released = released;
+            this.allocated = allocated;
+            this.reused = reused;
+            this.recycled = recycled;
+        }
+
+        /**
+         * @return number of calls to {@link BufferPool#acquire(int)}
+         */
+        public long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * @return number of calls to {@link BufferPool#release(IoBuffer)}
+         */
+        public long getReleased() {
+            return released;
+        }
+
+        /**
+         * @return number of buffers newly allocated, including those allocated when a buffer expanded
+         */
+        public long getAllocated() {
+            return allocated;
+        }
+
+        /**
+         * @return number of allocations satisfied by a recycled buffer
+         */
+        public long getReused() {
+            return reused;
+        }
+
+        /**
+         * @return number of buffers put back into the pool for reuse
+         */
+        public long getRecycled() {
+            return recycled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("acquired=%d, released=%d, allocated=%d, reused=%d, recycled=%d",
+                    acquired, released, allocated, reused, recycled);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 David Ehrmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.davidehrmann.vcdiff.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The dictionary (source file) a decoder copies from.  The decoder only reads
+ * the ranges that COPY instructions refer to, so a dictionary backed by a file
+ * doesn't have to be read into memory as a whole.
+ *
+ * {@link #wrap(ByteBuffer)} is a dictionary already in memory.
+ * {@link #cached(FileChannel, int, int)} reads a file in fixed-size pages with
+ * positional reads, keeping the most recently used pages in a cache.
+ * {@link #memoryMapped(FileChannel)} maps the file into memory, leaving the
+ * caching to the operating system.  Closing a source backed by a channel
+ * closes the channel.
+ *
+ * Sources aren't threadsafe, and the decoder doesn't close them.
+ *
+ * @author      David Ehrmann
+ */
+public abstract class DictionarySource implements Closeable {
+
+    /**
+     * The default page size of a cached source.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+    /**
+     * The default number of pages a cached source keeps.
+     */
+    public static final int DEFAULT_CACHED_PAGES = 256; // 16MB with the default page size
+
+    // Mapping is limited to Integer.MAX_VALUE bytes at a time
+    private static final long MAPPED_REGION_SIZE = 1L << 30;
+
+    DictionarySource() {
+    }
+
+    /**
+     * @return the size of the dictionary in bytes
+     */
+    public abstract long size();
+
+    /**
+     * Returns a buffer whose remaining bytes are the dictionary's bytes from
+     * position onwards.  It holds at least one and at most length bytes, so
+     * callers reading a range that crosses a page or region boundary call this
+     * repeatedly.  The buffer must not be modified, and is only valid until the
+     * next call.
+     *
+     * @param position position within the dictionary
+     * @param length number of bytes wanted; must be positive
+     * @return the buffer
+     * @throws IOException if the dictionary couldn't be read
+     * @throws IndexOutOfBoundsException if the range isn't within the dictionary
+     */
+    public abstract ByteBuffer read(long position, int length) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Returns a source for a dictionary in memory.  As with
+     * {@link com.davidehrmann.vcdiff.VCDiffStreamingDecoder#startDecoding(ByteBuffer)},
+     * the dictionary is the buffer's contents from index 0 up to its limit, and
+     * they aren't copied.
+     *
+     * @param dictionary the dictionary
+     * @return the source
+     */
+    public static DictionarySource wrap(ByteBuffer dictionary) {
+        return new BufferSource(Objects.requireNotNull(dictionary, "dictionary was null"));
+    }
+
+    /**
+     * Returns a source that reads channel through a cache of the default size.
+     *
+     * @param channel channel to read; it isn't modified
+     * @return the source
+     * @throws IOException if the size of the channel couldn't be read
+     */
+    public static DictionarySource cached(FileChannel channel) throws IOException {
+        return cached(channel, DEFAULT_PAGE_SIZE, DEFAULT_CACHED_PAGES);
+    }
+
+    /**
+     * Returns a source that reads channel in pages of pageSize bytes, keeping up
+     * to maxPages of them.  When the cache is full, the least recently used
+     * page is evicted.
+     *
+     * @param channel channel to read; it isn't modified
+     * @param pageSize size of each page; must be a power of two
+     * @param maxPages maximum number of pages to keep; must be positive
+     * @return the source
+     * @throws IOException if the size of the channel couldn't be read
+     */
+    public static DictionarySource cached(FileChannel channel, int pageSize, int maxPages) throws IOException {
+        if (pageSize <= 0 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("pageSize must be a positive power of two: " + pageSize);
+        }
+        if (maxPages <= 0) {
+            throw new IllegalArgumentException("maxPages must be positive: " + maxPages);
+        }
+        return new CachedChannelSource(Objects.requireNotNull(channel, "channel was null"), pageSize, maxPages);
+    }
+
+    /**
+     * Returns a source that maps channel into memory.  It's mapped in regions
+     * as they're first read.
+     *
+     * @param channel channel to map; it isn't modified
+     * @return the source
+     * @throws IOException if the size of the channel couldn't be read
+     */
+    public static DictionarySource memoryMapped(FileChannel channel) throws IOException {
+        return new MappedChannelSource(Objects.requireNotNull(channel, "channel was null"));
+    }
+
+    private static void checkRange(long position, int length, long size) {
+        if (position < 0 || length <= 0 || position > size - length) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "Range of %d bytes at %d is outside a dictionary of %d bytes", length, position, size
+            ));
+        }
+    }
+
+    private static final class BufferSource extends DictionarySource {
+        private final ByteBuffer dictionary;
+
+        BufferSource(ByteBuffer dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public long size() {
+            return dictionary.limit();
+        }
+
+        @Override
+        public ByteBuffer read(long position, int length) {
+            checkRange(position, length, size());
+            ByteBuffer result = dictionary.duplicate();
+            result.limit((int) position + length);
+            result.position((int) position);
+            return result;
+        }
+    }
+
+    private static final class CachedChannelSource extends DictionarySource {
+        private final FileChannel channel;
+        private final long size;
+        private final int pageSize;
+        private final int pageShift;
+        private final int maxPages;
+
+        // Pages by index, in access order
+        private final Map<Long, ByteBuffer> pages = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true);
+
+        CachedChannelSource(FileChannel channel, int pageSize, int maxPages) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.pageSize = pageSize;
+            this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+            this.maxPages = maxPages;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public ByteBuffer read(long position, int length) throws IOException {
+            checkRange(position, length, size);
+            final long index = position >>> pageShift;
+            ByteBuffer page = pages.get(index);
+            if (page == null) {
+                page = loadPage(index);
+            }
+
+            final int offset = (int) (position & (pageSize - 1));
+            ByteBuffer result = page.duplicate();
+            result.limit((int) Math.min(page.limit(), (long) offset + length));
+            result.position(offset);
+            return result;
+        }
+
+        // Reads the page at index into the cache, reusing the least recently
+        // used page's buffer if the cache is full.
+        private ByteBuffer loadPage(long index) throws IOException {
+            ByteBuffer page;
+            if (pages.size() >= maxPages) {
+                Iterator<ByteBuffer> eldest = pages.values().iterator();
+                page = eldest.next();
+                eldest.remove();
+                page.clear();
+            } else {
+                page = ByteBuffer.allocate(pageSize);
+            }
+
+            final long start = index << pageShift;
+            page.limit((int) Math.min(pageSize, size - start));
+            while (page.hasRemaining()) {
+                if (channel.read(page, start + page.position()) < 0) {
+                    throw new EOFException(String.format(
+                            "Dictionary ended at %d, before its expected size of %d bytes", start + page.position(), size
+                    ));
+                }
+            }
+            page.flip();
+            pages.put(index, page);
+            return page;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pages.clear();
+            channel.close();
+        }
+    }
+
+    private static final class MappedChannelSource extends DictionarySource {
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer[] regions;
+
+        MappedChannelSource(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.regions = new ByteBuffer[(int) ((size + MAPPED_REGION_SIZE - 1) / MAPPED_REGION_SIZE)];
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public ByteBuffer read(long position, int length) throws IOException {
+            checkRange(position, length, size);
+            final int index = (int) (position / MAPPED_REGION_SIZE);
+            ByteBuffer region = regions[index];
+            if (region == null) {
+                final long start = index * MAPPED_REGION_SIZE;
+                region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAPPED_REGION_SIZE, size - start));
+                regions[index] = region;
+            }
+
+            final int offset = (int) (position % MAPPED_REGION_SIZE);
+            ByteBuffer result = region.duplicate();
+            result.limit((int) Math.min(region.capacity(), (long) offset + length));
+            result.position(offset);
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Mapped regions are only unmapped once they're garbage collected
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = null;
+            }
+            channel.close();
+        }
+    }
+}
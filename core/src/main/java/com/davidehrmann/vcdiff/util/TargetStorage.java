@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 David Ehrmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.davidehrmann.vcdiff.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Describes where a decoder keeps the target data it has decoded.  The decoder
+ * needs all of it until decoding finishes, because a window may copy from
+ * any earlier part of the target.
+ *
+ * {@link #heap()}, the default, keeps the target in a single byte array that
+ * doubles as it grows.  The segmented kinds keep it in fixed-size segments
+ * outside the Java heap, either direct buffers or regions of a memory-mapped
+ * temporary file.  Growing never copies data already decoded, and large targets
+ * don't burden the garbage collector.  They're meant for targets of hundreds
+ * of megabytes or more.
+ *
+ * Instances are immutable and may be shared between builders.
+ *
+ * @author      David Ehrmann
+ */
+public final class TargetStorage {
+
+    /**
+     * The default size of a segment of a segmented target.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20; // 1MB
+
+    private static final TargetStorage HEAP = new TargetStorage(0, null, false);
+
+    private final int segmentSize;
+    private final File directory;
+    private final boolean memoryMapped;
+
+    private TargetStorage(int segmentSize, File directory, boolean memoryMapped) {
+        this.segmentSize = segmentSize;
+        this.directory = directory;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Returns the storage that keeps the target in a heap byte array.  This is the default.
+     *
+     * @return the heap instance
+     */
+    public static TargetStorage heap() {
+        return HEAP;
+    }
+
+    /**
+     * Returns storage that keeps the target in direct buffers of the default segment size.
+     *
+     * @return the storage
+     */
+    public static TargetStorage direct() {
+        return direct(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns storage that keeps the target in direct buffers.  The segments are
+     * kept between decodes by the same decoder, so they're only allocated once.
+     *
+     * @param segmentSize size of each segment; must be a power of two
+     * @return the storage
+     */
+    public static TargetStorage direct(int segmentSize) {
+        return new TargetStorage(checkSegmentSize(segmentSize), null, false);
+    }
+
+    /**
+     * Returns storage that keeps the target in a memory-mapped temporary file
+     * in directory, using the default segment size.
+     *
+     * @param directory directory for the temporary file, or null for the system default
+     * @return the storage
+     */
+    public static TargetStorage memoryMapped(File directory) {
+        return memoryMapped(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns storage that keeps the target in a memory-mapped temporary file.
+     * The file is created when decoding needs the first segment, and deleted
+     * when decoding finishes.
+     *
+     * @param directory directory for the temporary file, or null for the system default
+     * @param segmentSize size of each mapped region; must be a power of two
+     * @return the storage
+     */
+    public static TargetStorage memoryMapped(File directory, int segmentSize) {
+        return new TargetStorage(checkSegmentSize(segmentSize), directory, true);
+    }
+
+    /**
+     * @return true unless this is the {@link #heap()} storage
+     */
+    public boolean isSegmented() {
+        return segmentSize != 0;
+    }
+
+    /**
+     * @return true if segments are regions of a memory-mapped file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * @return the segment size, or 0 for {@link #heap()} storage
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Returns a new allocator for the segments of one decoder's target.
+     *
+     * @return the allocator
+     * @throws IllegalStateException if this is the {@link #heap()} storage
+     */
+    public SegmentAllocator newSegmentAllocator() {
+        if (!isSegmented()) {
+            throw new IllegalStateException("Heap target storage isn't segmented");
+        }
+        return new SegmentAllocator(this);
+    }
+
+    @Override
+    public String toString() {
+        if (!isSegmented()) {
+            return "TargetStorage[heap]";
+        } else if (memoryMapped) {
+            return String.format("TargetStorage[mapped, directory=%s, segmentSize=%d]", directory, segmentSize);
+        } else {
+            return String.format("TargetStorage[direct, segmentSize=%d]", segmentSize);
+        }
+    }
+
+    private static int checkSegmentSize(int segmentSize) {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("segmentSize must be a positive power of two: " + segmentSize);
+        }
+        return segmentSize;
+    }
+
+    /**
+     * Allocates the segments of a single target.  Not threadsafe.
+     */
+    public static final class SegmentAllocator {
+        private final TargetStorage storage;
+
+        private File file;
+        private RandomAccessFile randomAccessFile;
+        private long mappedLength;
+
+        SegmentAllocator(TargetStorage storage) {
+            this.storage = storage;
+        }
+
+        /**
+         * @return the storage this allocator was created from
+         */
+        public TargetStorage getStorage() {
+            return storage;
+        }
+
+        /**
+         * Returns a new segment with position 0 and limit and capacity equal to
+         * the segment size.
+         *
+         * @return the segment
+         * @throws IOException if the backing file couldn't be created or mapped
+         */
+        public ByteBuffer allocateSegment() throws IOException {
+            if (!storage.memoryMapped) {
+                return ByteBuffer.allocateDirect(storage.segmentSize);
+            }
+
+            if (randomAccessFile == null) {
+                file = File.createTempFile("vcdiff-target", ".tmp", storage.directory);
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                mappedLength = 0;
+            }
+
+            ByteBuffer segment = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, mappedLength, storage.segmentSize);
+            mappedLength += storage.segmentSize;
+            return segment;
+        }
+
+        /**
+         * Closes and deletes the backing file, if there is one.  Segments already
+         * allocated must not be used afterwards.  The allocator can still be used
+         * to allocate new segments.
+         */
+        public void close() {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                    // Nothing was written through the file itself
+                }
+                randomAccessFile = null;
+            }
+            if (file != null) {
+                // This can fail while the mapped segments haven't been garbage
+                // collected on some platforms; only then is the file left for
+                // deleteOnExit(), whose list is never trimmed, so registering
+                // every file would grow it without bound in a long-running
+                // process.
+                if (!file.delete() && file.exists()) {
+                    file.deleteOnExit();
+                }
+                file = null;
+            }
+        }
+    }
+}
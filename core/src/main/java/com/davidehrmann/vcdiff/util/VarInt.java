@@ -13,65 +13,116 @@ public final class VarInt {
 
     private VarInt() { }
 
-    public static int getInt(ByteBuffer buffer) throws VarIntParseException, VarIntEndOfBufferException {
+    /**
+     * Returned by {@link #parseInt(ByteBuffer)} and {@link #parseLong(ByteBuffer)}
+     * when the data is not a valid variable-length integer.
+     */
+    public static final int PARSE_ERROR = -1;
+
+    /**
+     * Returned by {@link #parseInt(ByteBuffer)} and {@link #parseLong(ByteBuffer)}
+     * when the buffer ends before the end of the variable-length integer.
+     */
+    public static final int END_OF_BUFFER = -2;
+
+    /**
+     * Parses a variable-length integer without throwing on truncated or
+     * invalid input, for callers that expect to see partial input often.
+     * The buffer's position is advanced only if a value was parsed.
+     *
+     * @param buffer buffer to parse from
+     * @return the non-negative value, {@link #END_OF_BUFFER} or {@link #PARSE_ERROR}
+     */
+    public static int parseInt(ByteBuffer buffer) {
         final int startPosition = buffer.position();
+        final int limit = buffer.limit();
+        int position = startPosition;
         int result = 0;
 
         while (true) {
-            if (!buffer.hasRemaining()) {
-                throw new VarIntEndOfBufferException();
+            if (position >= limit) {
+                return END_OF_BUFFER;
             }
-            if (buffer.position() - startPosition >= 5) {
-                throw new VarIntParseException("Data too long for a 32-bit int");
+            if (position - startPosition >= 5) {
+                // Data too long for a 32-bit int
+                return PARSE_ERROR;
             }
 
-            byte b = buffer.get();
+            byte b = buffer.get(position++);
             result += b & 0x7F;
 
             if ((b & 0x80) == 0) {
+                buffer.position(position);
                 return result;
             }
             if (result > (Integer.MAX_VALUE >> 7)) {
                 // Shifting result by 7 bits would produce a number too large
                 // to be stored in a non-negative int (an overflow)
-                throw new VarIntParseException("Value too large to fit in an int");
+                return PARSE_ERROR;
             }
 
             result <<= 7;
         }
     }
 
-    public static long getLong(ByteBuffer buffer) throws VarIntParseException, VarIntEndOfBufferException {
+    /**
+     * The 64-bit equivalent of {@link #parseInt(ByteBuffer)}.
+     *
+     * @param buffer buffer to parse from
+     * @return the non-negative value, {@link #END_OF_BUFFER} or {@link #PARSE_ERROR}
+     */
+    public static long parseLong(ByteBuffer buffer) {
         final int startPosition = buffer.position();
+        final int limit = buffer.limit();
+        int position = startPosition;
         long result = 0;
 
         while (true) {
-            if (!buffer.hasRemaining()) {
-                throw new VarIntEndOfBufferException();
+            if (position >= limit) {
+                return END_OF_BUFFER;
             }
-            if (buffer.position() - startPosition >= 10) {
-                throw new VarIntParseException("Data too long for a 64-bit int");
+            if (position - startPosition >= 10) {
+                // Data too long for a 64-bit int
+                return PARSE_ERROR;
             }
 
-            byte b = buffer.get();
+            byte b = buffer.get(position++);
             result += b & 0x7F;
 
             if ((b & 0x80) == 0) {
-                if (result < 0) {
-                    new Exception().printStackTrace();
-                }
+                buffer.position(position);
                 return result;
             }
             if (result > (Long.MAX_VALUE >> 7)) {
                 // Shifting result by 7 bits would produce a number too large
-                // to be stored in a non-negative int (an overflow)
-                throw new VarIntParseException("Value too large to fit in an int");
+                // to be stored in a non-negative long (an overflow)
+                return PARSE_ERROR;
             }
 
             result <<= 7;
         }
     }
 
+    public static int getInt(ByteBuffer buffer) throws VarIntParseException, VarIntEndOfBufferException {
+        final int result = parseInt(buffer);
+        if (result == END_OF_BUFFER) {
+            throw new VarIntEndOfBufferException();
+        } else if (result == PARSE_ERROR) {
+            throw new VarIntParseException("Invalid variable-length 32-bit integer");
+        }
+        return result;
+    }
+
+    public static long getLong(ByteBuffer buffer) throws VarIntParseException, VarIntEndOfBufferException {
+        final long result = parseLong(buffer);
+        if (result == END_OF_BUFFER) {
+            throw new VarIntEndOfBufferException();
+        } else if (result == PARSE_ERROR) {
+            throw new VarIntParseException("Invalid variable-length 64-bit integer");
+        }
+        return result;
+    }
+
     public static void putInt(ByteBuffer dest, int val) {
         if (val < 0) {
             throw new IllegalArgumentException(String.format("Value (%d) was negative", val));
@@ -0,0 +1,53 @@
+package com.davidehrmann.vcdiff.engine;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockSketchIndexTest {
+
+    @Test
+    public void ranksClosestVersionFirst() {
+        Random random = new Random(7);
+        byte[] original = new byte[100000];
+        random.nextBytes(original);
+
+        // Each version rewrites more of the original; the target is closest to version 3.
+        BlockSketchIndex<String> index = new BlockSketchIndex<String>();
+        byte[][] versions = new byte[6][];
+        for (int v = 0; v < versions.length; v++) {
+            versions[v] = original.clone();
+            for (int i = 0; i < v * 15000 && i < original.length; i++) {
+                versions[v][i] = (byte) random.nextInt();
+            }
+            index.put("v" + v, BlockSketch.of(versions[v]));
+        }
+        byte[] target = versions[3].clone();
+        for (int i = 90000; i < target.length; i++) {
+            target[i] = (byte) random.nextInt();
+        }
+
+        List<BlockSketchIndex.Candidate<String>> ranked = index.rank(BlockSketch.of(target), 3);
+        assertEquals(3, ranked.size());
+        assertEquals("v3", ranked.get(0).key());
+        assertTrue(ranked.get(0).containment() > ranked.get(1).containment());
+        assertEquals("v3", index.best(BlockSketch.of(target)));
+    }
+
+    @Test
+    public void putReplacesAndRemoveForgets() {
+        BlockSketchIndex<Integer> index = new BlockSketchIndex<Integer>();
+        BlockSketch a = BlockSketch.of(new byte[] { 1, 2, 3 });
+        BlockSketch b = BlockSketch.of(new byte[64]);
+        assertNull(index.put(1, a));
+        assertSame(a, index.put(1, b));
+        assertSame(b, index.get(1));
+        assertEquals(1, index.size());
+        assertSame(b, index.remove(1));
+        assertEquals(0, index.size());
+        assertNull(index.best(a));
+    }
+}
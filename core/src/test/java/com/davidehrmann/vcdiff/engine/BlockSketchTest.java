@@ -0,0 +1,76 @@
+package com.davidehrmann.vcdiff.engine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockSketchTest {
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void identicalDataIsContained() {
+        byte[] data = randomBytes(new Random(1), 100000);
+        assertEquals(1.0, BlockSketch.of(data).containmentIn(BlockSketch.of(data)), 0.0);
+    }
+
+    @Test
+    public void unrelatedDataIsNotContained() {
+        Random random = new Random(2);
+        BlockSketch target = BlockSketch.of(randomBytes(random, 100000));
+        assertEquals(0.0, target.containmentIn(BlockSketch.of(randomBytes(random, 100000))), 0.0);
+    }
+
+    @Test
+    public void partlyContained() {
+        Random random = new Random(3);
+        byte[] dictionary = randomBytes(random, 200000);
+        byte[] target = randomBytes(random, 200000);
+        // A quarter of the target is copied from the dictionary
+        for (int i = 0; i < target.length; i += 4000) {
+            System.arraycopy(dictionary, random.nextInt(dictionary.length - 1000), target, i, 1000);
+        }
+
+        BlockSketch targetSketch = BlockSketch.of(target, 0, target.length, 1024);
+        assertEquals(0.25, targetSketch.containmentIn(BlockSketch.of(dictionary, 0, dictionary.length, 1024)), 0.06);
+    }
+
+    @Test
+    public void shortData() {
+        BlockSketch empty = BlockSketch.of(new byte[BlockSketch.kFingerprintSize - 1]);
+        assertEquals(0.0, empty.containmentIn(empty), 0.0);
+
+        // Fewer fingerprints than the sketch size are all kept
+        byte[] data = randomBytes(new Random(4), 100);
+        BlockSketch sketch = BlockSketch.of(data);
+        assertEquals(1.0, sketch.containmentIn(BlockSketch.of(data, 0, data.length, 8)), 0.0);
+        assertEquals(data.length - BlockSketch.kFingerprintSize + 1, (sketch.toByteArray().length - 12) / 8);
+    }
+
+    @Test
+    public void serialization() {
+        BlockSketch sketch = BlockSketch.of(randomBytes(new Random(5), 10000), 0, 10000, 64);
+        BlockSketch read = BlockSketch.fromByteArray(sketch.toByteArray());
+        assertEquals(sketch, read);
+        assertEquals(64, read.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedSerialization() {
+        byte[] serialized = BlockSketch.of(randomBytes(new Random(6), 10000)).toByteArray();
+        byte[] truncated = new byte[serialized.length - 3];
+        System.arraycopy(serialized, 0, truncated, 0, truncated.length);
+        BlockSketch.fromByteArray(truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBePositive() {
+        BlockSketch.of(new byte[100], 0, 100, 0);
+    }
+}
@@ -0,0 +1,75 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.engine.VCDiffStreamingDecoderImpl.DecoratedByteArrayOutputStream;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DecoratedByteArrayOutputStreamTest {
+    @Test
+    public void replicateShortPeriods() {
+        for (int period = 1; period <= 8; period++) {
+            for (int prefix = 0; prefix < 3; prefix++) {
+                DecoratedByteArrayOutputStream out = new DecoratedByteArrayOutputStream(4);
+                for (int i = 0; i < prefix + period; i++) {
+                    out.write('a' + i);
+                }
+
+                final int from = prefix;
+                final int len = 1000 + period;
+                out.replicate(from, len);
+
+                // Compare against a byte-at-a-time copy
+                byte[] expected = new byte[prefix + period + len];
+                System.arraycopy(out.toByteArray(), 0, expected, 0, prefix + period);
+                for (int i = 0; i < len; i++) {
+                    expected[prefix + period + i] = expected[from + i];
+                }
+                assertArrayEquals(expected, out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void replicateWithoutOverlap() {
+        DecoratedByteArrayOutputStream out = new DecoratedByteArrayOutputStream(4);
+        out.write(new byte[]{1, 2, 3, 4, 5}, 0, 5);
+        out.replicate(1, 3);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 2, 3, 4}, out.toByteArray());
+
+        out.replicate(7, 0);
+        assertEquals(8, out.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void replicatePastEnd() {
+        DecoratedByteArrayOutputStream out = new DecoratedByteArrayOutputStream(4);
+        out.write(new byte[]{1, 2, 3}, 0, 3);
+        out.replicate(3, 1);
+    }
+
+    @Test
+    public void writeByteBuffer() {
+        DecoratedByteArrayOutputStream out = new DecoratedByteArrayOutputStream(2);
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{9, 8, 7, 6});
+        src.get();
+        out.write(src, 2);
+        assertArrayEquals(new byte[]{8, 7}, out.toByteArray());
+        assertEquals(3, src.position());
+    }
+
+    @Test
+    public void growsLikeByteArrayOutputStream() {
+        assertEquals(64, DecoratedByteArrayOutputStream.newCapacity(32, 33));
+        assertEquals(100, DecoratedByteArrayOutputStream.newCapacity(32, 100));
+        assertEquals(1 << 30, DecoratedByteArrayOutputStream.newCapacity(1 << 29, (1 << 29) + 1));
+
+        // Past 1GB, doubling overflows, so the capacity goes to the largest
+        // array rather than to exactly what was asked for
+        assertEquals(Integer.MAX_VALUE - 8, DecoratedByteArrayOutputStream.newCapacity(1 << 30, (1 << 30) + 1));
+        assertEquals(Integer.MAX_VALUE - 8, DecoratedByteArrayOutputStream.newCapacity(1 << 30, Integer.MAX_VALUE - 8));
+        assertEquals(Integer.MAX_VALUE, DecoratedByteArrayOutputStream.newCapacity(Integer.MAX_VALUE - 8, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,126 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffStreamingEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Deltas for tests of code that reads or rewrites them, like the composer and
+ * the in-place patcher.
+ */
+final class DeltaFixtures {
+
+    /**
+     * Both values of a boolean option, for tests that loop over them.
+     */
+    static final boolean[] BOTH = { false, true };
+
+    private DeltaFixtures() {
+    }
+
+    /**
+     * Encodes target with a streaming encoder from builder, one window per
+     * windowSize bytes.
+     *
+     * @param builder a builder with the dictionary or signature and options
+     *                to encode with
+     * @param target the target
+     * @param windowSize the number of bytes of the target in each window
+     * @return the delta
+     * @throws IOException if encoding fails
+     */
+    static byte[] encode(VCDiffEncoderBuilder builder, byte[] target, int windowSize) throws IOException {
+        VCDiffStreamingEncoder<OutputStream> encoder = builder.buildStreaming();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        encoder.startEncoding(delta);
+        for (int i = 0; i < target.length; i += windowSize) {
+            encoder.encodeChunk(target, i, Math.min(windowSize, target.length - i), delta);
+        }
+        encoder.finishEncoding(delta);
+        return delta.toByteArray();
+    }
+
+    /**
+     * Decodes a whole delta with the default decoder.
+     *
+     * @param dictionary the dictionary
+     * @param delta the delta
+     * @return the target
+     * @throws IOException if decoding fails
+     */
+    static byte[] decode(byte[] dictionary, byte[] delta) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VCDiffDecoderBuilder.builder().buildSimple().decode(dictionary, delta, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns length bytes from random.
+     *
+     * @param random the source of the bytes
+     * @param length the number of bytes
+     * @return the bytes
+     */
+    static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a copy of original with edits spread through it.  Between edits,
+     * at least minKept and less than maxKept bytes are kept.  Each edit
+     * deletes, replaces or inserts a block of 1 to maxLength bytes, or copies
+     * one from elsewhere in original; if runs is set, some edits insert runs
+     * of a single byte instead.
+     *
+     * @param random the source of the edits
+     * @param original the bytes to edit
+     * @param minKept the fewest bytes kept between edits
+     * @param maxKept one more than the most bytes kept between edits
+     * @param maxLength the longest block an edit deletes or inserts
+     * @param runs whether to insert runs
+     * @return the edited bytes
+     */
+    static byte[] edit(Random random, byte[] original, int minKept, int maxKept, int maxLength, boolean runs) {
+        final ByteArrayOutputStream edited = new ByteArrayOutputStream(original.length + 4096);
+        int position = 0;
+        while (position < original.length) {
+            final int kept = Math.min(original.length - position, minKept + random.nextInt(maxKept - minKept));
+            edited.write(original, position, kept);
+            position += kept;
+
+            final int length = Math.min(original.length - position, 1 + random.nextInt(maxLength));
+            switch (random.nextInt(runs ? 5 : 4)) {
+                case 0:
+                    position += length;
+                    break;
+                case 1:
+                    final byte[] replacement = randomBytes(random, length);
+                    edited.write(replacement, 0, length);
+                    position += length;
+                    break;
+                case 2:
+                    final int moved = random.nextInt(original.length - length + 1);
+                    edited.write(original, moved, length);
+                    break;
+                case 3:
+                    final byte[] inserted = randomBytes(random, length);
+                    edited.write(inserted, 0, length);
+                    break;
+                default:
+                    final byte run = (byte) random.nextInt(256);
+                    for (int i = 0; i < length; i++) {
+                        edited.write(run);
+                    }
+                    break;
+            }
+        }
+        return edited.toByteArray();
+    }
+}
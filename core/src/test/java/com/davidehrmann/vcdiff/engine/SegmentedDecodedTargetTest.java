@@ -0,0 +1,119 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.engine.VCDiffStreamingDecoderImpl.DecoratedByteArrayOutputStream;
+import com.davidehrmann.vcdiff.util.TargetStorage;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SegmentedDecodedTargetTest {
+
+    private static final int kSegmentSize = 16;
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void MatchesHeapTargetDirect() throws IOException {
+        VerifyMatchesHeapTarget(TargetStorage.direct(kSegmentSize));
+    }
+
+    @Test
+    public void MatchesHeapTargetMapped() throws IOException {
+        VerifyMatchesHeapTarget(TargetStorage.memoryMapped(null, kSegmentSize));
+    }
+
+    // Applies the same random mix of writes, replications and runs to a
+    // segmented target and a heap target, and compares their contents.
+    private void VerifyMatchesHeapTarget(TargetStorage storage) throws IOException {
+        SegmentedDecodedTarget segmented = new SegmentedDecodedTarget(storage.newSegmentAllocator());
+        DecoratedByteArrayOutputStream heap = new DecoratedByteArrayOutputStream(4);
+
+        for (int i = 0; i < 500; i++) {
+            int op = (heap.size() == 0) ? 0 : random.nextInt(3);
+            switch (op) {
+                case 0:
+                    byte[] data = new byte[random.nextInt(40)];
+                    random.nextBytes(data);
+                    segmented.write(ByteBuffer.wrap(data), data.length);
+                    heap.write(ByteBuffer.wrap(data), data.length);
+                    break;
+                case 1:
+                    int from = random.nextInt(heap.size());
+                    int len = random.nextInt(50);
+                    segmented.replicate(from, len);
+                    heap.replicate(from, len);
+                    break;
+                default:
+                    int b = random.nextInt(256);
+                    segmented.write(b);
+                    heap.write(b);
+                    break;
+            }
+            assertEquals(heap.size(), segmented.size());
+        }
+
+        assertArrayEquals(heap.toByteArray(), contents(segmented, 0, segmented.size()));
+
+        int from = 5;
+        int len = segmented.size() - 27;
+        byte[] expected = new byte[len];
+        System.arraycopy(heap.toByteArray(), from, expected, 0, len);
+        assertArrayEquals(expected, contents(segmented, from, len));
+
+        segmented.release();
+        assertEquals(0, segmented.size());
+    }
+
+    @Test
+    public void SlicesFollowSegmentBoundaries() throws IOException {
+        SegmentedDecodedTarget target = new SegmentedDecodedTarget(
+                TargetStorage.direct(kSegmentSize).newSegmentAllocator());
+        target.write(ByteBuffer.wrap(new byte[40]), 40);
+
+        assertEquals(0, target.slices(7, 0).length);
+        assertEquals(1, target.slices(0, kSegmentSize).length);
+        assertEquals(2, target.slices(15, 2).length);
+
+        ByteBuffer[] slices = target.slices(10, 30);
+        assertEquals(3, slices.length);
+        assertEquals(6, slices[0].remaining());
+        assertEquals(16, slices[1].remaining());
+        assertEquals(8, slices[2].remaining());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void SlicesPastEnd() throws IOException {
+        SegmentedDecodedTarget target = new SegmentedDecodedTarget(
+                TargetStorage.direct(kSegmentSize).newSegmentAllocator());
+        target.write(ByteBuffer.wrap(new byte[10]), 10);
+        target.slices(5, 6);
+    }
+
+    @Test
+    public void ReleaseKeepsDirectSegments() throws IOException {
+        SegmentedDecodedTarget target = new SegmentedDecodedTarget(
+                TargetStorage.direct(kSegmentSize).newSegmentAllocator());
+        target.write(ByteBuffer.wrap(new byte[40]), 40);
+        ByteBuffer first = target.slices(0, 1)[0];
+        target.release();
+        target.write(0x42);
+        ByteBuffer reused = target.slices(0, 1)[0];
+        assertEquals(0x42, reused.get(0));
+        assertEquals(0x42, first.get(0));
+    }
+
+    private static byte[] contents(DecodedTarget target, int from, int len) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer slice : target.slices(from, len)) {
+            while (slice.hasRemaining()) {
+                out.write(slice.get());
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -92,7 +92,7 @@ public class VCDiffCodeTableReaderTest {
         if (size == 0) {
             assertEquals(1000 + (opcode & 0xff), found_size.get());
         } else {
-            assertEquals(size, found_size.get());
+            assertEquals(size & 0xff, found_size.get());
         }
     }
 
@@ -526,4 +526,27 @@ public class VCDiffCodeTableReaderTest {
 
         assertEquals(VCDiffCodeTableData.kCodeTableSize, opcode);
     }
+
+    @Test
+    public void DefaultInstructionTablesMatchDefaultCodeTable() {
+        final VCDiffCodeTableData table = VCDiffCodeTableData.kDefaultCodeTableData;
+        for (int opcode = 0; opcode < VCDiffCodeTableData.kCodeTableSize; ++opcode) {
+            VerifyPackedInstruction(VCDiffCodeTableReader.DEFAULT_FIRST_INSTRUCTIONS[opcode],
+                    table.inst1[opcode], table.size1[opcode], table.mode1[opcode]);
+            VerifyPackedInstruction(VCDiffCodeTableReader.DEFAULT_SECOND_INSTRUCTIONS[opcode],
+                    table.inst2[opcode], table.size2[opcode], table.mode2[opcode]);
+        }
+        Assert.assertTrue(reader_.usesDefaultCodeTable());
+        Assert.assertFalse(new VCDiffCodeTableReader(g_exercise_code_table_, kLastExerciseMode).usesDefaultCodeTable());
+    }
+
+    private static void VerifyPackedInstruction(int packed, byte inst, byte size, byte mode) {
+        if (inst == VCDiffCodeTableData.VCD_NOOP) {
+            assertEquals(0, packed);
+        } else {
+            assertEquals(inst, (byte) packed);
+            assertEquals(size & 0xff, (packed >>> 8) & 0xff);
+            assertEquals(mode & 0xff, packed >>> 16);
+        }
+    }
 }
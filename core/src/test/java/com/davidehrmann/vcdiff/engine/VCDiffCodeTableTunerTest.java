@@ -0,0 +1,154 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+import com.davidehrmann.vcdiff.VCDiffStreamingEncoder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.BOTH;
+import static org.junit.Assert.*;
+
+public class VCDiffCodeTableTunerTest {
+
+    private static final int kWindows = 200;
+    private static final int kWindowSize = 4096;
+
+    private final byte[] dictionary = new byte[256 * 1024];
+    private final byte[] target = new byte[kWindows * kWindowSize];
+
+    public VCDiffCodeTableTunerTest() {
+        // Copies of 40 to 100 bytes from the dictionary, each followed by a
+        // few edited bytes, like records that each have a few fields changed
+        Random random = new Random(0x7ab1e);
+        random.nextBytes(dictionary);
+        random.nextBytes(target);
+        for (int i = 0; i < target.length; ) {
+            final int length = Math.min(40 + random.nextInt(61), target.length - i);
+            System.arraycopy(dictionary, random.nextInt(dictionary.length - length), target, i, length);
+            i += length + 1 + random.nextInt(4);
+        }
+    }
+
+    @Test
+    public void tunedCodeTableIsValid() throws IOException {
+        VCDiffCodeTableTuner tuner = new VCDiffCodeTableTuner();
+        VCDiffStreamingEncoderImpl<Void> encoder = new VCDiffStreamingEncoderImpl<Void>(
+                tuner, new HashedDictionary(dictionary), EnumSet.noneOf(VCDiffFormatExtension.class), true
+        );
+        encoder.startEncoding(null);
+        encoder.encodeChunk(target, 0, 64 * 1024, null);
+        encoder.finishEncoding(null);
+
+        VCDiffCodeTableData codeTable = tuner.codeTable();
+        assertTrue(codeTable.Validate(VCDiffAddressCache.DefaultLastMode()));
+        assertFalse(Arrays.equals(VCDiffCodeTableData.kDefaultCodeTableData.getBytes(), codeTable.getBytes()));
+
+        // Without any counts, the table is made of the default table's entries
+        assertTrue(new VCDiffCodeTableTuner().codeTable().Validate(VCDiffAddressCache.DefaultLastMode()));
+    }
+
+    @Test
+    public void tunedCodeTableShrinksManyWindows() throws IOException {
+        final byte[] sample = Arrays.copyOf(target, 16 * kWindowSize);
+        for (boolean interleaved : BOTH) {
+            for (boolean checksum : BOTH) {
+                final String options = String.format("interleaved %b, checksum %b", interleaved, checksum);
+                VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                        .withDictionary(dictionary)
+                        .withInterleaving(interleaved)
+                        .withChecksum(checksum);
+
+                final byte[] standard = DeltaFixtures.encode(builder, target, kWindowSize);
+                final byte[] tuned = DeltaFixtures.encode(builder.withCodeTableTunedTo(sample), target, kWindowSize);
+                assertEquals(options, VCDiffHeaderParser.VCD_CODETABLE, tuned[4]);
+                assertTrue(options + ": " + tuned.length + " vs " + standard.length, tuned.length < standard.length * 0.95);
+                assertDecodes(tuned);
+            }
+        }
+    }
+
+    @Test
+    public void tunedCodeTableWithChannel() throws IOException {
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                .withDictionary(dictionary)
+                .withCodeTableTunedTo(target);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VCDiffStreamingEncoder<OutputStream> encoder = builder.buildStreaming();
+        encoder.startEncoding(out);
+        encoder.encodeChunk(target, out);
+        encoder.finishEncoding(out);
+
+        ByteArrayOutputStream channelBytes = new ByteArrayOutputStream();
+        GatheringByteChannel channel = new VCDiffCodeTableWriterImplTest.TrickleGatheringChannel(channelBytes);
+        VCDiffStreamingEncoder<GatheringByteChannel> channelEncoder = builder.buildStreamingChannel();
+        channelEncoder.startEncoding(channel);
+        channelEncoder.encodeChunk(target, channel);
+        channelEncoder.finishEncoding(channel);
+
+        assertArrayEquals(out.toByteArray(), channelBytes.toByteArray());
+        assertDecodes(channelBytes.toByteArray());
+    }
+
+    // Opcodes for implicit sizes above 127 have to be read as unsigned bytes
+    @Test
+    public void tunedCodeTableWithLargeSizes() throws IOException {
+        // Copies of 130 to 140 bytes, each followed by an ADD of 130 to 140
+        // random bytes
+        Random random = new Random(0x512e);
+        final byte[] largeTarget = new byte[64 * 1024];
+        random.nextBytes(largeTarget);
+        for (int i = 0; i < largeTarget.length; ) {
+            final int length = Math.min(130 + random.nextInt(11), largeTarget.length - i);
+            System.arraycopy(dictionary, random.nextInt(dictionary.length - length), largeTarget, i, length);
+            i += length + 130 + random.nextInt(11);
+        }
+
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                .withDictionary(dictionary)
+                .withCodeTableTunedTo(largeTarget);
+
+        VCDiffCodeTableTuner tuner = new VCDiffCodeTableTuner();
+        VCDiffStreamingEncoderImpl<Void> encoder = new VCDiffStreamingEncoderImpl<Void>(
+                tuner, new HashedDictionary(dictionary), EnumSet.noneOf(VCDiffFormatExtension.class), true
+        );
+        encoder.startEncoding(null);
+        encoder.encodeChunk(largeTarget, 0, largeTarget.length, null);
+        encoder.finishEncoding(null);
+        VCDiffCodeTableData codeTable = tuner.codeTable();
+        boolean largeAdd = false;
+        boolean largeCopy = false;
+        for (int opcode = 0; opcode < VCDiffCodeTableData.kCodeTableSize; opcode++) {
+            if ((codeTable.size1[opcode] & 0xff) > 127) {
+                largeAdd |= codeTable.inst1[opcode] == VCDiffCodeTableData.VCD_ADD;
+                largeCopy |= codeTable.inst1[opcode] == VCDiffCodeTableData.VCD_COPY;
+            }
+        }
+        assertTrue(largeAdd);
+        assertTrue(largeCopy);
+
+        for (boolean interleaved : new boolean[] { false, true }) {
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            builder.withInterleaving(interleaved).buildSimple().encode(largeTarget, delta);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            VCDiffDecoderBuilder.builder().buildSimple().decode(dictionary, delta.toByteArray(), result);
+            assertArrayEquals("interleaved " + interleaved, largeTarget, result.toByteArray());
+        }
+    }
+
+    private void assertDecodes(byte[] delta) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        VCDiffDecoderBuilder.builder().buildSimple().decode(dictionary, delta, result);
+        assertArrayEquals(target, result.toByteArray());
+    }
+}
@@ -4,9 +4,18 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.davidehrmann.vcdiff.VCDiffFormatExtension;
+
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableData.*;
 import static com.davidehrmann.vcdiff.engine.VCDiffCodeTableWriterImpl.VCD_CHECKSUM;
@@ -367,6 +376,197 @@ public class VCDiffCodeTableWriterImplTest {
         }, out.toByteArray());
     }
 
+    // With narrowed source segments, the segment only covers the dictionary
+    // range that's copied, and COPY addresses are relative to it.  Addresses in
+    // the target window still follow the segment.
+    @Test
+    public void NarrowSourceSegment() throws IOException {
+        byte[] dictionary = new byte[0x1000];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = (byte) (i * 7);
+        }
+
+        for (VCDiffCodeTableWriterImpl writer : Arrays.asList(standard_writer, interleaved_writer)) {
+            out.reset();
+            writer.setNarrowSourceSegments(true);
+            writer.writeHeader(out, writer == interleaved_writer
+                    ? EnumSet.of(VCDiffFormatExtension.GOOGLE_INTERLEAVED)
+                    : EnumSet.noneOf(VCDiffFormatExtension.class));
+            final int headerSize = out.size();
+            writer.init(dictionary.length);
+            writer.add("foo".getBytes(US_ASCII), 0, 3);
+            writer.copy(0x808, 8);
+            writer.copy(0x800, 4);
+            writer.copy(dictionary.length + 3, 8);
+            writer.run(2, (byte) 'z');
+            writer.output(out);
+
+            byte[] delta = out.toByteArray();
+            assertEquals(VCD_SOURCE, delta[headerSize]);         // Win_Indicator: VCD_SOURCE (dictionary)
+            assertEquals(0x10, delta[headerSize + 1]);           // Source segment size: 16
+            assertEquals((byte) 0x90, delta[headerSize + 2]);    // Source segment position: 0x800 (1)
+            assertEquals(0x00, delta[headerSize + 3]);           // Source segment position: 0x800 (2)
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write("foo".getBytes(US_ASCII));
+            expected.write(dictionary, 0x808, 8);
+            expected.write(dictionary, 0x800, 4);
+            expected.write(expected.toByteArray(), 3, 8);
+            expected.write(new byte[]{'z', 'z'});
+            assertArrayEquals(expected.toByteArray(), decode(dictionary, delta));
+        }
+    }
+
+    // A narrowed window that doesn't copy from the dictionary has no source segment.
+    @Test
+    public void NarrowSourceSegmentWithoutDictionaryCopies() throws IOException {
+        standard_writer.setNarrowSourceSegments(true);
+        standard_writer.writeHeader(out, EnumSet.noneOf(VCDiffFormatExtension.class));
+        final int headerSize = out.size();
+        standard_writer.init(0x11);
+        standard_writer.add("foo".getBytes(US_ASCII), 0, 3);
+        standard_writer.copy(0x11, 3);
+        standard_writer.output(out);
+
+        byte[] delta = out.toByteArray();
+        assertEquals(0x00, delta[headerSize]);  // Win_Indicator: no source segment
+        assertArrayEquals("foofoo".getBytes(US_ASCII), decode(new byte[0x11], delta));
+    }
+
+    // Narrowing set in the middle of a window takes effect with the next init().
+    @Test
+    public void NarrowSourceSegmentsTakesEffectWithInit() throws IOException {
+        standard_writer.writeHeader(out, EnumSet.noneOf(VCDiffFormatExtension.class));
+        final int headerSize = out.size();
+        standard_writer.init(0x11);
+        standard_writer.add("foo".getBytes(US_ASCII), 0, 3);
+        standard_writer.setNarrowSourceSegments(true);
+        standard_writer.copy(0x11, 3);
+        standard_writer.output(out);
+
+        // output() calls init(), so the next window is narrowed
+        final int secondWindow = out.size();
+        standard_writer.add("bar".getBytes(US_ASCII), 0, 3);
+        standard_writer.output(out);
+
+        byte[] delta = out.toByteArray();
+        assertEquals(0x01, delta[headerSize]);  // Win_Indicator: VCD_SOURCE
+        assertEquals(0x11, delta[headerSize + 1]);  // Source segment size: whole dictionary
+        assertEquals(0x00, delta[secondWindow]);  // Win_Indicator: no source segment
+        assertArrayEquals("foofoobar".getBytes(US_ASCII), decode(new byte[0x11], delta));
+    }
+
+    private static byte[] decode(byte[] dictionary, byte[] delta) throws IOException {
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        decoder.startDecoding(dictionary);
+        decoder.decodeChunk(delta, target);
+        decoder.finishDecoding();
+        return target.toByteArray();
+    }
+
+    @Test
+    public void StandardWriterOutputIsSingleWrite() throws IOException {
+        final AtomicInteger writes = new AtomicInteger(0);
+        OutputStream countingOut = new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                writes.incrementAndGet();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writes.incrementAndGet();
+                out.write(b, off, len);
+            }
+        };
+
+        standard_writer.init(0x11);
+        standard_writer.add("foo".getBytes(US_ASCII), 0, 3);
+        standard_writer.copy(2, 8);
+        standard_writer.run(4, (byte) 'a');
+        standard_writer.addChecksum(0xFFFFFFFF);
+        final int windowSize = standard_writer.getDeltaWindowSize();
+        standard_writer.output(countingOut);
+
+        assertEquals(1, writes.get());
+        assertEquals(windowSize, out.size());
+    }
+
+    @Test
+    public void ChannelOutputMatchesStreamOutput() throws IOException {
+        for (VCDiffCodeTableWriterImpl writer : new VCDiffCodeTableWriterImpl[] {
+                new VCDiffCodeTableWriterImpl(false), new VCDiffCodeTableWriterImpl(true)}) {
+            ByteArrayOutputStream channelBytes = new ByteArrayOutputStream();
+            GatheringByteChannel channel = new TrickleGatheringChannel(channelBytes);
+            out.reset();
+
+            byte[] add = new byte[VCDiffCodeTableWriterImpl.COALESCED_WRITE_LIMIT];
+            Arrays.fill(add, (byte) 'x');
+
+            // The second window is larger than COALESCED_WRITE_LIMIT, so the
+            // OutputStream path writes it section by section.
+            for (int i = 0; i < 2; i++) {
+                writer.init(0x11);
+                writer.add(add, 0, i == 0 ? 3 : add.length);
+                writer.copy(2, 8);
+                writer.run(4, (byte) 'a');
+                writer.addChecksum(0x12345678);
+                writer.output(out);
+
+                writer.init(0x11);
+                writer.add(add, 0, i == 0 ? 3 : add.length);
+                writer.copy(2, 8);
+                writer.run(4, (byte) 'a');
+                writer.addChecksum(0x12345678);
+                writer.output(channel);
+            }
+
+            writer.writeHeader(out, EnumSet.of(VCDiffFormatExtension.GOOGLE_CHECKSUM));
+            writer.writeHeader(channel, EnumSet.of(VCDiffFormatExtension.GOOGLE_CHECKSUM));
+
+            assertArrayEquals(out.toByteArray(), channelBytes.toByteArray());
+        }
+    }
+
+    // A channel that accepts at most 7 bytes per write, to exercise partial writes.
+    static class TrickleGatheringChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream out;
+
+        TrickleGatheringChannel(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            int budget = 7;
+            long written = 0;
+            for (int i = offset; i < offset + length && budget > 0; i++) {
+                while (srcs[i].hasRemaining() && budget > 0) {
+                    out.write(srcs[i].get());
+                    budget--;
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src });
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
     @Test(expected = IllegalStateException.class)
     public void WriterAddWithoutInit() {
         standard_writer.add("Hello".getBytes(US_ASCII), 0, 5);
@@ -0,0 +1,183 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffComposer;
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.BOTH;
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.decode;
+import static org.junit.Assert.*;
+
+public class VCDiffComposerTest {
+
+    private static final int kWindowSize = 4096;
+
+    // A delta, with no dictionary, to "hello" in one window, then "hello"
+    // again in a window whose source segment is the first (VCD_TARGET)
+    private static final byte[] kTargetSegmentDelta = {
+            (byte) 0xD6, (byte) 0xC3, (byte) 0xC4, 0x00, 0x00,
+            0x00, 0x0B, 0x05, 0x00, 0x05, 0x01, 0x00, 'h', 'e', 'l', 'l', 'o', 0x06,
+            0x02, 0x05, 0x00, 0x07, 0x05, 0x00, 0x00, 0x01, 0x01, 0x15, 0x00
+    };
+
+    private final Random random = new Random(0xc0de);
+
+    @Test
+    public void composesChains() throws IOException {
+        final List<byte[]> versions = new ArrayList<byte[]>();
+        versions.add(randomBytes(48 * 1024));
+        for (int i = 0; i < 4; i++) {
+            versions.add(edit(versions.get(i)));
+        }
+
+        for (boolean interleaved : BOTH) {
+            for (boolean checksum : BOTH) {
+                for (boolean narrowSourceSegments : BOTH) {
+                    for (boolean tunedCodeTable : BOTH) {
+                        final String options = String.format(
+                                "interleaved %b, checksum %b, narrow source segments %b, tuned code table %b",
+                                interleaved, checksum, narrowSourceSegments, tunedCodeTable
+                        );
+
+                        final List<ByteBuffer> deltas = new ArrayList<ByteBuffer>();
+                        for (int i = 1; i < versions.size(); i++) {
+                            VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                                    .withDictionary(versions.get(i - 1))
+                                    .withInterleaving(interleaved)
+                                    .withChecksum(checksum)
+                                    .withNarrowSourceSegments(narrowSourceSegments);
+                            if (tunedCodeTable) {
+                                builder.withCodeTableTunedTo(versions.get(i));
+                            }
+                            deltas.add(ByteBuffer.wrap(DeltaFixtures.encode(builder, versions.get(i), kWindowSize)));
+
+                            final byte[] composed = compose(deltas, interleaved);
+                            assertArrayEquals(options + ", versions 0 to " + i, versions.get(i), decode(versions.get(0), composed));
+                        }
+                        assertEquals(0, deltas.get(0).position());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void composesOverlappingTargetCopies() throws IOException {
+        // Patterns repeated many times, which the encoder copies from just
+        // before where they're written
+        final byte[] first = repeating(40 * 1024);
+        final byte[] second = edit(repeating(40 * 1024));
+        final byte[] third = edit(second);
+
+        final List<ByteBuffer> deltas = Arrays.asList(
+                ByteBuffer.wrap(encode(first, second)),
+                ByteBuffer.wrap(encode(second, third))
+        );
+        assertArrayEquals(third, decode(first, compose(deltas, false)));
+        assertArrayEquals(third, decode(first, compose(deltas, true)));
+    }
+
+    @Test
+    public void composesTargetSourceSegments() throws IOException {
+        final byte[] hello = "hellohello".getBytes("US-ASCII");
+        assertArrayEquals(hello, decode(new byte[0], kTargetSegmentDelta));
+
+        // As the last delta, and as an earlier one
+        final byte[] dictionary = randomBytes(1000);
+        assertArrayEquals(hello, decode(dictionary, compose(Arrays.asList(
+                ByteBuffer.wrap(encode(dictionary, "hel".getBytes("US-ASCII"))),
+                ByteBuffer.wrap(kTargetSegmentDelta)
+        ), false)));
+
+        final byte[] target = "hello, hellohello world".getBytes("US-ASCII");
+        assertArrayEquals(target, decode(new byte[0], compose(Arrays.asList(
+                ByteBuffer.wrap(kTargetSegmentDelta),
+                ByteBuffer.wrap(encode(hello, target))
+        ), false)));
+    }
+
+    @Test
+    public void composedDeltaCopiesFromFirstDictionary() throws IOException {
+        final byte[] first = randomBytes(64 * 1024);
+        final byte[] second = edit(first);
+        final byte[] third = edit(second);
+
+        final byte[] composed = compose(Arrays.asList(
+                ByteBuffer.wrap(encode(first, second)),
+                ByteBuffer.wrap(encode(second, third))
+        ), false);
+        final byte[] direct = DeltaFixtures.encode(
+                VCDiffEncoderBuilder.builder().withDictionary(first).withNarrowSourceSegments(true), third, kWindowSize
+        );
+        assertArrayEquals(third, decode(first, composed));
+        assertTrue(composed.length + " vs " + direct.length, composed.length < direct.length * 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedDelta() throws IOException {
+        final byte[] first = randomBytes(8 * 1024);
+        final byte[] second = edit(first);
+        final byte[] delta = encode(first, second);
+        compose(Collections.singletonList(ByteBuffer.wrap(delta, 0, delta.length - 3)), false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCopiesPastPreviousTarget() throws IOException {
+        final byte[] first = randomBytes(8 * 1024);
+        final byte[] second = edit(first);
+        compose(Arrays.asList(
+                ByteBuffer.wrap(encode(first, Arrays.copyOf(second, 100))),
+                ByteBuffer.wrap(encode(second, edit(second)))
+        ), false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChecksums() {
+        VCDiffEncoderBuilder.builder().withChecksum(true).buildComposer();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoDeltas() throws IOException {
+        compose(Collections.<ByteBuffer>emptyList(), false);
+    }
+
+    private static byte[] compose(List<ByteBuffer> deltas, boolean interleaved) throws IOException {
+        VCDiffComposer composer = VCDiffEncoderBuilder.builder().withInterleaving(interleaved).buildComposer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        composer.compose(deltas, out);
+        return out.toByteArray();
+    }
+
+    // Encodes with the default options, one window per kWindowSize bytes
+    private static byte[] encode(byte[] dictionary, byte[] target) throws IOException {
+        return DeltaFixtures.encode(VCDiffEncoderBuilder.builder().withDictionary(dictionary), target, kWindowSize);
+    }
+
+    private byte[] randomBytes(int length) {
+        return DeltaFixtures.randomBytes(random, length);
+    }
+
+    private byte[] repeating(int length) {
+        final byte[] pattern = randomBytes(1 + random.nextInt(24));
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = pattern[i % pattern.length];
+        }
+        return bytes;
+    }
+
+    // Moves, deletes, replaces and inserts blocks of up to 200 bytes, and
+    // inserts runs
+    private byte[] edit(byte[] original) {
+        return DeltaFixtures.edit(random, original, 200, 2200, 200, true);
+    }
+}
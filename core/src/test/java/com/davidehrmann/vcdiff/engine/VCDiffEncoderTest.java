@@ -16,18 +16,28 @@
 
 package com.davidehrmann.vcdiff.engine;
 
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
 import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
 import com.davidehrmann.vcdiff.VCDiffEncoder;
 import com.davidehrmann.vcdiff.VCDiffStreamingDecoder;
 import com.davidehrmann.vcdiff.VCDiffStreamingEncoder;
+import com.davidehrmann.vcdiff.util.BufferPool;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+import com.davidehrmann.vcdiff.util.TargetStorage;
+import com.davidehrmann.vcdiff.util.VarInt;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -210,6 +220,225 @@ public class VCDiffEncoderTest extends VerifyEncodedBytesTest {
         }
     }
 
+    @Test
+    public void EncodeDecodeFixedChunkSizesThreadLocalPool() throws Exception {
+        TestWithBufferPool(BufferPool.threadLocal(), false);
+        TestWithBufferPool(BufferPool.threadLocal(), true);
+    }
+
+    @Test
+    public void EncodeDecodeFixedChunkSizesSharedPool() throws Exception {
+        TestWithBufferPool(BufferPool.shared(), false);
+        TestWithBufferPool(BufferPool.shared(), true);
+    }
+
+    // Encodes and decodes with every chunk size, creating a new encoder and
+    // decoder from the same pool each time, and checks that the pool's
+    // buffers were reused.
+    private void TestWithBufferPool(BufferPool pool, boolean interleaved) throws IOException {
+        VCDiffEncoderBuilder encoderBuilder = VCDiffEncoderBuilder.builder()
+                .withDictionary(dictionary_)
+                .withInterleaving(interleaved)
+                .withChecksum(true)
+                .withBufferPool(pool);
+        VCDiffDecoderBuilder decoderBuilder = VCDiffDecoderBuilder.builder()
+                .withBufferPool(pool);
+
+        for (int chunk_size = 1; chunk_size < target_.length; ++chunk_size) {
+            TestWithFixedChunkSize(encoderBuilder.buildStreaming(), decoderBuilder.buildStreaming(), chunk_size);
+        }
+
+        BufferPool.Statistics statistics = pool.getStatistics();
+        assertTrue(statistics.getReused() > statistics.getAllocated());
+    }
+
+    @Test
+    public void DecodeLargeWindowInSmallChunks() throws Exception {
+        TestLargeWindowInSmallChunks(false);
+        TestLargeWindowInSmallChunks(true);
+    }
+
+    // Encodes a multi-megabyte target as a single window, then decodes it in
+    // chunks the size of a TCP segment.  The decoder must not copy or re-parse
+    // the partial window every time a chunk arrives, or this becomes quadratic.
+    private void TestLargeWindowInSmallChunks(boolean interleaved) throws IOException {
+        final int kTargetSize = 2 << 20;
+        final int kChunkSize = 1460;
+
+        byte[] target = new byte[kTargetSize];
+        new Random(0x5eed).nextBytes(target);
+        for (int i = 0; i + kDictionary.length < kTargetSize; i += 4096) {
+            System.arraycopy(kDictionary, 0, target, i, kDictionary.length);
+        }
+
+        VCDiffEncoder<OutputStream> encoder = VCDiffEncoderBuilder.builder()
+                .withDictionary(kDictionary)
+                .withInterleaving(interleaved)
+                .withChecksum(true)
+                .buildSimple();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        encoder.encode(target, delta);
+        byte[] delta_bytes = delta.toByteArray();
+
+        VCDiffStreamingDecoder decoder = VCDiffDecoderBuilder.builder().buildStreaming();
+        ByteArrayOutputStream result = new ByteArrayOutputStream(kTargetSize);
+        decoder.startDecoding(kDictionary);
+        for (int start = 0; start < delta_bytes.length; start += kChunkSize) {
+            decoder.decodeChunk(delta_bytes, start, Math.min(kChunkSize, delta_bytes.length - start), result);
+        }
+        decoder.finishDecoding();
+        assertArrayEquals(target, result.toByteArray());
+    }
+
+    @Test
+    public void EncodeDecodeFixedChunkSizesSegmentedTarget() throws Exception {
+        VCDiffStreamingDecoder direct_decoder = VCDiffDecoderBuilder.builder()
+                .withTargetStorage(TargetStorage.direct(32))
+                .buildStreaming();
+        VCDiffStreamingDecoder mapped_decoder = VCDiffDecoderBuilder.builder()
+                .withTargetStorage(TargetStorage.memoryMapped(null, 32))
+                .buildStreaming();
+        for (int chunk_size = 1; chunk_size < target_.length; ++chunk_size) {
+            TestWithFixedChunkSize(encoder_, direct_decoder, chunk_size);
+            TestWithFixedChunkSize(encoder_, mapped_decoder, chunk_size);
+        }
+    }
+
+    // A target that's the dictionary with a small edit is a COPY of the
+    // common prefix, the edit, and a COPY of the common suffix.
+    @Test
+    public void EncodeDecodeSmallEditOfDictionary() throws Exception {
+        byte[] dictionary = new byte[1 << 20];
+        new Random(0xed17).nextBytes(dictionary);
+        byte[] target = new byte[dictionary.length + 100];
+        System.arraycopy(dictionary, 0, target, 0, 500000);
+        Arrays.fill(target, 500000, 500300, (byte) 'x');
+        System.arraycopy(dictionary, 500200, target, 500300, dictionary.length - 500200);
+
+        for (boolean targetMatches : new boolean[] { false, true }) {
+            VCDiffEncoder<OutputStream> encoder = VCDiffEncoderBuilder.builder()
+                    .withDictionary(dictionary)
+                    .withTargetMatches(targetMatches)
+                    .buildSimple();
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            encoder.encode(target, delta);
+            assertTrue(delta.size() < 300 + 100);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            simple_decoder_.decode(dictionary, delta.toByteArray(), result);
+            assertArrayEquals(target, result.toByteArray());
+        }
+    }
+
+    // With match acceleration, a target that starts with data matching
+    // nothing still finds the matches after it.
+    @Test
+    public void EncodeDecodeWithMatchAcceleration() throws Exception {
+        Random random = new Random(0xacce1);
+        byte[] dictionary = new byte[256 * 1024];
+        random.nextBytes(dictionary);
+        byte[] target = new byte[512 * 1024];
+        random.nextBytes(target);
+        for (int i = 0; i < 64; i++) {
+            // Blocks from all over the dictionary, after the incompressible part
+            System.arraycopy(dictionary, (i * 40009) % (dictionary.length - 4096), target, 256 * 1024 + i * 4096, 4096);
+        }
+
+        for (int acceleration : new int[] { 1, 8, 64 }) {
+            VCDiffEncoder<OutputStream> encoder = VCDiffEncoderBuilder.builder()
+                    .withDictionary(dictionary)
+                    .withMatchAcceleration(acceleration)
+                    .buildSimple();
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            encoder.encode(target, delta);
+            assertTrue(delta.size() < 256 * 1024 + 64 * 4096 / 2);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            simple_decoder_.decode(dictionary, delta.toByteArray(), result);
+            assertArrayEquals(target, result.toByteArray());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void NegativeMatchAcceleration() {
+        VCDiffEncoderBuilder.builder().withMatchAcceleration(-1);
+    }
+
+    // A target copied from the middle of a large dictionary gets a source
+    // segment covering only that part, which is all a decoder has to read.
+    @Test
+    public void EncodeDecodeNarrowSourceSegments() throws Exception {
+        byte[] dictionary = new byte[1 << 20];
+        new Random(0x5eed).nextBytes(dictionary);
+        byte[] target = new byte[64 * 1024];
+        for (int i = 0; i < target.length; i += 1024) {
+            // Mostly sequential, with an edited byte in each block
+            System.arraycopy(dictionary, 600000 + i, target, i, 1024);
+            target[i + 512] ^= 0x55;
+        }
+
+        byte[][] deltas = new byte[2][];
+        for (int narrow = 0; narrow < 2; narrow++) {
+            VCDiffEncoder<OutputStream> encoder = VCDiffEncoderBuilder.builder()
+                    .withDictionary(dictionary)
+                    .withNarrowSourceSegments(narrow == 1)
+                    .buildSimple();
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            encoder.encode(target, delta);
+            deltas[narrow] = delta.toByteArray();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            simple_decoder_.decode(dictionary, deltas[narrow], result);
+            assertArrayEquals(target, result.toByteArray());
+        }
+        assertTrue(deltas[1].length <= deltas[0].length);
+
+        ByteBuffer window = ByteBuffer.wrap(deltas[1], kFileHeaderSize, deltas[1].length - kFileHeaderSize);
+        assertEquals(VCDiffCodeTableWriterImpl.VCD_SOURCE, window.get());
+        final int segmentLength = VarInt.getInt(window);
+        final int segmentPosition = VarInt.getInt(window);
+        assertTrue(segmentPosition >= 600000);
+        assertTrue(segmentPosition + segmentLength <= 600000 + target.length);
+    }
+
+    // Decodes with the dictionary read from a file, both through a page cache
+    // much smaller than the dictionary and through a mapping.
+    @Test
+    public void EncodeDecodeWithDictionaryFromFile() throws Exception {
+        File file = File.createTempFile("vcdiff-dictionary", ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(dictionary_);
+            } finally {
+                out.close();
+            }
+
+            encoder_.startEncoding(delta_);
+            encoder_.encodeChunk(target_, delta_);
+            encoder_.finishEncoding(delta_);
+
+            DictionarySource[] sources = {
+                    DictionarySource.cached(new RandomAccessFile(file, "r").getChannel(), 8, 2),
+                    DictionarySource.memoryMapped(new RandomAccessFile(file, "r").getChannel()),
+            };
+            for (DictionarySource source : sources) {
+                try {
+                    result_target_.reset();
+                    decoder_.startDecoding(source);
+                    decoder_.decodeChunk(delta_.toByteArray(), result_target_);
+                    decoder_.finishDecoding();
+                    assertArrayEquals(target_, result_target_.toByteArray());
+                } finally {
+                    source.close();
+                }
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
     // If --allowVcdTarget=false is specified, the decoder will throw away some of
     // the internally-stored decoded target beyond the current window.  Try
     // different numbers of encoded window sizes to make sure that this behavior
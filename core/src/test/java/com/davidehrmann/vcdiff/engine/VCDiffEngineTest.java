@@ -768,11 +768,17 @@ public abstract class VCDiffEngineTest {
         // in the encoding.  The "moon-pie" text will be copied from the previously
         // encoded target.
         protected void CopyBoilerplateAndCopyMoonpie(short copy_mode, short moonpie_copy_mode, ByteBuffer actual) throws VarInt.VarIntParseException, VarInt.VarIntEndOfBufferException {
+            CopyBoilerplateAndCopyMoonpie(copy_mode, moonpie_copy_mode, true, actual);
+        }
+
+        // As above, but the trailing spaces after "moon-pie" are only part of
+        // the copy if include_trailing_spaces is true.
+        protected void CopyBoilerplateAndCopyMoonpie(short copy_mode, short moonpie_copy_mode, boolean include_trailing_spaces, ByteBuffer actual) throws VarInt.VarIntParseException, VarInt.VarIntEndOfBufferException {
             assertFalse(NoMoreMoonpies());
             ExpectCopyForSize(CurrentBoilerplateLength(), copy_mode, actual);
             ExpectAddress(FindBoilerplateAddressForCopyMode(copy_mode), copy_mode, actual);
             moonpie_copy_mode = UpdateCopyModeForMoonpie(moonpie_copy_mode);
-            ExpectCopyForSize(moonpie_text_.length + kTrailingSpaces, moonpie_copy_mode, actual);
+            ExpectCopyForSize(moonpie_text_.length + (include_trailing_spaces ? kTrailingSpaces : 0), moonpie_copy_mode, actual);
             ExpectAddress(FindMoonpieAddressForCopyMode(moonpie_copy_mode), moonpie_copy_mode, actual);
             copied_moonpie_address_ = dictionary_.length + LastMoonpiePosition();
         }
@@ -820,8 +826,11 @@ public abstract class VCDiffEngineTest {
             CopyBoilerplateAndCopyMoonpie((short) (VCDiffAddressCache.VCD_FIRST_NEAR_MODE + 1), default_cache_.FirstSameMode(), actual);
             FindNextMoonpie(true);
             CopyBoilerplateAndCopyMoonpie((short) (VCDiffAddressCache.VCD_FIRST_NEAR_MODE + 3), VCDiffAddressCache.VCD_HERE_MODE, actual);
-            FindNextMoonpie(true);
-            CopyBoilerplateAndCopyMoonpie((short) (VCDiffAddressCache.VCD_FIRST_NEAR_MODE + 1), default_cache_.FirstSameMode(), actual);
+            // The text after the last "moon-pie", including its trailing
+            // spaces, is the same as the end of the dictionary, so it's copied
+            // from there.
+            FindNextMoonpie(false);
+            CopyBoilerplateAndCopyMoonpie((short) (VCDiffAddressCache.VCD_FIRST_NEAR_MODE + 1), default_cache_.FirstSameMode(), false, actual);
             FindNextMoonpie(true);
             assertTrue(NoMoreMoonpies());
             ExpectCopyForSize(dictionary_.length - AfterLastWeasel(), VCDiffAddressCache.VCD_FIRST_NEAR_MODE + 3, actual);
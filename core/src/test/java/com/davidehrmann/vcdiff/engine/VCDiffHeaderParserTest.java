@@ -44,8 +44,8 @@ public class VCDiffHeaderParserTest {
 
     private void VerifyByte(byte expected_value) throws IOException {
         ByteBuffer unparsedData = parser.unparsedData();
-        byte decoded_byte = parser.parseByte();
-        assertEquals(expected_value, decoded_byte);
+        int decoded_byte = parser.parseByte();
+        assertEquals(expected_value & 0xff, decoded_byte);
         assertEquals(unparsedData.remaining() - 1, parser.unparsedData().remaining());
     }
 
@@ -58,17 +58,17 @@ public class VCDiffHeaderParserTest {
 
     private void VerifyUInt32(int expected_value) throws IOException {
         ByteBuffer prior_position = parser.unparsedData();
-        int decoded_integer = parser.parseUInt32("decoded uint32");
-        assertEquals(expected_value, decoded_integer);
-        assertEquals(prior_position.remaining(), parser.unparsedData().remaining() + VarInt.calculateLongLength(decoded_integer & 0xffffffffL));
+        long decoded_integer = parser.parseUInt32("decoded uint32");
+        assertEquals(expected_value & 0xffffffffL, decoded_integer);
+        assertEquals(prior_position.remaining(), parser.unparsedData().remaining() + VarInt.calculateLongLength(decoded_integer));
 
     }
 
     private void VerifyChecksum(int expected_value) throws IOException {
         ByteBuffer prior_position = parser.unparsedData();
-        int decoded_checksum = parser.parseChecksum("decoded checksum");
-        assertEquals(expected_value, decoded_checksum);
-        assertEquals(prior_position.remaining(), parser.unparsedData().remaining() + VarInt.calculateLongLength(decoded_checksum & 0xffffffffL));
+        long decoded_checksum = parser.parseChecksum("decoded checksum");
+        assertEquals(expected_value & 0xffffffffL, decoded_checksum);
+        assertEquals(prior_position.remaining(), parser.unparsedData().remaining() + VarInt.calculateLongLength(decoded_checksum));
     }
 
     @Test
@@ -88,7 +88,7 @@ public class VCDiffHeaderParserTest {
             VerifyByte(byte_values.get(position));
         }
 
-        assertNull(parser.parseByte());
+        assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.parseByte());
         assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.getResult());
 
         assertEquals(0, parser.unparsedData().remaining());
@@ -111,7 +111,7 @@ public class VCDiffHeaderParserTest {
             VerifyInt32(integer_values.get(i));
         }
 
-        assertNull(parser.parseInt32("decoded integer"));
+        assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.parseInt32("decoded integer"));
         assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.getResult());
         assertEquals(0, parser.unparsedData().remaining());
     }
@@ -133,7 +133,7 @@ public class VCDiffHeaderParserTest {
             VerifyUInt32(integer_values.get(i));
         }
 
-        assertNull(parser.parseUInt32("decoded integer"));
+        assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.parseUInt32("decoded integer"));
         assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.getResult());
         assertEquals(0, parser.unparsedData().remaining());
     }
@@ -156,7 +156,7 @@ public class VCDiffHeaderParserTest {
             VerifyChecksum(checksum_values.get(i));
         }
 
-        assertNull(parser.parseChecksum("decoded checksum"));
+        assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.parseChecksum("decoded checksum"));
         assertEquals(VCDiffHeaderParser.RESULT_END_OF_DATA, parser.getResult());
         assertEquals(0, parser.unparsedData().remaining());
     }
@@ -217,4 +217,34 @@ public class VCDiffHeaderParserTest {
         assertEquals(backup, parser.unparsedData());
     }
 
+    // Source segment positions within a dictionary read from a file can be past
+    // 2GB, though the length of the segment is still limited to an int.
+    @Test
+    public void ParseSourceSegmentPastIntLimit() throws Exception {
+        final long dictionary_size = 20L << 30;
+        final long position = dictionary_size - 4096;
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) VCDiffCodeTableWriterImpl.VCD_SOURCE);
+        VarInt.putInt(buffer, 4096);
+        VarInt.putLong(buffer, position);
+        buffer.flip();
+        StartParsing(buffer);
+
+        assertTrue(parser.parseWinIndicatorAndSourceSegment(dictionary_size, 0, true));
+        assertEquals(4096, parser.sourceSegmentLength);
+        assertEquals(position, parser.sourceSegmentPosition);
+        assertFalse(parser.unparsedData().hasRemaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void ParseSourceSegmentPastDictionary() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) VCDiffCodeTableWriterImpl.VCD_SOURCE);
+        VarInt.putInt(buffer, 1);
+        VarInt.putLong(buffer, 1L << 32);
+        buffer.flip();
+        StartParsing(buffer);
+
+        parser.parseWinIndicatorAndSourceSegment(1L << 32, 0, true);
+    }
 }
@@ -0,0 +1,239 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffInPlacePatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.BOTH;
+import static org.junit.Assert.*;
+
+public class VCDiffInPlacePatcherTest {
+
+    private static final int kWindowSize = 16 * 1024;
+    private static final int kScratchSize = 1024 * 1024;
+
+    // A delta, with no dictionary, to "hello" in one window, then "hello"
+    // again in a window whose source segment is the first (VCD_TARGET)
+    private static final byte[] kTargetSegmentDelta = {
+            (byte) 0xD6, (byte) 0xC3, (byte) 0xC4, 0x00, 0x00,
+            0x00, 0x0B, 0x05, 0x00, 0x05, 0x01, 0x00, 'h', 'e', 'l', 'l', 'o', 0x06,
+            0x02, 0x05, 0x00, 0x07, 0x05, 0x00, 0x00, 0x01, 0x01, 0x15, 0x00
+    };
+
+    private final Random random = new Random(0x1b1ace);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("vcdiff-in-place", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void patchesEditedFiles() throws IOException {
+        for (boolean interleaved : BOTH) {
+            for (boolean checksum : BOTH) {
+                for (boolean targetMatches : BOTH) {
+                    final String options = String.format(
+                            "interleaved %b, checksum %b, target matches %b", interleaved, checksum, targetMatches
+                    );
+                    final byte[] dictionary = randomBytes(200 * 1024);
+                    final byte[] target = edit(dictionary);
+                    VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                            .withDictionary(dictionary)
+                            .withInterleaving(interleaved)
+                            .withChecksum(checksum)
+                            .withTargetMatches(targetMatches);
+                    final byte[] delta = DeltaFixtures.encode(builder, target, kWindowSize);
+                    assertArrayEquals(options, target, patch(dictionary, delta, kScratchSize));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void breaksCycles() throws IOException {
+        // Swapping the halves makes each copy overwrite what the other reads
+        final byte[] dictionary = randomBytes(64 * 1024);
+        final byte[] target = new byte[dictionary.length];
+        System.arraycopy(dictionary, 32 * 1024, target, 0, 32 * 1024);
+        System.arraycopy(dictionary, 0, target, 32 * 1024, 32 * 1024);
+
+        final byte[] delta = encode(dictionary, target);
+        assertArrayEquals(target, patch(dictionary, delta, 32 * 1024));
+
+        // Without room for either half, the file is left as it was
+        try {
+            patch(dictionary, delta, 32 * 1024 - 1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("scratch"));
+            assertArrayEquals(dictionary, read());
+        }
+    }
+
+    @Test
+    public void shiftsOverlappingCopies() throws IOException {
+        final byte[] dictionary = randomBytes(300 * 1024);
+
+        // Inserting at the start moves everything after it back, and deleting
+        // at the start moves it forward
+        final byte[] inserted = new byte[dictionary.length + 10];
+        System.arraycopy(dictionary, 0, inserted, 10, dictionary.length);
+        final byte[] deleted = Arrays.copyOfRange(dictionary, 10, dictionary.length);
+
+        for (byte[] target : new byte[][] { inserted, deleted }) {
+            final byte[] delta = encodeOneWindow(dictionary, target);
+            assertArrayEquals(target, patch(dictionary, delta, 0));
+        }
+    }
+
+    @Test
+    public void growsAndShrinksFiles() throws IOException {
+        final byte[] dictionary = randomBytes(50 * 1024);
+        final byte[] longer = Arrays.copyOf(edit(dictionary), 80 * 1024);
+        final byte[] shorter = Arrays.copyOfRange(edit(dictionary), 1000, 20 * 1024);
+        for (byte[] target : new byte[][] { longer, shorter, new byte[0] }) {
+            assertArrayEquals(target, patch(dictionary, encode(dictionary, target), kScratchSize));
+        }
+    }
+
+    @Test
+    public void resolvesTargetCopies() throws IOException {
+        assertArrayEquals("hellohello".getBytes("US-ASCII"), patch(new byte[0], kTargetSegmentDelta, 0));
+
+        final byte[] dictionary = "0123456789abcdef0123456789abcdef".getBytes("US-ASCII");
+        final byte[] target = new byte[40 * 1024];
+        for (int i = 0; i < target.length; i++) {
+            target[i] = dictionary[(i * 7 / 5) % 24];
+        }
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                .withDictionary(dictionary)
+                .withChecksum(true)
+                .withTargetMatches(true);
+        assertArrayEquals(target, patch(dictionary, DeltaFixtures.encode(builder, target, kWindowSize), kScratchSize));
+    }
+
+    @Test
+    public void rejectsWrongDictionary() throws IOException {
+        final byte[] dictionary = randomBytes(50 * 1024);
+        final byte[] target = edit(dictionary);
+        final byte[] delta = encode(dictionary, target);
+
+        final byte[] other = dictionary.clone();
+        other[100] ^= 1;
+        try {
+            patch(other, delta, kScratchSize);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void rejectsCopiesPastEndOfFile() throws IOException {
+        final byte[] dictionary = randomBytes(50 * 1024);
+        final byte[] delta = encode(dictionary, edit(dictionary));
+
+        final byte[] shorter = Arrays.copyOf(dictionary, 40 * 1024);
+        try {
+            patch(shorter, delta, kScratchSize);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertArrayEquals(shorter, read());
+        }
+    }
+
+    @Test
+    public void rejectsLargeTargets() throws IOException {
+        final byte[] dictionary = randomBytes(10 * 1024);
+        final byte[] delta = encode(dictionary, edit(dictionary));
+        write(dictionary);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            VCDiffDecoderBuilder.builder().withMaxTargetFileSize(1000).buildInPlace(kScratchSize)
+                    .patch(raf.getChannel(), ByteBuffer.wrap(delta));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(dictionary, read());
+    }
+
+    // Writes dictionary to the file, patches it, and returns the result
+    private byte[] patch(byte[] dictionary, byte[] delta, int scratchSize) throws IOException {
+        write(dictionary);
+        final VCDiffInPlacePatcher patcher = VCDiffDecoderBuilder.builder().buildInPlace(scratchSize);
+        final ByteBuffer buffer = ByteBuffer.wrap(delta);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            patcher.patch(raf.getChannel(), buffer);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, buffer.position());
+        return read();
+    }
+
+    private void write(byte[] contents) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] read() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Encodes with checksums, one window per kWindowSize bytes
+    private static byte[] encode(byte[] dictionary, byte[] target) throws IOException {
+        return DeltaFixtures.encode(VCDiffEncoderBuilder.builder().withDictionary(dictionary).withChecksum(true), target, kWindowSize);
+    }
+
+    private static byte[] encodeOneWindow(byte[] dictionary, byte[] target) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        VCDiffEncoderBuilder.builder().withDictionary(dictionary).withChecksum(true).buildSimple().encode(target, delta);
+        return delta.toByteArray();
+    }
+
+    private byte[] randomBytes(int length) {
+        return DeltaFixtures.randomBytes(random, length);
+    }
+
+    // Moves, deletes, replaces and inserts blocks of up to 2000 bytes, and
+    // inserts runs
+    private byte[] edit(byte[] original) {
+        return DeltaFixtures.edit(random, original, 200, 4200, 2000, true);
+    }
+}
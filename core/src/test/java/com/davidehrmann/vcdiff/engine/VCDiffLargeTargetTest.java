@@ -15,6 +15,9 @@
 
 package com.davidehrmann.vcdiff.engine;
 
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffStreamingDecoder;
+import com.davidehrmann.vcdiff.util.BufferPool;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -22,6 +25,7 @@ import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class VCDiffLargeTargetTest extends VCDiffDecoderTest {
     protected final byte[] kLargeRunWindow = {
@@ -76,6 +80,73 @@ public class VCDiffLargeTargetTest extends VCDiffDecoderTest {
         decoder_.finishDecoding();
     }
 
+    // With allowVcdTarget set to true, the decoder keeps earlier windows, but only
+    // up to the int limit of its positions.  Past that, it flushes them, so the
+    // target can still grow past 2GB.
+    @Test
+    public void DecodePastIntLimitWithVcdTargetAllowed() throws Exception {
+        // 40 x 64MB = 2.5GB
+        final int kIterations = 40;
+        // Keeps at most one window besides the current one
+        decoder_.setMaximumTargetWindowSize(Integer.MAX_VALUE - 0x4000000);
+        decoder_.setMaximumTargetFileSize(0x4000000L * kIterations);
+        decoder_.startDecoding(dictionary_);
+        decoder_.decodeChunk(delta_file_header_, output_);
+
+        AssertRepeatedByteOutputStream out = new AssertRepeatedByteOutputStream((byte) 0xBE);
+        try {
+            for (int i = 0; i < kIterations; i++) {
+                decoder_.decodeChunk(kLargeRunWindow, out);
+            }
+        } finally {
+            out.close();
+        }
+
+        assertEquals(0x4000000L * kIterations, out.getSize());
+        decoder_.finishDecoding();
+    }
+
+    // With the default window limit, the decoder keeps almost 2GB of earlier
+    // windows in one heap array, so the array has to grow past 1GB, where
+    // doubling its size overflows.  That takes 3GB of old generation, and the
+    // test is skipped on smaller heaps; run it with
+    // -DargLine="-Xmx4g -XX:NewRatio=8".
+    @Test
+    public void DecodePastOneGigabyteInHeap() throws Exception {
+        assumeTrue("Needs a 3.5GB heap", Runtime.getRuntime().maxMemory() >= 3584L * 1024 * 1024);
+
+        for (BufferPool bufferPool : new BufferPool[] { BufferPool.unpooled(), BufferPool.shared() }) {
+            // 24 x 64MB = 1.5GB, all of it kept
+            final int kIterations = 24;
+            VCDiffStreamingDecoder decoder = VCDiffDecoderBuilder.builder()
+                    .withBufferPool(bufferPool)
+                    .withMaxTargetFileSize(0x4000000L * kIterations)
+                    .buildStreaming();
+            decoder.startDecoding(dictionary_);
+            decoder.decodeChunk(delta_file_header_, output_);
+
+            AssertRepeatedByteOutputStream out = new AssertRepeatedByteOutputStream((byte) 0xBE);
+            long acquiredAtOneGigabyte = 0;
+            try {
+                for (int i = 0; i < kIterations; i++) {
+                    decoder.decodeChunk(kLargeRunWindow, out);
+                    if (i == 16) {
+                        acquiredAtOneGigabyte = bufferPool.getStatistics().getAcquired();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            decoder.finishDecoding();
+
+            assertEquals(bufferPool.toString(), 0x4000000L * kIterations, out.getSize());
+
+            // Past 1GB, the target grows once, to the largest array, rather
+            // than once per window
+            assertTrue(bufferPool.toString(), bufferPool.getStatistics().getAcquired() - acquiredAtOneGigabyte <= 2);
+        }
+    }
+
     // If we don't increase the maximum target file size first, the same test should
     // produce an error.
     @Test
@@ -124,7 +195,7 @@ public class VCDiffLargeTargetTest extends VCDiffDecoderTest {
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             int end = off + len;
-            for (int i = off; i < len; i++) {
+            for (int i = off; i < end; i++) {
                 if (b[i] == repeated) {
                     size.getAndIncrement();
                 } else {
@@ -0,0 +1,155 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.BOTH;
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.decode;
+import static org.junit.Assert.*;
+
+public class VCDiffSignatureTest {
+
+    private static final int kBlockSize = 256;
+    private static final int kWindowSize = 16 * 1024;
+
+    private final Random random = new Random(0x51647);
+
+    @Test
+    public void encodesAgainstSignature() throws IOException {
+        final byte[] dictionary = randomBytes(200 * 1024 + 77);
+        final byte[] target = edit(dictionary);
+        final VCDiffSignature signature = VCDiffSignature.compute(dictionary, kBlockSize);
+
+        for (boolean interleaved : BOTH) {
+            for (boolean checksum : BOTH) {
+                for (boolean narrowSourceSegments : BOTH) {
+                    final String options = String.format(
+                            "interleaved %b, checksum %b, narrow source segments %b",
+                            interleaved, checksum, narrowSourceSegments
+                    );
+                    VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                            .withSignature(signature)
+                            .withInterleaving(interleaved)
+                            .withChecksum(checksum)
+                            .withNarrowSourceSegments(narrowSourceSegments);
+                    final byte[] delta = DeltaFixtures.encode(builder, target, kWindowSize);
+                    assertArrayEquals(options, target, decode(dictionary, delta));
+                    assertTrue(options + ": " + delta.length + " bytes", delta.length < target.length / 4);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void copiesShortLastBlock() throws IOException {
+        final byte[] dictionary = randomBytes(10 * kBlockSize + 100);
+        final byte[] appended = randomBytes(50);
+        final byte[] target = Arrays.copyOf(dictionary, dictionary.length + appended.length);
+        System.arraycopy(appended, 0, target, dictionary.length, appended.length);
+
+        final byte[] delta = encode(VCDiffSignature.compute(dictionary, kBlockSize), target);
+        assertArrayEquals(target, decode(dictionary, delta));
+        assertTrue(delta.length + " bytes", delta.length < appended.length + 40);
+    }
+
+    @Test
+    public void encodesSmallInputs() throws IOException {
+        final byte[] dictionary = randomBytes(kBlockSize / 2);
+        for (byte[] target : new byte[][] { new byte[0], randomBytes(10), dictionary, randomBytes(3 * kBlockSize) }) {
+            assertArrayEquals(target, decode(dictionary, encode(VCDiffSignature.compute(dictionary, kBlockSize), target)));
+        }
+
+        final byte[] target = randomBytes(1000);
+        assertArrayEquals(target, decode(new byte[0], encode(VCDiffSignature.compute(new byte[0], kBlockSize), target)));
+    }
+
+    @Test
+    public void serializes() throws IOException {
+        final byte[] dictionary = randomBytes(100 * kBlockSize + 1);
+        final VCDiffSignature signature = VCDiffSignature.compute(new ByteArrayInputStream(dictionary), kBlockSize);
+        assertArrayEquals(VCDiffSignature.compute(dictionary, kBlockSize).toByteArray(), signature.toByteArray());
+        assertEquals(kBlockSize, signature.blockSize());
+        assertEquals(dictionary.length, signature.dictionarySize());
+        assertEquals(101, signature.blockCount());
+
+        final byte[] serialized = signature.toByteArray();
+        assertEquals(12 + 100 * 12 + 8, serialized.length);
+        final VCDiffSignature copy = VCDiffSignature.fromByteArray(serialized);
+        assertArrayEquals(serialized, copy.toByteArray());
+        assertEquals(signature.dictionarySize(), copy.dictionarySize());
+
+        final byte[] target = edit(dictionary);
+        assertArrayEquals(encode(signature, target), encode(copy, target));
+    }
+
+    @Test
+    public void rejectsInvalidSignatures() {
+        final byte[] serialized = VCDiffSignature.compute(randomBytes(10 * kBlockSize), kBlockSize).toByteArray();
+        assertInvalid(Arrays.copyOf(serialized, serialized.length - 1));
+        assertInvalid(Arrays.copyOf(serialized, serialized.length + 1));
+        assertInvalid(new byte[0]);
+
+        final byte[] corrupt = serialized.clone();
+        corrupt[0] ^= 1;
+        assertInvalid(corrupt);
+
+        // Block size 8
+        final byte[] small = serialized.clone();
+        small[7] = 8;
+        assertInvalid(small);
+    }
+
+    @Test(expected = IOException.class)
+    public void checksumCatchesChangedDictionary() throws IOException {
+        final byte[] dictionary = randomBytes(50 * kBlockSize);
+        final byte[] target = edit(dictionary);
+        final byte[] delta = encode(VCDiffSignature.compute(dictionary, kBlockSize), target);
+
+        // Decoding against a dictionary other than the one the signature was
+        // computed from, as if two blocks' hashes had collided
+        final byte[] changed = dictionary.clone();
+        for (int i = 0; i < changed.length; i += kBlockSize) {
+            changed[i] ^= 1;
+        }
+        decode(changed, delta);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallBlocks() {
+        VCDiffSignature.compute(new byte[100], VCDiffSignature.MIN_BLOCK_SIZE - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeEstimator() {
+        VCDiffEncoderBuilder.builder().withSignature(VCDiffSignature.compute(new byte[100], kBlockSize)).buildSizeEstimator();
+    }
+
+    // Encodes with checksums, one window per kWindowSize bytes
+    private static byte[] encode(VCDiffSignature signature, byte[] target) throws IOException {
+        return DeltaFixtures.encode(VCDiffEncoderBuilder.builder().withSignature(signature).withChecksum(true), target, kWindowSize);
+    }
+
+    private static void assertInvalid(byte[] serialized) {
+        try {
+            VCDiffSignature.fromByteArray(serialized);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        return DeltaFixtures.randomBytes(random, length);
+    }
+
+    // Moves, deletes, replaces and inserts blocks of up to 200 bytes, a few
+    // thousand bytes apart
+    private byte[] edit(byte[] original) {
+        return DeltaFixtures.edit(random, original, 2000, 8000, 200, false);
+    }
+}
@@ -0,0 +1,90 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffSizeEstimate;
+import com.davidehrmann.vcdiff.VCDiffSizeEstimator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VCDiffSizeEstimatorTest {
+
+    private final byte[] dictionary = new byte[1 << 20];
+    private final byte[] target = new byte[1 << 20];
+
+    public VCDiffSizeEstimatorTest() {
+        // Half of the target is copied from the dictionary in 4KB pieces
+        Random random = new Random(0xe57);
+        random.nextBytes(dictionary);
+        random.nextBytes(target);
+        for (int i = 0; i < target.length; i += 8192) {
+            System.arraycopy(dictionary, random.nextInt(dictionary.length - 4096), target, i, 4096);
+        }
+    }
+
+    @Test
+    public void deltaSizeIsExact() throws IOException {
+        for (boolean interleaved : new boolean[] { false, true }) {
+            for (boolean checksum : new boolean[] { false, true }) {
+                for (boolean targetMatches : new boolean[] { false, true }) {
+                    VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                            .withInterleaving(interleaved)
+                            .withChecksum(checksum)
+                            .withTargetMatches(targetMatches);
+                    assertDeltaSizeIsExact(builder, String.format(
+                            "interleaved %b, checksum %b, target matches %b", interleaved, checksum, targetMatches
+                    ));
+                }
+            }
+        }
+    }
+
+    private void assertDeltaSizeIsExact(VCDiffEncoderBuilder builder, String options) throws IOException {
+        final byte[] small = VCDiffEncoderTest.kTarget;
+        builder.withDictionary(VCDiffEncoderTest.kDictionary);
+        assertEquals(options, encodedSize(builder, small), builder.buildSizeEstimator().deltaSize(small, 0, small.length));
+        assertEquals(options, encodedSize(builder, new byte[0]), builder.buildSizeEstimator().deltaSize(new byte[0], 0, 0));
+
+        builder.withDictionary(dictionary);
+        assertEquals(options, encodedSize(builder, target), builder.buildSizeEstimator().deltaSize(target, 0, target.length));
+    }
+
+    @Test
+    public void estimate() throws IOException {
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder().withDictionary(dictionary);
+        final long size = encodedSize(builder, target);
+
+        VCDiffSizeEstimate estimate = builder.buildSizeEstimator().estimateDeltaSize(target, 0, target.length, 0.05);
+        assertFalse(estimate.isExact());
+        assertTrue(estimate.error() > 0);
+        assertTrue(estimate + " vs " + size, estimate.lowerBound() <= size && size <= estimate.upperBound());
+        assertTrue(estimate.error() < size / 10);
+    }
+
+    @Test
+    public void smallTargetsAreEncoded() throws IOException {
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder().withDictionary(VCDiffEncoderTest.kDictionary);
+        final byte[] small = VCDiffEncoderTest.kTarget;
+
+        VCDiffSizeEstimate estimate = builder.buildSizeEstimator().estimateDeltaSize(small, 0, small.length, 0.01);
+        assertTrue(estimate.isExact());
+        assertEquals(0, estimate.error());
+        assertEquals(encodedSize(builder, small), estimate.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleFractionMustBePositive() throws IOException {
+        VCDiffSizeEstimator estimator = VCDiffEncoderBuilder.builder().withDictionary(dictionary).buildSizeEstimator();
+        estimator.estimateDeltaSize(target, 0, target.length, 0);
+    }
+
+    private static long encodedSize(VCDiffEncoderBuilder builder, byte[] target) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        builder.buildSimple().encode(target, delta);
+        return delta.size();
+    }
+}
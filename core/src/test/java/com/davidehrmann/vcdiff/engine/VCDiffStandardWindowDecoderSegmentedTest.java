@@ -0,0 +1,14 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.util.TargetStorage;
+
+// Runs the VCD_TARGET window tests against a segmented target whose segments
+// are small enough that copies cross segment boundaries.
+public class VCDiffStandardWindowDecoderSegmentedTest extends VCDiffStandardWindowDecoderTest {
+    public VCDiffStandardWindowDecoderSegmentedTest() {
+        decoder_ = VCDiffDecoderBuilder.builder()
+                .withTargetStorage(TargetStorage.direct(16))
+                .buildStreaming();
+    }
+}
@@ -83,6 +83,33 @@ public class VCDiffStandardWindowDecoderTest extends VCDiffStandardWindowDecoder
         }
     }
 
+    // The decoder keeps at most Integer.MAX_VALUE bytes of target data, less the
+    // maximum target window size.  Raising the window size limit shrinks what's
+    // kept to 140 bytes, so earlier windows are flushed partway through, but the
+    // VCD_TARGET windows only refer to data that's still kept.
+    @Test
+    public void DecodeFlushesRetainedTarget() throws Exception {
+        decoder_.setMaximumTargetWindowSize(Integer.MAX_VALUE - 140);
+        decoder_.startDecoding(dictionary_);
+        decoder_.decodeChunk(delta_file_, output_);
+        decoder_.finishDecoding();
+        Assert.assertArrayEquals(expected_target_, output_.toByteArray());
+    }
+
+    @Test
+    public void DecodeVcdTargetBeforeRetainedTarget() throws Exception {
+        // The first three windows (133 bytes) are flushed, and the fourth
+        // window's source segment starts at 46.
+        decoder_.setMaximumTargetWindowSize(Integer.MAX_VALUE - 100);
+        decoder_.startDecoding(dictionary_);
+        try {
+            thrown.expect(IOException.class);
+            decoder_.decodeChunk(delta_file_, output_);
+        } finally {
+            Assert.assertArrayEquals(Arrays.copyOf(expected_target_, 133), output_.toByteArray());
+        }
+    }
+
     @Test
     public void DecodeInTwoParts() throws Exception {
         final int delta_file_size = delta_file_.length;
@@ -0,0 +1,176 @@
+package com.davidehrmann.vcdiff.engine;
+
+import com.davidehrmann.vcdiff.VCDiffDecoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffEncoderBuilder;
+import com.davidehrmann.vcdiff.VCDiffRandomAccessReader;
+import com.davidehrmann.vcdiff.util.DictionarySource;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.davidehrmann.vcdiff.engine.DeltaFixtures.BOTH;
+import static org.junit.Assert.*;
+
+public class VCDiffWindowIndexTest {
+
+    private static final int kWindows = 40;
+    private static final int kWindowSize = 4096;
+
+    private final byte[] dictionary = new byte[64 * 1024];
+    private final byte[] target = new byte[kWindows * kWindowSize - 123];
+
+    public VCDiffWindowIndexTest() {
+        Random random = new Random(0x1de7);
+        random.nextBytes(dictionary);
+        random.nextBytes(target);
+        for (int i = 0; i < target.length; ) {
+            final int length = Math.min(40 + random.nextInt(61), target.length - i);
+            System.arraycopy(dictionary, random.nextInt(dictionary.length - length), target, i, length);
+            i += length + 1 + random.nextInt(4);
+        }
+    }
+
+    @Test
+    public void indexesEveryWindow() throws IOException {
+        for (boolean interleaved : BOTH) {
+            for (boolean checksum : BOTH) {
+                for (boolean tunedCodeTable : BOTH) {
+                    assertIndexesEveryWindow(encode(interleaved, checksum, tunedCodeTable), String.format(
+                            "interleaved %b, checksum %b, tuned code table %b", interleaved, checksum, tunedCodeTable
+                    ));
+                }
+            }
+        }
+    }
+
+    private void assertIndexesEveryWindow(byte[] delta, String options) throws IOException {
+        VCDiffWindowIndex index = VCDiffWindowIndex.build(ByteBuffer.wrap(delta));
+
+        assertEquals(options, delta.length, index.deltaSize());
+        assertEquals(options, kWindows, index.windowCount());
+        assertEquals(options, target.length, index.targetSize());
+        assertEquals(options, index.headerLength(), index.deltaOffset(0));
+        for (int i = 0; i < kWindows; i++) {
+            assertEquals(options, (long) i * kWindowSize, index.targetOffset(i));
+            assertFalse(options, index.copiesFromTarget(i));
+            assertEquals(options, i, index.windowContaining(index.targetOffset(i)));
+            assertEquals(options, i, index.windowContaining(index.targetOffset(i) + index.targetLength(i) - 1));
+        }
+        assertEquals(options, -1, index.windowContaining(target.length));
+        assertEquals(options, -1, index.windowContaining(-1));
+
+        VCDiffWindowIndex copy = VCDiffWindowIndex.fromByteArray(index.toByteArray());
+        assertArrayEquals(options, index.toByteArray(), copy.toByteArray());
+        assertEquals(options, index.targetSize(), copy.targetSize());
+        assertEquals(options, index.headerLength(), copy.headerLength());
+    }
+
+    @Test
+    public void readsRanges() throws IOException {
+        final Random random = new Random(0xacce55);
+        for (boolean interleaved : BOTH) {
+            for (boolean checksum : BOTH) {
+                for (boolean tunedCodeTable : BOTH) {
+                    assertReadsRanges(encode(interleaved, checksum, tunedCodeTable), random, String.format(
+                            "interleaved %b, checksum %b, tuned code table %b", interleaved, checksum, tunedCodeTable
+                    ));
+                }
+            }
+        }
+    }
+
+    private void assertReadsRanges(byte[] deltaBytes, Random random, String options) throws IOException {
+        final ByteBuffer delta = ByteBuffer.wrap(deltaBytes);
+        VCDiffRandomAccessReader reader = VCDiffDecoderBuilder.builder()
+                .buildRandomAccess(DictionarySource.wrap(ByteBuffer.wrap(dictionary)), delta);
+        assertEquals(options, target.length, reader.size());
+        assertEquals(options, 0, delta.position());
+
+        for (int i = 0; i < 50; i++) {
+            final int position = random.nextInt(target.length);
+            final ByteBuffer dst = ByteBuffer.allocate(random.nextInt(3 * kWindowSize));
+            final int read = reader.read(dst, position);
+            assertEquals(options, Math.min(dst.capacity(), target.length - position), read);
+            assertArrayEquals(options, Arrays.copyOfRange(target, position, position + read), Arrays.copyOf(dst.array(), read));
+        }
+
+        // Reading the whole target a chunk at a time decodes it in order
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(target.length);
+        for (long position = 0; position < reader.size(); ) {
+            position += reader.transferTo(position, 1000, out);
+        }
+        assertArrayEquals(options, target, out.toByteArray());
+
+        assertEquals(options, -1, reader.read(ByteBuffer.allocate(1), target.length));
+        assertEquals(options, 0, reader.transferTo(target.length, 10, out));
+    }
+
+    @Test
+    public void readsWithSavedIndex() throws IOException {
+        final byte[] delta = encode(true, true, true);
+        final byte[] saved = VCDiffWindowIndex.build(ByteBuffer.wrap(delta)).toByteArray();
+
+        VCDiffRandomAccessReader reader = VCDiffDecoderBuilder.builder().buildRandomAccess(
+                DictionarySource.wrap(ByteBuffer.wrap(dictionary)), ByteBuffer.wrap(delta), VCDiffWindowIndex.fromByteArray(saved)
+        );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2 * kWindowSize, reader.transferTo(kWindowSize / 2, 2 * kWindowSize, out));
+        assertArrayEquals(Arrays.copyOfRange(target, kWindowSize / 2, kWindowSize / 2 + 2 * kWindowSize), out.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIndexOfOtherDelta() throws IOException {
+        final byte[] delta = encode(false, false, false);
+        VCDiffWindowIndex other = VCDiffWindowIndex.build(ByteBuffer.wrap(encode(true, false, false)));
+        VCDiffDecoderBuilder.builder().buildRandomAccess(DictionarySource.wrap(ByteBuffer.wrap(dictionary)), ByteBuffer.wrap(delta), other);
+    }
+
+    @Test
+    public void rejectsInvalidIndexes() throws IOException {
+        final byte[] saved = VCDiffWindowIndex.build(ByteBuffer.wrap(encode(false, false, false))).toByteArray();
+        assertInvalid(Arrays.copyOf(saved, saved.length - 1));
+        assertInvalid(new byte[0]);
+
+        final byte[] corrupt = saved.clone();
+        corrupt[0] ^= 1;
+        assertInvalid(corrupt);
+
+        // Swaps the delta offsets of the first two windows
+        final byte[] reordered = saved.clone();
+        System.arraycopy(saved, 20 + 17, reordered, 20, 8);
+        System.arraycopy(saved, 20, reordered, 20 + 17, 8);
+        assertInvalid(reordered);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedDelta() throws IOException {
+        final byte[] delta = encode(false, false, false);
+        VCDiffWindowIndex.build(ByteBuffer.wrap(delta, 0, delta.length - 10));
+    }
+
+    // Encodes one window per kWindowSize bytes; a tuned code table is tuned
+    // to the first eight windows
+    private byte[] encode(boolean interleaved, boolean checksum, boolean tunedCodeTable) throws IOException {
+        VCDiffEncoderBuilder builder = VCDiffEncoderBuilder.builder()
+                .withDictionary(dictionary)
+                .withInterleaving(interleaved)
+                .withChecksum(checksum);
+        if (tunedCodeTable) {
+            builder.withCodeTableTunedTo(Arrays.copyOf(target, 8 * kWindowSize));
+        }
+        return DeltaFixtures.encode(builder, target, kWindowSize);
+    }
+
+    private static void assertInvalid(byte[] serialized) {
+        try {
+            VCDiffWindowIndex.fromByteArray(serialized);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.davidehrmann.vcdiff.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VCDiffVersionStoreTest {
+
+    private final Random random = new Random(0x5707e);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("vcdiff-store", ".tmp");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void readsEveryVersion() throws IOException {
+        final List<byte[]> versions = history(40, 16 * 1024);
+
+        // A cache too small to hold a version makes every read decode from
+        // the keyframe
+        for (long budget : new long[] { 0, 1024 * 1024 }) {
+            tearDown();
+            assertTrue(directory.mkdir());
+
+            VCDiffVersionStore store = new VCDiffVersionStore(directory, 8, budget);
+            try {
+                for (int i = 0; i < versions.size(); i++) {
+                    assertEquals(i, store.append("doc", versions.get(i)));
+                }
+                assertEquals(versions.size(), store.versionCount("doc"));
+                for (int i = versions.size() - 1; i >= 0; i--) {
+                    assertArrayEquals("version " + i, versions.get(i), store.read("doc", i));
+                }
+                assertKeyframes(store, versions.size(), 8);
+            } finally {
+                store.close();
+            }
+            assertTrue(new File(directory, "doc.vlog").length() < versions.size() * 16 * 1024 / 3);
+        }
+    }
+
+    @Test
+    public void persistsAcrossReopening() throws IOException {
+        final List<byte[]> versions = history(20, 8 * 1024);
+        VCDiffVersionStore store = new VCDiffVersionStore(directory, 6, 0);
+        try {
+            for (byte[] version : versions) {
+                store.append("a", version);
+            }
+            store.append("b", versions.get(0));
+        } finally {
+            store.close();
+        }
+
+        store = new VCDiffVersionStore(directory, 6, 0);
+        try {
+            assertEquals(Arrays.asList("a", "b"), store.documents());
+            assertEquals(versions.size(), store.versionCount("a"));
+            assertEquals(1, store.versionCount("b"));
+            assertEquals(0, store.versionCount("c"));
+            for (int i = 0; i < versions.size(); i++) {
+                assertArrayEquals(versions.get(i), store.read("a", i));
+            }
+
+            // Appending continues the chain
+            final byte[] next = edit(versions.get(versions.size() - 1));
+            assertEquals(versions.size(), store.append("a", next));
+            assertArrayEquals(next, store.read("a", versions.size()));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void dropsTornRecord() throws IOException {
+        final List<byte[]> versions = history(5, 4 * 1024);
+        VCDiffVersionStore store = new VCDiffVersionStore(directory);
+        try {
+            for (byte[] version : versions) {
+                store.append("doc", version);
+            }
+        } finally {
+            store.close();
+        }
+
+        // As if the last append had been interrupted
+        final File file = new File(directory, "doc.vlog");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        store = new VCDiffVersionStore(directory);
+        try {
+            assertEquals(versions.size() - 1, store.versionCount("doc"));
+            assertArrayEquals(versions.get(3), store.read("doc", 3));
+            assertEquals(4, store.append("doc", versions.get(4)));
+            assertArrayEquals(versions.get(4), store.read("doc", 4));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void rebasesLongChains() throws IOException {
+        final List<byte[]> versions = history(30, 8 * 1024);
+        VCDiffVersionStore store = new VCDiffVersionStore(directory, 100, 0);
+        try {
+            for (byte[] version : versions) {
+                store.append("doc", version);
+            }
+            assertKeyframes(store, versions.size(), 100);
+        } finally {
+            store.close();
+        }
+
+        store = new VCDiffVersionStore(directory, 4, 0);
+        try {
+            store.rebase("doc");
+            assertKeyframes(store, versions.size(), 4);
+            for (int i = 0; i < versions.size(); i++) {
+                assertArrayEquals(versions.get(i), store.read("doc", i));
+            }
+            assertEquals(Collections.singletonList("doc"), store.documents());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void storesUnrelatedVersionsWhole() throws IOException {
+        VCDiffVersionStore store = new VCDiffVersionStore(directory);
+        try {
+            store.append("doc", randomBytes(4096));
+            store.append("doc", randomBytes(4096));
+            assertTrue(store.isKeyframe("doc", 1));
+
+            store.append("doc", new byte[0]);
+            assertArrayEquals(new byte[0], store.read("doc", 2));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void cachesVersions() throws IOException {
+        final List<byte[]> versions = history(10, 4 * 1024);
+        VCDiffVersionStore store = new VCDiffVersionStore(directory, 32, 1024 * 1024);
+        try {
+            for (byte[] version : versions) {
+                store.append("doc", version);
+            }
+            final byte[] read = store.read("doc", 9);
+            read[0] ^= 1;
+            assertArrayEquals(versions.get(9), store.read("doc", 9));
+            assertTrue(store.toString(), store.toString().contains(" 10 versions,"));
+            assertTrue(store.toString(), store.toString().contains(" 11 hits, 0 misses"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void rejectsInvalidNames() throws IOException {
+        VCDiffVersionStore store = new VCDiffVersionStore(directory);
+        try {
+            for (String name : new String[] { "", ".", "..", ".hidden", "a/b", "a\\b", "doc name" }) {
+                try {
+                    store.append(name, new byte[1]);
+                    fail("Expected IllegalArgumentException for \"" + name + "\"");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsMissingVersion() throws IOException {
+        VCDiffVersionStore store = new VCDiffVersionStore(directory);
+        try {
+            store.append("doc", new byte[1]);
+            store.read("doc", 1);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(new File(directory, "doc.vlog"), "rw");
+        try {
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+
+        VCDiffVersionStore store = new VCDiffVersionStore(directory);
+        try {
+            store.versionCount("doc");
+        } finally {
+            store.close();
+        }
+    }
+
+    // Checks keyframes are never more than interval versions apart
+    private static void assertKeyframes(VCDiffVersionStore store, int versions, int interval) throws IOException {
+        assertTrue(store.isKeyframe("doc", 0));
+        int keyframe = 0;
+        for (int i = 1; i < versions; i++) {
+            if (store.isKeyframe("doc", i)) {
+                keyframe = i;
+            }
+            assertTrue("version " + i, i - keyframe < interval);
+        }
+    }
+
+    private List<byte[]> history(int count, int size) {
+        final List<byte[]> versions = new ArrayList<byte[]>();
+        versions.add(randomBytes(size));
+        for (int i = 1; i < count; i++) {
+            versions.add(edit(versions.get(i - 1)));
+        }
+        return versions;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Replaces or inserts a few short blocks
+    private byte[] edit(byte[] original) {
+        final ByteArrayOutputStream edited = new ByteArrayOutputStream(original.length + 256);
+        int position = 0;
+        while (position < original.length) {
+            final int kept = Math.min(original.length - position, 500 + random.nextInt(4000));
+            edited.write(original, position, kept);
+            position += kept;
+
+            final byte[] inserted = randomBytes(1 + random.nextInt(32));
+            edited.write(inserted, 0, inserted.length);
+            if (random.nextBoolean()) {
+                position += Math.min(original.length - position, inserted.length);
+            }
+        }
+        return edited.toByteArray();
+    }
+}
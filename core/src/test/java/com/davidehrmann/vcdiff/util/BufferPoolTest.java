@@ -0,0 +1,109 @@
+package com.davidehrmann.vcdiff.util;
+
+import com.davidehrmann.vcdiff.mina_buffer.IoBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void unpooledNeverReuses() {
+        BufferPool pool = BufferPool.unpooled();
+        assertFalse(pool.recyclesBuffers());
+
+        BufferPool.Statistics before = pool.getStatistics();
+        IoBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.capacity() >= 100);
+        assertEquals(0, buffer.position());
+        pool.release(buffer);
+
+        BufferPool.Statistics after = pool.getStatistics();
+        assertEquals(1, after.getAcquired() - before.getAcquired());
+        assertEquals(1, after.getReleased() - before.getReleased());
+        assertEquals(0, after.getReused());
+        assertEquals(0, after.getRecycled());
+    }
+
+    @Test
+    public void threadLocalReusesReleasedBuffer() {
+        BufferPool pool = BufferPool.threadLocal();
+        assertTrue(pool.recyclesBuffers());
+
+        IoBuffer first = pool.acquire(1000);
+        byte[] array = first.array();
+        pool.release(first);
+
+        IoBuffer second = pool.acquire(900);
+        assertSame(array, second.array());
+        assertEquals(0, second.position());
+        assertTrue(second.isAutoExpand());
+
+        BufferPool.Statistics statistics = pool.getStatistics();
+        assertEquals(2, statistics.getAcquired());
+        assertEquals(1, statistics.getReleased());
+        assertEquals(1, statistics.getAllocated());
+        assertEquals(1, statistics.getReused());
+        assertEquals(1, statistics.getRecycled());
+    }
+
+    @Test
+    public void threadLocalIgnoresReleaseFromOtherThread() throws Exception {
+        final BufferPool pool = BufferPool.threadLocal();
+        final IoBuffer buffer = pool.acquire(64);
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                pool.release(buffer);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertEquals(0, pool.getStatistics().getRecycled());
+    }
+
+    @Test
+    public void sharedReusesBufferAcrossThreads() throws Exception {
+        final BufferPool pool = BufferPool.shared();
+        final IoBuffer buffer = pool.acquire(64);
+        byte[] array = buffer.array();
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                pool.release(buffer);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertSame(array, pool.acquire(64).array());
+        assertEquals(1, pool.getStatistics().getReused());
+    }
+
+    @Test
+    public void oversizedBuffersAreNotCached() {
+        BufferPool pool = BufferPool.threadLocal(8, 1024);
+        pool.release(pool.acquire(4096));
+        pool.acquire(4096);
+
+        BufferPool.Statistics statistics = pool.getStatistics();
+        assertEquals(2, statistics.getAllocated());
+        assertEquals(0, statistics.getReused());
+    }
+
+    @Test
+    public void expansionRecyclesOldBuffer() {
+        BufferPool pool = BufferPool.threadLocal();
+        IoBuffer buffer = pool.acquire(16);
+        buffer.put(new byte[100]);
+        assertEquals(100, buffer.position());
+        assertEquals(1, pool.getStatistics().getRecycled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeCapacity() {
+        BufferPool.shared().acquire(-1);
+    }
+}
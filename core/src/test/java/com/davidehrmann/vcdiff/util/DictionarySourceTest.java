@@ -0,0 +1,153 @@
+package com.davidehrmann.vcdiff.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DictionarySourceTest {
+    private final byte[] contents = new byte[1000];
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(contents);
+        file = File.createTempFile("vcdiff-dictionary", ".tmp");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void wrap() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        buffer.position(100);
+        DictionarySource source = DictionarySource.wrap(buffer);
+        assertEquals(contents.length, source.size());
+
+        // The whole range comes back at once
+        ByteBuffer read = source.read(10, 500);
+        assertEquals(500, read.remaining());
+        assertEquals(contents[10], read.get());
+        verifyReads(source);
+    }
+
+    @Test
+    public void cached() throws IOException {
+        DictionarySource source = DictionarySource.cached(openChannel(), 64, 3);
+        try {
+            assertEquals(contents.length, source.size());
+
+            // Reads stop at the end of a page
+            ByteBuffer read = source.read(60, 10);
+            assertEquals(4, read.remaining());
+            assertEquals(contents[60], read.get());
+
+            // Reading every page in turn evicts each one before it's read
+            // again, so pages are reloaded into reused buffers.
+            verifyReads(source);
+            verifyReads(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void cachedLastPageIsShort() throws IOException {
+        DictionarySource source = DictionarySource.cached(openChannel(), 256, 1);
+        try {
+            ByteBuffer read = source.read(990, 10);
+            assertEquals(10, read.remaining());
+            assertEquals(contents[999], read.get(read.limit() - 1));
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void memoryMapped() throws IOException {
+        DictionarySource source = DictionarySource.memoryMapped(openChannel());
+        try {
+            assertEquals(contents.length, source.size());
+            verifyReads(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void closeClosesChannel() throws IOException {
+        FileChannel channel = openChannel();
+        DictionarySource.cached(channel).close();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readPastEnd() throws IOException {
+        DictionarySource.wrap(ByteBuffer.wrap(contents)).read(contents.length - 1, 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readNothing() throws IOException {
+        DictionarySource source = DictionarySource.cached(openChannel());
+        try {
+            source.read(0, 0);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageSizeMustBePowerOfTwo() throws IOException {
+        DictionarySource.cached(openChannel(), 1000, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxPagesMustBePositive() throws IOException {
+        DictionarySource.cached(openChannel(), 1024, 0);
+    }
+
+    private FileChannel openChannel() throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    // Reads ranges of several sizes, in pieces as the source returns them.
+    private void verifyReads(DictionarySource source) throws IOException {
+        for (int length : new int[] { 1, 7, 64, 65, 300, contents.length }) {
+            for (int position = 0; position + length <= contents.length; position += 97) {
+                ByteArrayOutputStream read = new ByteArrayOutputStream();
+                while (read.size() < length) {
+                    ByteBuffer piece = source.read(position + read.size(), length - read.size());
+                    assertTrue(piece.hasRemaining());
+                    byte[] bytes = new byte[piece.remaining()];
+                    piece.get(bytes);
+                    read.write(bytes);
+                }
+
+                byte[] expected = new byte[length];
+                System.arraycopy(contents, position, expected, 0, length);
+                assertArrayEquals(expected, read.toByteArray());
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.davidehrmann.vcdiff.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TargetStorageTest {
+    @Test
+    public void heapIsNotSegmented() {
+        assertFalse(TargetStorage.heap().isSegmented());
+        assertEquals(0, TargetStorage.heap().getSegmentSize());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void heapHasNoSegmentAllocator() {
+        TargetStorage.heap().newSegmentAllocator();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void segmentSizeMustBePowerOfTwo() {
+        TargetStorage.direct(1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void segmentSizeMustBePositive() {
+        TargetStorage.memoryMapped(null, 0);
+    }
+
+    @Test
+    public void directSegments() throws IOException {
+        TargetStorage storage = TargetStorage.direct(4096);
+        assertTrue(storage.isSegmented());
+        assertFalse(storage.isMemoryMapped());
+
+        ByteBuffer segment = storage.newSegmentAllocator().allocateSegment();
+        assertTrue(segment.isDirect());
+        assertEquals(4096, segment.remaining());
+    }
+
+    @Test
+    public void mappedSegmentsUseTemporaryFile() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "vcdiff-target-storage-test-" + System.nanoTime());
+        assertTrue(directory.mkdir());
+        try {
+            TargetStorage storage = TargetStorage.memoryMapped(directory, 4096);
+            assertTrue(storage.isMemoryMapped());
+
+            TargetStorage.SegmentAllocator allocator = storage.newSegmentAllocator();
+            assertEquals(0, directory.list().length);
+
+            ByteBuffer first = allocator.allocateSegment();
+            ByteBuffer second = allocator.allocateSegment();
+            assertEquals(4096, first.remaining());
+            assertEquals(4096, second.remaining());
+            assertEquals(1, directory.list().length);
+
+            allocator.close();
+            assertEquals(0, directory.list().length);
+
+            // The allocator can be used again after close()
+            allocator.allocateSegment();
+            allocator.close();
+        } finally {
+            assertTrue(directory.delete());
+        }
+    }
+}
@@ -101,6 +101,76 @@ public class VarIntTest {
         }
     }
 
+    @Test
+    public void parseIntTruncatedTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        VarInt.putInt(buffer, Integer.MAX_VALUE);
+        buffer.flip();
+
+        for (int limit = 0; limit < 5; limit++) {
+            buffer.limit(limit);
+            assertEquals(VarInt.END_OF_BUFFER, VarInt.parseInt(buffer));
+            assertEquals(0, buffer.position());
+        }
+
+        buffer.limit(5);
+        assertEquals(Integer.MAX_VALUE, VarInt.parseInt(buffer));
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    public void parseIntInvalidTest() {
+        // Too many bytes with continuation bits
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x00
+        });
+        assertEquals(VarInt.PARSE_ERROR, VarInt.parseInt(buffer));
+        assertEquals(0, buffer.position());
+
+        // Larger than Integer.MAX_VALUE
+        buffer = ByteBuffer.wrap(new byte[]{
+                (byte) 0x88, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x00
+        });
+        assertEquals(VarInt.PARSE_ERROR, VarInt.parseInt(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void parseLongTruncatedTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        VarInt.putLong(buffer, Long.MAX_VALUE);
+        buffer.flip();
+        final int length = buffer.limit();
+
+        for (int limit = 0; limit < length; limit++) {
+            buffer.limit(limit);
+            assertEquals(VarInt.END_OF_BUFFER, VarInt.parseLong(buffer));
+            assertEquals(0, buffer.position());
+        }
+
+        buffer.limit(length);
+        assertEquals(Long.MAX_VALUE, VarInt.parseLong(buffer));
+        assertEquals(length, buffer.position());
+    }
+
+    @Test
+    public void parseLongInvalidTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < 10; i++) {
+            buffer.put((byte) 0x80);
+        }
+        buffer.put((byte) 0x00);
+        buffer.flip();
+
+        assertEquals(VarInt.PARSE_ERROR, VarInt.parseLong(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test(expected = VarInt.VarIntEndOfBufferException.class)
+    public void getIntTruncatedTest() throws VarInt.VarIntParseException, VarInt.VarIntEndOfBufferException {
+        VarInt.getInt(ByteBuffer.wrap(new byte[]{(byte) 0x81}));
+    }
+
     @Test
     public void longMatchesSpecTest() {
         ByteBuffer buffer = ByteBuffer.allocate(16);